@@ -0,0 +1,586 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.hl7.fhir.instance.model.Bundle;
+import org.mitre.ptmatchadapter.MessageRetriever;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Polls the FHIR server for record match request messages, adjusting the
+ * interval between polls to the message traffic.
+ *
+ * <p>
+ * A poll that retrieves a new message (i.e., one that advances the message
+ * retriever's cursor) sets the interval to {@code minIntervalMillis}, so a
+ * burst of requests is picked up promptly. Each poll that finds nothing new
+ * multiplies the interval by {@code backoffMultiplier}, up to
+ * {@code maxIntervalMillis}, so an idle adapter seldom polls. Failed searches
+ * count as finding nothing, so an unavailable server is not polled rapidly.
+ * </p>
+ *
+ * <p>
+ * Retrieved messages are sent to {@code producerEndpointUri}. While any of
+ * the {@code watchedEndpointUris} queues holds {@code maxQueuedMessages} or
+ * more messages, or the {@code jobScheduler} holds {@code maxQueuedJobs} or
+ * more jobs waiting for a worker, polling is paused and the queues are
+ * checked again every {@code saturatedRecheckMillis}. The job scheduler's
+ * queue is the one that grows when matching falls behind, since requests
+ * pass through the seda queues as soon as they arrive.
+ * </p>
+ *
+ * <p>
+ * {@link #pollSoon()} asks for a poll without waiting for the interval to
+ * elapse (e.g., when a FHIR server notifies the adapter of a new message).
+ * </p>
+ *
+ * <p>
+ * Poll latency, hit rate and the current interval are exposed as JMX
+ * attributes.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@ManagedResource(objectName = "org.mitre.ptmatchadapter:type=AdaptiveMessagePoller",
+    description = "Adaptive record match request poller")
+public class AdaptiveMessagePoller {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AdaptiveMessagePoller.class);
+
+  private MessageRetriever messageRetriever;
+
+  private ProducerTemplate producer;
+
+  /** endpoint to which retrieved messages are sent. */
+  private String producerEndpointUri = "seda:msgIn";
+
+  /** seda endpoints whose queue depth pauses polling. */
+  private List<String> watchedEndpointUris = new ArrayList<String>();
+
+  /** queue depth at which a watched endpoint is saturated. */
+  private volatile int maxQueuedMessages = 100;
+
+  /** runs record match jobs; null to not watch its queue. */
+  private RecordMatchJobScheduler jobScheduler;
+
+  /** number of jobs waiting for a worker at which polling pauses. */
+  private volatile int maxQueuedJobs = 10;
+
+  private volatile long minIntervalMillis = 500L;
+  private volatile long maxIntervalMillis = 45L * 1000L;
+  private volatile double backoffMultiplier = 2.0;
+  private volatile long saturatedRecheckMillis = 1000L;
+
+  /** delay before the first poll. */
+  private long initialDelayMillis = 1000L;
+
+  private ScheduledExecutorService executor;
+
+  /** next scheduled poll; guarded by this. */
+  private ScheduledFuture<?> nextPoll;
+  /** sequence number of the next scheduled poll; guarded by this. */
+  private long pollSeq = 0;
+  /** true while a poll runs; guarded by this. */
+  private boolean polling = false;
+  /** true when a poll was requested while one was running; guarded by this. */
+  private boolean pollRequested = false;
+
+  private volatile long currentIntervalMillis = minIntervalMillis;
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong failedPolls = new AtomicLong();
+  private final AtomicLong pausedPolls = new AtomicLong();
+  private final AtomicLong totalPollMillis = new AtomicLong();
+  private final AtomicLong lastPollMillis = new AtomicLong();
+  private final AtomicLong maxPollMillis = new AtomicLong();
+
+  /**
+   * Starts polling.
+   */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    currentIntervalMillis = minIntervalMillis;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, "message-poller");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    schedulePoll(initialDelayMillis);
+    LOG.info("Message poller started, interval: {} - {} ms", minIntervalMillis,
+        maxIntervalMillis);
+  }
+
+  /**
+   * Stops polling. A poll in progress is interrupted.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+      nextPoll = null;
+      polling = false;
+      pollRequested = false;
+      LOG.info("Message poller stopped");
+    }
+  }
+
+  /**
+   * Polls as soon as possible, rather than when the current interval
+   * elapses. When a poll is running, another follows it right away.
+   */
+  public synchronized void pollSoon() {
+    if (executor == null) {
+      return;
+    }
+    if (polling) {
+      pollRequested = true;
+    } else if (nextPoll == null || nextPoll.cancel(false)) {
+      LOG.debug("Poll requested");
+      schedulePoll(0L);
+    }
+  }
+
+  /**
+   * Replaces any scheduled poll with one after the given delay.
+   */
+  private synchronized void schedulePoll(long delayMillis) {
+    final PollTask task = new PollTask(executor, ++pollSeq);
+    nextPoll = executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Polls once and schedules the next poll, for as long as the executor runs.
+   */
+  private final class PollTask implements Runnable {
+    private final ScheduledExecutorService exec;
+    private final long seq;
+
+    PollTask(ScheduledExecutorService exec, long seq) {
+      this.exec = exec;
+      this.seq = seq;
+    }
+
+    @Override
+    public void run() {
+      synchronized (AdaptiveMessagePoller.this) {
+        // a poll that was replaced by pollSoon() may already have started
+        if (executor != exec || seq != pollSeq) {
+          return;
+        }
+        polling = true;
+      }
+
+      long delay = maxIntervalMillis;
+      try {
+        delay = pollOnce();
+      } catch (RuntimeException e) {
+        LOG.error("Unexpected error while polling for messages", e);
+      }
+
+      synchronized (AdaptiveMessagePoller.this) {
+        if (executor == exec) {
+          polling = false;
+          if (pollRequested) {
+            pollRequested = false;
+            delay = 0L;
+          }
+          schedulePoll(delay);
+        }
+      }
+    }
+  }
+
+  /**
+   * Polls the server unless a watched queue is saturated.
+   *
+   * @return number of milliseconds until the next poll
+   */
+  final long pollOnce() {
+    final String saturated = findSaturatedEndpoint();
+    if (saturated != null) {
+      pausedPolls.incrementAndGet();
+      LOG.debug("Polling paused, {} is saturated", saturated);
+      return saturatedRecheckMillis;
+    }
+
+    final Date before = messageRetriever.getCursor();
+    final long t0 = System.nanoTime();
+    final Bundle results = messageRetriever.doSearch();
+    final long pollMillis = (System.nanoTime() - t0) / 1000000L;
+    final Date after = messageRetriever.getCursor();
+
+    polls.incrementAndGet();
+    totalPollMillis.addAndGet(pollMillis);
+    lastPollMillis.set(pollMillis);
+    long max = maxPollMillis.get();
+    while (pollMillis > max && !maxPollMillis.compareAndSet(max, pollMillis)) {
+      max = maxPollMillis.get();
+    }
+
+    boolean hit = false;
+    if (results == null) {
+      failedPolls.incrementAndGet();
+    } else if (!results.getEntry().isEmpty()) {
+      hit = after != null && (before == null || after.after(before));
+      producer.sendBody(producerEndpointUri, results);
+    }
+
+    final long interval;
+    if (hit) {
+      hits.incrementAndGet();
+      interval = minIntervalMillis;
+    } else {
+      interval = Math.max(minIntervalMillis, Math.min(maxIntervalMillis,
+          (long) (currentIntervalMillis * backoffMultiplier)));
+    }
+    if (interval != currentIntervalMillis) {
+      LOG.debug("Poll interval changed to {} ms", interval);
+    }
+    currentIntervalMillis = interval;
+    return interval;
+  }
+
+  /**
+   * @return uri of a watched endpoint holding too many messages; null when
+   *         there is none
+   */
+  private String findSaturatedEndpoint() {
+    for (String uri : watchedEndpointUris) {
+      if (getQueueSize(uri) >= maxQueuedMessages) {
+        return uri;
+      }
+    }
+    if (getJobQueueDepth() >= maxQueuedJobs) {
+      return "the record match job queue";
+    }
+    return null;
+  }
+
+  /**
+   * @return number of record match jobs waiting for a worker; 0 when no job
+   *         scheduler is watched
+   */
+  protected int getJobQueueDepth() {
+    return jobScheduler == null ? 0 : jobScheduler.getQueueDepth();
+  }
+
+  /**
+   * @param uri
+   *          uri of a seda endpoint
+   * @return number of messages waiting at the endpoint; 0 when the endpoint
+   *         does not exist or is not a seda endpoint
+   */
+  protected int getQueueSize(String uri) {
+    final Endpoint endpoint = producer.getCamelContext().hasEndpoint(uri);
+    if (endpoint instanceof SedaEndpoint) {
+      return ((SedaEndpoint) endpoint).getCurrentQueueSize();
+    }
+    return 0;
+  }
+
+  /**
+   * @return number of milliseconds until the next poll, when not paused
+   */
+  @ManagedAttribute(description = "Current interval between polls (ms)")
+  public final long getCurrentIntervalMillis() {
+    return currentIntervalMillis;
+  }
+
+  /**
+   * @return number of searches performed since startup
+   */
+  @ManagedAttribute(description = "Number of searches performed")
+  public final long getPolls() {
+    return polls.get();
+  }
+
+  /**
+   * @return number of searches that retrieved a new message
+   */
+  @ManagedAttribute(description = "Number of searches that retrieved a new message")
+  public final long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return percentage of searches that retrieved a new message
+   */
+  @ManagedAttribute(description = "Percentage of searches that retrieved a new message")
+  public final double getHitRate() {
+    final long n = polls.get();
+    return n == 0 ? 0. : hits.get() * 100. / n;
+  }
+
+  /**
+   * @return number of searches that failed
+   */
+  @ManagedAttribute(description = "Number of searches that failed")
+  public final long getFailedPolls() {
+    return failedPolls.get();
+  }
+
+  /**
+   * @return number of polls skipped because a watched queue was saturated
+   */
+  @ManagedAttribute(description = "Number of polls skipped while a queue was saturated")
+  public final long getPausedPolls() {
+    return pausedPolls.get();
+  }
+
+  /**
+   * @return duration of the most recent search in milliseconds
+   */
+  @ManagedAttribute(description = "Duration of the last search (ms)")
+  public final long getLastPollMillis() {
+    return lastPollMillis.get();
+  }
+
+  /**
+   * @return longest search duration in milliseconds
+   */
+  @ManagedAttribute(description = "Longest search duration (ms)")
+  public final long getMaxPollMillis() {
+    return maxPollMillis.get();
+  }
+
+  /**
+   * @return mean search duration in milliseconds
+   */
+  @ManagedAttribute(description = "Mean search duration (ms)")
+  public final long getMeanPollMillis() {
+    final long n = polls.get();
+    return n == 0 ? 0 : totalPollMillis.get() / n;
+  }
+
+  /**
+   * @return the messageRetriever
+   */
+  public final MessageRetriever getMessageRetriever() {
+    return messageRetriever;
+  }
+
+  /**
+   * @param messageRetriever
+   *          performs the search for record match request messages
+   */
+  public final void setMessageRetriever(MessageRetriever messageRetriever) {
+    this.messageRetriever = messageRetriever;
+  }
+
+  /**
+   * @return the producer
+   */
+  public final ProducerTemplate getProducer() {
+    return producer;
+  }
+
+  /**
+   * @param producer
+   *          sends retrieved messages to the producer endpoint
+   */
+  public final void setProducer(ProducerTemplate producer) {
+    this.producer = producer;
+  }
+
+  /**
+   * @return the producerEndpointUri
+   */
+  public final String getProducerEndpointUri() {
+    return producerEndpointUri;
+  }
+
+  /**
+   * @param producerEndpointUri
+   *          endpoint to which retrieved messages are sent
+   */
+  public final void setProducerEndpointUri(String producerEndpointUri) {
+    this.producerEndpointUri = producerEndpointUri;
+  }
+
+  /**
+   * @return the watchedEndpointUris
+   */
+  public final List<String> getWatchedEndpointUris() {
+    return watchedEndpointUris;
+  }
+
+  /**
+   * @param watchedEndpointUris
+   *          seda endpoints whose queue depth pauses polling
+   */
+  public final void setWatchedEndpointUris(List<String> watchedEndpointUris) {
+    this.watchedEndpointUris = new ArrayList<String>(watchedEndpointUris);
+  }
+
+  /**
+   * @return the queue depth at which a watched endpoint is saturated
+   */
+  @ManagedAttribute(description = "Queue depth at which polling pauses")
+  public final int getMaxQueuedMessages() {
+    return maxQueuedMessages;
+  }
+
+  /**
+   * @param maxQueuedMessages
+   *          the queue depth at which a watched endpoint is saturated
+   */
+  @ManagedAttribute
+  public final void setMaxQueuedMessages(int maxQueuedMessages) {
+    this.maxQueuedMessages = maxQueuedMessages;
+  }
+
+  /**
+   * @return the jobScheduler
+   */
+  public final RecordMatchJobScheduler getJobScheduler() {
+    return jobScheduler;
+  }
+
+  /**
+   * @param jobScheduler
+   *          scheduler whose queue of waiting jobs pauses polling
+   */
+  public final void setJobScheduler(RecordMatchJobScheduler jobScheduler) {
+    this.jobScheduler = jobScheduler;
+  }
+
+  /**
+   * @return the number of waiting jobs at which polling pauses
+   */
+  @ManagedAttribute(description = "Number of waiting jobs at which polling pauses")
+  public final int getMaxQueuedJobs() {
+    return maxQueuedJobs;
+  }
+
+  /**
+   * @param maxQueuedJobs
+   *          number of jobs waiting for a worker at which polling pauses
+   */
+  @ManagedAttribute
+  public final void setMaxQueuedJobs(int maxQueuedJobs) {
+    this.maxQueuedJobs = maxQueuedJobs;
+  }
+
+  /**
+   * @return the shortest interval between polls in milliseconds
+   */
+  @ManagedAttribute(description = "Shortest interval between polls (ms)")
+  public final long getMinIntervalMillis() {
+    return minIntervalMillis;
+  }
+
+  /**
+   * @param minIntervalMillis
+   *          the shortest interval between polls in milliseconds
+   */
+  @ManagedAttribute
+  public final void setMinIntervalMillis(long minIntervalMillis) {
+    if (minIntervalMillis < 1) {
+      throw new IllegalArgumentException("minIntervalMillis must be at least 1");
+    }
+    this.minIntervalMillis = minIntervalMillis;
+  }
+
+  /**
+   * @return the longest interval between polls in milliseconds
+   */
+  @ManagedAttribute(description = "Longest interval between polls (ms)")
+  public final long getMaxIntervalMillis() {
+    return maxIntervalMillis;
+  }
+
+  /**
+   * @param maxIntervalMillis
+   *          the longest interval between polls in milliseconds
+   */
+  @ManagedAttribute
+  public final void setMaxIntervalMillis(long maxIntervalMillis) {
+    this.maxIntervalMillis = maxIntervalMillis;
+  }
+
+  /**
+   * @return the factor by which the interval grows after an empty poll
+   */
+  public final double getBackoffMultiplier() {
+    return backoffMultiplier;
+  }
+
+  /**
+   * @param backoffMultiplier
+   *          the factor by which the interval grows after an empty poll; at
+   *          least 1
+   */
+  public final void setBackoffMultiplier(double backoffMultiplier) {
+    if (backoffMultiplier < 1.) {
+      throw new IllegalArgumentException("backoffMultiplier must be at least 1");
+    }
+    this.backoffMultiplier = backoffMultiplier;
+  }
+
+  /**
+   * @return the saturatedRecheckMillis
+   */
+  public final long getSaturatedRecheckMillis() {
+    return saturatedRecheckMillis;
+  }
+
+  /**
+   * @param saturatedRecheckMillis
+   *          number of milliseconds between checks of saturated queues
+   */
+  public final void setSaturatedRecheckMillis(long saturatedRecheckMillis) {
+    this.saturatedRecheckMillis = saturatedRecheckMillis;
+  }
+
+  /**
+   * @return the initialDelayMillis
+   */
+  public final long getInitialDelayMillis() {
+    return initialDelayMillis;
+  }
+
+  /**
+   * @param initialDelayMillis
+   *          number of milliseconds after start before the first poll
+   */
+  public final void setInitialDelayMillis(long initialDelayMillis) {
+    this.initialDelayMillis = initialDelayMillis;
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts between the CSV data source files of a job and columnar data
+ * files.
+ *
+ * <p>
+ * The CSV layout is that of {@link DataSourceFileWriter}: a line of column
+ * titles followed by a line per record, in the platform's encoding. A column
+ * is marked quoted in the columnar file when any of its values is enclosed by
+ * double quotes, and its non-blank values are enclosed again when converted
+ * back to CSV. The values read from either file are the same; only a blank
+ * field may lose or gain its quotes.
+ * </p>
+ *
+ * <p>
+ * Run from the command line to convert a job's files when debugging:
+ * <code>ColumnarDataConverter master-data.csv master-data.col</code> or
+ * <code>ColumnarDataConverter master-data.col master-data.csv</code>.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class ColumnarDataConverter {
+  private static final Logger LOG = LoggerFactory.getLogger(ColumnarDataConverter.class);
+
+  /** file name extension of columnar data files. */
+  public static final String COLUMNAR_EXTENSION = ".col";
+
+  private static final char COMMA = ',';
+  private static final char DOUBLE_QUOTE = '"';
+
+  /** same line ending and encoding as DataSourceFileWriter. */
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+  private static final Charset CHARSET = Charset.defaultCharset();
+
+  private ColumnarDataConverter() {
+  }
+
+  public static void main(String... args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: ColumnarDataConverter <from> <to>");
+      System.err.println("  a file whose name ends with " + COLUMNAR_EXTENSION
+          + " is columnar, any other is CSV");
+      System.exit(1);
+    }
+    final File from = new File(args[0]);
+    final File to = new File(args[1]);
+    final int numRows;
+    if (from.getName().endsWith(COLUMNAR_EXTENSION)) {
+      numRows = toCsv(from, to);
+    } else {
+      numRows = toColumnar(from, to);
+    }
+    System.out.println("Converted " + numRows + " rows to " + to.getPath());
+  }
+
+  /**
+   * Writes the records of a CSV data source file to a columnar data file.
+   *
+   * @param csvFile
+   *          CSV data source file, beginning with a line of column titles
+   * @param columnarFile
+   *          file to write; replaced when it exists
+   * @return number of records converted
+   * @throws IOException
+   *           when a file could not be read or written, or a line does not
+   *           have a field for each column
+   */
+  public static int toColumnar(File csvFile, File columnarFile)
+      throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(csvFile), CHARSET));
+    try {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("No column titles in " + csvFile.getName());
+      }
+      final List<String> titles = new ArrayList<String>();
+      parseLine(line, titles, null);
+      final String[] columnNames = titles.toArray(new String[titles.size()]);
+
+      // rows are encoded as they are read; the quoting of each column is
+      // only known once every line has been read
+      final boolean[] quoted = new boolean[columnNames.length];
+      final ColumnarDataWriter writer = new ColumnarDataWriter(columnarFile,
+          columnNames, null);
+      final List<String> fields = new ArrayList<String>(columnNames.length);
+      int lineNum = 1;
+      while ((line = reader.readLine()) != null) {
+        lineNum++;
+        if (line.isEmpty()) {
+          continue;
+        }
+        fields.clear();
+        parseLine(line, fields, quoted);
+        if (fields.size() != columnNames.length) {
+          // nothing has been written; the writer creates the file on close
+          throw new IOException("Line " + lineNum + " of " + csvFile.getName()
+              + " has " + fields.size() + " fields; expected "
+              + columnNames.length);
+        }
+        writer.addRow(fields.toArray(new String[fields.size()]));
+      }
+      for (int col = 0; col < quoted.length; col++) {
+        writer.setQuoted(col, quoted[col]);
+      }
+      writer.close();
+
+      LOG.debug("Converted {} rows of {} to {}", writer.getRowCount(),
+          csvFile.getName(), columnarFile.getName());
+      return writer.getRowCount();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the rows of a columnar data file to a CSV data source file.
+   *
+   * @param columnarFile
+   *          file written by {@link ColumnarDataWriter}
+   * @param csvFile
+   *          file to write; replaced when it exists
+   * @return number of records converted
+   * @throws IOException
+   *           when a file could not be read or written
+   */
+  public static int toCsv(File columnarFile, File csvFile) throws IOException {
+    final ColumnarDataReader reader = new ColumnarDataReader(columnarFile);
+    try {
+      final String[] columnNames = reader.getColumnNames();
+      final Writer out = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(csvFile), CHARSET), 64 * 1024);
+      try {
+        for (int col = 0; col < columnNames.length; col++) {
+          if (col > 0) {
+            out.write(COMMA);
+          }
+          out.write(columnNames[col]);
+        }
+        out.write(LINE_SEPARATOR);
+
+        final int numRows = reader.getRowCount();
+        for (int row = 0; row < numRows; row++) {
+          for (int col = 0; col < columnNames.length; col++) {
+            if (col > 0) {
+              out.write(COMMA);
+            }
+            writeField(out, reader.getValue(row, col), reader.isQuoted(col));
+          }
+          out.write(LINE_SEPARATOR);
+        }
+      } finally {
+        out.close();
+      }
+      LOG.debug("Converted {} rows of {} to {}", reader.getRowCount(),
+          columnarFile.getName(), csvFile.getName());
+      return reader.getRowCount();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void writeField(Writer out, String value, boolean quoted)
+      throws IOException {
+    // a value holding a separator or quote must be quoted to be read back
+    final boolean mustQuote = value.indexOf(COMMA) >= 0
+        || value.indexOf(DOUBLE_QUOTE) >= 0;
+    if ((quoted && !value.isEmpty()) || mustQuote) {
+      out.write(DOUBLE_QUOTE);
+      for (int i = 0; i < value.length(); i++) {
+        final char c = value.charAt(i);
+        if (c == DOUBLE_QUOTE) {
+          out.write(DOUBLE_QUOTE);
+        }
+        out.write(c);
+      }
+      out.write(DOUBLE_QUOTE);
+    } else {
+      out.write(value);
+    }
+  }
+
+  /**
+   * Splits a line into its fields. A field enclosed by double quotes may hold
+   * commas; a double quote within it is written twice.
+   *
+   * @param quoted
+   *          set true for each field that is enclosed by double quotes; null
+   *          when not needed
+   */
+  static void parseLine(String line, List<String> fields, boolean[] quoted) {
+    final StringBuilder sb = new StringBuilder(64);
+    int pos = 0;
+    while (true) {
+      sb.setLength(0);
+      if (pos < line.length() && line.charAt(pos) == DOUBLE_QUOTE) {
+        if (quoted != null && fields.size() < quoted.length) {
+          quoted[fields.size()] = true;
+        }
+        pos++;
+        while (pos < line.length()) {
+          final char c = line.charAt(pos++);
+          if (c == DOUBLE_QUOTE) {
+            if (pos < line.length() && line.charAt(pos) == DOUBLE_QUOTE) {
+              sb.append(DOUBLE_QUOTE);
+              pos++;
+            } else {
+              break;
+            }
+          } else {
+            sb.append(c);
+          }
+        }
+        // anything between the closing quote and the separator is kept
+        while (pos < line.length() && line.charAt(pos) != COMMA) {
+          sb.append(line.charAt(pos++));
+        }
+      } else {
+        while (pos < line.length() && line.charAt(pos) != COMMA) {
+          sb.append(line.charAt(pos++));
+        }
+      }
+      fields.add(sb.toString());
+      if (pos >= line.length()) {
+        return;
+      }
+      // skip the separator
+      pos++;
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a file written by {@link ColumnarDataWriter}.
+ *
+ * <p>
+ * The section of each column is memory-mapped when the file is opened, so a
+ * value is read by locating its row's packed number and, for a
+ * dictionary-encoded column, the dictionary entry it refers to. Nothing is
+ * parsed, and the columns a caller does not read are never brought into
+ * memory. Dictionary entries are decoded on first use and kept.
+ * </p>
+ *
+ * <p>
+ * The codes returned by {@link #getCode(int, int)} compare as the values do,
+ * so rows may be grouped or sorted on a column without decoding its values.
+ * </p>
+ *
+ * <p>
+ * A reader may be shared between threads.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ColumnarDataReader implements Closeable {
+  private final File file;
+  private final int numRows;
+  private final String[] columnNames;
+  private final boolean[] quoted;
+  private final Column[] columns;
+  private FileChannel channel;
+
+  /**
+   * Opens the file and maps the section of each column.
+   *
+   * @param file
+   *          file written by {@link ColumnarDataWriter}
+   * @throws IOException
+   *           when the file could not be read or is not a columnar data file
+   */
+  public ColumnarDataReader(File file) throws IOException {
+    this.file = file;
+
+    final long[] offsets;
+    final long[] lengths;
+    final byte[] encodings;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      if (in.readInt() != ColumnarDataWriter.MAGIC) {
+        throw new IOException("Not a columnar data file: " + file.getName());
+      }
+      final short version = in.readShort();
+      if (version != ColumnarDataWriter.VERSION) {
+        throw new IOException("Unsupported columnar data file version " + version
+            + ": " + file.getName());
+      }
+      numRows = in.readInt();
+      final int numColumns = in.readInt();
+      columnNames = new String[numColumns];
+      quoted = new boolean[numColumns];
+      encodings = new byte[numColumns];
+      offsets = new long[numColumns];
+      lengths = new long[numColumns];
+      for (int col = 0; col < numColumns; col++) {
+        final byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        columnNames[col] = new String(name, StandardCharsets.UTF_8);
+        quoted[col] = (in.readByte() & ColumnarDataWriter.QUOTED_FLAG) != 0;
+        encodings[col] = in.readByte();
+        offsets[col] = in.readLong();
+        lengths[col] = in.readLong();
+      }
+    } finally {
+      in.close();
+    }
+
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      columns = new Column[columnNames.length];
+      for (int col = 0; col < columns.length; col++) {
+        if (lengths[col] > Integer.MAX_VALUE) {
+          throw new IOException("Column " + columnNames[col]
+              + " is too large to map: " + file.getName());
+        }
+        final MappedByteBuffer section = channel.map(
+            FileChannel.MapMode.READ_ONLY, offsets[col], lengths[col]);
+        switch (encodings[col]) {
+        case ColumnarDataWriter.DICTIONARY_ENCODING:
+          columns[col] = new DictionaryColumn(section);
+          break;
+        case ColumnarDataWriter.DATE_ENCODING:
+          columns[col] = new DateColumn(section);
+          break;
+        default:
+          throw new IOException("Unsupported encoding " + encodings[col]
+              + " of column " + columnNames[col] + ": " + file.getName());
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return number of rows
+   */
+  public int getRowCount() {
+    return numRows;
+  }
+
+  /**
+   * @return name of each column
+   */
+  public String[] getColumnNames() {
+    return columnNames.clone();
+  }
+
+  /**
+   * @return position of the named column, or -1 when there is no such column
+   */
+  public int getColumnIndex(String name) {
+    for (int col = 0; col < columnNames.length; col++) {
+      if (columnNames[col].equals(name)) {
+        return col;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return true when the values of the column are enclosed by double quotes
+   *         in CSV
+   */
+  public boolean isQuoted(int column) {
+    return quoted[column];
+  }
+
+  /**
+   * @return value of the given row and column
+   */
+  public String getValue(int row, int column) {
+    checkRow(row);
+    return columns[column].value(row);
+  }
+
+  /**
+   * Returns a number that identifies the value of the given row and column.
+   * Rows with equal values have equal codes, and codes order as the values
+   * do; a blank date has code 0.
+   *
+   * @return code of the value of the given row and column
+   */
+  public int getCode(int row, int column) {
+    checkRow(row);
+    return columns[column].code(row);
+  }
+
+  /**
+   * @return values of the given row, in the order of the columns
+   */
+  public String[] getRow(int row) {
+    checkRow(row);
+    final String[] values = new String[columns.length];
+    for (int col = 0; col < columns.length; col++) {
+      values[col] = columns[col].value(row);
+    }
+    return values;
+  }
+
+  /**
+   * @return every row, in the order written
+   */
+  public List<String[]> readRows() {
+    final List<String[]> rows = new ArrayList<String[]>(numRows);
+    for (int row = 0; row < numRows; row++) {
+      rows.add(getRow(row));
+    }
+    return rows;
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= numRows) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + numRows
+          + " in " + file.getName());
+    }
+  }
+
+  /**
+   * Closes the file. Mapped sections are released when no longer reachable.
+   */
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Per-row numbers packed into runs of bitWidth bits, least significant
+   * bits first.
+   */
+  private abstract static class Column {
+    private final ByteBuffer section;
+    private final int wordsOffset;
+    private final int bitWidth;
+    private final long mask;
+
+    Column(ByteBuffer section, int wordsOffset, int bitWidth) {
+      this.section = section;
+      this.wordsOffset = wordsOffset;
+      this.bitWidth = bitWidth;
+      this.mask = bitWidth == 64 ? -1L : (1L << bitWidth) - 1;
+    }
+
+    int code(int row) {
+      if (bitWidth == 0) {
+        return 0;
+      }
+      final long bit = (long) row * bitWidth;
+      final int word = (int) (bit >>> 6);
+      final int shift = (int) (bit & 63);
+      // absolute gets leave the shared buffer's position alone
+      long value = section.getLong(wordsOffset + word * 8) >>> shift;
+      if (shift + bitWidth > 64) {
+        value |= section.getLong(wordsOffset + (word + 1) * 8) << (64 - shift);
+      }
+      return (int) (value & mask);
+    }
+
+    abstract String value(int row);
+  }
+
+  private static final class DictionaryColumn extends Column {
+    private final ByteBuffer section;
+    private final int size;
+    private final int valuesOffset;
+    /** decoded entries; a race decodes an entry twice, to equal strings. */
+    private final String[] decoded;
+
+    DictionaryColumn(ByteBuffer section) {
+      super(section, wordsOffset(section), section.getInt(4));
+      this.section = section;
+      this.size = section.getInt(0);
+      this.valuesOffset = 8 + 4 * (size + 1);
+      this.decoded = new String[size];
+    }
+
+    private static int wordsOffset(ByteBuffer section) {
+      final int size = section.getInt(0);
+      final int valuesLength = section.getInt(8 + 4 * size);
+      return (int) ColumnarDataWriter.align(8 + 4L * (size + 1) + valuesLength);
+    }
+
+    @Override
+    String value(int row) {
+      final int code = code(row);
+      String value = decoded[code];
+      if (value == null) {
+        final int start = section.getInt(8 + 4 * code);
+        final int end = section.getInt(8 + 4 * (code + 1));
+        final byte[] bytes = new byte[end - start];
+        // a duplicate has a position of its own to copy from
+        final ByteBuffer src = section.duplicate();
+        src.position(valuesOffset + start);
+        src.get(bytes);
+        value = new String(bytes, StandardCharsets.UTF_8);
+        decoded[code] = value;
+      }
+      return value;
+    }
+  }
+
+  private static final class DateColumn extends Column {
+    private final long minEpochDay;
+
+    DateColumn(ByteBuffer section) {
+      super(section, (int) ColumnarDataWriter.align(8 + 4), section.getInt(8));
+      this.minEpochDay = section.getLong(0);
+    }
+
+    @Override
+    String value(int row) {
+      final int code = code(row);
+      return code == 0 ? "" : LocalDate.ofEpochDay(minEpochDay + code - 1)
+          .toString();
+    }
+  }
+}
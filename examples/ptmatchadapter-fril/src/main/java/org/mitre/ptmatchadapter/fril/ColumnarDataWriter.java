@@ -0,0 +1,478 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes rows of job data to a columnar binary file, which
+ * {@link ColumnarDataReader} reads without parsing text.
+ *
+ * <p>
+ * Each column is stored in a section of its own. A column whose values are
+ * all dates (yyyy-MM-dd) or blank is stored as days since its earliest date.
+ * Any other column is dictionary-encoded: its distinct values are stored
+ * once, in sorted order, and each row holds the position of its value in the
+ * dictionary. The per-row numbers of both encodings are packed using only as
+ * many bits as the largest of them needs, so a gender column takes two bits
+ * per row and a name column seldom more than twenty.
+ * </p>
+ *
+ * <p>
+ * Rows are collected in memory, as dictionary codes, and the file is written
+ * when the writer is closed.
+ * </p>
+ *
+ * <pre>
+ * file    := magic:int version:short rows:int columns:int column*  section*
+ * column  := nameLength:short name:utf8 flags:byte encoding:byte
+ *            sectionOffset:long sectionLength:long
+ * section := dictionary | date
+ * dictionary := size:int bitWidth:int offsets:int[size + 1] values:utf8
+ *               padding codes:long*
+ * date    := minEpochDay:long bitWidth:int padding days:long*
+ * </pre>
+ *
+ * <p>
+ * Numbers are big-endian. Sections start on 8-byte boundaries.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ColumnarDataWriter implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ColumnarDataWriter.class);
+
+  /** "PTMC" */
+  static final int MAGIC = 0x50544D43;
+  static final short VERSION = 1;
+
+  /** values are positions in a sorted dictionary. */
+  static final byte DICTIONARY_ENCODING = 0;
+  /** values are days since the earliest date of the column; 0 is blank. */
+  static final byte DATE_ENCODING = 1;
+
+  /** column flag: values of the column are enclosed by double quotes in CSV. */
+  static final byte QUOTED_FLAG = 1;
+
+  private static final int INITIAL_ROWS = 1024;
+
+  private final File file;
+  private final String[] columnNames;
+  private final boolean[] quoted;
+
+  /** code of each distinct value of each column, in order of appearance. */
+  private final List<Map<String, Integer>> dictionaries;
+  /** distinct values of each column, indexed by code. */
+  private final List<List<String>> values;
+  /** code of the value of each row, by column. */
+  private int[][] codes;
+  private int numRows = 0;
+  private boolean closed = false;
+
+  /**
+   * @param file
+   *          file to write; replaced when it exists
+   * @param columnNames
+   *          name of each column
+   * @param quoted
+   *          true for each column whose values are enclosed by double quotes
+   *          when the rows are written as CSV; null when none are
+   */
+  public ColumnarDataWriter(File file, String[] columnNames, boolean[] quoted) {
+    if (columnNames.length == 0) {
+      throw new IllegalArgumentException("At least one column is required");
+    }
+    if (quoted != null && quoted.length != columnNames.length) {
+      throw new IllegalArgumentException("Expected " + columnNames.length
+          + " quoted flags, found " + quoted.length);
+    }
+    this.file = file;
+    this.columnNames = columnNames.clone();
+    this.quoted = quoted != null ? quoted.clone() : new boolean[columnNames.length];
+
+    dictionaries = new ArrayList<Map<String, Integer>>(columnNames.length);
+    values = new ArrayList<List<String>>(columnNames.length);
+    codes = new int[columnNames.length][INITIAL_ROWS];
+    for (int i = 0; i < columnNames.length; i++) {
+      dictionaries.add(new HashMap<String, Integer>());
+      values.add(new ArrayList<String>());
+    }
+  }
+
+  /**
+   * Writes the given rows to a file.
+   *
+   * @param file
+   *          file to write; replaced when it exists
+   * @param columnNames
+   *          name of each column
+   * @param quoted
+   *          true for each column whose values are enclosed by double quotes
+   *          when the rows are written as CSV; null when none are
+   * @param rows
+   *          rows of values in the order of the columns
+   * @throws IOException
+   *           when the file could not be written
+   */
+  public static void write(File file, String[] columnNames, boolean[] quoted,
+      List<String[]> rows) throws IOException {
+    final ColumnarDataWriter writer = new ColumnarDataWriter(file, columnNames,
+        quoted);
+    try {
+      for (String[] row : rows) {
+        writer.addRow(row);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Adds a row.
+   *
+   * @param row
+   *          values in the order of the columns; a null value is stored as
+   *          the text "null", as it is written to the CSV data source file
+   * @throws IllegalArgumentException
+   *           when the row does not have a value for each column
+   */
+  public void addRow(String[] row) {
+    if (closed) {
+      throw new IllegalStateException("Writer is closed");
+    }
+    if (row.length != columnNames.length) {
+      throw new IllegalArgumentException("Expected " + columnNames.length
+          + " values, found " + row.length);
+    }
+    if (numRows == codes[0].length) {
+      for (int col = 0; col < codes.length; col++) {
+        codes[col] = Arrays.copyOf(codes[col], numRows * 2);
+      }
+    }
+    for (int col = 0; col < row.length; col++) {
+      final String value = String.valueOf(row[col]);
+      final Map<String, Integer> dictionary = dictionaries.get(col);
+      Integer code = dictionary.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.put(value, code);
+        values.get(col).add(value);
+      }
+      codes[col][numRows] = code;
+    }
+    numRows++;
+  }
+
+  /**
+   * @param column
+   *          position of a column
+   * @param quoted
+   *          true when the values of the column are enclosed by double quotes
+   *          when the rows are written as CSV
+   */
+  public void setQuoted(int column, boolean quoted) {
+    this.quoted[column] = quoted;
+  }
+
+  /**
+   * @return number of rows added
+   */
+  public int getRowCount() {
+    return numRows;
+  }
+
+  /**
+   * Writes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    // encode every column first; the header holds the sections' positions
+    final List<Section> sections = new ArrayList<Section>(columnNames.length);
+    for (int col = 0; col < columnNames.length; col++) {
+      sections.add(encode(values.get(col), codes[col]));
+      // no longer needed; let it go before the next column is encoded
+      dictionaries.set(col, null);
+      values.set(col, null);
+      codes[col] = null;
+    }
+
+    final byte[][] names = new byte[columnNames.length][];
+    long offset = 4 + 2 + 4 + 4;
+    for (int col = 0; col < columnNames.length; col++) {
+      names[col] = columnNames[col].getBytes(StandardCharsets.UTF_8);
+      offset += 2 + names[col].length + 1 + 1 + 8 + 8;
+    }
+    final long headerLength = offset;
+    offset = align(offset);
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeInt(numRows);
+      out.writeInt(columnNames.length);
+      for (int col = 0; col < columnNames.length; col++) {
+        final Section section = sections.get(col);
+        out.writeShort(names[col].length);
+        out.write(names[col]);
+        out.writeByte(quoted[col] ? QUOTED_FLAG : 0);
+        out.writeByte(section.encoding);
+        out.writeLong(offset);
+        out.writeLong(section.length());
+        offset = align(offset + section.length());
+      }
+      pad(out, headerLength);
+
+      for (Section section : sections) {
+        section.write(out);
+        pad(out, section.length());
+      }
+    } finally {
+      out.close();
+    }
+    LOG.debug("Wrote {} rows of {} columns to {}", numRows, columnNames.length,
+        file.getAbsolutePath());
+  }
+
+  /**
+   * Picks the encoding of a column and packs its rows.
+   */
+  private Section encode(List<String> distinct, int[] rowCodes) {
+    final long[] days = toEpochDays(distinct);
+    if (days != null) {
+      long minDay = Long.MAX_VALUE;
+      for (long day : days) {
+        if (day != Long.MIN_VALUE && day < minDay) {
+          minDay = day;
+        }
+      }
+      final int[] packedValue = new int[days.length];
+      int maxValue = 0;
+      for (int i = 0; i < days.length; i++) {
+        if (days[i] != Long.MIN_VALUE) {
+          packedValue[i] = (int) (days[i] - minDay + 1);
+          maxValue = Math.max(maxValue, packedValue[i]);
+        }
+      }
+      final int bitWidth = bitWidth(maxValue);
+      return new DateSection(minDay, bitWidth, pack(rowCodes, packedValue,
+          bitWidth));
+    }
+
+    // order the dictionary so codes compare as their values do
+    final List<String> sorted = new ArrayList<String>(distinct);
+    Collections.sort(sorted);
+    final Map<String, Integer> position = new HashMap<String, Integer>(
+        sorted.size() * 2);
+    for (int i = 0; i < sorted.size(); i++) {
+      position.put(sorted.get(i), i);
+    }
+    final int[] sortedCode = new int[distinct.size()];
+    for (int i = 0; i < sortedCode.length; i++) {
+      sortedCode[i] = position.get(distinct.get(i));
+    }
+
+    final byte[][] encoded = new byte[sorted.size()][];
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = sorted.get(i).getBytes(StandardCharsets.UTF_8);
+    }
+    final int bitWidth = bitWidth(Math.max(0, sorted.size() - 1));
+    return new DictionarySection(encoded, bitWidth, pack(rowCodes, sortedCode,
+        bitWidth));
+  }
+
+  /**
+   * Returns the day of each value, Long.MIN_VALUE for a blank value, or null
+   * when a value is not a date the reader would print the same way.
+   */
+  private static long[] toEpochDays(List<String> distinct) {
+    final long[] days = new long[distinct.size()];
+    boolean anyDate = false;
+    for (int i = 0; i < days.length; i++) {
+      final String value = distinct.get(i);
+      if (value.isEmpty()) {
+        days[i] = Long.MIN_VALUE;
+        continue;
+      }
+      try {
+        final LocalDate date = LocalDate.parse(value);
+        if (!date.toString().equals(value)) {
+          return null;
+        }
+        days[i] = date.toEpochDay();
+        anyDate = true;
+      } catch (DateTimeParseException e) {
+        return null;
+      }
+    }
+    return anyDate ? days : null;
+  }
+
+  /**
+   * Packs the value of each row's code into consecutive runs of bitWidth
+   * bits, least significant bits first.
+   */
+  private long[] pack(int[] rowCodes, int[] valueOfCode, int bitWidth) {
+    final long[] words = new long[numWords(numRows, bitWidth)];
+    if (bitWidth == 0) {
+      return words;
+    }
+    for (int row = 0; row < numRows; row++) {
+      final long value = valueOfCode[rowCodes[row]] & 0xFFFFFFFFL;
+      final long bit = (long) row * bitWidth;
+      final int word = (int) (bit >>> 6);
+      final int shift = (int) (bit & 63);
+      words[word] |= value << shift;
+      if (shift + bitWidth > 64) {
+        words[word + 1] |= value >>> (64 - shift);
+      }
+    }
+    return words;
+  }
+
+  static int numWords(int numRows, int bitWidth) {
+    return (int) (((long) numRows * bitWidth + 63) >>> 6);
+  }
+
+  static int bitWidth(int maxValue) {
+    return 32 - Integer.numberOfLeadingZeros(maxValue);
+  }
+
+  static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  private static void pad(DataOutputStream out, long length) throws IOException {
+    for (long i = length; i < align(length); i++) {
+      out.writeByte(0);
+    }
+  }
+
+  /**
+   * Encoded content of a column.
+   */
+  private abstract static class Section {
+    final byte encoding;
+
+    Section(byte encoding) {
+      this.encoding = encoding;
+    }
+
+    abstract long length();
+
+    abstract void write(DataOutputStream out) throws IOException;
+  }
+
+  private static final class DictionarySection extends Section {
+    private final byte[][] encoded;
+    private final int bitWidth;
+    private final long[] words;
+    private final long valuesLength;
+
+    DictionarySection(byte[][] encoded, int bitWidth, long[] words) {
+      super(DICTIONARY_ENCODING);
+      this.encoded = encoded;
+      this.bitWidth = bitWidth;
+      this.words = words;
+      long len = 0;
+      for (byte[] value : encoded) {
+        len += value.length;
+      }
+      valuesLength = len;
+    }
+
+    @Override
+    long length() {
+      return align(4 + 4 + 4L * (encoded.length + 1) + valuesLength)
+          + 8L * words.length;
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      if (valuesLength > Integer.MAX_VALUE) {
+        throw new IOException("Dictionary too large: " + valuesLength + " bytes");
+      }
+      out.writeInt(encoded.length);
+      out.writeInt(bitWidth);
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] value : encoded) {
+        offset += value.length;
+        out.writeInt(offset);
+      }
+      for (byte[] value : encoded) {
+        out.write(value);
+      }
+      pad(out, 4 + 4 + 4L * (encoded.length + 1) + valuesLength);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+    }
+  }
+
+  private static final class DateSection extends Section {
+    private final long minEpochDay;
+    private final int bitWidth;
+    private final long[] words;
+
+    DateSection(long minEpochDay, int bitWidth, long[] words) {
+      super(DATE_ENCODING);
+      this.minEpochDay = minEpochDay;
+      this.bitWidth = bitWidth;
+      this.words = words;
+    }
+
+    @Override
+    long length() {
+      return align(8 + 4) + 8L * words.length;
+    }
+
+    @Override
+    void write(DataOutputStream out) throws IOException {
+      out.writeLong(minEpochDay);
+      out.writeInt(bitWidth);
+      pad(out, 8 + 4);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.mitre.ptmatchadapter.fril.config.Configuration;
+import org.mitre.ptmatchadapter.fril.config.Configuration.LeftDataSource;
+import org.mitre.ptmatchadapter.fril.config.Configuration.LeftDataSource.Params.Param;
+import org.mitre.ptmatchadapter.fril.config.Configuration.LeftDataSource.Preprocessing.Deduplication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.samskivert.mustache.Template;
+
+/**
+ * Reads FRIL matching rule configurations into the
+ * {@link Configuration} classes and reports the file locations they contain.
+ *
+ * <p>
+ * The JAXB context is created once and shared by all instances; unmarshallers
+ * are not thread-safe, so each instance keeps a small pool of them. The file
+ * locations named by a configuration template depend only on the job folder,
+ * so they are derived once per template, by rendering it with a stand-in for
+ * the job folder, and then resolved for each job without reading the job's
+ * configuration file. The data source columns the template refers to are
+ * collected at the same time.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ConfigurationIntrospector {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(ConfigurationIntrospector.class);
+
+  /** stand-in for the job folder used when deriving template paths. */
+  static final String JOB_DIR_TOKEN = "@@jobDir@@";
+
+  private static final String JOB_DIR_PARAM = "jobDir";
+  /** template parameter holding the generated row model columns. */
+  static final String ROW_MODEL_PARAM = "rowModel";
+
+  /** attributes of configuration elements that name data source columns. */
+  private static final String[] COLUMN_ATTRIBUTES = { "column", "columns",
+      "left-column", "right-column" };
+  private static final String INPUT_FILE_PARAM = "input-file";
+
+  /** maximum number of idle unmarshallers kept for reuse. */
+  private int maxPooledUnmarshallers = 8;
+
+  private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /** file locations derived from each template, by template name. */
+  private final Map<String, TemplatePaths> templatePaths = new ConcurrentHashMap<String, TemplatePaths>();
+
+  /**
+   * Creates the shared JAXB context when it is first needed.
+   */
+  private static final class ContextHolder {
+    static final JAXBContext CONTEXT;
+
+    static {
+      try {
+        CONTEXT = JAXBContext.newInstance(Configuration.class);
+      } catch (JAXBException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+  }
+
+  /**
+   * @return JAXB context for the FRIL configuration classes
+   */
+  public static JAXBContext getJaxbContext() {
+    return ContextHolder.CONTEXT;
+  }
+
+  /**
+   * Reads a matching rule configuration file.
+   *
+   * @param configFile
+   *          FRIL configuration file
+   * @return the configuration
+   * @throws JAXBException
+   *           when the file cannot be read or parsed
+   */
+  public Configuration unmarshal(File configFile) throws JAXBException {
+    final Unmarshaller unmarshaller = borrowUnmarshaller();
+    try {
+      return (Configuration) unmarshaller.unmarshal(configFile);
+    } finally {
+      returnUnmarshaller(unmarshaller);
+    }
+  }
+
+  /**
+   * Reads a matching rule configuration.
+   *
+   * @param reader
+   *          source of the configuration XML
+   * @return the configuration
+   * @throws JAXBException
+   *           when the configuration cannot be parsed
+   */
+  public Configuration unmarshal(Reader reader) throws JAXBException {
+    final Unmarshaller unmarshaller = borrowUnmarshaller();
+    try {
+      return (Configuration) unmarshaller.unmarshal(reader);
+    } finally {
+      returnUnmarshaller(unmarshaller);
+    }
+  }
+
+  /**
+   * Returns the file locations derived from the given template.
+   *
+   * @param templateName
+   *          name under which the template was loaded
+   * @return file locations named by the template, or null when they have not
+   *         been derived
+   */
+  public TemplatePaths getTemplatePaths(String templateName) {
+    return templatePaths.get(templateName);
+  }
+
+  /**
+   * Returns the file locations named by the given template, deriving them the
+   * first time the template is seen or when the template has been recompiled.
+   *
+   * @param templateName
+   *          name under which the template was loaded
+   * @param template
+   *          compiled configuration template
+   * @return file locations named by the template
+   * @throws JAXBException
+   *           when the rendered template cannot be parsed
+   */
+  public TemplatePaths getTemplatePaths(String templateName, Template template)
+      throws JAXBException {
+    TemplatePaths paths = templatePaths.get(templateName);
+    if (paths == null || paths.template != template) {
+      paths = derivePaths(template);
+      templatePaths.put(templateName, paths);
+      LOG.debug("Derived paths for template {}: {}", templateName, paths);
+    }
+    return paths;
+  }
+
+  /**
+   * Discards the paths derived for the given template, e.g., after the
+   * template has changed.
+   *
+   * @param templateName
+   *          name under which the template was loaded
+   */
+  public void invalidate(String templateName) {
+    templatePaths.remove(templateName);
+  }
+
+  private TemplatePaths derivePaths(Template template) throws JAXBException {
+    final Map<String, String> templateParams = new HashMap<String, String>();
+    templateParams.put(JOB_DIR_PARAM, JOB_DIR_TOKEN);
+    // only the columns named by the template itself are of interest
+    templateParams.put(ROW_MODEL_PARAM, "");
+    final StringWriter sw = new StringWriter(16 * 1024);
+    template.execute(templateParams, sw);
+
+    final Configuration config = unmarshal(new StringReader(sw.toString()));
+    final Set<String> columns = findColumns(sw.toString());
+
+    String inputFile = null;
+    String duplicatesFile = null;
+    String dedupeFile = null;
+
+    final LeftDataSource source = config.getLeftDataSource();
+    if (source != null) {
+      if (source.getParams() != null) {
+        for (Param param : source.getParams().getParam()) {
+          if (INPUT_FILE_PARAM.equals(param.getName())) {
+            inputFile = param.getValue();
+          }
+        }
+      }
+      if (source.getPreprocessing() != null) {
+        final Deduplication dedupe = source.getPreprocessing().getDeduplication();
+        if (dedupe != null) {
+          if (dedupe.getMinusFile() != null) {
+            duplicatesFile = dedupe.getMinusFile().getFile();
+          }
+          if (dedupe.getDedupeFile() != null) {
+            dedupeFile = dedupe.getDedupeFile().getFile();
+          }
+        }
+      }
+    }
+    return new TemplatePaths(template, inputFile, duplicatesFile, dedupeFile,
+        columns);
+  }
+
+  /**
+   * Returns the data source columns named anywhere in the configuration: in
+   * a row model, a matching condition or a hashing function.
+   */
+  private static Set<String> findColumns(String configXml) throws JAXBException {
+    final Element root;
+    try {
+      root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new InputSource(new StringReader(configXml)))
+          .getDocumentElement();
+    } catch (ParserConfigurationException e) {
+      throw new JAXBException("Unable to create XML parser", e);
+    } catch (SAXException e) {
+      throw new JAXBException("Unable to read matching rule configuration", e);
+    } catch (IOException e) {
+      throw new JAXBException("Unable to read matching rule configuration", e);
+    }
+    final Set<String> columns = new LinkedHashSet<String>();
+    addColumns(root, columns);
+    return columns;
+  }
+
+  private static void addColumns(Element element, Set<String> columns) {
+    final NamedNodeMap attrs = element.getAttributes();
+    for (String name : COLUMN_ATTRIBUTES) {
+      final Node attr = attrs.getNamedItem(name);
+      if (attr != null) {
+        for (String column : attr.getNodeValue().split(",")) {
+          if (!column.trim().isEmpty()) {
+            columns.add(column.trim());
+          }
+        }
+      }
+    }
+    for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE) {
+        addColumns((Element) n, columns);
+      }
+    }
+  }
+
+  private Unmarshaller borrowUnmarshaller() throws JAXBException {
+    final Unmarshaller unmarshaller = unmarshallers.poll();
+    if (unmarshaller != null) {
+      pooled.decrementAndGet();
+      return unmarshaller;
+    }
+    return getJaxbContext().createUnmarshaller();
+  }
+
+  private void returnUnmarshaller(Unmarshaller unmarshaller) {
+    if (pooled.incrementAndGet() <= maxPooledUnmarshallers) {
+      unmarshallers.offer(unmarshaller);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * File locations and data source columns named by a configuration
+   * template. Each location is resolved against the folder of a particular
+   * job.
+   */
+  public static final class TemplatePaths {
+    /** template from which the locations were derived. */
+    private final Template template;
+    private final String inputFile;
+    private final String duplicatesFile;
+    private final String dedupeFile;
+    private final Set<String> referencedColumns;
+
+    TemplatePaths(Template template, String inputFile, String duplicatesFile,
+        String dedupeFile, Set<String> referencedColumns) {
+      this.template = template;
+      this.inputFile = inputFile;
+      this.duplicatesFile = duplicatesFile;
+      this.dedupeFile = dedupeFile;
+      this.referencedColumns = Collections.unmodifiableSet(referencedColumns);
+    }
+
+    /**
+     * @return names of the data source columns the template refers to, in
+     *         the order first named
+     */
+    public Set<String> getReferencedColumns() {
+      return referencedColumns;
+    }
+
+    /**
+     * @return data source file read by FRIL, or null if not named
+     */
+    public File getInputFile(File jobDir) {
+      return resolve(inputFile, jobDir);
+    }
+
+    /**
+     * @return file to which FRIL writes duplicate records, or null if not
+     *         named
+     */
+    public File getDuplicatesFile(File jobDir) {
+      return resolve(duplicatesFile, jobDir);
+    }
+
+    /**
+     * @return file to which FRIL writes the deduplicated data source, or null
+     *         if not named
+     */
+    public File getDedupeFile(File jobDir) {
+      return resolve(dedupeFile, jobDir);
+    }
+
+    private static File resolve(String path, File jobDir) {
+      if (path == null) {
+        return null;
+      }
+      return new File(path.replace(JOB_DIR_TOKEN, jobDir.getAbsolutePath()));
+    }
+
+    @Override
+    public String toString() {
+      return "input: " + inputFile + ", duplicates: " + duplicatesFile
+          + ", deduplicated: " + dedupeFile + ", columns: " + referencedColumns;
+    }
+  }
+
+  /**
+   * @return the maximum number of idle unmarshallers kept for reuse
+   */
+  public final int getMaxPooledUnmarshallers() {
+    return maxPooledUnmarshallers;
+  }
+
+  /**
+   * @param maxPooledUnmarshallers
+   *          the maximum number of idle unmarshallers kept for reuse
+   */
+  public final void setMaxPooledUnmarshallers(int maxPooledUnmarshallers) {
+    this.maxPooledUnmarshallers = maxPooledUnmarshallers;
+  }
+}
@@ -0,0 +1,328 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ResourceType;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes Patient resources to a FRIL data source file, one line of
+ * comma-separated values per patient, preceded by its fullUrl.
+ *
+ * <p>
+ * When given a pool, the lines of a page are formatted in chunks by the
+ * pool's threads while the calling thread writes the finished chunks to the
+ * file in page order. The file content is the same as when the lines are
+ * formatted one at a time. The file is opened when the first line is written
+ * and stays open until the writer is closed.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DataSourceFileWriter implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(DataSourceFileWriter.class);
+
+  /** size of the buffer between formatted lines and the file. */
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /** pages with fewer patients are formatted on the calling thread. */
+  private static final int MIN_PARALLEL_RESOURCES = 256;
+
+  /** fewest patients formatted by a single task. */
+  private static final int MIN_CHUNK_SIZE = 64;
+
+  private static final char COMMA = ',';
+  private static final char DOUBLE_QUOTE = '"';
+  private static final char SLASH = '/';
+
+  /** same line ending and encoding as the FileWriter previously used. */
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+  private static final Charset CHARSET = Charset.defaultCharset();
+
+  private final File file;
+  private final SimplePatientCsvFormat format;
+  private final String fullUrlBase;
+  private final boolean versionedFullUrl;
+  private final ForkJoinPool pool;
+
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private boolean headerWritten = false;
+
+  /**
+   * @param file
+   *          data source file; lines are appended when it exists
+   * @param format
+   *          format of each line; shared by the threads formatting lines
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param versionedFullUrl
+   *          true to include the resource version in the fullUrl
+   * @param pool
+   *          threads that format lines; null to format on the calling thread
+   */
+  public DataSourceFileWriter(File file, SimplePatientCsvFormat format,
+      String serverBase, boolean versionedFullUrl, ForkJoinPool pool) {
+    this.file = file;
+    this.format = format;
+    this.fullUrlBase = serverBase.endsWith("/") ? serverBase : serverBase + "/";
+    this.versionedFullUrl = versionedFullUrl;
+    this.pool = pool;
+  }
+
+  /**
+   * Writes a line for each Patient of the given page. The column titles are
+   * written before the first line of the file.
+   *
+   * @param resources
+   *          resources of a search result page
+   * @throws IOException
+   *           when the file could not be written
+   */
+  public void write(List<Resource> resources) throws IOException {
+    // return fast if there is nothing to do
+    if (resources.isEmpty()) {
+      return;
+    }
+
+    if (channel == null) {
+      open();
+    }
+    writeHeader();
+
+    final int parallelism = pool != null ? pool.getParallelism() : 1;
+    if (parallelism < 2 || resources.size() < MIN_PARALLEL_RESOURCES) {
+      put(format(resources));
+      return;
+    }
+
+    // several chunks per thread so a slow chunk does not hold up the others
+    final int chunkSize = Math.max(MIN_CHUNK_SIZE,
+        (resources.size() + parallelism * 4 - 1) / (parallelism * 4));
+    final List<ForkJoinTask<byte[]>> chunks = new ArrayList<ForkJoinTask<byte[]>>();
+    for (int from = 0; from < resources.size(); from += chunkSize) {
+      final List<Resource> chunk = resources.subList(from,
+          Math.min(from + chunkSize, resources.size()));
+      chunks.add(pool.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return format(chunk);
+        }
+      }));
+    }
+
+    // write the chunks in order as they are finished
+    try {
+      for (ForkJoinTask<byte[]> chunk : chunks) {
+        put(chunk.get());
+      }
+    } catch (InterruptedException e) {
+      cancel(chunks);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while formatting " + file.getName(), e);
+    } catch (ExecutionException e) {
+      cancel(chunks);
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Unable to format " + file.getName(), cause);
+    }
+  }
+
+  /**
+   * Writes a line for each of the given rows, e.g., the rows of a kept
+   * master set, in the same layout as lines written for Patients. The column
+   * titles are written before the first line of the file.
+   *
+   * @param rows
+   *          fullUrl followed by the values of each record
+   * @param quotedColumns
+   *          true for each column whose values are enclosed by double-quotes
+   * @throws IOException
+   *           when the file could not be written
+   */
+  public void writeRows(List<String[]> rows, boolean[] quotedColumns)
+      throws IOException {
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    if (channel == null) {
+      open();
+    }
+    writeHeader();
+
+    final StringBuilder sb = new StringBuilder(256);
+    for (String[] row : rows) {
+      for (int i = 0; i < row.length; i++) {
+        if (i > 0) {
+          sb.append(COMMA);
+        }
+        if (quotedColumns[i]) {
+          sb.append(DOUBLE_QUOTE);
+          sb.append(row[i]);
+          sb.append(DOUBLE_QUOTE);
+        } else {
+          sb.append(row[i]);
+        }
+      }
+      sb.append(LINE_SEPARATOR);
+      // a chunk at a time, so a large set is not held twice
+      if (sb.length() >= BUFFER_SIZE) {
+        put(sb.toString().getBytes(CHARSET));
+        sb.setLength(0);
+      }
+    }
+    put(sb.toString().getBytes(CHARSET));
+  }
+
+  private void writeHeader() throws IOException {
+    if (!headerWritten) {
+      headerWritten = true;
+      final StringBuilder sb = new StringBuilder();
+      sb.append("fullUrl");
+      sb.append(COMMA);
+      sb.append(format.getHeaders());
+      sb.append(LINE_SEPARATOR);
+      put(sb.toString().getBytes(CHARSET));
+    }
+  }
+
+  private static void cancel(List<ForkJoinTask<byte[]>> chunks) {
+    for (ForkJoinTask<byte[]> chunk : chunks) {
+      chunk.cancel(false);
+    }
+  }
+
+  /**
+   * Returns the lines of the given resources as encoded bytes.
+   */
+  private byte[] format(List<Resource> resources) {
+    final StringBuilder sb = new StringBuilder(resources.size() * 256);
+
+    for (Resource r : resources) {
+      if (ResourceType.Patient.equals(r.getResourceType())) {
+        // put fullURL to the start of the line
+        sb.append(DOUBLE_QUOTE);
+        appendFullUrl(sb, fullUrlBase, r, versionedFullUrl);
+        sb.append(DOUBLE_QUOTE);
+        sb.append(COMMA);
+        // convert resource to CSV
+        format.appendCsv((Patient) r, sb);
+        sb.append(LINE_SEPARATOR);
+      } else {
+        LOG.error("Unsupported Resource Type: {}",
+            r.getResourceType().toString());
+      }
+    }
+    return sb.toString().getBytes(CHARSET);
+  }
+
+  /**
+   * Appends the fullUrl of the given resource.
+   *
+   * @param sb
+   *          builder to which to append the fullUrl
+   * @param fullUrlBase
+   *          server base, ending with a slash
+   * @param r
+   *          resource
+   * @param versioned
+   *          true to include the resource version
+   */
+  static void appendFullUrl(StringBuilder sb, String fullUrlBase, Resource r,
+      boolean versioned) {
+    sb.append(fullUrlBase);
+    if (versioned) {
+      // HAPI FHIR provides <id>/_history/<version>
+      sb.append(r.getId());
+    } else {
+      // use SIMPLE format
+      sb.append(r.getIdElement().getResourceType());
+      sb.append(SLASH);
+      sb.append(r.getIdElement().getIdPart());
+    }
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  /**
+   * Copies the given bytes to the buffer, writing the buffer to the file
+   * whenever it fills.
+   */
+  private void put(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      final int len = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, len);
+      offset += len;
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+    }
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Writes buffered lines and closes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    try {
+      drain();
+    } finally {
+      channel.close();
+      channel = null;
+      buffer = null;
+    }
+  }
+}
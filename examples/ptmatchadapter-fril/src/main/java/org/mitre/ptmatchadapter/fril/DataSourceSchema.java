@@ -0,0 +1,142 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Columns of the data source handed to FRIL: the fullUrl of each record
+ * followed by the Patient columns a set of matching rules refers to.
+ *
+ * <p>
+ * The same schema formats the data source file or rows and generates the
+ * <code>&lt;row-model&gt;</code> columns of the FRIL configuration, which a
+ * matching rule template includes with <code>{{{rowModel}}}</code>. Columns
+ * the matching rules do not name are neither extracted nor written.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class DataSourceSchema {
+  private static final Logger LOG = LoggerFactory.getLogger(DataSourceSchema.class);
+
+  /** first column of every row; identifies the record in the results. */
+  public static final String FULL_URL_COLUMN = "fullUrl";
+
+  private static final String CONVERTER = "cdc.datamodel.converters.DummyConverter";
+
+  /** prefix of the name part columns, whose values are quoted. */
+  private static final String NAME_COLUMN_PREFIX = "name_";
+
+  private final SimplePatientCsvFormat format;
+  private final String[] columnNames;
+  private final String rowModel;
+  private final boolean[] quotedColumns;
+
+  private DataSourceSchema(SimplePatientCsvFormat format) {
+    this.format = format;
+
+    final String[] patientColumns = format.getColumnNames();
+    columnNames = new String[patientColumns.length + 1];
+    columnNames[0] = FULL_URL_COLUMN;
+    System.arraycopy(patientColumns, 0, columnNames, 1, patientColumns.length);
+
+    quotedColumns = new boolean[columnNames.length];
+    quotedColumns[0] = true;
+    for (int i = 1; i < columnNames.length; i++) {
+      quotedColumns[i] = columnNames[i].startsWith(NAME_COLUMN_PREFIX);
+    }
+
+    final StringBuilder sb = new StringBuilder(columnNames.length * 160);
+    for (String column : columnNames) {
+      sb.append("            <column column=\"").append(column).append("\"\n");
+      sb.append("                converter=\"").append(CONVERTER)
+          .append("\" name=\"").append(column).append("\">\n");
+      sb.append("                <empty-values/>\n");
+      sb.append("            </column>\n");
+    }
+    rowModel = sb.toString();
+  }
+
+  /**
+   * Returns the schema holding the given columns. Names that are not Patient
+   * columns (e.g., fullUrl) are ignored. All columns are included when none
+   * of the names is a Patient column.
+   *
+   * @param referencedColumns
+   *          columns named by the matching rules
+   * @return schema of the Patient columns named
+   */
+  public static DataSourceSchema forColumns(Collection<String> referencedColumns) {
+    final SimplePatientCsvFormat format = new SimplePatientCsvFormat();
+    final String[] available = format.getAvailableColumnNames();
+
+    final List<String> selected = new ArrayList<String>(available.length);
+    for (String column : available) {
+      if (referencedColumns.contains(column)) {
+        selected.add(column);
+      }
+    }
+    if (selected.isEmpty()) {
+      LOG.warn("Matching rules name no Patient columns; writing all columns");
+    } else if (selected.size() < available.length) {
+      format.setColumns(selected.toArray(new String[selected.size()]));
+    }
+    return new DataSourceSchema(format);
+  }
+
+  /**
+   * @return format of the Patient columns of each row
+   */
+  public SimplePatientCsvFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * @return names of the columns of each row, fullUrl first
+   */
+  public String[] getColumnNames() {
+    return columnNames.clone();
+  }
+
+  /**
+   * @return true for each column whose values the data source file encloses
+   *         in double quotes: the fullUrl and the name parts
+   */
+  public boolean[] getQuotedColumns() {
+    return quotedColumns.clone();
+  }
+
+  /**
+   * @return <code>&lt;column&gt;</code> elements of the FRIL row model, one
+   *         per column
+   */
+  public String getRowModel() {
+    return rowModel;
+  }
+}
@@ -0,0 +1,326 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import cdc.components.AbstractDistance;
+import cdc.configuration.Configuration;
+import cdc.datamodel.DataCell;
+import cdc.datamodel.DataColumnDefinition;
+import cdc.datamodel.DataRow;
+import cdc.impl.deduplication.DeduplicationConfig;
+import cdc.impl.join.blocking.BucketManager;
+import cdc.utils.RJException;
+
+/**
+ * Deduplicates rows held in memory using the matching rules of a FRIL
+ * deduplication configuration, reporting each duplicate to a callback.
+ *
+ * <p>
+ * FRIL's own deduplication writes the duplicates it finds to the minus file
+ * named in the configuration, and the deduplicated data set to the dedupe
+ * file; neither can be redirected. This class reads the row model and
+ * deduplication conditions from the configuration with FRIL's parsers, blocks
+ * rows with FRIL's bucket manager and scores pairs with the configured FRIL
+ * distance functions, comparing rows exactly as
+ * <code>cdc.impl.deduplication.DeduplicationDataSource</code> does. The
+ * duplicates reported are therefore those FRIL would write to the minus file,
+ * but no file is read or written. The configured file names are ignored.
+ * </p>
+ *
+ * <p>
+ * Buckets are processed on the calling thread, which may be interrupted to
+ * abandon the run. Instances hold no state and may be shared.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class InMemoryDeduplicator {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(InMemoryDeduplicator.class);
+
+  private static final String LEFT_SOURCE_TAG = Configuration.LEFT_SOURCE_TAG;
+  private static final String ROW_MODEL_TAG = Configuration.ROW_MODEL_TAG;
+  private static final String PREPROCESSING_TAG = Configuration.PREPROCESSING_TAG;
+  private static final String DEDUPLICATION_TAG = Configuration.DEDUPLICATION_TAG;
+
+  /** position of the fullUrl in the output rows, as in the minus file. */
+  private static final int FULL_URL_COL = 0;
+
+  /**
+   * Receives the duplicates found.
+   */
+  public interface DuplicateHandler {
+    /**
+     * Called once for each duplicate of a reference record.
+     *
+     * @param referenceUrl
+     *          fullUrl of the first record of a set of duplicates
+     * @param duplicateUrl
+     *          fullUrl of a record that duplicates the reference record
+     * @param score
+     *          FRIL match score, 0 - 100
+     */
+    void duplicateFound(String referenceUrl, String duplicateUrl, int score);
+  }
+
+  /**
+   * Deduplicates the rows of the given data source.
+   *
+   * @param configXml
+   *          FRIL deduplication configuration (e.g., a rendered template)
+   * @param source
+   *          rows to deduplicate
+   * @param handler
+   *          receives each duplicate found
+   * @return number of duplicates found
+   * @throws IOException
+   *           when the configuration cannot be read or the run is interrupted
+   * @throws RJException
+   *           when FRIL rejects the configuration or fails
+   */
+  public int deduplicate(String configXml, PatientRowDataSource source,
+      DuplicateHandler handler) throws IOException, RJException {
+    final DeduplicationConfig config = configure(configXml, source);
+
+    final long start = System.currentTimeMillis();
+    final BucketManager buckets = new BucketManager(config.getHashingFunction());
+    boolean completed = false;
+    int numDuplicates = 0;
+    try {
+      source.reset();
+      DataRow row;
+      while ((row = source.getNextRow()) != null) {
+        checkInterrupted();
+        buckets.addToBucketLeftSource(row);
+      }
+      checkInterrupted();
+      buckets.addingCompleted();
+
+      DataRow[][] bucket;
+      while ((bucket = buckets.getBucket()) != null) {
+        checkInterrupted();
+        numDuplicates += deduplicate(bucket[0], config, handler);
+      }
+      completed = true;
+    } finally {
+      if (!completed) {
+        drain(buckets);
+      }
+      buckets.cleanup();
+      source.close();
+    }
+
+    LOG.info("Deduplicated {} rows, found {} duplicates in {} ms",
+        source.getRowCount(), numDuplicates, System.currentTimeMillis() - start);
+    return numDuplicates;
+  }
+
+  /**
+   * The bucket manager swallows interrupts while waiting, so check before
+   * each call that may wait.
+   */
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Deduplication interrupted");
+    }
+  }
+
+  /**
+   * Reads the row model and deduplication conditions of the left data source
+   * in the configuration and applies them to the given source.
+   */
+  DeduplicationConfig configure(String configXml, PatientRowDataSource source)
+      throws IOException, RJException {
+    final Element root;
+    try {
+      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      root = factory.newDocumentBuilder()
+          .parse(new InputSource(new StringReader(configXml)))
+          .getDocumentElement();
+    } catch (ParserConfigurationException e) {
+      throw new IOException("Unable to create XML parser", e);
+    } catch (SAXException e) {
+      throw new IOException("Unable to read matching rule configuration", e);
+    }
+
+    final Element leftSource = getChildElement(root, LEFT_SOURCE_TAG);
+    final Element rowModel = getChildElement(leftSource, ROW_MODEL_TAG);
+    final Element dedup = getChildElement(
+        getChildElement(leftSource, PREPROCESSING_TAG), DEDUPLICATION_TAG);
+    if (rowModel == null || dedup == null) {
+      throw new RJException(
+          "Configuration does not define a row model and deduplication for "
+              + LEFT_SOURCE_TAG);
+    }
+
+    source.setModel(Configuration.readRowModelConfiguration(rowModel,
+        source.getAvailableColumns()));
+    final DeduplicationConfig config = DeduplicationConfig.fromXML(source, dedup);
+    source.setDeduplicationConfig(config);
+    return config;
+  }
+
+  private static Element getChildElement(Element parent, String name) {
+    if (parent != null) {
+      for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n.getNodeType() == Node.ELEMENT_NODE && name.equals(n.getNodeName())) {
+          return (Element) n;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compares the rows of a bucket, reporting the duplicates of each row that
+   * is not itself a duplicate of an earlier row.
+   */
+  private int deduplicate(DataRow[] dataRows, DeduplicationConfig config,
+      DuplicateHandler handler) {
+    final int acceptance = config.getAcceptanceLevel();
+    int numDuplicates = 0;
+
+    final List<DataRow> duplicates = new ArrayList<DataRow>();
+    final List<Integer> scores = new ArrayList<Integer>();
+    for (int i = 0; i < dataRows.length; i++) {
+      if (dataRows[i] == null) {
+        continue;
+      }
+      // compare against a copy that takes on the values the duplicates
+      // supply for its empty fields
+      final DataRow rowToSave = copyRow(dataRows[i]);
+      for (int j = i + 1; j < dataRows.length; j++) {
+        if (dataRows[j] == null) {
+          continue;
+        }
+        final int score = score(rowToSave, dataRows[j], config);
+        if (score < acceptance) {
+          continue;
+        }
+        fillEmptyCells(rowToSave, dataRows[j]);
+        duplicates.add(dataRows[j]);
+        scores.add(score);
+        dataRows[j] = null;
+        numDuplicates++;
+      }
+
+      if (!duplicates.isEmpty()) {
+        final String referenceUrl = getFullUrl(dataRows[i]);
+        for (int d = 0; d < duplicates.size(); d++) {
+          handler.duplicateFound(referenceUrl, getFullUrl(duplicates.get(d)),
+              scores.get(d));
+        }
+        duplicates.clear();
+        scores.clear();
+      }
+      dataRows[i] = null;
+    }
+    return numDuplicates;
+  }
+
+  /**
+   * Returns the weighted match score of the two rows, stopping early once
+   * the acceptance level can no longer be reached.
+   */
+  private static int score(DataRow r1, DataRow r2, DeduplicationConfig config) {
+    final DataColumnDefinition[] cols = config.getTestedColumns();
+    final AbstractDistance[] distances = config.getTestCondition();
+    final double[] emptyMatches = config.getEmptyMatchScore();
+    final int[] weights = config.getWeights();
+    final int acceptance = config.getAcceptanceLevel();
+
+    int sum = 0;
+    int weightsToGo = 100;
+    for (int i = 0; i < distances.length; i++) {
+      final DataCell cellA = r1.getData(cols[i]);
+      final DataCell cellB = r2.getData(cols[i]);
+      if (emptyMatches[i] != 0.0
+          && (cellA.isEmpty(cols[i]) || cellB.isEmpty(cols[i]))) {
+        sum = (int) (sum + weights[i] * emptyMatches[i]);
+      } else {
+        final double score = distances[i].distance(cellA, cellB);
+        sum = (int) (sum + score * weights[i] / 100.0);
+      }
+      weightsToGo -= weights[i];
+      if (weightsToGo + sum < acceptance) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+
+  private static DataRow copyRow(DataRow row) {
+    final DataColumnDefinition[] cols = row.getRowModel();
+    final DataCell[] cells = new DataCell[cols.length];
+    for (int i = 0; i < cells.length; i++) {
+      final DataCell original = row.getData(cols[i]);
+      cells[i] = new DataCell(original.getValueType(), original.getValue());
+    }
+    return new DataRow(cols, cells, row.getSourceName());
+  }
+
+  private static void fillEmptyCells(DataRow rowToSave, DataRow duplicate) {
+    final DataColumnDefinition[] model = duplicate.getRowModel();
+    final DataCell[] cellsToSave = rowToSave.getData();
+    final DataCell[] cellsFromDuplicate = duplicate.getData();
+    for (int i = 0; i < cellsFromDuplicate.length; i++) {
+      if (cellsToSave[i].isEmpty(model[i])) {
+        cellsToSave[i].setValue(cellsFromDuplicate[i].getValue());
+      }
+    }
+  }
+
+  private static String getFullUrl(DataRow row) {
+    return String.valueOf(row.getData()[FULL_URL_COL].getValue());
+  }
+
+  /**
+   * Lets the bucket manager's thread finish after a failed run.
+   */
+  private static void drain(BucketManager buckets) {
+    final boolean interrupted = Thread.interrupted();
+    buckets.stopProcessing();
+    try {
+      while (buckets.getBucket() != null) {
+        // discard
+      }
+    } catch (Exception e) {
+      LOG.debug("Error discarding buckets: {}", e.getMessage());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+/**
+ * Compiles each matching rule configuration template once and keeps the
+ * compiled template for reuse by every job.
+ *
+ * <p>
+ * A template is located by searching the classpath and then the file system.
+ * When the template is a file on the file system (including a classpath
+ * entry in an exploded folder) and the registry has been started, the file
+ * is watched; a changed template is recompiled on a background thread and
+ * used by jobs that start afterwards, so matching rules may be changed
+ * without a restart. If the changed template cannot be read or compiled, the
+ * previous version remains in use.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class MatchingRuleTemplateRegistry {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MatchingRuleTemplateRegistry.class);
+
+  /** size of the character buffer used when rendering a template. */
+  private static final int RENDER_BUFFER_SIZE = 64 * 1024;
+
+  /** compiled templates by name. */
+  private final Map<String, CompiledTemplate> templates = new ConcurrentHashMap<String, CompiledTemplate>();
+
+  /** folders registered with the watch service. */
+  private final Set<Path> watchedDirs = new HashSet<Path>();
+
+  /** true to recompile templates when their files change. */
+  private boolean watchTemplates = true;
+
+  private WatchService watchService;
+  private Thread watchThread;
+
+  /**
+   * A compiled template and the file from which it was read.
+   */
+  private static final class CompiledTemplate {
+    final Template template;
+    /** null when the template is not a file on the file system. */
+    final Path file;
+
+    CompiledTemplate(Template template, Path file) {
+      this.template = template;
+      this.file = file;
+    }
+  }
+
+  /**
+   * Returns the compiled template with the given name, compiling it the first
+   * time it is requested.
+   *
+   * @param name
+   *          classpath resource name or file path of the template
+   * @return compiled template
+   * @throws FileNotFoundException
+   *           when no template of the given name can be found
+   */
+  public Template getTemplate(String name) throws FileNotFoundException {
+    CompiledTemplate compiled = templates.get(name);
+    if (compiled == null) {
+      compiled = compile(name);
+      final CompiledTemplate existing = templates.putIfAbsent(name, compiled);
+      if (existing != null) {
+        compiled = existing;
+      } else {
+        LOG.info("Compiled matching rule template {}", name);
+        watch(compiled.file);
+      }
+    }
+    return compiled.template;
+  }
+
+  /**
+   * Applies the parameters to the template and writes the result to the
+   * given file, replacing any existing content.
+   *
+   * @param template
+   *          compiled template
+   * @param params
+   *          template parameters
+   * @param outFile
+   *          file to which to write the result
+   * @throws IOException
+   *           when the file cannot be written
+   */
+  public void render(Template template, Object params, File outFile)
+      throws IOException {
+    final FileChannel channel = FileChannel.open(outFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    final Writer writer = new BufferedWriter(Channels.newWriter(channel,
+        StandardCharsets.UTF_8.newEncoder(), -1), RENDER_BUFFER_SIZE);
+    try {
+      template.execute(params, writer);
+    } finally {
+      // closes the channel too
+      writer.close();
+    }
+  }
+
+  /**
+   * Starts watching the files of the templates compiled so far, and of those
+   * compiled later, for changes.
+   */
+  public synchronized void start() {
+    if (!watchTemplates || watchService != null) {
+      return;
+    }
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (IOException e) {
+      LOG.warn("Unable to watch matching rule templates for changes", e);
+      return;
+    }
+    for (CompiledTemplate compiled : templates.values()) {
+      watch(compiled.file);
+    }
+
+    watchThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        processEvents();
+      }
+    }, "template-watcher");
+    watchThread.setDaemon(true);
+    watchThread.start();
+  }
+
+  /**
+   * Stops watching template files.
+   */
+  public synchronized void stop() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        LOG.debug("Error closing template watch service", e);
+      }
+      watchService = null;
+      watchedDirs.clear();
+      watchThread = null;
+    }
+  }
+
+  /**
+   * Registers the folder containing the given file with the watch service.
+   */
+  private synchronized void watch(Path file) {
+    if (file == null || watchService == null) {
+      return;
+    }
+    final Path dir = file.getParent();
+    if (dir != null && watchedDirs.add(dir)) {
+      try {
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        LOG.info("Watching {} for matching rule template changes", dir);
+      } catch (IOException e) {
+        watchedDirs.remove(dir);
+        LOG.warn("Unable to watch {} for template changes", dir, e);
+      }
+    }
+  }
+
+  /**
+   * Recompiles templates whose files change until the watch service is
+   * closed.
+   */
+  private void processEvents() {
+    final WatchService ws;
+    synchronized (this) {
+      ws = watchService;
+    }
+    if (ws == null) {
+      return;
+    }
+    try {
+      while (true) {
+        final WatchKey key = ws.take();
+        final Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.context() instanceof Path) {
+            templateFileChanged(dir.resolve((Path) event.context()));
+          }
+        }
+        key.reset();
+      }
+    } catch (ClosedWatchServiceException e) {
+      // stopped
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Recompiles each template read from the given file.
+   */
+  private void templateFileChanged(Path file) {
+    for (Map.Entry<String, CompiledTemplate> entry : templates.entrySet()) {
+      final CompiledTemplate compiled = entry.getValue();
+      if (file.equals(compiled.file)) {
+        final String name = entry.getKey();
+        try {
+          final CompiledTemplate recompiled = compile(name);
+          templates.replace(name, compiled, recompiled);
+          LOG.info("Recompiled changed matching rule template {}", name);
+        } catch (Exception e) {
+          // e.g., file was deleted or is still being written
+          LOG.warn("Unable to recompile matching rule template {}; "
+              + "previous version remains in use: {}", name, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Searches classpath and then system for a template with the specified name
+   * and compiles it.
+   */
+  private CompiledTemplate compile(String name) throws FileNotFoundException {
+    InputStream instream = this.getClass().getClassLoader()
+        .getResourceAsStream(name);
+    Path file = null;
+    if (instream != null) {
+      file = toPath(this.getClass().getClassLoader().getResource(name));
+    } else {
+      instream = System.class.getResourceAsStream(name);
+      if (instream != null) {
+        file = toPath(System.class.getResource(name));
+      } else {
+        instream = new FileInputStream(name);
+        file = Paths.get(name).toAbsolutePath();
+      }
+    }
+
+    final Reader r = new InputStreamReader(instream);
+    try {
+      return new CompiledTemplate(Mustache.compiler().compile(r), file);
+    } finally {
+      try {
+        r.close();
+      } catch (Exception e) {
+        // skip
+      }
+    }
+  }
+
+  /**
+   * Returns the file system path of a resource, or null when the resource is
+   * not a plain file (e.g., it is packed in a jar).
+   */
+  private static Path toPath(URL url) {
+    if (url != null && "file".equals(url.getProtocol())) {
+      try {
+        return Paths.get(url.toURI());
+      } catch (URISyntaxException e) {
+        LOG.debug("Unable to convert {} to a path", url);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true when template files are watched for changes
+   */
+  public final boolean isWatchTemplates() {
+    return watchTemplates;
+  }
+
+  /**
+   * @param watchTemplates
+   *          true to recompile templates when their files change; takes
+   *          effect when the registry is started
+   */
+  public final void setWatchTemplates(boolean watchTemplates) {
+    this.watchTemplates = watchTemplates;
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.util.HashMap;
+import java.util.List;
+
+import cdc.components.AbstractDataSource;
+import cdc.datamodel.DataCell;
+import cdc.datamodel.DataColumnDefinition;
+import cdc.datamodel.DataRow;
+import cdc.datamodel.converters.ModelGenerator;
+import cdc.impl.datasource.text.CSVDataColumnDefinition;
+import cdc.utils.RJException;
+
+/**
+ * FRIL data source that serves rows held in memory.
+ *
+ * <p>
+ * Each row holds one value per column, in the order of the column names,
+ * as produced by {@link org.mitre.ptmatchadapter.format.SimplePatientCsvFormat#toValues}
+ * with the fullUrl prepended. Rows are presented to FRIL exactly as
+ * <code>cdc.impl.datasource.text.CSVDataSource</code> presents the lines of
+ * the equivalent CSV file (i.e., each value is trimmed and typed as a
+ * string), so matching results do not depend on which source is used.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PatientRowDataSource extends AbstractDataSource {
+  private static final long serialVersionUID = 1L;
+
+  private final String[] columnNames;
+  private final List<String[]> rows;
+
+  /** index of the next row to be returned. */
+  private int next = 0;
+
+  /**
+   * @param sourceName
+   *          name of the data source (e.g., master-data)
+   * @param columnNames
+   *          column names, in the order of the values in each row
+   * @param rows
+   *          rows of values; not copied, so must not change while in use
+   */
+  public PatientRowDataSource(String sourceName, String[] columnNames,
+      List<String[]> rows) {
+    super(sourceName, buildModel(sourceName, columnNames),
+        new HashMap<String, String>());
+    this.columnNames = columnNames.clone();
+    this.rows = rows;
+  }
+
+  private static DataColumnDefinition[] buildModel(String sourceName,
+      String[] columnNames) {
+    final DataColumnDefinition[] model = new DataColumnDefinition[columnNames.length];
+    for (int i = 0; i < columnNames.length; i++) {
+      model[i] = new CSVDataColumnDefinition(columnNames[i], i,
+          DataColumnDefinition.TYPE_STRING, sourceName);
+    }
+    return model;
+  }
+
+  @Override
+  protected DataRow nextRow() throws RJException {
+    if (next >= rows.size()) {
+      return null;
+    }
+    final String[] values = rows.get(next++);
+
+    final ModelGenerator generator = getDataModel();
+    final DataColumnDefinition[] inputFormat = generator.getInputFormat();
+    final DataCell[] cells = new DataCell[inputFormat.length];
+    for (int i = 0; i < cells.length; i++) {
+      final int pos = ((CSVDataColumnDefinition) inputFormat[i])
+          .getColumnPosition();
+      final String value = pos < values.length && values[pos] != null
+          ? values[pos].trim() : "";
+      cells[i] = new DataCell(DataColumnDefinition.TYPE_STRING, value);
+    }
+    return new DataRow(generator.getOutputFormat(),
+        generator.generateOutputRow(cells), getSourceName());
+  }
+
+  @Override
+  protected void doClose() {
+    next = 0;
+  }
+
+  @Override
+  protected void doReset() {
+    next = 0;
+  }
+
+  @Override
+  public boolean canSort() {
+    return false;
+  }
+
+  @Override
+  public long size() {
+    return rows.size();
+  }
+
+  @Override
+  public AbstractDataSource copy() {
+    final PatientRowDataSource that = new PatientRowDataSource(getSourceName(),
+        columnNames, rows);
+    that.setModel(getDataModel());
+    that.setFilter(getFilter());
+    return that;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PatientRowDataSource)) {
+      return false;
+    }
+    final PatientRowDataSource that = (PatientRowDataSource) obj;
+    return rows == that.rows && areTheSameProperties(this, that);
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(rows);
+  }
+
+  /**
+   * @return number of rows served by this data source
+   */
+  public final int getRowCount() {
+    return rows.size();
+  }
+
+  /**
+   * @return the column names
+   */
+  public final String[] getColumnNames() {
+    return columnNames.clone();
+  }
+}
@@ -0,0 +1,469 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.mitre.ptmatchadapter.DuplicateMessageFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Runs record match requests on a pool of worker threads so a long running
+ * job does not hold up the requests queued behind it.
+ *
+ * <p>
+ * Waiting requests are ordered by kind and then by arrival: requests that link
+ * a query record set with a master record set are typically small and run
+ * before deduplications of an entire master record set. Each job runs in its
+ * own job folder (see {@link RecordMatchRequestProcessor#newRunDir(String)}).
+ * </p>
+ *
+ * <p>
+ * A job that runs longer than {@code jobTimeoutMillis} is answered with an
+ * error response and its worker thread is interrupted; any response the job
+ * produces afterwards is discarded. The worker is not available for another
+ * job until the record matcher returns.
+ * </p>
+ *
+ * <p>
+ * Once a job's response has been handed on, the request is marked processed
+ * in the {@code duplicateMessageFilter}, when one is configured. Jobs waiting
+ * or running when the adapter stops are not marked, so the request is
+ * retrieved and processed again after a restart.
+ * </p>
+ *
+ * <p>
+ * Queue depth, running jobs and job latency are exposed as JMX attributes.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@ManagedResource(objectName = "org.mitre.ptmatchadapter:type=RecordMatchJobScheduler",
+    description = "Record match job scheduler")
+public class RecordMatchJobScheduler {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(RecordMatchJobScheduler.class);
+
+  /** priority of requests that link a query set with the master set. */
+  private static final int LINKAGE_PRIORITY = 0;
+  /** priority of requests that deduplicate the master set. */
+  private static final int DEDUPLICATION_PRIORITY = 1;
+
+  private RecordMatchRequestProcessor requestHandler;
+
+  private DuplicateMessageFilter duplicateMessageFilter;
+
+  /** number of jobs that may run at the same time. */
+  private int workers = 2;
+
+  /** maximum run time of a job in milliseconds; 0 or less for no limit. */
+  private volatile long jobTimeoutMillis = 60L * 60L * 1000L;
+
+  private ThreadPoolExecutor executor;
+  private ScheduledExecutorService watchdog;
+
+  private final AtomicLong jobSeq = new AtomicLong();
+  private final AtomicInteger runningJobs = new AtomicInteger();
+  private final AtomicLong submittedJobs = new AtomicLong();
+  private final AtomicLong completedJobs = new AtomicLong();
+  private final AtomicLong failedJobs = new AtomicLong();
+  private final AtomicLong timedOutJobs = new AtomicLong();
+  private final AtomicLong totalRunMillis = new AtomicLong();
+  private final AtomicLong totalQueueMillis = new AtomicLong();
+  private final AtomicLong lastRunMillis = new AtomicLong();
+  private final AtomicLong maxRunMillis = new AtomicLong();
+
+  /**
+   * Starts the worker and watchdog threads.
+   */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory("record-match-job-"));
+    watchdog = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("record-match-watchdog-"));
+    LOG.info("Record match job scheduler started, workers: {}, job timeout: {} ms",
+        workers, jobTimeoutMillis);
+  }
+
+  /**
+   * Stops accepting jobs and interrupts running jobs. Waiting jobs are
+   * dropped.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      final int dropped = executor.shutdownNow().size();
+      watchdog.shutdownNow();
+      executor = null;
+      watchdog = null;
+      LOG.info("Record match job scheduler stopped, {} waiting jobs dropped",
+          dropped);
+    }
+  }
+
+  /**
+   * Queues a record match request to be processed by the next available
+   * worker.
+   *
+   * @param bundle
+   *          record match request message
+   */
+  public void submit(Bundle bundle) {
+    final ThreadPoolExecutor exec;
+    synchronized (this) {
+      if (executor == null) {
+        start();
+      }
+      exec = executor;
+    }
+
+    final int priority = requestHandler.isLinkageRequest(bundle)
+        ? LINKAGE_PRIORITY : DEDUPLICATION_PRIORITY;
+    final RecordMatchJob job = new RecordMatchJob(bundle, priority,
+        jobSeq.incrementAndGet());
+    submittedJobs.incrementAndGet();
+    exec.execute(job);
+    LOG.info("Queued record match job {}, bundle: {}, queue depth: {}", job.seq,
+        bundle.getId(), exec.getQueue().size());
+  }
+
+  /**
+   * Answers a job that has exceeded the time limit, unless it has already
+   * finished.
+   */
+  private void timeOut(RecordMatchJob job) {
+    if (job.answered.compareAndSet(false, true)) {
+      timedOutJobs.incrementAndGet();
+      LOG.warn("Record match job {} exceeded time limit of {} ms, bundle: {}",
+          job.seq, jobTimeoutMillis, job.request.getId());
+      job.interrupt();
+      requestHandler.sendResponse(job.request, requestHandler.buildErrorResponse(
+          job.request, "Record match job exceeded time limit of "
+              + jobTimeoutMillis + " ms"));
+      markProcessed(job.request);
+    }
+  }
+
+  /**
+   * Records that the request has been answered, so it is not processed again
+   * after a restart.
+   */
+  private void markProcessed(Bundle request) {
+    if (duplicateMessageFilter != null) {
+      duplicateMessageFilter.markProcessed(request);
+    }
+  }
+
+  /**
+   * Processes a single record match request. Jobs are ordered by priority and
+   * then by arrival.
+   */
+  private final class RecordMatchJob
+      implements Runnable, Comparable<RecordMatchJob> {
+    private final Bundle request;
+    private final int priority;
+    private final long seq;
+    private final long queuedAt = System.nanoTime();
+    /** set by whichever of the job and the watchdog responds first. */
+    private final AtomicBoolean answered = new AtomicBoolean();
+    /** worker running the job; guarded by this. */
+    private Thread worker;
+
+    RecordMatchJob(Bundle request, int priority, long seq) {
+      this.request = request;
+      this.priority = priority;
+      this.seq = seq;
+    }
+
+    @Override
+    public int compareTo(RecordMatchJob o) {
+      if (priority != o.priority) {
+        return priority < o.priority ? -1 : 1;
+      }
+      return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+    }
+
+    synchronized void interrupt() {
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      final long startedAt = System.nanoTime();
+      totalQueueMillis.addAndGet((startedAt - queuedAt) / 1000000L);
+      runningJobs.incrementAndGet();
+      synchronized (this) {
+        worker = Thread.currentThread();
+      }
+
+      ScheduledFuture<?> timeout = null;
+      if (jobTimeoutMillis > 0) {
+        timeout = watchdog.schedule(new Runnable() {
+          @Override
+          public void run() {
+            timeOut(RecordMatchJob.this);
+          }
+        }, jobTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+
+      Bundle response = null;
+      boolean failed = false;
+      try {
+        LOG.info("Starting record match job {}, bundle: {}", seq, request.getId());
+        response = requestHandler.buildResponse(request);
+      } catch (RuntimeException e) {
+        failed = true;
+        LOG.error("Record match job {} failed, bundle: {}", seq, request.getId(), e);
+        response = requestHandler.buildErrorResponse(request, "Unexpected Error");
+      } finally {
+        if (timeout != null) {
+          timeout.cancel(false);
+        }
+        synchronized (this) {
+          worker = null;
+        }
+        // clear an interrupt from the watchdog before the thread is reused
+        Thread.interrupted();
+        runningJobs.decrementAndGet();
+      }
+
+      final long runMillis = (System.nanoTime() - startedAt) / 1000000L;
+      totalRunMillis.addAndGet(runMillis);
+      lastRunMillis.set(runMillis);
+      long max = maxRunMillis.get();
+      while (runMillis > max && !maxRunMillis.compareAndSet(max, runMillis)) {
+        max = maxRunMillis.get();
+      }
+
+      if (answered.compareAndSet(false, true)) {
+        if (failed) {
+          failedJobs.incrementAndGet();
+        } else {
+          completedJobs.incrementAndGet();
+        }
+        LOG.info("Finished record match job {} in {} ms, bundle: {}", seq,
+            runMillis, request.getId());
+        requestHandler.sendResponse(request, response);
+        markProcessed(request);
+      } else {
+        LOG.warn("Discarding response of timed out record match job {}, bundle: {}",
+            seq, request.getId());
+        requestHandler.discardResponse(response);
+      }
+    }
+  }
+
+  /**
+   * Creates daemon threads with a common name prefix.
+   */
+  private static final class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger threadNum = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread t = new Thread(r, prefix + threadNum.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /**
+   * @return number of jobs waiting for a worker
+   */
+  @ManagedAttribute(description = "Number of jobs waiting for a worker")
+  public final synchronized int getQueueDepth() {
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  /**
+   * @return number of jobs currently running
+   */
+  @ManagedAttribute(description = "Number of jobs currently running")
+  public final int getRunningJobs() {
+    return runningJobs.get();
+  }
+
+  /**
+   * @return number of jobs submitted since startup
+   */
+  @ManagedAttribute(description = "Number of jobs submitted")
+  public final long getSubmittedJobs() {
+    return submittedJobs.get();
+  }
+
+  /**
+   * @return number of jobs that finished and sent their response
+   */
+  @ManagedAttribute(description = "Number of jobs completed")
+  public final long getCompletedJobs() {
+    return completedJobs.get();
+  }
+
+  /**
+   * @return number of jobs that ended with an unexpected exception
+   */
+  @ManagedAttribute(description = "Number of jobs that failed")
+  public final long getFailedJobs() {
+    return failedJobs.get();
+  }
+
+  /**
+   * @return number of jobs that exceeded the time limit
+   */
+  @ManagedAttribute(description = "Number of jobs that exceeded the time limit")
+  public final long getTimedOutJobs() {
+    return timedOutJobs.get();
+  }
+
+  /**
+   * @return run time of the most recently finished job in milliseconds
+   */
+  @ManagedAttribute(description = "Run time of the last finished job (ms)")
+  public final long getLastJobMillis() {
+    return lastRunMillis.get();
+  }
+
+  /**
+   * @return longest job run time in milliseconds
+   */
+  @ManagedAttribute(description = "Longest job run time (ms)")
+  public final long getMaxJobMillis() {
+    return maxRunMillis.get();
+  }
+
+  /**
+   * @return mean job run time in milliseconds
+   */
+  @ManagedAttribute(description = "Mean job run time (ms)")
+  public final long getMeanJobMillis() {
+    final long finished = completedJobs.get() + failedJobs.get()
+        + timedOutJobs.get();
+    return finished == 0 ? 0 : totalRunMillis.get() / finished;
+  }
+
+  /**
+   * @return mean time a job waited for a worker in milliseconds
+   */
+  @ManagedAttribute(description = "Mean time jobs waited for a worker (ms)")
+  public final long getMeanQueueMillis() {
+    final long started = submittedJobs.get() - getQueueDepth();
+    return started <= 0 ? 0 : totalQueueMillis.get() / started;
+  }
+
+  /**
+   * @return the requestHandler
+   */
+  public final RecordMatchRequestProcessor getRequestHandler() {
+    return requestHandler;
+  }
+
+  /**
+   * @param requestHandler
+   *          processor that performs each record match request
+   */
+  public final void setRequestHandler(RecordMatchRequestProcessor requestHandler) {
+    this.requestHandler = requestHandler;
+  }
+
+  /**
+   * @return the duplicateMessageFilter
+   */
+  public final DuplicateMessageFilter getDuplicateMessageFilter() {
+    return duplicateMessageFilter;
+  }
+
+  /**
+   * @param duplicateMessageFilter
+   *          filter in which answered requests are marked processed; null
+   *          when requests need not survive a restart
+   */
+  public final void setDuplicateMessageFilter(
+      DuplicateMessageFilter duplicateMessageFilter) {
+    this.duplicateMessageFilter = duplicateMessageFilter;
+  }
+
+  /**
+   * @return the number of jobs that may run at the same time
+   */
+  @ManagedAttribute(description = "Number of jobs that may run at the same time")
+  public final synchronized int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * @param workers
+   *          the number of jobs that may run at the same time
+   */
+  @ManagedAttribute
+  public final synchronized void setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must be at least 1");
+    }
+    if (executor != null) {
+      // order matters: the core size may not exceed the maximum size
+      if (workers > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(workers);
+        executor.setCorePoolSize(workers);
+      } else {
+        executor.setCorePoolSize(workers);
+        executor.setMaximumPoolSize(workers);
+      }
+    }
+    this.workers = workers;
+  }
+
+  /**
+   * @return the maximum run time of a job in milliseconds
+   */
+  @ManagedAttribute(description = "Maximum run time of a job (ms); 0 for no limit")
+  public final long getJobTimeoutMillis() {
+    return jobTimeoutMillis;
+  }
+
+  /**
+   * @param jobTimeoutMillis
+   *          the maximum run time of a job in milliseconds; 0 or less for no
+   *          limit
+   */
+  @ManagedAttribute
+  public final void setJobTimeoutMillis(long jobTimeoutMillis) {
+    this.jobTimeoutMillis = jobTimeoutMillis;
+  }
+}
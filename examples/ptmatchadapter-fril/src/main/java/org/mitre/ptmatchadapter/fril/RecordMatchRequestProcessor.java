@@ -16,29 +16,31 @@
  */
 package org.mitre.ptmatchadapter.fril;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.net.URLEncoder;
+import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 
 import org.apache.camel.ProducerTemplate;
 
@@ -53,23 +55,24 @@ import org.hl7.fhir.instance.model.Patient;
 import org.hl7.fhir.instance.model.Resource;
 import org.hl7.fhir.instance.model.ResourceType;
 
+import org.mitre.ptmatchadapter.PageRetrievalStats;
+import org.mitre.ptmatchadapter.PipelinedPageLoader;
+import org.mitre.ptmatchadapter.ResultSender;
 import org.mitre.ptmatchadapter.SearchResultSplitter;
 import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
 import org.mitre.ptmatchadapter.fril.config.Configuration;
 import org.mitre.ptmatchadapter.fril.config.Configuration.LeftDataSource.Preprocessing.Deduplication.MinusFile;
-import org.mitre.ptmatchadapter.model.ServerAuthorization;
-import org.mitre.ptmatchadapter.util.AuthorizationUtil;
+import org.mitre.ptmatchadapter.match.CachedRecordSet;
+import org.mitre.ptmatchadapter.match.MatchRecords;
+import org.mitre.ptmatchadapter.match.RecordSetCache;
 import org.mitre.ptmatchadapter.util.ParametersUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.samskivert.mustache.Mustache;
 import com.samskivert.mustache.Template;
 
 import ca.uhn.fhir.rest.client.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
@@ -101,13 +104,27 @@ public class RecordMatchRequestProcessor {
    */
   private boolean deleteJobResults = false;
 
+  /**
+   * Path to the folder in which results messages are written, one linked
+   * record at a time, before they are sent; when null, results are built in
+   * memory.
+   */
+  private String resultsDir;
+
   /** Path to the record match deduplication configuration template file. */
   private String deduplicationTemplate;
 
   /** Path to the record match linkage configuration template file. */
   private String linkageTemplate;
 
-  private List<ServerAuthorization> serverAuthorizations;
+  /** Loads the next page of search results while the current one is stored. */
+  private final PipelinedPageLoader pageLoader = new PipelinedPageLoader();
+
+  /** Compiled matching rule configuration templates. */
+  private MatchingRuleTemplateRegistry templateRegistry = new MatchingRuleTemplateRegistry();
+
+  /** Reads configurations and resolves the files named by templates. */
+  private ConfigurationIntrospector configurationIntrospector = new ConfigurationIntrospector();
 
   private static final String MASTER = "master";
   private static final String QUERY = "query";
@@ -115,6 +132,10 @@ public class RecordMatchRequestProcessor {
   private static final String SEARCH_EXPR = "searchExpression";
   private static final String RESOURCE_URL = "resourceUrl";
 
+  private static final String LAST_UPDATED = "_lastUpdated";
+  private static final String ELEMENTS = "_elements";
+  private static final String HISTORY = "/_history/";
+
   /**
    * fullUrl is constructed as server base + resource type + logical id (e.g.,
    * http://serverbase/Patient/123).
@@ -129,7 +150,70 @@ public class RecordMatchRequestProcessor {
   /** format to use to construct the fullUrl returned in the results. */
   private String fullUrlFormat = FULLURL_FORMAT_SIMPLE;
 
+  /**
+   * Retrieved records are written to CSV files, which FRIL reads; FRIL
+   * writes the duplicates it finds to a CSV file, which is read to build the
+   * results. Useful when debugging matching rules.
+   */
+  public static final String FRIL_MODE_FILE = "file";
+  /**
+   * Retrieved records are held in memory and deduplicated in-process using
+   * the matching rules of the template; no files are written. Linkage
+   * requests are always processed in file mode.
+   */
+  public static final String FRIL_MODE_MEMORY = "memory";
+
+  /** how records are handed to FRIL and its results collected. */
+  private String frilMode = FRIL_MODE_MEMORY;
+
+  /** Deduplicates records held in memory. */
+  private final InMemoryDeduplicator deduplicator = new InMemoryDeduplicator();
+
+  /** data source schemas, by the columns named by the matching rules. */
+  private final Map<Set<String>, DataSourceSchema> schemas = new ConcurrentHashMap<Set<String>, DataSourceSchema>();
+
+  /** number of threads formatting the lines of data source files. */
+  private int encodeThreads = Runtime.getRuntime().availableProcessors();
+
+  /** threads formatting the lines of data source files; created on first use. */
+  private ForkJoinPool encodePool;
+
+  /**
+   * true to also store the records retrieved for a job in a columnar data
+   * file, which is far cheaper than CSV to read back (e.g., to re-score a
+   * job).
+   */
+  private boolean columnarJobData = false;
+
+  private static final String CSV_EXTENSION = ".csv";
+
+  /** Keeps master record sets between jobs; null to retrieve each time. */
+  private RecordSetCache recordCache;
+
+  /**
+   * lock of each cached master set, by cache key; held while the set is
+   * brought up to date and its rows are taken, so jobs for other sets need
+   * not wait.
+   */
+  private final ConcurrentMap<String, ReentrantLock> masterSetLocks =
+      new ConcurrentHashMap<String, ReentrantLock>();
+
+  /** file in the job folder to which duplicates found in memory are written. */
+  private static final String LINKED_RECORDS_FILE = "linked-records.csv";
+
   public void process(Bundle bundle) {
+    sendResponse(bundle, buildResponse(bundle));
+  }
+
+  /**
+   * Performs the record match operation for the given request and returns the
+   * response message. Errors are reported in the response rather than thrown.
+   *
+   * @param bundle
+   *          record match request message
+   * @return response message or null when no response could be built
+   */
+  protected Bundle buildResponse(Bundle bundle) {
     Bundle response = null;
     RecordMatchResultsBuilder respBuilder;
 
@@ -195,25 +279,29 @@ public class RecordMatchRequestProcessor {
               ResponseType.FATALERROR);
           respBuilder.outcomeIssueDiagnostics(errMsg);
           response = respBuilder.build();
-          getProducer().sendBody(getProducerEndpointUri(), response);
-          return;
+          return response;
         }
 
-        LoggingInterceptor loggingInterceptor = null;
-        if (LOG.isDebugEnabled()) {
-          loggingInterceptor = new LoggingInterceptor(true);
-          fhirRestClient.registerInterceptor(loggingInterceptor);
-        }
+        // Only the columns the matching rules compare are retrieved
+        final DataSourceSchema schema = getDataSourceSchema(
+            querySearchUrl == null);
+
+        // Deduplication may be performed on records held in memory
+        final List<String[]> masterRows = FRIL_MODE_MEMORY.equals(frilMode)
+            && querySearchUrl == null ? new ArrayList<String[]>() : null;
 
         int numMasterRecs = 0;
+        // The client is shared by jobs running in parallel; it attaches the
+        // authorization of the server named by each request itself
         try {
           // Retrieve the data associated with the search urls
-          numMasterRecs = retrieveAndStoreData(
-              masterSearchUrl, masterServerBase, jobDir, "master");
+          numMasterRecs = retrieveAndStoreMasterData(masterSearchUrl,
+              masterServerBase, jobDir, masterRows, schema);
 
           if (querySearchUrl != null) {
             isDeduplication = false;
-            retrieveAndStoreData(querySearchUrl, queryServerBase, jobDir, "query");
+            retrieveAndStoreData(querySearchUrl, queryServerBase, jobDir,
+                "query", null, schema);
           }
 
         } catch (BaseServerResponseException e) {
@@ -226,8 +314,7 @@ public class RecordMatchRequestProcessor {
               ResponseType.FATALERROR);
           respBuilder.outcomeIssueDiagnostics(errMsg);
           response = respBuilder.build();
-          getProducer().sendBody(getProducerEndpointUri(), response);
-          return;
+          return response;
         } catch (Exception e) {
           final String errMsg = String.format("Unable to retrieve messages: %s",
               e.getMessage());
@@ -237,12 +324,7 @@ public class RecordMatchRequestProcessor {
               ResponseType.FATALERROR);
           respBuilder.outcomeIssueDiagnostics(errMsg);
           response = respBuilder.build();
-          getProducer().sendBody(getProducerEndpointUri(), response);
-          return;
-        } finally {
-          if (loggingInterceptor != null) {
-            fhirRestClient.unregisterInterceptor(loggingInterceptor);
-          }
+          return response;
         }
 
         // if no records were returned for the master record set query
@@ -251,35 +333,43 @@ public class RecordMatchRequestProcessor {
           respBuilder.outcomeDetailText("No Records Found in Master Record Set");
           response = respBuilder.build();          
         } else {
-          final File configFile = prepareMatchingRuleConfiguration(isDeduplication,
-              jobDir);
-  
+          respBuilder = new RecordMatchResultsBuilder(bundle, ResponseType.OK);
+
           // Perform the Match Operation
-          LOG.debug("About to Start FRIL w/ config {}", configFile.getAbsolutePath());
-          final int numMatches = findMatches(isDeduplication, configFile);
+          final int numMatches;
+          if (masterRows != null) {
+            // duplicates are added to the results as they are found
+            numMatches = findMatches(jobDir, masterRows, respBuilder);
+          } else {
+            final File configFile = prepareMatchingRuleConfiguration(
+                isDeduplication, jobDir);
+            LOG.debug("About to Start FRIL w/ config {}",
+                configFile.getAbsolutePath());
+            numMatches = findMatches(isDeduplication, configFile);
+          }
           LOG.info("FRIL Number of Matches: {}", numMatches);
   
           if (numMatches == 0) {
-            respBuilder = new RecordMatchResultsBuilder(bundle, ResponseType.OK);
             respBuilder.outcomeDetailText("No Matches Found");
             response = respBuilder.build();
   
           } else if (numMatches > 0) {
-            // Find the name of the file containing duplicates from the config
-            // file
-            final File dupsFile = getDuplicatesFile(configFile);
-            // Ensure the duplicates file exists
-            if (!dupsFile.exists()) {
-              final String errMsg = "Unable to find duplicates file";
-              LOG.error(errMsg + " at " + dupsFile.getAbsolutePath());
-              throw new FileNotFoundException(errMsg);
+            if (masterRows == null) {
+              // Find the name of the file containing duplicates from the
+              // template used to generate the config file
+              final File dupsFile = getDuplicatesFile(isDeduplication, jobDir);
+              // Ensure the duplicates file exists
+              if (!dupsFile.exists()) {
+                final String errMsg = "Unable to find duplicates file";
+                LOG.error(errMsg + " at " + dupsFile.getAbsolutePath());
+                throw new FileNotFoundException(errMsg);
+              }
+              respBuilder.duplicates(dupsFile);
             }
-  
+
             // Construct results
-            respBuilder = new RecordMatchResultsBuilder(bundle, ResponseType.OK);
             respBuilder.outcomeDetailText("Deduplication Complete");
-            respBuilder.duplicates(dupsFile);
-            response = respBuilder.build();
+            response = buildResults(respBuilder);
   
           } else {
             final String errMsg = "Unknown Processing Error";
@@ -331,12 +421,118 @@ public class RecordMatchRequestProcessor {
       }
     }
 
-    // Send the response back to the requester
+    return response;
+  }
+
+  /**
+   * Builds a results message with the linked records found. When a results
+   * folder is configured, the message is written to a file in it, reading the
+   * duplicates file one line at a time, and the Bundle returned holds only the
+   * message header, outcome and parameters, with the file as its
+   * {@link ResultSender#ENCODED_MESSAGE} user data.
+   */
+  private Bundle buildResults(RecordMatchResultsBuilder respBuilder)
+      throws IOException {
+    if (resultsDir == null || resultsDir.isEmpty()) {
+      return respBuilder.build();
+    }
+
+    final File dir = new File(resultsDir);
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+    final File file = File.createTempFile("results-", ".json", dir);
+    boolean written = false;
+    try {
+      final Bundle response = respBuilder.writeTo(file,
+          fhirRestClient.getFhirContext());
+      response.setUserData(ResultSender.ENCODED_MESSAGE, file);
+      written = true;
+      LOG.info("Wrote results message {}, {} bytes", response.getId(),
+          file.length());
+      return response;
+    } finally {
+      if (!written && !file.delete()) {
+        LOG.warn("Unable to delete {}", file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Releases a response that will not be sent (e.g., that of a job which
+   * exceeded its time limit), deleting the file to which it was written.
+   *
+   * @param response
+   *          response message; may be null
+   */
+  protected void discardResponse(Bundle response) {
+    if (response != null) {
+      final Object file = response.getUserData(ResultSender.ENCODED_MESSAGE);
+      if (file instanceof File && !((File) file).delete()) {
+        LOG.warn("Unable to delete {}", ((File) file).getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Sends the response back to the requester.
+   *
+   * @param request
+   *          record match request message
+   * @param response
+   *          response message; null is logged as an error
+   */
+  protected void sendResponse(Bundle request, Bundle response) {
     if (response != null) {
       getProducer().sendBody(getProducerEndpointUri(), response);
     } else {
-      LOG.error("Null Response for request! bundleId: {}", bundle.getId());
+      LOG.error("Null Response for request! bundleId: {}", request.getId());
+    }
+  }
+
+  /**
+   * Builds an error response for the given request.
+   *
+   * @param request
+   *          record match request message
+   * @param errMsg
+   *          description of the error
+   * @return response message or null when no response could be built
+   */
+  protected Bundle buildErrorResponse(Bundle request, String errMsg) {
+    final RecordMatchResultsBuilder respBuilder = new RecordMatchResultsBuilder(
+        request, ResponseType.FATALERROR);
+    respBuilder.outcomeIssueDiagnostics(errMsg);
+    try {
+      return respBuilder.build();
+    } catch (Exception e) {
+      LOG.error("Unable to build error response. request bundle: {}",
+          request.getId(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns true when the request identifies a query record set to be linked
+   * with the master record set, false when the master record set alone is to
+   * be deduplicated.
+   *
+   * @param bundle
+   *          record match request message
+   */
+  protected boolean isLinkageRequest(Bundle bundle) {
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      final Resource r = entry.getResource();
+      if (r != null && ResourceType.Parameters.equals(r.getResourceType())) {
+        final ParametersParameterComponent p = ParametersUtil
+            .findByName(((Parameters) r).getParameter(), "type");
+        if (p != null && p.getValue() != null
+            && QUERY.equalsIgnoreCase(p.getValue().toString())) {
+          return true;
+        }
+      }
     }
+    return false;
   }
 
   private void deleteFolder(File file) {
@@ -351,17 +547,21 @@ public class RecordMatchRequestProcessor {
 
   /**
    * Invokes the given search Url and writes the results to a file in the
-   * specified job folder.
+   * specified job folder, or adds them to the given rows.
    * 
    * @param searchUrl
    * @param serverBase
    * @param jobDir
    * @param fileName
+   * @param rows
+   *          list to which a row of values is added for each record; null to
+   *          write the records to a file
    * @throws IOException
    *
    */
-  private int retrieveAndStoreData(String searchUrl, String serverBase,
-      File jobDir, String fileName) throws IOException {
+  private int retrieveAndStoreData(String searchUrl, final String serverBase,
+      File jobDir, String fileName, final List<String[]> rows,
+      final DataSourceSchema schema) throws IOException {
 
     int numRecords = 0;
     
@@ -370,46 +570,374 @@ public class RecordMatchRequestProcessor {
     LOG.info("retrieveAndStoreData, serverBase: {}  searchUrl: {} encoded query: {}", 
         serverBase, searchUrl, url);
     
-    final ServerAuthorization serverAuthorization = 
-        AuthorizationUtil.findServerAuthorization(serverAuthorizations, serverBase);
-    
-    BearerTokenAuthInterceptor authInterceptor = null;
-    if (serverAuthorization != null) {
-      // register authorization interceptor with the client
-      LOG.info("assigning bearing token interceptor, {}", serverAuthorization.getAccessToken() );
-      authInterceptor = new BearerTokenAuthInterceptor(serverAuthorization.getAccessToken());
-      fhirRestClient.registerInterceptor(authInterceptor);
-    }
+    // Perform a search
+    final Bundle searchResults = fhirRestClient.search().byUrl(url)
+        .returnBundle(Bundle.class).execute();
+
+    final SearchResultSplitter resultSplitter = new SearchResultSplitter();
+    final DataSourceFileWriter dataWriter = rows == null
+        ? new DataSourceFileWriter(
+            createDataSourceFile(jobDir, fileName, CSV_EXTENSION),
+            schema.getFormat(), serverBase,
+            FULLURL_FORMAT_VERSIONED.equals(getFullUrlFormat()), getEncodePool())
+        : null;
+
+    // Store each page as it arrives; the loader fetches the following page
+    // while the current one is split and written
+    final PageRetrievalStats stats;
     try {
-      // Perform a search
-      final Bundle searchResults = fhirRestClient.search().byUrl(url)
-          .returnBundle(Bundle.class).execute();
-  
-      // Split the bundle into its component resources
-      final SearchResultSplitter resultSplitter = new SearchResultSplitter();
-      final List<Resource> resources = resultSplitter.splitBundle(searchResults);
-  
-      final File dataFile = createDataSourceFile(jobDir, fileName);
-      writeData(dataFile, resources, serverBase, true);
-      numRecords = resources.size();
-      
-      // retrieve other pages of search results
-      Bundle nextResults = searchResults;
-      while (nextResults.getLink(Bundle.LINK_NEXT) != null) {
-        nextResults = fhirRestClient.loadPage().next(nextResults).execute();
-        List<Resource> nextResources = resultSplitter.splitBundle(nextResults);
-        writeData(dataFile, nextResources, serverBase, false);
-        numRecords += nextResources.size();
-      }
+      stats = pageLoader.processPages(searchResults,
+          new PipelinedPageLoader.PageHandler() {
+            @Override
+            public int handlePage(Bundle page, int pageNum) throws IOException {
+              // Split the bundle into its component resources
+              final List<Resource> resources = resultSplitter.splitBundle(page);
+              if (rows != null) {
+                addRows(rows, resources, serverBase, schema);
+              } else {
+                dataWriter.write(resources);
+              }
+              return resources.size();
+            }
+          });
     } finally {
-      if (authInterceptor != null) {
-        // unregister authorization interceptor with the client
-        fhirRestClient.unregisterInterceptor(authInterceptor);
+      if (dataWriter != null) {
+        dataWriter.close();
       }
     }
+    numRecords = stats.getRecords();
+    LOG.info("retrieved {} data set, {}", fileName, stats);
+
+    if (columnarJobData && numRecords > 0) {
+      storeColumnarData(jobDir, fileName, rows, schema);
+    }
     return numRecords;
   }
 
+  /**
+   * Retrieves the master record set and writes it to a file in the specified
+   * job folder, or adds it to the given rows. When a record cache is set, a
+   * set retrieved by an earlier job is brought up to date by retrieving only
+   * the records updated since, and the whole set is retrieved only the first
+   * time or once the cached set has expired.
+   *
+   * @param searchUrl
+   *          search url of the master record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param jobDir
+   * @param rows
+   *          list to which a row of values is added for each record; null to
+   *          write the records to a file
+   * @return number of master records
+   * @throws IOException
+   *           when the records could not be stored
+   */
+  protected int retrieveAndStoreMasterData(String searchUrl, String serverBase,
+      File jobDir, List<String[]> rows, DataSourceSchema schema)
+      throws IOException {
+    if (recordCache == null) {
+      return retrieveAndStoreData(searchUrl, serverBase, jobDir, MASTER, rows,
+          schema);
+    }
+
+    final List<String[]> masterRows;
+    final ReentrantLock lock = masterSetLock(
+        RecordSetCache.key(serverBase, searchUrl));
+    lock.lock();
+    try {
+      final CachedRecordSet masterSet = retrieveMasterSet(searchUrl,
+          serverBase, schema);
+      masterRows = toRows(masterSet.getRecords(), serverBase);
+    } finally {
+      lock.unlock();
+    }
+
+    if (rows != null) {
+      rows.addAll(masterRows);
+    } else {
+      final DataSourceFileWriter dataWriter = new DataSourceFileWriter(
+          createDataSourceFile(jobDir, MASTER, CSV_EXTENSION),
+          schema.getFormat(), serverBase, false, null);
+      try {
+        dataWriter.writeRows(masterRows, schema.getQuotedColumns());
+      } finally {
+        dataWriter.close();
+      }
+    }
+
+    if (columnarJobData && !masterRows.isEmpty()) {
+      storeColumnarData(jobDir, MASTER, masterRows, schema);
+    }
+    return masterRows.size();
+  }
+
+  /**
+   * @param key
+   *          cache key of a master set
+   * @return the lock held while the master set is brought up to date
+   */
+  private ReentrantLock masterSetLock(String key) {
+    ReentrantLock lock = masterSetLocks.get(key);
+    if (lock == null) {
+      lock = new ReentrantLock();
+      final ReentrantLock existing = masterSetLocks.putIfAbsent(key, lock);
+      if (existing != null) {
+        lock = existing;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Brings the cached master set of a search up to date, retrieving only the
+   * records updated since the set was last retrieved, or every record the
+   * first time or once the set has expired. Since a search for updated
+   * records does not return deleted records, the ids of every record of the
+   * search are retrieved too, and the records no longer among them are
+   * dropped. Called holding the lock of the master set.
+   *
+   * @param searchUrl
+   *          search url of the master record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param schema
+   *          columns of each record
+   * @return the master set
+   * @throws IOException
+   *           when the records could not be stored
+   */
+  protected CachedRecordSet retrieveMasterSet(String searchUrl,
+      String serverBase, DataSourceSchema schema) throws IOException {
+    final String key = RecordSetCache.key(serverBase, searchUrl);
+    final String cacheSchema = getCacheSchema(schema);
+    final long start = System.currentTimeMillis();
+    CachedRecordSet cached = recordCache.get(key, cacheSchema);
+    if (cached == null || recordCache.isExpired(cached, start)) {
+      final MatchRecords master = newRecords(schema);
+      retrieveRecords(searchUrl, serverBase, master, schema);
+      if (cached == null) {
+        cached = new CachedRecordSet(cacheSchema, master, start);
+      } else {
+        final int before = cached.getRecords().size();
+        cached = cached.reload(master, start);
+        LOG.info("{} records of {} retrieved again, {} before",
+            master.size(), key, before);
+      }
+    } else {
+      final String since = Instant
+          .ofEpochMilli(recordCache.getUpdatedSince(cached)).toString();
+      // ids first, so that a record created in between is not dropped
+      final Set<String> fullUrls = retrieveFullUrls(searchUrl, serverBase);
+      final MatchRecords updated = newRecords(schema);
+      retrieveRecords(searchUrl + (searchUrl.indexOf('?') < 0 ? '?' : '&')
+          + LAST_UPDATED + "=ge" + since, serverBase, updated, schema);
+      final int before = cached.getRecords().size();
+      cached = cached.retain(fullUrls);
+      final int numDropped = before - cached.getRecords().size();
+      final int numChanged = cached.update(updated, start);
+      LOG.info(
+          "{} records of {} updated since {}, {} new or changed, {} dropped",
+          updated.size(), key, since, numChanged, numDropped);
+    }
+    recordCache.put(key, cached);
+    return cached;
+  }
+
+  /**
+   * @return the columns of the records kept for the given data sources; FRIL
+   *         compares the values as they are, so they are not upper-cased
+   */
+  private static String getCacheSchema(DataSourceSchema schema) {
+    final StringBuilder sb = new StringBuilder(200);
+    sb.append("fril;");
+    for (String column : schema.getColumnNames()) {
+      sb.append(column).append(',');
+    }
+    return sb.toString();
+  }
+
+  private static MatchRecords newRecords(DataSourceSchema schema) {
+    return new MatchRecords(schema.getFormat().getColumnNames(), 0, false);
+  }
+
+  /**
+   * Returns a data source row for each record, its fullUrl followed by its
+   * values.
+   *
+   * @param serverBase
+   *          server base of the fullUrl of each record
+   */
+  private List<String[]> toRows(MatchRecords records, String serverBase) {
+    final boolean versioned = FULLURL_FORMAT_VERSIONED.equals(
+        getFullUrlFormat());
+    final List<String[]> rows = new ArrayList<String[]>(records.size());
+    for (int i = 0; i < records.size(); i++) {
+      final String[] values = records.getValues(i);
+      final String[] row = new String[values.length + 1];
+      final String version = records.getVersion(i);
+      row[0] = versioned && version != null
+          ? records.getFullUrl(i) + HISTORY + version
+          : records.getFullUrl(i);
+      System.arraycopy(values, 0, row, 1, values.length);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Invokes the given search Url and adds the records of every page of the
+   * results.
+   *
+   * @param searchUrl
+   *          search url of the record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param records
+   *          records to which the patients found are added
+   * @param schema
+   *          columns of each record
+   * @return number of records retrieved
+   * @throws IOException
+   *           when interrupted while the pages are retrieved
+   */
+  protected int retrieveRecords(String searchUrl, final String serverBase,
+      final MatchRecords records, DataSourceSchema schema) throws IOException {
+    final String url = urlEncodeQueryParams(searchUrl);
+    LOG.info("retrieveRecords, serverBase: {}  searchUrl: {} encoded query: {}",
+        serverBase, searchUrl, url);
+
+    // Perform a search
+    final Bundle searchResults = fhirRestClient.search().byUrl(url)
+        .returnBundle(Bundle.class).execute();
+
+    final SearchResultSplitter resultSplitter = new SearchResultSplitter();
+    final SimplePatientCsvFormat format = schema.getFormat();
+    final PageRetrievalStats stats = pageLoader.processPages(searchResults,
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            final List<Resource> resources = resultSplitter.splitBundle(page);
+            addRecords(records, resources, serverBase, format);
+            return resources.size();
+          }
+        });
+    LOG.info("retrieved {} records, {}", stats.getRecords(), stats);
+    return stats.getRecords();
+  }
+
+  /**
+   * Invokes the given search Url asking for only the ids of the records, and
+   * returns the fullUrl of every record of the results.
+   *
+   * @param searchUrl
+   *          search url of the record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @return fullUrl of every record found
+   * @throws IOException
+   *           when interrupted while the pages are retrieved
+   */
+  protected Set<String> retrieveFullUrls(String searchUrl,
+      final String serverBase) throws IOException {
+    final String url = urlEncodeQueryParams(searchUrl
+        + (searchUrl.indexOf('?') < 0 ? '?' : '&') + ELEMENTS + "=id");
+    LOG.info("retrieveFullUrls, serverBase: {}  searchUrl: {} encoded query: {}",
+        serverBase, searchUrl, url);
+
+    final Bundle searchResults = fhirRestClient.search().byUrl(url)
+        .returnBundle(Bundle.class).execute();
+
+    final Set<String> fullUrls = new HashSet<String>();
+    final SearchResultSplitter resultSplitter = new SearchResultSplitter();
+    pageLoader.processPages(searchResults,
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            final List<Resource> resources = resultSplitter.splitBundle(page);
+            for (Resource r : resources) {
+              if (ResourceType.Patient.equals(r.getResourceType())) {
+                fullUrls.add(fullUrlOf(r, serverBase));
+              }
+            }
+            return resources.size();
+          }
+        });
+    return fullUrls;
+  }
+
+  /**
+   * @param serverBase
+   *          server base to which the resource id is appended
+   * @return fullUrl of the resource, without its version
+   */
+  private static String fullUrlOf(Resource r, String serverBase) {
+    final String fullUrlBase = serverBase.endsWith("/") ? serverBase
+        : serverBase + "/";
+    final StringBuilder sb = new StringBuilder(fullUrlBase.length() + 32);
+    DataSourceFileWriter.appendFullUrl(sb, fullUrlBase, r, false);
+    return sb.toString();
+  }
+
+  /**
+   * Adds the values of each Patient of the given resources to the records.
+   *
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   */
+  protected void addRecords(MatchRecords records, List<Resource> resources,
+      String serverBase, SimplePatientCsvFormat format) {
+    for (Resource r : resources) {
+      if (ResourceType.Patient.equals(r.getResourceType())) {
+        records.add(fullUrlOf(r, serverBase), versionOf(r),
+            format.toValues((Patient) r), new long[0]);
+      } else {
+        LOG.error("Unsupported Resource Type: {}",
+            r.getResourceType().toString());
+      }
+    }
+  }
+
+  /**
+   * @return version id of the resource; null when it has none
+   */
+  private static String versionOf(Resource r) {
+    if (r.hasMeta() && r.getMeta().hasVersionId()) {
+      return r.getMeta().getVersionId();
+    }
+    return r.getIdElement().getVersionIdPart();
+  }
+
+  /**
+   * Writes the records of a data set to a columnar data file in the job
+   * folder, next to its CSV data source file.
+   *
+   * @param rows
+   *          rows of values of the records; null when the records were
+   *          written to the CSV data source file
+   */
+  private void storeColumnarData(File jobDir, String setType,
+      List<String[]> rows, DataSourceSchema schema) throws IOException {
+    final File columnarFile = createDataSourceFile(jobDir, setType,
+        ColumnarDataConverter.COLUMNAR_EXTENSION);
+    final long start = System.currentTimeMillis();
+    if (rows != null) {
+      ColumnarDataWriter.write(columnarFile, schema.getColumnNames(),
+          schema.getQuotedColumns(), rows);
+    } else {
+      ColumnarDataConverter.toColumnar(
+          createDataSourceFile(jobDir, setType, CSV_EXTENSION), columnarFile);
+    }
+    LOG.info("stored {} data set in {}, {} bytes, {} ms", setType,
+        columnarFile.getName(), columnarFile.length(),
+        System.currentTimeMillis() - start);
+  }
+
     
   private String urlEncodeQueryParams(String url) {
     final StringBuilder sb = new StringBuilder((int) (url.length() * 1.2));
@@ -471,6 +999,48 @@ public class RecordMatchRequestProcessor {
     return frilResult;
   }
 
+  /**
+   * Deduplicates the given rows using the matching rules of the
+   * deduplication template. Each duplicate found is written to a file in the
+   * job folder, from which the results are built.
+   *
+   * @param jobDir
+   *          job folder named in the rendered template
+   * @param rows
+   *          rows of values in the order of the columns of
+   *          {@link #getDataSourceSchema(boolean)}
+   * @param respBuilder
+   *          receives the duplicates found
+   * @return number of duplicates found
+   */
+  protected int findMatches(File jobDir, List<String[]> rows,
+      final RecordMatchResultsBuilder respBuilder) throws IOException {
+    final String matchRuleConfig = renderMatchingRuleConfiguration(true, jobDir);
+    final PatientRowDataSource source = new PatientRowDataSource(
+        MASTER + "-data", getDataSourceSchema(true).getColumnNames(), rows);
+    // duplicates are written out as found, so a set with many duplicates
+    // does not fill the heap
+    respBuilder.duplicatesOutput(new File(jobDir, LINKED_RECORDS_FILE));
+    try {
+      final int numMatches = deduplicator.deduplicate(matchRuleConfig, source,
+          new InMemoryDeduplicator.DuplicateHandler() {
+            @Override
+            public void duplicateFound(String referenceUrl, String duplicateUrl,
+                int score) {
+              respBuilder.linkedRecordFrilScore(referenceUrl, duplicateUrl, score);
+            }
+          });
+      LOG.info("FRIL RESULT: {}", numMatches);
+      return numMatches;
+    } catch (RJException e) {
+      final String msg = "Unable to load or run FRIL: " + e.getMessage();
+      LOG.error(msg, e);
+      throw new RuntimeException(msg);
+    } finally {
+      respBuilder.closeDuplicatesOutput();
+    }
+  }
+
   /**
    * Prepare a matching rule configuration file in the specified job folder
    * based on whether the run is Deduplication or Linkage.
@@ -484,6 +1054,35 @@ public class RecordMatchRequestProcessor {
    */
   File prepareMatchingRuleConfiguration(boolean isDeduplication, File jobDir)
       throws IOException {
+    final Template matchConfigTemplate = getMatchingRuleTemplate(isDeduplication);
+
+    final File configFile = new File(jobDir, "config.xml");
+
+    // Generate the configuration file that specifies matching rules and
+    // data sources; apply parameters to template and write result to file
+    templateRegistry.render(matchConfigTemplate,
+        getTemplateParams(jobDir, getDataSourceSchema(isDeduplication)),
+        configFile);
+    return configFile;
+  }
+
+  /**
+   * Returns the matching rule configuration for the specified job folder
+   * without writing it to a file.
+   * 
+   * @param isDeduplication
+   *          true when deduplicating records in a single data set.
+   * @param jobDir
+   * @return configuration XML
+   */
+  String renderMatchingRuleConfiguration(boolean isDeduplication, File jobDir)
+      throws IOException {
+    return getMatchingRuleTemplate(isDeduplication).execute(
+        getTemplateParams(jobDir, getDataSourceSchema(isDeduplication)));
+  }
+
+  private Template getMatchingRuleTemplate(boolean isDeduplication)
+      throws FileNotFoundException {
     final String templateFileStr = isDeduplication ? getDeduplicationTemplate()
         : getLinkageTemplate();
     if (templateFileStr == null) {
@@ -498,26 +1097,55 @@ public class RecordMatchRequestProcessor {
       LOG.error(msg);
       throw new IllegalStateException(msg);
     }
+    return matchConfigTemplate;
+  }
 
-    final File configFile = new File(jobDir, "config.xml");
-
-    // Generate the configuration file that specifies matching rules and
-    // data sources
+  private Map<String, String> getTemplateParams(File jobDir,
+      DataSourceSchema schema) {
     final Map<String, String> templateParams = new HashMap<String, String>();
     templateParams.put("jobDir", jobDir.getAbsolutePath());
-    final Writer configWriter = new FileWriter(configFile);
+    templateParams.put(ConfigurationIntrospector.ROW_MODEL_PARAM,
+        schema.getRowModel());
+    return templateParams;
+  }
+
+  /**
+   * Returns the columns of the data source handed to FRIL: those named by
+   * the matching rule template. The columns are derived once per compiled
+   * template.
+   *
+   * @param isDeduplication
+   *          true when deduplicating records in a single data set.
+   * @return data source schema
+   * @throws IOException
+   *           when the template cannot be found or read
+   */
+  final DataSourceSchema getDataSourceSchema(boolean isDeduplication)
+      throws IOException {
+    final String templateFileStr = isDeduplication ? getDeduplicationTemplate()
+        : getLinkageTemplate();
+    if (templateFileStr == null) {
+      throw new IllegalStateException("No Template File set for "
+          + (isDeduplication ? "deduplication" : "linkage") + " mode");
+    }
+
+    final Set<String> columns;
     try {
-      // Apply parameters to template and write result to file
-      matchConfigTemplate.execute(templateParams, configWriter);
-      configWriter.flush();
-    } finally {
-      try {
-        configWriter.close();
-      } catch (IOException e) {
-        // ignore
-      }
+      columns = configurationIntrospector.getTemplatePaths(templateFileStr,
+          loadTemplate(templateFileStr)).getReferencedColumns();
+    } catch (JAXBException e) {
+      throw new IOException("Unable to read matching rule template "
+          + templateFileStr, e);
     }
-    return configFile;
+
+    DataSourceSchema schema = schemas.get(columns);
+    if (schema == null) {
+      schema = DataSourceSchema.forColumns(columns);
+      schemas.put(columns, schema);
+      LOG.info("Data source columns for {}: {}", templateFileStr,
+          Arrays.toString(schema.getColumnNames()));
+    }
+    return schema;
   }
 
   /**
@@ -605,11 +1233,7 @@ public class RecordMatchRequestProcessor {
   final File getDuplicatesFile(File configFile)
       throws JAXBException, FileNotFoundException {
     // Read the XML configuration file
-    final JAXBContext jaxbContext = JAXBContext.newInstance(Configuration.class);
-
-    final Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-    final Configuration config = (Configuration) jaxbUnmarshaller
-        .unmarshal(configFile);
+    final Configuration config = configurationIntrospector.unmarshal(configFile);
 
     try {
       // pull the name of the duplicates file from the configuration
@@ -624,6 +1248,32 @@ public class RecordMatchRequestProcessor {
     }
   }
 
+  /**
+   * Returns the duplicates file named by the matching rule template for the
+   * given job folder. The paths are derived once per compiled template.
+   *
+   * @param isDeduplication
+   *          true when deduplicating records in a single data set.
+   * @param jobDir
+   *          job folder
+   * @return file to which FRIL writes the duplicates found
+   */
+  final File getDuplicatesFile(boolean isDeduplication, File jobDir)
+      throws JAXBException, FileNotFoundException {
+    final String templateFileStr = isDeduplication ? getDeduplicationTemplate()
+        : getLinkageTemplate();
+
+    final ConfigurationIntrospector.TemplatePaths paths = configurationIntrospector
+        .getTemplatePaths(templateFileStr, loadTemplate(templateFileStr));
+    final File dupsFile = paths.getDuplicatesFile(jobDir);
+    if (dupsFile == null) {
+      final String errMsg = "Unable to find duplicates file";
+      LOG.error(errMsg + " in template " + templateFileStr);
+      throw new RuntimeException(errMsg);
+    }
+    return dupsFile;
+  }
+
   /**
    * Returns the resourceUrl parameter from the Parameters resource.
    * 
@@ -662,9 +1312,12 @@ public class RecordMatchRequestProcessor {
    * 
    * @param runDir
    * @param setType
+   * @param extension
+   *          file name extension, including the period
    * @return
    */
-  private File createDataSourceFile(File runDir, String setType) {
+  private File createDataSourceFile(File runDir, String setType,
+      String extension) {
     final StringBuilder sb = new StringBuilder(
         (int) (runDir.getAbsolutePath().length() * 1.5));
     sb.append(runDir.getAbsolutePath());
@@ -676,13 +1329,20 @@ public class RecordMatchRequestProcessor {
       sb.append("-");
     }
     sb.append("data");
-    sb.append(".csv");
+    sb.append(extension);
     LOG.debug("Data Source file Name: {}", sb.toString());
     return new File(sb.toString());
   }
 
   private SecureRandom fileSuffixRand = new SecureRandom();
 
+  /**
+   * Creates a folder, named for the time, in which a job keeps its files.
+   *
+   * @param workDir
+   *          folder in which the job folder is created
+   * @return a new folder claimed by this job alone
+   */
   protected File newRunDir(String workDir) {
     final Calendar cal = Calendar.getInstance();
     final StringBuilder sb = new StringBuilder();
@@ -696,126 +1356,87 @@ public class RecordMatchRequestProcessor {
     sb.append(String.format("%02d", cal.get(Calendar.MINUTE)));
     sb.append(String.format("%02d", cal.get(Calendar.SECOND)));
     sb.append("-");
-    sb.append(String.format("%02d", fileSuffixRand.nextInt(999)));
-    final File dir = new File(sb.toString());
-    if (!dir.exists()) {
-      dir.mkdirs();
+    final String prefix = sb.toString();
+
+    final File parent = new File(workDir);
+    if (!parent.exists()) {
+      parent.mkdirs();
+    }
+    // Jobs started within the same second differ only by the suffix; mkdir
+    // fails when another job has already claimed the folder, so try another
+    for (int i = 0; i < 100; i++) {
+      final File dir = new File(prefix + String.format("%02d", fileSuffixRand.nextInt(999)));
+      if (dir.mkdir()) {
+        return dir;
+      }
     }
 
-    return dir;
+    // never hand out a folder this job has not claimed
+    try {
+      return Files.createTempDirectory(parent.toPath(),
+          new File(prefix).getName()).toFile();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to create a job folder in "
+          + parent.getAbsolutePath(), e);
+    }
   }
 
-  private final char COMMA = ',';
-  private final char SLASH = '/';
-  private static final String DOUBLE_QUOTE = "\"";
-
   /**
-   * Write the resources to the specified data file.
+   * Adds a row of values for each Patient resource to the given rows. The
+   * values are those {@link DataSourceFileWriter} writes to a line of a data
+   * file.
    * 
-   * @param f
-   *          data file to which to write the CSV data
+   * @param rows
+   *          rows to which to add the values
    * @param resources
    *          resources to process
    * @param serverBase
    *          server based to which to preprend the resource id (to build
    *          fullUrl)
-   * @param writeColumnTitles
-   *          true to write a line containing column titles
-   * @throws IOException
+   * @param schema
+   *          columns of each row
    */
-  private void writeData(File f, List<Resource> resources, String serverBase,
-      boolean writeColumnTitles) throws IOException {
-    // return fast if there is nothing to do
-    if (resources.size() == 0) {
-      return;
-    }
-
-    if (!f.exists()) {
-      f.createNewFile();
-    }
-
+  private void addRows(List<String[]> rows, List<Resource> resources,
+      String serverBase, DataSourceSchema schema) {
     String fullUrlBase = serverBase;
     if (!serverBase.endsWith("/")) {
       fullUrlBase += "/";
     }
-    // Create Writer
-    final BufferedWriter bw = new BufferedWriter(new FileWriter(f, true));
-    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
-
-    try {
-      if (writeColumnTitles) {
-        bw.write("fullUrl");
-        bw.write(COMMA);
-        bw.write(fmt.getHeaders());
-        bw.newLine();
-      }
-      // Process each resource in the list
-      for (Resource r : resources) {
-        if (ResourceType.Patient.equals(r.getResourceType())) {
-          // convert resource to CSV
-          String csv = fmt.toCsv((Patient) r);
-          if (csv != null) {
-            // put fullURL to the start of the line
-            bw.write(DOUBLE_QUOTE);
-            bw.write(fullUrlBase);
-            if (FULLURL_FORMAT_VERSIONED.equals(getFullUrlFormat())) {
-              // HAPI FHIR provides <id>/_history/<version>
-              bw.write(r.getId());
-            } else {
-              // use SIMPLE format
-              bw.write(r.getIdElement().getResourceType());
-              bw.write(SLASH);
-              bw.write(r.getIdElement().getIdPart());
-            }
-            bw.write(DOUBLE_QUOTE);
-
-            bw.write(COMMA);
-            bw.write(csv);
-
-            bw.newLine();
-          }
-        } else {
-          LOG.error("Unsupported Resource Type: {}",
-              r.getResourceType().toString());
-        }
+    final SimplePatientCsvFormat fmt = schema.getFormat();
+
+    for (Resource r : resources) {
+      if (ResourceType.Patient.equals(r.getResourceType())) {
+        final String[] values = fmt.toValues((Patient) r);
+        // put fullURL at the start of the row
+        final String[] row = new String[values.length + 1];
+        row[0] = getFullUrl(fullUrlBase, r);
+        System.arraycopy(values, 0, row, 1, values.length);
+        rows.add(row);
+      } else {
+        LOG.error("Unsupported Resource Type: {}",
+            r.getResourceType().toString());
       }
-    } finally {
-      bw.close();
     }
   }
 
+  private String getFullUrl(String fullUrlBase, Resource r) {
+    final StringBuilder sb = new StringBuilder(fullUrlBase.length() + 32);
+    DataSourceFileWriter.appendFullUrl(sb, fullUrlBase, r,
+        FULLURL_FORMAT_VERSIONED.equals(getFullUrlFormat()));
+    return sb.toString();
+  }
+
+
   /**
-   * Searches classpath and then system for a file with the specified name.
+   * Returns the compiled template with the specified name. The classpath and
+   * then the file system are searched the first time a template is requested.
    * 
    * @param name
    *          name of template file to load
    * @return
    */
   protected Template loadTemplate(String name) throws FileNotFoundException {
-    Template template = null;
-    InputStream instream = this.getClass().getClassLoader()
-        .getResourceAsStream(name);
-
-    if (instream == null) {
-      instream = System.class.getResourceAsStream(name);
-    }
-    if (instream == null) {
-      instream = new FileInputStream(name);
-    }
-
-    if (instream != null) {
-      final Reader r = new InputStreamReader(instream);
-      try {
-        template = Mustache.compiler().compile(r);
-      } finally {
-        try {
-          r.close();
-        } catch (Exception e) {
-          // skip
-        }
-      }
-    }
-    return template;
+    return templateRegistry.getTemplate(name);
   }
 
   /**
@@ -854,6 +1475,7 @@ public class RecordMatchRequestProcessor {
    */
   public final void setFhirRestClient(IGenericClient fhirRestClient) {
     this.fhirRestClient = fhirRestClient;
+    pageLoader.setClient(fhirRestClient);
   }
 
   /**
@@ -878,6 +1500,22 @@ public class RecordMatchRequestProcessor {
     this.workDir = dir;
   }
 
+  /**
+   * @return the resultsDir
+   */
+  public final String getResultsDir() {
+    return resultsDir;
+  }
+
+  /**
+   * @param resultsDir
+   *          folder in which results messages are written before they are
+   *          sent; null or empty to build them in memory
+   */
+  public final void setResultsDir(String resultsDir) {
+    this.resultsDir = resultsDir;
+  }
+
   /**
    * @return the deduplicationTemplate
    */
@@ -939,19 +1577,148 @@ public class RecordMatchRequestProcessor {
   }
 
   /**
-   * @return the serverAuthorizations
+   * @return the maximum number of search result pages loaded ahead of the
+   *         page being written
+   */
+  public final int getPrefetchPages() {
+    return pageLoader.getPrefetchPages();
+  }
+
+  /**
+   * @param prefetchPages
+   *          the maximum number of search result pages loaded ahead of the
+   *          page being written
+   */
+  public final void setPrefetchPages(int prefetchPages) {
+    pageLoader.setPrefetchPages(prefetchPages);
+  }
+
+  /**
+   * @return the encodeThreads
+   */
+  public final int getEncodeThreads() {
+    return encodeThreads;
+  }
+
+  /**
+   * @param encodeThreads
+   *          number of threads formatting the lines of data source files; 1
+   *          to format them on the thread retrieving the records, 0 or less
+   *          for one per processor
    */
-  public final List<ServerAuthorization> getServerAuthorizations() {
-    return serverAuthorizations;
+  public final synchronized void setEncodeThreads(int encodeThreads) {
+    this.encodeThreads = encodeThreads > 0 ? encodeThreads
+        : Runtime.getRuntime().availableProcessors();
+    if (encodePool != null) {
+      encodePool.shutdown();
+      encodePool = null;
+    }
+  }
+
+  /**
+   * @return pool formatting the lines of data source files; null when lines
+   *         are formatted on the thread retrieving the records
+   */
+  private synchronized ForkJoinPool getEncodePool() {
+    if (encodeThreads < 2) {
+      return null;
+    }
+    if (encodePool == null) {
+      encodePool = new ForkJoinPool(encodeThreads);
+    }
+    return encodePool;
+  }
+
+  /**
+   * @return the columnarJobData
+   */
+  public final boolean isColumnarJobData() {
+    return columnarJobData;
+  }
+
+  /**
+   * @param columnarJobData
+   *          true to also store the records retrieved for a job in a columnar
+   *          data file in the job folder
+   */
+  public final void setColumnarJobData(boolean columnarJobData) {
+    this.columnarJobData = columnarJobData;
+  }
+
+  /**
+   * @return the recordCache
+   */
+  public final RecordSetCache getRecordCache() {
+    return recordCache;
+  }
+
+  /**
+   * @param recordCache
+   *          keeps master record sets between jobs; null to retrieve every
+   *          master record for each job
+   */
+  public final void setRecordCache(RecordSetCache recordCache) {
+    this.recordCache = recordCache;
+  }
+
+  /**
+   * @return loader that retrieves search result pages; exposes cumulative
+   *         page throughput counters
+   */
+  public final PipelinedPageLoader getPageLoader() {
+    return pageLoader;
+  }
+
+  /**
+   * @return the templateRegistry
+   */
+  public final MatchingRuleTemplateRegistry getTemplateRegistry() {
+    return templateRegistry;
+  }
+
+  /**
+   * @param templateRegistry
+   *          source of compiled matching rule configuration templates
+   */
+  public final void setTemplateRegistry(
+      MatchingRuleTemplateRegistry templateRegistry) {
+    this.templateRegistry = templateRegistry;
+  }
+
+  /**
+   * @return the configurationIntrospector
+   */
+  public final ConfigurationIntrospector getConfigurationIntrospector() {
+    return configurationIntrospector;
+  }
+
+  /**
+   * @param configurationIntrospector
+   *          reads configurations and resolves the files named by templates
+   */
+  public final void setConfigurationIntrospector(
+      ConfigurationIntrospector configurationIntrospector) {
+    this.configurationIntrospector = configurationIntrospector;
+  }
+
+  /**
+   * @return the frilMode
+   */
+  public final String getFrilMode() {
+    return frilMode;
   }
 
   /**
-   * @param serverAuthorizations
-   *          the serverAuthorizations to set
+   * @param frilMode
+   *          {@value #FRIL_MODE_MEMORY} to deduplicate records in memory or
+   *          {@value #FRIL_MODE_FILE} to pass records and results to FRIL in
+   *          files
    */
-  public final void setServerAuthorizations(
-      List<ServerAuthorization> serverAuthorizations) {
-    this.serverAuthorizations = serverAuthorizations;
+  public final void setFrilMode(String frilMode) {
+    if (!FRIL_MODE_MEMORY.equals(frilMode) && !FRIL_MODE_FILE.equals(frilMode)) {
+      throw new IllegalArgumentException("Unsupported FRIL mode: " + frilMode);
+    }
+    this.frilMode = frilMode;
   }
 
 }
@@ -21,26 +21,22 @@
 
 package org.mitre.ptmatchadapter.fril;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 
 import org.hl7.fhir.instance.model.Bundle;
-import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
-import org.hl7.fhir.instance.model.Bundle.BundleEntrySearchComponent;
-import org.hl7.fhir.instance.model.Bundle.BundleLinkComponent;
-import org.hl7.fhir.instance.model.CodeType;
-import org.hl7.fhir.instance.model.DecimalType;
-import org.hl7.fhir.instance.model.Extension;
 import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
-import org.hl7.fhir.instance.model.StringType;
-import org.hl7.fhir.instance.model.UriType;
 
-import org.mitre.ptmatchadapter.recordmatch.BasicRecordMatchResultsBuilder;
+import org.mitre.ptmatchadapter.recordmatch.LinkedRecordResultsBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,42 +45,39 @@ import org.slf4j.LoggerFactory;
  * @author Michael Los, mel@mitre.org
  *
  */
-public class RecordMatchResultsBuilder extends BasicRecordMatchResultsBuilder {
+public class RecordMatchResultsBuilder extends LinkedRecordResultsBuilder {
   private static final Logger LOG = LoggerFactory
       .getLogger(RecordMatchResultsBuilder.class);
 
   private File duplicatesFile;
 
+  /** writes the linked records added one at a time; null when not open. */
+  private CSVPrinter duplicatesOut;
+  private String lastReferenceUrl;
+  private int numDuplicateSets = 0;
+
   public RecordMatchResultsBuilder(Bundle requestMsg, ResponseType respCode) {
     super(requestMsg, respCode);
   }
 
-  /**
-   * @see BasicRecordMatchResultsBuilder#build()
-   */
-  public Bundle build() throws IOException {
-
-    final Bundle resultMsg = super.build();
-
-    // Add entries for the Linked Records
-    addLinkedRecordEntries(resultMsg);
-
-    return resultMsg;
-  }
-
   private static final int DUPLICATE_ID_COL = 0;
   private static final int SCORE_COL = 1;
   private static final int FULL_URL_COL = 2;
 
   /**
+   * Passes each linked record to the handler, reading those in the
+   * duplicates file one line at a time.
    *
-   * @param bundle
-   *          Bundle to which an entry for each linked record will be added
    * @throws IOException
    *           thrown when the file containing the linked results is not found
    *           or could not be processed
    */
-  private void addLinkedRecordEntries(Bundle bundle) throws IOException {
+  @Override
+  protected void forEachLinkedRecord(LinkedRecordHandler handler)
+      throws IOException {
+    super.forEachLinkedRecord(handler);
+    closeDuplicatesOutput();
+
     if (duplicatesFile != null) {
       final Reader in = new FileReader(duplicatesFile);
       try {
@@ -93,12 +86,6 @@ public class RecordMatchResultsBuilder extends BasicRecordMatchResultsBuilder {
         String refRecordUrl = null;
         String curDupId = "0";
 
-        // see https://www.hl7.org/fhir/valueset-patient-mpi-match.html
-        final CodeType certain = new CodeType("certain");
-        final CodeType probable = new CodeType("probable");
-        final CodeType possible = new CodeType("possible");
-        final CodeType certainlyNot = new CodeType("certainly-not");
-
         for (CSVRecord record : records) {
           String duplicateId = record.get(DUPLICATE_ID_COL);
           String scoreStr = record.get(SCORE_COL);
@@ -112,43 +99,9 @@ public class RecordMatchResultsBuilder extends BasicRecordMatchResultsBuilder {
               continue;
             }
 
-            BundleEntryComponent entry = new BundleEntryComponent();
-            entry.setFullUrl(refRecordUrl);
-
-            BundleEntrySearchComponent search = new BundleEntrySearchComponent();
             // fril returns results 0 - 100; normalize to 0 - 1;
-            double score = Double.valueOf(scoreStr).doubleValue() / 100.;
-            search.setScoreElement(new DecimalType(score));
-
-            // TODO Add Extension that maps score value to a term (e.g.,
-            // probable)
-            Extension searchExt = new Extension(new UriType(
-                "http://hl7.org/fhir/StructureDefinition/patient-mpi-match"));
-            if (score > 0.85) {
-              searchExt.setValue(certain);
-            } else if (score > 0.65) {
-              searchExt.setValue(probable);
-            } else if (score > .45) {
-              searchExt.setValue(possible);
-            } else {
-              searchExt.setValue(certainlyNot);
-            }
-            search.addExtension(searchExt);
-            entry.setSearch(search);
-
-            // Add information about the resource type
-
-            BundleLinkComponent link = new BundleLinkComponent(
-                new StringType("type"),
-                new UriType("http://hl7.org/fhir/Patient"));
-            entry.addLink(link);
-
-            // Add the link to the duplicate record
-            link = new BundleLinkComponent(
-                new StringType("related"), new UriType(fullUrl));
-            entry.addLink(link);
-
-            bundle.addEntry(entry);
+            handler.linkedRecord(refRecordUrl, fullUrl,
+                Double.valueOf(scoreStr).doubleValue() / 100.);
           } else {
             // new set of duplicates
             curDupId = duplicateId;
@@ -165,4 +118,78 @@ public class RecordMatchResultsBuilder extends BasicRecordMatchResultsBuilder {
     duplicatesFile = file;
     return this;
   }
+
+  /**
+   * Writes the linked records added with
+   * {@link #linkedRecordFrilScore(String, String, int)} to the given file, in
+   * the layout of FRIL's duplicates file, rather than holding them in memory.
+   * The file is read back when the results are built.
+   *
+   * @param file
+   *          file to which the linked records are written
+   * @throws IOException
+   *           thrown when the file could not be created
+   */
+  public RecordMatchResultsBuilder duplicatesOutput(File file)
+      throws IOException {
+    closeDuplicatesOutput();
+    duplicatesOut = CSVFormat.DEFAULT
+        .print(new BufferedWriter(new FileWriter(file)));
+    duplicatesFile = file;
+    lastReferenceUrl = null;
+    return this;
+  }
+
+  /**
+   * Closes the file opened by {@link #duplicatesOutput(File)}, if it is open.
+   *
+   * @throws IOException
+   *           thrown when the linked records could not be written
+   */
+  public void closeDuplicatesOutput() throws IOException {
+    if (duplicatesOut != null) {
+      try {
+        duplicatesOut.close();
+      } finally {
+        duplicatesOut = null;
+      }
+    }
+  }
+
+  /**
+   * Adds a linked record found without writing a duplicates file. Unlike
+   * {@link #linkedRecord(String, String, double)}, the score is on FRIL's
+   * 0 - 100 scale. When {@link #duplicatesOutput(File)} was called, the
+   * record is written to that file rather than held in memory.
+   *
+   * @param referenceUrl
+   *          fullUrl of the first record of a set of duplicates
+   * @param fullUrl
+   *          fullUrl of a record that duplicates the reference record
+   * @param score
+   *          FRIL match score, 0 - 100
+   * @throws UncheckedIOException
+   *           thrown when the record could not be written
+   */
+  public RecordMatchResultsBuilder linkedRecordFrilScore(String referenceUrl,
+      String fullUrl, int score) {
+    if (duplicatesOut == null) {
+      // fril returns results 0 - 100; normalize to 0 - 1;
+      linkedRecord(referenceUrl, fullUrl, score / 100.);
+      return this;
+    }
+
+    try {
+      if (!referenceUrl.equals(lastReferenceUrl)) {
+        // the first record of each set of duplicates is the reference record
+        duplicatesOut.printRecord(++numDuplicateSets, 100, referenceUrl);
+        lastReferenceUrl = referenceUrl;
+      }
+      duplicatesOut.printRecord(numDuplicateSets, score, fullUrl);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to write linked record to "
+          + duplicatesFile.getAbsolutePath(), e);
+    }
+    return this;
+  }
 }
@@ -26,6 +26,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -39,10 +49,14 @@ import org.apache.camel.ProducerTemplate;
 import org.apache.commons.collections4.map.PassiveExpiringMap;
 import org.mitre.ptmatchadapter.model.ServerAuthorization;
 import org.mitre.ptmatchadapter.service.model.AuthorizationRequestInfo;
+import org.mitre.ptmatchadapter.util.AuthorizationUtil;
+import org.mitre.ptmatchadapter.util.ServerAuthorizationRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -50,9 +64,23 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
+ * Obtains access tokens for FHIR servers through the OAuth 2.0 authorization
+ * code grant and keeps them current.
+ *
+ * <p>
+ * Once started, a background thread renews each access token that has a
+ * refresh token {@code refreshMarginMillis} before the token expires, so
+ * requests made by record match jobs never wait on, or fail for want of, a
+ * token renewal. Concurrent renewals of the same server's token share a
+ * single request to the authorization server. Renewal counts and latency are
+ * exposed as JMX attributes.
+ * </p>
+ *
  * @author Michael Los, mel@mitre.org
  *
  */
+@ManagedResource(objectName = "org.mitre.ptmatchadapter:type=ServerAuthorizationService",
+    description = "OAuth 2.0 server authorizations")
 public class ServerAuthorizationService {
   private static final Logger LOG = LoggerFactory
       .getLogger(ServerAuthorizationService.class);
@@ -60,7 +88,8 @@ public class ServerAuthorizationService {
   @Autowired
   private ProducerTemplate producerTemplate;
 
-  private List<ServerAuthorization> serverAuthorizations;
+  /** servers for which the user authorized access. */
+  private ServerAuthorizationRegistry serverAuthorizationRegistry;
 
   /**
    * URL to an OAuth 2.0 Authorization Server for authorization code requests.
@@ -91,6 +120,25 @@ public class ServerAuthorizationService {
   @Value("${ptmatchadapter.clientAuthRedirectPath}")
   private String clientAuthRedirectPath = "/mgr/authCodeResp";
 
+  /** number of milliseconds before expiration at which a token is renewed. */
+  private volatile long refreshMarginMillis = 5L * 60L * 1000L;
+
+  /** number of milliseconds between checks for tokens due for renewal. */
+  private long refreshCheckMillis = 30000;
+
+  private ScheduledExecutorService refresher;
+
+  /** renewals in progress, by normalized server base. */
+  private final ConcurrentMap<String, FutureTask<Boolean>> refreshesInFlight =
+      new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong failedRefreshes = new AtomicLong();
+  private final AtomicLong coalescedRefreshes = new AtomicLong();
+  private final AtomicLong totalRefreshMillis = new AtomicLong();
+  private final AtomicLong lastRefreshMillis = new AtomicLong();
+  private final AtomicLong maxRefreshMillis = new AtomicLong();
+
   
   /**
    * 
@@ -359,10 +407,12 @@ public class ServerAuthorizationService {
         authCode);
 
     if (serverAuth != null) {
-      getServerAuthorizations().add(serverAuth);
+      // replaces any earlier authorization for the server; safe while FHIR
+      // requests are reading the registry
+      serverAuthorizationRegistry.put(serverAuth);
       LOG.info("process AuthCodeResp, serverUrl {}", serverAuth.getServerUrl());
       LOG.info("process AuthCodeResp, # server auths {}",
-          serverAuthorizations.size());
+          serverAuthorizationRegistry.size());
     }
 
     final AuthorizationRequestInfo requestInfo = (AuthorizationRequestInfo) sessionData
@@ -418,6 +468,86 @@ public class ServerAuthorizationService {
       LOG.error("Usupported encoding used on access token request", e);
     }
 
+    final ServerAuthorization serverAuth = (ServerAuthorization) requestInfo
+        .get(SERVER_AUTH);
+    if (exchangeForToken(sb.toString(), serverAuth)) {
+      result = serverAuth;
+    } else {
+      LOG.warn("access token request failed! state: {}", stateKey);
+    }
+
+    return result;
+  }
+
+  /**
+   * Posts the given form parameters to the token endpoint of the authorization
+   * server and copies the token response into the given authorization.
+   *
+   * @param formParams
+   *          url-encoded token request parameters
+   * @param serverAuth
+   *          authorization to update
+   * @return true when the authorization server granted the request
+   */
+  private boolean exchangeForToken(String formParams, ServerAuthorization serverAuth) {
+    final String respBody = postTokenRequest(formParams);
+    if (respBody == null) {
+      return false;
+    }
+
+    final ObjectMapper mapper = new ObjectMapper();
+    try {
+      // Response will be JSON; transform into java Map
+      final Map<String, Object> accessResp = mapper.readValue(respBody,
+          new TypeReference<Map<String, Object>>() {
+          });
+
+      int requiredPropCount = 0;
+
+      // Extract access token, token type, etc from access token response
+      for (String key : accessResp.keySet()) {
+        if ("access_token".equals(key)) {
+          serverAuth.setAccessToken((String) accessResp.get(key));
+          requiredPropCount++;
+        } else if ("token_type".equals(key)) {
+          serverAuth.setTokenType((String) accessResp.get(key));
+        } else if ("scope".equals(key)) {
+          serverAuth.setScope((String) accessResp.get(key));
+        } else if ("id_token".equals(key)) {
+          serverAuth.setIdToken((String) accessResp.get(key));
+        } else if ("refresh_token".equals(key)) {
+          serverAuth.setRefreshToken((String) accessResp.get(key));
+        } else if ("expires_in".equals(key)) {
+          final long numSecs = ((Number) accessResp.get(key)).longValue();
+          serverAuth.setExpiresAt(
+              new Date(System.currentTimeMillis() + (numSecs * 1000)));
+          LOG.info("Expiration: " + serverAuth.getExpiresAt().toString());
+        }
+      }
+      if (requiredPropCount < 1) {
+        LOG.warn(
+            "Access Token Response didn't contain all expected properties: {}",
+            respBody);
+      }
+
+    } catch (JsonGenerationException e) {
+      LOG.error("Exception Generating JSON", e);
+    } catch (JsonMappingException e) {
+      LOG.error("Unable to convert access token response to json", e);
+    } catch (IOException e) {
+      LOG.error("Exception while processing access token response", e);
+    }
+    return true;
+  }
+
+  /**
+   * Makes the HTTP call to the token endpoint of the authorization server.
+   *
+   * @param formParams
+   *          url-encoded token request parameters
+   * @return body of a successful response; null when the request failed
+   */
+  protected String postTokenRequest(final String formParams) {
     final StringBuilder reqUrl = new StringBuilder(200);
     reqUrl.append(stripScheme(getAuthorizationServer()));
     reqUrl.append(getAccessTokenEndpoint());
@@ -432,90 +562,271 @@ public class ServerAuthorizationService {
             msgIn.setHeader(Exchange.CONTENT_TYPE, "www-form-urlencoded");
             msgIn.setHeader(Exchange.HTTP_METHOD, "POST");
 
-            msgIn.setHeader(Exchange.HTTP_QUERY, sb.toString());
+            msgIn.setHeader(Exchange.HTTP_QUERY, formParams);
             LOG.info("Inside Processor to that requests access token");
 
           }
         });
 
     if (exchange.isFailed()) {
-      LOG.warn("access token request failed! state: {}", stateKey);
       if (exchange.getException() != null) {
         LOG.warn("Failed Access Request: {}", exchange.getException().getMessage(),
             exchange.getException());
       }
-    } else {
-      final Message out = exchange.getOut();
+      return null;
+    }
 
-      for (String key : out.getHeaders().keySet()) {
-        LOG.info("access token response msg hdr: {}  val: {}", key,
-            out.getHeader(key, String.class));
-      }
+    final Message out = exchange.getOut();
 
-      final int responseCode = out.getHeader(Exchange.HTTP_RESPONSE_CODE,
-          Integer.class);
-      LOG.debug("response code from auth server: {}", responseCode);
+    for (String key : out.getHeaders().keySet()) {
+      LOG.info("access token response msg hdr: {}  val: {}", key,
+          out.getHeader(key, String.class));
+    }
 
-      if (responseCode == 200) {
-        final ServerAuthorization serverAuth = (ServerAuthorization) requestInfo
-            .get(SERVER_AUTH);
+    final int responseCode = out.getHeader(Exchange.HTTP_RESPONSE_CODE,
+        Integer.class);
+    LOG.debug("response code from auth server: {}", responseCode);
 
-        // http component is stream-based, which means body can only be read
-        // once
-        final String respBody = out.getBody(String.class);
-        LOG.debug("Access Token Response Body {}", respBody);
+    if (responseCode != 200) {
+      // failure
+      LOG.warn(
+          "Received Error Response [{}] from Authorization Server. Error Handling NOT IMPLEMENTED",
+          responseCode);
+      return null;
+    }
 
-        final ObjectMapper mapper = new ObjectMapper();
-        try {
-          // Response will be JSON; transform into java Map
-          final Map<String, Object> accessResp = mapper.readValue(respBody,
-              new TypeReference<Map<String, Object>>() {
-              });
-
-          int requiredPropCount = 0;
-
-          // Extract access token, token type, etc from access token response
-          for (String key : accessResp.keySet()) {
-            if ("access_token".equals(key)) {
-              serverAuth.setAccessToken((String) accessResp.get(key));
-              requiredPropCount++;
-            } else if ("token_type".equals(key)) {
-              serverAuth.setTokenType((String) accessResp.get(key));
-            } else if ("scope".equals(key)) {
-              serverAuth.setScope((String) accessResp.get(key));
-            } else if ("id_token".equals(key)) {
-              serverAuth.setIdToken((String) accessResp.get(key));
-            } else if ("expires_in".equals(key)) {
-              Integer numSecs = (Integer) accessResp.get(key);
-              serverAuth.setExpiresAt(
-                  new Date(System.currentTimeMillis() + (numSecs * 1000)));
-              LOG.info("Expiration: " + serverAuth.getExpiresAt().toString());
-            }
-          }
-          if (requiredPropCount < 1) {
-            LOG.warn(
-                "Access Token Response didn't contain all expected properties: {}",
-                respBody);
-          }
+    // http component is stream-based, which means body can only be read
+    // once
+    final String respBody = out.getBody(String.class);
+    LOG.debug("Access Token Response Body {}", respBody);
+    return respBody;
+  }
 
-        } catch (JsonGenerationException e) {
-          LOG.error("Exception Generating JSON", e);
-        } catch (JsonMappingException e) {
-          LOG.error("Unable to convert access token response to json", e);
-        } catch (IOException e) {
-          LOG.error("Exception while processing access token response", e);
+  /**
+   * Starts the thread that renews access tokens before they expire.
+   */
+  public synchronized void start() {
+    if (refresher != null) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, "oauth-token-refresher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refreshExpiringTokens();
+        } catch (RuntimeException e) {
+          // keep the schedule alive
+          LOG.error("Unexpected error renewing access tokens", e);
         }
+      }
+    }, refreshCheckMillis, refreshCheckMillis, TimeUnit.MILLISECONDS);
+    LOG.info("Token refresher started, margin: {} ms, check interval: {} ms",
+        refreshMarginMillis, refreshCheckMillis);
+  }
 
-        result = serverAuth;
-      } else {
-        // failure
-        LOG.warn(
-            "Received Error Response [{}] from Authorization Server. Error Handling NOT IMPLEMENTED",
-            responseCode);
+  /**
+   * Stops the token renewal thread.
+   */
+  public synchronized void stop() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+      LOG.info("Token refresher stopped");
+    }
+  }
+
+  /**
+   * Renews each access token that expires within the refresh margin and has
+   * a refresh token.
+   *
+   * @return number of tokens renewed
+   */
+  public int refreshExpiringTokens() {
+    int renewed = 0;
+    final List<ServerAuthorization> expiring = serverAuthorizationRegistry
+        .getExpiringBefore(System.currentTimeMillis() + refreshMarginMillis);
+    for (ServerAuthorization sa : expiring) {
+      if (sa.getRefreshToken() == null) {
+        LOG.debug("no refresh token for {}; token expires at {}",
+            sa.getServerUrl(), sa.getExpiresAt());
+        continue;
+      }
+      if (refreshAccessToken(sa.getServerUrl())) {
+        renewed++;
       }
     }
+    return renewed;
+  }
 
-    return result;
+  /**
+   * Renews the access token of the given server using its refresh token. When
+   * a renewal of the server's token is already in progress, waits for it and
+   * returns its outcome rather than making another request.
+   *
+   * @param serverUrl
+   *          URL string to the server
+   * @return true when a new access token was obtained
+   */
+  public boolean refreshAccessToken(String serverUrl) {
+    final String key = AuthorizationUtil.normalizeServerBase(serverUrl);
+    if (key == null) {
+      return false;
+    }
+
+    final FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return renewAccessToken(key);
+      }
+    });
+    FutureTask<Boolean> refresh = refreshesInFlight.putIfAbsent(key, task);
+    if (refresh == null) {
+      refresh = task;
+      try {
+        task.run();
+      } finally {
+        refreshesInFlight.remove(key, task);
+      }
+    } else {
+      coalescedRefreshes.incrementAndGet();
+    }
+
+    try {
+      return refresh.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      if (refresh == task) {
+        failedRefreshes.incrementAndGet();
+      }
+      LOG.error("Unable to renew access token for {}", serverUrl, e.getCause());
+      return false;
+    }
+  }
+
+  /**
+   * Exchanges the refresh token of the given server for a new access token and
+   * registers an updated copy of its authorization.
+   */
+  private boolean renewAccessToken(String serverKey) {
+    final ServerAuthorization current = serverAuthorizationRegistry.get(serverKey);
+    if (current == null || current.getRefreshToken() == null) {
+      return false;
+    }
+
+    final StringBuilder sb = new StringBuilder(300);
+    sb.append("grant_type=refresh_token");
+    try {
+      sb.append("&refresh_token=");
+      sb.append(URLEncoder.encode(current.getRefreshToken(), "UTF-8"));
+      sb.append("&client_id=");
+      sb.append(URLEncoder.encode(getClientId(), "UTF-8"));
+      sb.append("&client_secret=");
+      sb.append(URLEncoder.encode(getClientSecret(), "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // Should never happen
+      LOG.error("Usupported encoding used on refresh token request", e);
+    }
+
+    // readers keep using the current authorization until the copy is
+    // registered; the token response may omit the refresh token or scope
+    final ServerAuthorization renewed = new ServerAuthorization(current);
+    renewed.setAccessToken(null);
+
+    final long t0 = System.nanoTime();
+    boolean ok = exchangeForToken(sb.toString(), renewed)
+        && renewed.getAccessToken() != null;
+    final long millis = (System.nanoTime() - t0) / 1000000L;
+
+    lastRefreshMillis.set(millis);
+    totalRefreshMillis.addAndGet(millis);
+    long max = maxRefreshMillis.get();
+    while (millis > max && !maxRefreshMillis.compareAndSet(max, millis)) {
+      max = maxRefreshMillis.get();
+    }
+
+    if (ok) {
+      ok = serverAuthorizationRegistry.replace(current, renewed);
+      if (!ok) {
+        LOG.info("server {} was authorized again during token renewal", serverKey);
+      }
+    }
+    if (ok) {
+      refreshes.incrementAndGet();
+      LOG.info("renewed access token for {} in {} ms, expires at {}", serverKey,
+          millis, renewed.getExpiresAt());
+    } else {
+      failedRefreshes.incrementAndGet();
+      LOG.warn("Unable to renew access token for {}; current token expires at {}",
+          serverKey, current.getExpiresAt());
+    }
+    return ok;
+  }
+
+  /**
+   * @return number of access tokens renewed
+   */
+  @ManagedAttribute(description = "Number of access tokens renewed")
+  public final long getRefreshes() {
+    return refreshes.get();
+  }
+
+  /**
+   * @return number of token renewals that failed
+   */
+  @ManagedAttribute(description = "Number of token renewals that failed")
+  public final long getFailedRefreshes() {
+    return failedRefreshes.get();
+  }
+
+  /**
+   * @return number of renewal requests that joined a renewal in progress
+   */
+  @ManagedAttribute(description = "Number of renewal requests that joined one in progress")
+  public final long getCoalescedRefreshes() {
+    return coalescedRefreshes.get();
+  }
+
+  /**
+   * @return duration of the most recent token renewal in milliseconds
+   */
+  @ManagedAttribute(description = "Duration of the last token renewal (ms)")
+  public final long getLastRefreshMillis() {
+    return lastRefreshMillis.get();
+  }
+
+  /**
+   * @return longest token renewal in milliseconds
+   */
+  @ManagedAttribute(description = "Longest token renewal (ms)")
+  public final long getMaxRefreshMillis() {
+    return maxRefreshMillis.get();
+  }
+
+  /**
+   * @return mean token renewal time in milliseconds
+   */
+  @ManagedAttribute(description = "Mean token renewal time (ms)")
+  public final long getMeanRefreshMillis() {
+    final long attempts = refreshes.get() + failedRefreshes.get();
+    return attempts == 0 ? 0 : totalRefreshMillis.get() / attempts;
+  }
+
+  /**
+   * @return number of servers with an authorization
+   */
+  @ManagedAttribute(description = "Number of authorized servers")
+  public final int getServerAuthorizationCount() {
+    return serverAuthorizationRegistry.size();
   }
 
   /**
@@ -572,35 +883,30 @@ public class ServerAuthorizationService {
 
   
   /**
-   * @return the serverAuthorizations
+   * @return snapshot of the server authorizations
    */
   public final List<ServerAuthorization> getServerAuthorizations() {
-    return serverAuthorizations;
+    return serverAuthorizationRegistry.getAll();
   }
 
   public final ServerAuthorization getServerAuthorization(String id) {
-    // go through the list for the given id
-    for (ServerAuthorization sa : serverAuthorizations) {
-      try {
-        if (sa.getId().equals(id)) {
-          return sa;
-        }
-      } catch (Exception e) {
-        LOG.error("Unexpected error looking for server authorization [id: {}]", 
-            id, e);
-      }
-    }
-    
-    return null;
+    return serverAuthorizationRegistry.getById(id);
   }
-  
+
   /**
-   * @param serverAuthorizations
-   *          the serverAuthorizations to set
+   * @return the serverAuthorizationRegistry
    */
-  public final void setServerAuthorizations(
-      List<ServerAuthorization> serverAuthorizations) {
-    this.serverAuthorizations = serverAuthorizations;
+  public final ServerAuthorizationRegistry getServerAuthorizationRegistry() {
+    return serverAuthorizationRegistry;
+  }
+
+  /**
+   * @param serverAuthorizationRegistry
+   *          servers for which the user authorized access
+   */
+  public final void setServerAuthorizationRegistry(
+      ServerAuthorizationRegistry serverAuthorizationRegistry) {
+    this.serverAuthorizationRegistry = serverAuthorizationRegistry;
   }
 
   public final void setSessionData(Map<String, Object> map) {
@@ -709,4 +1015,39 @@ public class ServerAuthorizationService {
     this.clientSecret = clientSecret;
   }
 
+  /**
+   * @return the number of milliseconds before expiration at which a token is
+   *         renewed
+   */
+  @ManagedAttribute(description = "Time before expiration at which tokens are renewed (ms)")
+  public final long getRefreshMarginMillis() {
+    return refreshMarginMillis;
+  }
+
+  /**
+   * @param refreshMarginMillis
+   *          number of milliseconds before expiration at which a token is
+   *          renewed; should exceed refreshCheckMillis
+   */
+  @ManagedAttribute
+  public final void setRefreshMarginMillis(long refreshMarginMillis) {
+    this.refreshMarginMillis = refreshMarginMillis;
+  }
+
+  /**
+   * @return the number of milliseconds between checks for tokens to renew
+   */
+  public final long getRefreshCheckMillis() {
+    return refreshCheckMillis;
+  }
+
+  /**
+   * @param refreshCheckMillis
+   *          number of milliseconds between checks for tokens to renew; takes
+   *          effect when the refresher is started
+   */
+  public final void setRefreshCheckMillis(long refreshCheckMillis) {
+    this.refreshCheckMillis = refreshCheckMillis;
+  }
+
 }
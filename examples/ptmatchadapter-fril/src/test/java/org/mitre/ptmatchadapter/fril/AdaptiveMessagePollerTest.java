@@ -0,0 +1,224 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.MessageRetriever;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class AdaptiveMessagePollerTest {
+
+  private CamelContext camelContext;
+
+  private FakeRetriever retriever;
+
+  private AdaptiveMessagePoller poller;
+
+  /**
+   * Answers each search with the number of new messages set by the test, or
+   * fails when told to.
+   */
+  private static class FakeRetriever extends MessageRetriever {
+    int newMessages = 0;
+    boolean fail = false;
+    long lastUpdated = System.currentTimeMillis();
+
+    @Override
+    protected Bundle search(String query) {
+      if (fail) {
+        throw new IllegalStateException("server unavailable");
+      }
+      final Bundle results = new Bundle();
+      results.setType(BundleType.SEARCHSET);
+      for (int i = 0; i < newMessages; i++) {
+        final Bundle msg = new Bundle();
+        msg.setType(BundleType.MESSAGE);
+        msg.getMeta().setLastUpdated(new Date(++lastUpdated));
+        msg.addEntry().setResource(new MessageHeader());
+        results.addEntry().setResource(msg);
+      }
+      return results;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    camelContext = new DefaultCamelContext();
+    camelContext.start();
+
+    retriever = new FakeRetriever();
+    retriever.setDestinationUri("http://acme.com/record-matcher");
+
+    poller = new AdaptiveMessagePoller();
+    poller.setMessageRetriever(retriever);
+    poller.setProducer(camelContext.createProducerTemplate());
+    poller.setProducerEndpointUri("seda:msgIn");
+    poller.setWatchedEndpointUris(Arrays.asList("seda:msgIn"));
+    poller.setMaxQueuedMessages(3);
+    poller.setMinIntervalMillis(500L);
+    poller.setMaxIntervalMillis(4000L);
+    poller.setBackoffMultiplier(2.0);
+    poller.setSaturatedRecheckMillis(1000L);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    poller.stop();
+    camelContext.stop();
+  }
+
+  private int queued() {
+    return camelContext.getEndpoint("seda:msgIn", SedaEndpoint.class).getCurrentQueueSize();
+  }
+
+  @Test
+  public void testBacksOffWhenIdle() {
+    assertEquals(1000L, poller.pollOnce());
+    assertEquals(2000L, poller.pollOnce());
+    assertEquals(4000L, poller.pollOnce());
+    assertEquals(4000L, poller.pollOnce());
+    assertEquals(4, poller.getPolls());
+    assertEquals(0, poller.getHits());
+    assertEquals(0., poller.getHitRate(), 0.001);
+    // empty results are not passed on
+    assertEquals(0, queued());
+  }
+
+  @Test
+  public void testSpeedsUpWhenMessagesArrive() {
+    poller.pollOnce();
+    poller.pollOnce();
+    assertEquals(2000L, poller.getCurrentIntervalMillis());
+
+    retriever.newMessages = 2;
+    assertEquals(500L, poller.pollOnce());
+    assertEquals(1, queued());
+    assertEquals(500L, poller.pollOnce());
+    assertEquals(2, poller.getHits());
+    assertEquals(50., poller.getHitRate(), 0.001);
+
+    retriever.newMessages = 0;
+    assertEquals(1000L, poller.pollOnce());
+  }
+
+  @Test
+  public void testFailedPollBacksOff() {
+    retriever.fail = true;
+    assertEquals(1000L, poller.pollOnce());
+    assertEquals(1, poller.getFailedPolls());
+  }
+
+  @Test
+  public void testPausesWhileSaturated() {
+    retriever.newMessages = 1;
+    for (int i = 0; i < 3; i++) {
+      assertEquals(500L, poller.pollOnce());
+    }
+    assertEquals(3, queued());
+
+    // queue is full, so the server is not searched
+    assertEquals(1000L, poller.pollOnce());
+    assertEquals(3, poller.getPolls());
+    assertEquals(1, poller.getPausedPolls());
+
+    camelContext.getEndpoint("seda:msgIn", SedaEndpoint.class).getQueue().clear();
+    assertEquals(500L, poller.pollOnce());
+    assertEquals(4, poller.getPolls());
+  }
+
+  @Test
+  public void testPausesWhileJobsWait() {
+    final int[] waitingJobs = { 0 };
+    final AdaptiveMessagePoller jobPoller = new AdaptiveMessagePoller() {
+      @Override
+      protected int getJobQueueDepth() {
+        return waitingJobs[0];
+      }
+    };
+    jobPoller.setMessageRetriever(retriever);
+    jobPoller.setProducer(camelContext.createProducerTemplate());
+    jobPoller.setMaxQueuedJobs(2);
+    jobPoller.setSaturatedRecheckMillis(1000L);
+    retriever.newMessages = 1;
+
+    assertEquals(500L, jobPoller.pollOnce());
+
+    // the seda queues are empty, but jobs are waiting for a worker
+    waitingJobs[0] = 2;
+    assertEquals(1000L, jobPoller.pollOnce());
+    assertEquals(1, jobPoller.getPolls());
+    assertEquals(1, jobPoller.getPausedPolls());
+
+    waitingJobs[0] = 1;
+    assertEquals(500L, jobPoller.pollOnce());
+    assertEquals(2, jobPoller.getPolls());
+  }
+
+  @Test
+  public void testStartPolls() throws InterruptedException {
+    retriever.newMessages = 1;
+    poller.setInitialDelayMillis(0L);
+    poller.setMinIntervalMillis(10L);
+    poller.start();
+
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (poller.getPolls() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    poller.stop();
+    assertTrue("polls: " + poller.getPolls(), poller.getPolls() >= 3);
+  }
+
+  @Test
+  public void testPollSoon() throws InterruptedException {
+    poller.setInitialDelayMillis(0L);
+    poller.setMinIntervalMillis(60000L);
+    poller.setMaxIntervalMillis(60000L);
+    poller.start();
+
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (poller.getPolls() < 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, poller.getPolls());
+
+    // next poll is a minute away unless requested
+    poller.pollSoon();
+    deadline = System.currentTimeMillis() + 5000L;
+    while (poller.getPolls() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    assertEquals(2, poller.getPolls());
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ColumnarDataConverterTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static List<Resource> patients(int num) {
+    final List<Resource> patients = new ArrayList<Resource>(num);
+    for (int i = 0; i < num; i++) {
+      final Patient p = new Patient();
+      p.setId("Patient/" + i);
+      p.addIdentifier().setSystem("SSN").setValue("123-45-" + (1000 + i % 50));
+      if (i % 5 != 0) {
+        // some patients have no name without a use
+        p.addName().addFamily(i % 3 == 0 ? "Smith" : "Jones").addGiven("Pat");
+      }
+      p.setGender(i % 2 == 0 ? AdministrativeGender.FEMALE
+          : AdministrativeGender.MALE);
+      if (i % 4 != 0) {
+        p.setBirthDate(new Date((i % 100) * 86400000L * 365));
+      }
+      patients.add(p);
+    }
+    return patients;
+  }
+
+  private static List<String> lines(File file) throws IOException {
+    return Files.readAllLines(file.toPath(), Charset.defaultCharset());
+  }
+
+  @Test
+  public void testDataSourceFileRoundTrip() throws IOException {
+    final File csvFile = tmp.newFile("master-data.csv");
+    final DataSourceSchema schema = DataSourceSchema.forColumns(Arrays.asList(
+        "identifier_SSN", "name__family", "name__given", "gender", "DOB"));
+    final DataSourceFileWriter writer = new DataSourceFileWriter(csvFile,
+        schema.getFormat(), "http://fhir", false, null);
+    writer.write(patients(200));
+    writer.close();
+
+    final File columnarFile = tmp.newFile("master-data.col");
+    assertEquals(200, ColumnarDataConverter.toColumnar(csvFile, columnarFile));
+
+    final ColumnarDataReader reader = new ColumnarDataReader(columnarFile);
+    try {
+      assertArrayEquals(schema.getColumnNames(), reader.getColumnNames());
+      assertEquals("http://fhir/Patient/1", reader.getValue(1, 0));
+      assertEquals("Jones", reader.getValue(1, 2));
+      assertEquals("", reader.getValue(0, 2));
+      assertEquals("", reader.getValue(0, 5));
+      // fullUrl and names are quoted in the data source file
+      assertTrue(reader.isQuoted(0));
+      assertFalse(reader.isQuoted(1));
+      assertTrue(reader.isQuoted(2));
+    } finally {
+      reader.close();
+    }
+    // converting is cheaper than text, and the file smaller
+    assertTrue(columnarFile.length() < csvFile.length());
+
+    final File csvCopy = tmp.newFile("master-data-copy.csv");
+    assertEquals(200, ColumnarDataConverter.toCsv(columnarFile, csvCopy));
+
+    final List<String> expected = lines(csvFile);
+    final List<String> actual = lines(csvCopy);
+    assertEquals(expected.size(), actual.size());
+    // only the column titles differ: the header quotes identifier titles
+    for (int i = 1; i < expected.size(); i++) {
+      assertEquals("line " + i, expected.get(i), actual.get(i));
+    }
+  }
+
+  @Test
+  public void testQuotedSeparators() throws IOException {
+    final List<String> fields = new ArrayList<String>();
+    final boolean[] quoted = new boolean[4];
+    ColumnarDataConverter.parseLine("\"a, b\",,\"say \"\"hi\"\"\",x", fields,
+        quoted);
+    assertEquals(Arrays.asList("a, b", "", "say \"hi\"", "x"), fields);
+    assertTrue(quoted[0]);
+    assertFalse(quoted[1]);
+    assertTrue(quoted[2]);
+    assertFalse(quoted[3]);
+
+    final File columnarFile = tmp.newFile("query-data.col");
+    ColumnarDataWriter.write(columnarFile, new String[] { "a", "b", "c", "d" },
+        quoted, Arrays.<String[]> asList(fields.toArray(new String[4])));
+    final File csvFile = tmp.newFile("query-data.csv");
+    ColumnarDataConverter.toCsv(columnarFile, csvFile);
+    assertEquals(Arrays.asList("a,b,c,d", "\"a, b\",,\"say \"\"hi\"\"\",x"),
+        lines(csvFile));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingFields() throws IOException {
+    final File csvFile = tmp.newFile("master-data.csv");
+    Files.write(csvFile.toPath(), Arrays.asList("fullUrl,id", "\"u\",1", "\"v\""),
+        Charset.defaultCharset());
+    ColumnarDataConverter.toColumnar(csvFile, tmp.newFile("master-data.col"));
+  }
+}
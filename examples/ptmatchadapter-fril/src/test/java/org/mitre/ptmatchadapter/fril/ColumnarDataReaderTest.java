@@ -0,0 +1,166 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ColumnarDataReaderTest {
+  private static final String[] COLUMNS = { "fullUrl", "name__family",
+      "gender", "DOB" };
+
+  private static final String[] FAMILIES = { "Smith", "Jones", "", "Müller",
+      "O'Brien, Jr." };
+  private static final String[] GENDERS = { "MALE", "FEMALE", "UNKNOWN" };
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static List<String[]> rows(int numRows) {
+    final List<String[]> rows = new ArrayList<String[]>(numRows);
+    for (int i = 0; i < numRows; i++) {
+      rows.add(new String[] { "http://fhir/Patient/" + i,
+          FAMILIES[i % FAMILIES.length], GENDERS[i % GENDERS.length],
+          i % 7 == 0 ? "" : String.format("19%02d-%02d-%02d", i % 100,
+              1 + i % 12, 1 + i % 28) });
+    }
+    return rows;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final File file = tmp.newFile("master-data.col");
+    final List<String[]> rows = rows(5000);
+    ColumnarDataWriter.write(file, COLUMNS,
+        new boolean[] { true, true, false, false }, rows);
+
+    final ColumnarDataReader reader = new ColumnarDataReader(file);
+    try {
+      assertEquals(rows.size(), reader.getRowCount());
+      assertArrayEquals(COLUMNS, reader.getColumnNames());
+      assertEquals(3, reader.getColumnIndex("DOB"));
+      assertEquals(-1, reader.getColumnIndex("name__given"));
+      assertTrue(reader.isQuoted(1));
+      assertFalse(reader.isQuoted(2));
+
+      final List<String[]> read = reader.readRows();
+      for (int i = 0; i < rows.size(); i++) {
+        assertArrayEquals("row " + i, rows.get(i), read.get(i));
+        assertEquals(rows.get(i)[3], reader.getValue(i, 3));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCodesOrderAsValues() throws IOException {
+    final File file = tmp.newFile("master-data.col");
+    final List<String[]> rows = rows(500);
+    ColumnarDataWriter.write(file, COLUMNS, null, rows);
+
+    final ColumnarDataReader reader = new ColumnarDataReader(file);
+    try {
+      for (int col = 0; col < COLUMNS.length; col++) {
+        for (int i = 1; i < rows.size(); i++) {
+          final int cmp = rows.get(i - 1)[col].compareTo(rows.get(i)[col]);
+          final int codeCmp = Integer.compare(reader.getCode(i - 1, col),
+              reader.getCode(i, col));
+          assertEquals(COLUMNS[col] + " row " + i, Integer.signum(cmp),
+              Integer.signum(codeCmp));
+        }
+      }
+      // blank dates have code 0
+      assertEquals(0, reader.getCode(0, 3));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testPackedColumnsAreSmall() throws IOException {
+    final File file = tmp.newFile("master-data.col");
+    final int numRows = 100000;
+    final List<String[]> rows = new ArrayList<String[]>(numRows);
+    for (int i = 0; i < numRows; i++) {
+      rows.add(new String[] { GENDERS[i % GENDERS.length],
+          String.format("2000-01-%02d", 1 + i % 28) });
+    }
+    ColumnarDataWriter.write(file, new String[] { "gender", "DOB" }, null, rows);
+
+    // 2 bits for gender and 5 for the date, plus headers and dictionary
+    assertTrue("file size: " + file.length(),
+        file.length() < numRows * 7 / 8 + 256);
+
+    final ColumnarDataReader reader = new ColumnarDataReader(file);
+    try {
+      assertEquals("UNKNOWN", reader.getValue(numRows - 2, 0));
+      assertEquals("2000-01-28", reader.getValue(27, 1));
+      assertEquals("2000-01-01", reader.getValue(28, 1));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSingleValueAndNull() throws IOException {
+    final File file = tmp.newFile("master-data.col");
+    ColumnarDataWriter.write(file, new String[] { "gender", "id" }, null,
+        Arrays.asList(new String[] { "MALE", null },
+            new String[] { "MALE", "2" }));
+
+    final ColumnarDataReader reader = new ColumnarDataReader(file);
+    try {
+      assertArrayEquals(new String[] { "MALE", "null" }, reader.getRow(0));
+      assertArrayEquals(new String[] { "MALE", "2" }, reader.getRow(1));
+      try {
+        reader.getRow(2);
+        fail("row out of range");
+      } catch (IndexOutOfBoundsException e) {
+        // expected
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotColumnar() throws IOException {
+    final File file = tmp.newFile("master-data.csv");
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write("fullUrl,id\n\"http://fhir/Patient/1\",1\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    new ColumnarDataReader(file).close();
+  }
+}
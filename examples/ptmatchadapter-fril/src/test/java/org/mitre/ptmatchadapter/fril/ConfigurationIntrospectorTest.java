@@ -0,0 +1,132 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.fril.ConfigurationIntrospector.TemplatePaths;
+import org.mitre.ptmatchadapter.fril.config.Configuration;
+
+import com.samskivert.mustache.Template;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ConfigurationIntrospectorTest {
+  private static final String TEMPLATE =
+      "templates/fril-dedupe-allFieldsNearlyEqualWeight-accept60.xml";
+
+  private static File workDir;
+
+  @BeforeClass
+  public static void setupBeforeClass() throws IOException {
+    workDir = Files.createTempDirectory("ptmatch-test-").toFile();
+  }
+
+  @Test
+  public void testTemplatePathsMatchConfigFile() throws Exception {
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    proc.setDeduplicationTemplate(TEMPLATE);
+    final File jobDir = proc.newRunDir(workDir.getAbsolutePath());
+    final File configFile = proc.prepareMatchingRuleConfiguration(true, jobDir);
+
+    final ConfigurationIntrospector introspector = new ConfigurationIntrospector();
+    final TemplatePaths paths = introspector.getTemplatePaths(TEMPLATE,
+        proc.loadTemplate(TEMPLATE));
+
+    // paths resolved from the template agree with the generated file
+    assertEquals(proc.getDuplicatesFile(configFile).getAbsolutePath(),
+        paths.getDuplicatesFile(jobDir).getAbsolutePath());
+    assertEquals(proc.getDuplicatesFile(configFile).getAbsolutePath(),
+        proc.getDuplicatesFile(true, jobDir).getAbsolutePath());
+    assertEquals(new File(jobDir, "master-data.csv").getAbsolutePath(),
+        paths.getInputFile(jobDir).getAbsolutePath());
+    assertEquals(new File(jobDir, "deduplicated-source.csv").getAbsolutePath(),
+        paths.getDedupeFile(jobDir).getAbsolutePath());
+
+    // columns named by the conditions and hashing function; the row model
+    // is generated from them
+    assertTrue(paths.getReferencedColumns().contains("identifier_SSN"));
+    assertTrue(paths.getReferencedColumns().contains("telecom_email_home"));
+    assertFalse(paths.getReferencedColumns().contains("fullUrl"));
+  }
+
+  @Test
+  public void testTemplatePathsCached() throws Exception {
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    final Template template = proc.loadTemplate(TEMPLATE);
+    final ConfigurationIntrospector introspector = new ConfigurationIntrospector();
+
+    assertNull(introspector.getTemplatePaths(TEMPLATE));
+    final TemplatePaths paths = introspector.getTemplatePaths(TEMPLATE, template);
+    assertSame(paths, introspector.getTemplatePaths(TEMPLATE));
+    assertSame(paths, introspector.getTemplatePaths(TEMPLATE, template));
+
+    introspector.invalidate(TEMPLATE);
+    assertNull(introspector.getTemplatePaths(TEMPLATE));
+    final TemplatePaths rederived = introspector.getTemplatePaths(TEMPLATE, template);
+    assertNotSame(paths, rederived);
+
+    // a recompiled template replaces the paths derived from its predecessor
+    final Template recompiled = new MatchingRuleTemplateRegistry()
+        .getTemplate(TEMPLATE);
+    assertNotSame(template, recompiled);
+    assertNotSame(rederived, introspector.getTemplatePaths(TEMPLATE, recompiled));
+  }
+
+  @Test
+  public void testConcurrentUnmarshal() throws Exception {
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    proc.setDeduplicationTemplate(TEMPLATE);
+    final File configFile = proc.prepareMatchingRuleConfiguration(true,
+        proc.newRunDir(workDir.getAbsolutePath()));
+
+    final ConfigurationIntrospector introspector = new ConfigurationIntrospector();
+    introspector.setMaxPooledUnmarshallers(2);
+    final ExecutorService exec = Executors.newFixedThreadPool(6);
+    try {
+      final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < 60; i++) {
+        results.add(exec.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            final Configuration config = introspector.unmarshal(configFile);
+            return config.getLeftDataSource().getRowModel().getColumn().size();
+          }
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(Integer.valueOf(22), result.get());
+      }
+    } finally {
+      exec.shutdown();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DataSourceFileWriterTest {
+  private static final String SERVER_BASE = "http://localhost:8080/fhir";
+
+  private static ForkJoinPool pool;
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setupBeforeClass() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() {
+    pool.shutdown();
+  }
+
+  private static List<Resource> page(int first, int count) {
+    final List<Resource> resources = new ArrayList<Resource>(count);
+    for (int i = first; i < first + count; i++) {
+      final Patient p = new Patient();
+      p.setId("Patient/" + i + "/_history/2");
+      p.addIdentifier().setSystem("SSN").setValue(String.format("%09d", i));
+      p.addName().addFamily("Family" + i).addGiven("Given" + (i % 97));
+      p.setGender(i % 2 == 0 ? AdministrativeGender.FEMALE : AdministrativeGender.MALE);
+      p.setBirthDate(new Date(i * 86400000L));
+      resources.add(p);
+    }
+    return resources;
+  }
+
+  /**
+   * Returns the file content as it was written before lines were formatted
+   * in parallel.
+   */
+  private static String expected(List<List<Resource>> pages) {
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+    final StringBuilder sb = new StringBuilder();
+    sb.append("fullUrl,").append(fmt.getHeaders()).append(System.lineSeparator());
+    for (List<Resource> page : pages) {
+      for (Resource r : page) {
+        sb.append('"').append(SERVER_BASE).append("/Patient/")
+            .append(r.getIdElement().getIdPart()).append("\",");
+        sb.append(fmt.toCsv((Patient) r)).append(System.lineSeparator());
+      }
+    }
+    return sb.toString();
+  }
+
+  private byte[] write(String name, List<List<Resource>> pages,
+      ForkJoinPool pool) throws IOException {
+    final File f = new File(tmpFolder.getRoot(), name);
+    final DataSourceFileWriter writer = new DataSourceFileWriter(f,
+        new SimplePatientCsvFormat(), SERVER_BASE, false, pool);
+    try {
+      for (List<Resource> page : pages) {
+        writer.write(page);
+      }
+    } finally {
+      writer.close();
+    }
+    return Files.readAllBytes(f.toPath());
+  }
+
+  @Test
+  public void testParallelMatchesSerial() throws IOException {
+    final List<List<Resource>> pages = new ArrayList<List<Resource>>();
+    // pages below and above the parallel threshold
+    pages.add(page(0, 10));
+    pages.add(page(10, 5000));
+    pages.add(Collections.<Resource> emptyList());
+    pages.add(page(5010, 1000));
+
+    final byte[] serial = write("serial.csv", pages, null);
+    final byte[] parallel = write("parallel.csv", pages, pool);
+
+    assertEquals(expected(pages), new String(serial));
+    assertArrayEquals(serial, parallel);
+  }
+
+  @Test
+  public void testLargerThanBuffer() throws IOException {
+    final List<List<Resource>> pages = new ArrayList<List<Resource>>();
+    for (int i = 0; i < 4; i++) {
+      pages.add(page(i * 5000, 5000));
+    }
+
+    final byte[] parallel = write("large.csv", pages, pool);
+    assertTrue(parallel.length > 1024 * 1024);
+    assertEquals(expected(pages), new String(parallel));
+  }
+
+  @Test
+  public void testVersionedFullUrl() throws IOException {
+    final File f = new File(tmpFolder.getRoot(), "versioned.csv");
+    final DataSourceFileWriter writer = new DataSourceFileWriter(f,
+        new SimplePatientCsvFormat(), SERVER_BASE + "/", true, null);
+    writer.write(page(7, 1));
+    writer.close();
+
+    final List<String> lines = Files.readAllLines(f.toPath());
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(1),
+        lines.get(1).startsWith("\"" + SERVER_BASE + "/Patient/7/_history/2\","));
+  }
+
+  @Test
+  public void testNoRecords() throws IOException {
+    final File f = new File(tmpFolder.getRoot(), "empty.csv");
+    final DataSourceFileWriter writer = new DataSourceFileWriter(f,
+        new SimplePatientCsvFormat(), SERVER_BASE, false, pool);
+    writer.write(Collections.<Resource> emptyList());
+    writer.close();
+
+    assertFalse(f.exists());
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.Patient;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DataSourceSchemaTest {
+
+  @Test
+  public void testReferencedColumns() {
+    final DataSourceSchema schema = DataSourceSchema.forColumns(Arrays.asList(
+        "DOB", "name__family", "fullUrl", "no-such-column", "gender"));
+
+    assertArrayEquals(new String[] { "fullUrl", "name__family", "gender", "DOB" },
+        schema.getColumnNames());
+    assertEquals("name__family,gender,DOB", schema.getFormat().getHeaders());
+    assertArrayEquals(new boolean[] { true, true, false, false },
+        schema.getQuotedColumns());
+
+    final Patient p = new Patient();
+    p.setId("Patient/1");
+    p.addName().addFamily("Smith").addGiven("Jane");
+    p.setGender(AdministrativeGender.FEMALE);
+    p.setBirthDate(new Date(0L));
+    final String[] values = schema.getFormat().toValues(p);
+    assertEquals(3, values.length);
+    assertEquals("Smith", values[0]);
+    assertEquals("FEMALE", values[1]);
+
+    final String rowModel = schema.getRowModel();
+    for (String column : schema.getColumnNames()) {
+      assertTrue(column, rowModel.contains("<column column=\"" + column
+          + "\""));
+    }
+    assertFalse(rowModel.contains("given"));
+  }
+
+  @Test
+  public void testNoPatientColumns() {
+    final DataSourceSchema schema = DataSourceSchema.forColumns(
+        Collections.singleton("fullUrl"));
+    final String[] all = new SimplePatientCsvFormat().getColumnNames();
+
+    assertEquals(all.length + 1, schema.getColumnNames().length);
+    assertNull(schema.getFormat().getColumns());
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class InMemoryDeduplicatorTest {
+  private static final String TEMPLATE = "templates/fril-dedupe-allFieldsNearlyEqualWeight-accept60.xml";
+
+  private static Path workDir;
+
+  @BeforeClass
+  public static void setupBeforeClass() throws IOException {
+    // Create a temporary directory to act as a work folder
+    workDir = Files.createTempDirectory("ptmatch-test-");
+  }
+
+  @Test
+  public void testDeduplicate() throws Exception {
+    final Set<String> found = deduplicateInMemory("data/master-data-test-13dups.csv");
+    assertEquals(13, found.size());
+  }
+
+  @Test
+  public void testNoDeduplicate() throws Exception {
+    final Set<String> found = deduplicateInMemory("data/master-data-test-no-dups.csv");
+    assertEquals(0, found.size());
+  }
+
+  @Test
+  public void testSameDuplicatesAsFileMode() throws Exception {
+    final String data = "data/master-data-test-13dups.csv";
+
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    proc.setDeduplicationTemplate(TEMPLATE);
+    final File jobDir = proc.newRunDir(workDir.toFile().getAbsolutePath());
+    final InputStream in = getClass().getClassLoader().getResourceAsStream(data);
+    try {
+      Files.copy(in, new File(jobDir, "master-data.csv").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      in.close();
+    }
+    final File configFile = proc.prepareMatchingRuleConfiguration(true, jobDir);
+    assertEquals(13, proc.findMatches(true, configFile));
+
+    // reference record and score of each duplicate in the minus file
+    final Set<String> expected = new HashSet<String>();
+    final Reader reader = new FileReader(proc.getDuplicatesFile(true, jobDir));
+    try {
+      String refUrl = null;
+      String curDupId = null;
+      for (CSVRecord record : CSVFormat.DEFAULT.parse(reader)) {
+        if (record.get(0).equals(curDupId)) {
+          expected.add(refUrl + " " + record.get(2) + " " + record.get(1));
+        } else {
+          curDupId = record.get(0);
+          refUrl = record.get(2);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    assertEquals(expected, deduplicateInMemory(data));
+  }
+
+  @Test
+  public void testInterrupted() throws Exception {
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    proc.setDeduplicationTemplate(TEMPLATE);
+    final String config = proc.renderMatchingRuleConfiguration(true,
+        workDir.toFile());
+
+    Thread.currentThread().interrupt();
+    try {
+      new InMemoryDeduplicator().deduplicate(config,
+          readRows("data/master-data-test-13dups.csv"), new Collector());
+      fail("interruption expected");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * Records each duplicate as its reference url, url and score.
+   */
+  private static class Collector implements InMemoryDeduplicator.DuplicateHandler {
+    final Set<String> found = new HashSet<String>();
+
+    @Override
+    public void duplicateFound(String referenceUrl, String duplicateUrl,
+        int score) {
+      found.add(referenceUrl + " " + duplicateUrl + " " + score);
+    }
+  }
+
+  private Set<String> deduplicateInMemory(String data) throws Exception {
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor();
+    proc.setDeduplicationTemplate(TEMPLATE);
+    final String config = proc.renderMatchingRuleConfiguration(true,
+        workDir.toFile());
+
+    final Collector collector = new Collector();
+    final int numDups = new InMemoryDeduplicator().deduplicate(config,
+        readRows(data), collector);
+    assertEquals(numDups, collector.found.size());
+    return collector.found;
+  }
+
+  /**
+   * Reads the rows of a data file; the first line holds the column names.
+   */
+  private PatientRowDataSource readRows(String data) throws IOException {
+    final InputStream in = getClass().getClassLoader().getResourceAsStream(data);
+    assertNotNull(in);
+    final Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    try {
+      String[] columns = null;
+      final List<String[]> rows = new ArrayList<String[]>();
+      for (CSVRecord record : CSVFormat.DEFAULT.parse(reader)) {
+        final String[] values = new String[record.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = record.get(i);
+        }
+        if (columns == null) {
+          columns = values;
+        } else {
+          rows.add(values);
+        }
+      }
+      return new PatientRowDataSource("master-data", columns, rows);
+    } finally {
+      reader.close();
+    }
+  }
+}
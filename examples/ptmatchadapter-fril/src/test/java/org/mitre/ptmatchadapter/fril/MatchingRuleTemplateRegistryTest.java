@@ -0,0 +1,127 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.samskivert.mustache.Template;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class MatchingRuleTemplateRegistryTest {
+  private static final String TEMPLATE =
+      "templates/fril-dedupe-allFieldsNearlyEqualWeight-accept60.xml";
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final MatchingRuleTemplateRegistry registry = new MatchingRuleTemplateRegistry();
+
+  @After
+  public void tearDown() {
+    registry.stop();
+  }
+
+  private static void write(File f, String content) throws IOException {
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(File f) throws IOException {
+    return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testTemplateCompiledOnce() throws FileNotFoundException {
+    final Template template = registry.getTemplate(TEMPLATE);
+    assertNotNull(template);
+    assertSame(template, registry.getTemplate(TEMPLATE));
+    assertNotNull(registry.getTemplate("/" + TEMPLATE));
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testMissingTemplate() throws FileNotFoundException {
+    registry.getTemplate("path/to/nowhere.xml");
+  }
+
+  @Test
+  public void testRender() throws IOException {
+    final Template template = registry.getTemplate(TEMPLATE);
+    final File out = tmpFolder.newFile("config.xml");
+    // existing content is replaced
+    write(out, "stale content that is longer than nothing");
+
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put("jobDir", "/tmp/job-1");
+    params.put("rowModel", DataSourceSchema.forColumns(
+        Collections.singleton("DOB")).getRowModel());
+    registry.render(template, params, out);
+
+    final String expected = template.execute(params);
+    assertEquals(expected, read(out));
+    assertTrue(expected.contains("/tmp/job-1/duplicates.csv"));
+    assertTrue(expected.contains("<column column=\"DOB\""));
+  }
+
+  @Test
+  public void testChangedTemplateRecompiled() throws Exception {
+    final File templateFile = tmpFolder.newFile("rules.xml");
+    write(templateFile, "first {{jobDir}}");
+    final String name = templateFile.getAbsolutePath();
+
+    registry.start();
+    final Template first = registry.getTemplate(name);
+    assertEquals("first x", first.execute(Collections.singletonMap("jobDir", "x")));
+
+    write(templateFile, "second {{jobDir}}");
+
+    Template current = first;
+    final long deadline = System.currentTimeMillis() + 15000;
+    while (current == first && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      current = registry.getTemplate(name);
+    }
+    assertEquals("second x", current.execute(Collections.singletonMap("jobDir", "x")));
+  }
+
+  @Test
+  public void testUnchangedWhenNotStarted() throws Exception {
+    final File templateFile = tmpFolder.newFile("rules.xml");
+    write(templateFile, "first {{jobDir}}");
+    final String name = templateFile.getAbsolutePath();
+
+    final Template first = registry.getTemplate(name);
+    write(templateFile, "second {{jobDir}}");
+    Thread.sleep(200);
+    assertSame(first, registry.getTemplate(name));
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.PushMessageReceiver;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Posts messages to the push endpoint over HTTP, as a FHIR server would.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PushMessageRouteTest {
+
+  private static final String DESTINATION = "http://mitre.org/ptmatchadapter-fril";
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  private CamelContext camelContext;
+
+  private String baseUrl;
+
+  @Before
+  public void setUp() throws Exception {
+    final int port;
+    final ServerSocket socket = new ServerSocket(0);
+    try {
+      port = socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+    baseUrl = "http://localhost:" + port + "/ptmatchadapter/fhir";
+
+    final SimpleRegistry registry = new SimpleRegistry();
+    camelContext = new DefaultCamelContext(registry);
+
+    final PushMessageReceiver receiver = new PushMessageReceiver();
+    receiver.setFhirContext(FHIR_CONTEXT);
+    receiver.setDestinationUri(DESTINATION);
+    receiver.setProducer(camelContext.createProducerTemplate());
+    receiver.setRequiredAuthorization("Bearer s3cret");
+    registry.put("pushMessageReceiver", receiver);
+
+    // same endpoint options as the msgPush route in camel/routes.xml
+    final String from = "jetty:http://localhost:" + port
+        + "/ptmatchadapter/fhir?httpMethodRestrict=POST&matchOnUriPrefix=true";
+    camelContext.addRoutes(new RouteBuilder() {
+      @Override
+      public void configure() {
+        from(from).to("bean:pushMessageReceiver?method=receive");
+      }
+    });
+    camelContext.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    camelContext.stop();
+  }
+
+  private static String newMessage(String msgId) {
+    final Bundle bundle = new Bundle();
+    bundle.setType(BundleType.MESSAGE);
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId(msgId);
+    hdr.setEvent(new Coding().setSystem("http://github.com/mitre/ptmatch/fhir/message-events")
+        .setCode("record-match"));
+    hdr.addDestination().setEndpoint(DESTINATION);
+    bundle.addEntry().setResource(hdr);
+    return FHIR_CONTEXT.newJsonParser().encodeResourceToString(bundle);
+  }
+
+  private int post(String url, String body, String authorization) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "application/json+fhir");
+    if (authorization != null) {
+      conn.setRequestProperty("Authorization", authorization);
+    }
+    final OutputStream out = conn.getOutputStream();
+    try {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    } finally {
+      out.close();
+    }
+    final int code = conn.getResponseCode();
+    conn.disconnect();
+    return code;
+  }
+
+  private SedaEndpoint msgIn() {
+    return camelContext.getEndpoint("seda:msgIn", SedaEndpoint.class);
+  }
+
+  @Test
+  public void testProcessMessage() throws Exception {
+    assertEquals(202, post(baseUrl + "/$process-message", newMessage("m1"), "Bearer s3cret"));
+    assertEquals(1, msgIn().getCurrentQueueSize());
+
+    final Exchange exchange = msgIn().getQueue().poll();
+    final Bundle sent = exchange.getIn().getBody(Bundle.class);
+    assertEquals(BundleType.SEARCHSET, sent.getType());
+    assertEquals(1, sent.getEntry().size());
+  }
+
+  @Test
+  public void testSubscriptionNotification() throws Exception {
+    assertEquals(202, post(baseUrl, newMessage("m1"), "Bearer s3cret"));
+    assertEquals(1, msgIn().getCurrentQueueSize());
+  }
+
+  @Test
+  public void testUnauthorized() throws Exception {
+    assertEquals(401, post(baseUrl, newMessage("m1"), null));
+    assertEquals(0, msgIn().getCurrentQueueSize());
+  }
+}
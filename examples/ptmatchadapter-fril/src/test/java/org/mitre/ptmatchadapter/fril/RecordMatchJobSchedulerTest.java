@@ -0,0 +1,220 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.hl7.fhir.instance.model.Parameters;
+import org.hl7.fhir.instance.model.StringType;
+import org.junit.After;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.DuplicateMessageFilter;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class RecordMatchJobSchedulerTest {
+
+  private RecordMatchJobScheduler scheduler;
+
+  /**
+   * Records the order in which requests start and the responses sent; each
+   * request waits for the test to release it.
+   */
+  private static class FakeRequestProcessor extends RecordMatchRequestProcessor {
+    final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    final List<Bundle> responses = Collections.synchronizedList(new ArrayList<Bundle>());
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    CyclicBarrier barrier;
+    volatile boolean interrupted = false;
+
+    @Override
+    protected Bundle buildResponse(Bundle bundle) {
+      started.add(bundle.getId());
+      firstStarted.countDown();
+      try {
+        if (barrier != null) {
+          barrier.await(5, TimeUnit.SECONDS);
+        }
+        release.await(5, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        interrupted = true;
+      }
+      final Bundle response = new Bundle();
+      response.setId("response-" + bundle.getId());
+      return response;
+    }
+
+    @Override
+    protected void sendResponse(Bundle request, Bundle response) {
+      responses.add(response);
+    }
+  }
+
+  private static Bundle newRequest(String id, boolean isLinkage) {
+    final Bundle bundle = new Bundle();
+    bundle.setId(id);
+    bundle.setType(BundleType.MESSAGE);
+
+    final MessageHeader msgHdr = new MessageHeader();
+    msgHdr.setId("MessageHeader/" + id);
+    msgHdr.getSource().setEndpoint("http://acme.com/requester");
+    msgHdr.addDestination().setEndpoint("http://acme.com/record-matcher");
+    bundle.addEntry().setResource(msgHdr);
+
+    final Parameters master = new Parameters();
+    master.addParameter().setName("type").setValue(new StringType("master"));
+    bundle.addEntry().setResource(master);
+    if (isLinkage) {
+      final Parameters query = new Parameters();
+      query.addParameter().setName("type").setValue(new StringType("query"));
+      bundle.addEntry().setResource(query);
+    }
+    return bundle;
+  }
+
+  private static void awaitResponses(FakeRequestProcessor proc, int count)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (proc.responses.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, proc.responses.size());
+  }
+
+  @After
+  public void tearDown() {
+    if (scheduler != null) {
+      scheduler.stop();
+    }
+  }
+
+  @Test
+  public void testLinkageBeforeDeduplication() throws InterruptedException {
+    final FakeRequestProcessor proc = new FakeRequestProcessor();
+    scheduler = new RecordMatchJobScheduler();
+    scheduler.setRequestHandler(proc);
+    scheduler.setWorkers(1);
+    scheduler.start();
+
+    scheduler.submit(newRequest("running", false));
+    assertTrue(proc.firstStarted.await(5, TimeUnit.SECONDS));
+
+    scheduler.submit(newRequest("dedupe-1", false));
+    scheduler.submit(newRequest("dedupe-2", false));
+    scheduler.submit(newRequest("linkage", true));
+    assertEquals(3, scheduler.getQueueDepth());
+    assertEquals(1, scheduler.getRunningJobs());
+
+    proc.release.countDown();
+    awaitResponses(proc, 4);
+
+    assertEquals("running", proc.started.get(0));
+    assertEquals("linkage", proc.started.get(1));
+    assertEquals("dedupe-1", proc.started.get(2));
+    assertEquals("dedupe-2", proc.started.get(3));
+    assertEquals(4, scheduler.getCompletedJobs());
+    assertEquals(0, scheduler.getQueueDepth());
+  }
+
+  @Test
+  public void testAnsweredRequestsMarkedProcessed() throws InterruptedException {
+    final FakeRequestProcessor proc = new FakeRequestProcessor();
+    final DuplicateMessageFilter filter = new DuplicateMessageFilter();
+    scheduler = new RecordMatchJobScheduler();
+    scheduler.setRequestHandler(proc);
+    scheduler.setDuplicateMessageFilter(filter);
+    scheduler.setWorkers(1);
+    scheduler.start();
+
+    final Bundle running = newRequest("running", false);
+    final Bundle waiting = newRequest("waiting", true);
+    assertTrue(filter.isNewMessage(running));
+    assertTrue(filter.isNewMessage(waiting));
+    scheduler.submit(running);
+    assertTrue(proc.firstStarted.await(5, TimeUnit.SECONDS));
+    scheduler.submit(waiting);
+
+    // neither is answered, so a restart now would process both again
+    assertFalse(filter.isProcessed("MessageHeader/running"));
+    assertFalse(filter.isProcessed("MessageHeader/waiting"));
+
+    proc.release.countDown();
+    awaitResponses(proc, 2);
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!filter.isProcessed("MessageHeader/waiting")
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(filter.isProcessed("MessageHeader/running"));
+    assertTrue(filter.isProcessed("MessageHeader/waiting"));
+  }
+
+  @Test
+  public void testJobsRunInParallel() throws InterruptedException {
+    final FakeRequestProcessor proc = new FakeRequestProcessor();
+    // every job must be running at once for any of them to pass the barrier
+    proc.barrier = new CyclicBarrier(3);
+    proc.release.countDown();
+    scheduler = new RecordMatchJobScheduler();
+    scheduler.setRequestHandler(proc);
+    scheduler.setWorkers(3);
+
+    for (int i = 0; i < 3; i++) {
+      scheduler.submit(newRequest("job-" + i, false));
+    }
+    awaitResponses(proc, 3);
+    assertFalse(proc.interrupted);
+    assertEquals(3, scheduler.getSubmittedJobs());
+    assertEquals(3, scheduler.getCompletedJobs());
+  }
+
+  @Test
+  public void testJobTimeout() throws InterruptedException {
+    final FakeRequestProcessor proc = new FakeRequestProcessor();
+    scheduler = new RecordMatchJobScheduler();
+    scheduler.setRequestHandler(proc);
+    scheduler.setJobTimeoutMillis(100);
+
+    scheduler.submit(newRequest("slow", false));
+    awaitResponses(proc, 1);
+
+    // the watchdog answered with an error and interrupted the job
+    final MessageHeader msgHdr = (MessageHeader) proc.responses.get(0)
+        .getEntry().get(0).getResource();
+    assertEquals(ResponseType.FATALERROR, msgHdr.getResponse().getCode());
+    Thread.sleep(200);
+    assertTrue(proc.interrupted);
+    // the late response from the job was discarded
+    assertEquals(1, proc.responses.size());
+    assertEquals(1, scheduler.getTimedOutJobs());
+    assertEquals(0, scheduler.getRunningJobs());
+  }
+}
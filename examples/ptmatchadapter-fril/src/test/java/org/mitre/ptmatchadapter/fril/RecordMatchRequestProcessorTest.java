@@ -25,10 +25,20 @@ import java.io.InputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.BeforeClass;
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.Resource;
 import org.junit.Test;
 import org.mitre.ptmatchadapter.fril.RecordMatchRequestProcessor;
+import org.mitre.ptmatchadapter.match.MatchRecords;
+import org.mitre.ptmatchadapter.match.RecordSetCache;
 
 /**
  * @author Michael Los, mel@mitre.org
@@ -153,4 +163,78 @@ public class RecordMatchRequestProcessorTest {
       fail(e.getMessage());
     }
   }
+
+  @Test
+  public void testKeptMasterSet() throws IOException {
+    final String serverBase = "http://localhost:3001/";
+    final List<String> searchUrls = new ArrayList<String>();
+    final List<Resource> master = new ArrayList<Resource>();
+    final List<Resource> updated = new ArrayList<Resource>();
+    final RecordMatchRequestProcessor proc = new RecordMatchRequestProcessor() {
+      @Override
+      protected int retrieveRecords(String searchUrl, String serverBase,
+          MatchRecords records, DataSourceSchema schema) {
+        searchUrls.add(searchUrl);
+        final List<Resource> found = searchUrl.contains("_lastUpdated=ge")
+            ? updated : master;
+        addRecords(records, found, serverBase, schema.getFormat());
+        return found.size();
+      }
+
+      @Override
+      protected Set<String> retrieveFullUrls(String searchUrl,
+          String serverBase) {
+        searchUrls.add(searchUrl);
+        final Set<String> fullUrls = new HashSet<String>();
+        for (Resource r : master) {
+          fullUrls.add(serverBase + "Patient/" + r.getIdElement().getIdPart());
+        }
+        return fullUrls;
+      }
+    };
+    proc.setRecordCache(new RecordSetCache());
+    final DataSourceSchema schema = DataSourceSchema.forColumns(
+        Arrays.asList("name__family", "gender"));
+    master.add(newPatient("1", "McDonald"));
+    master.add(newPatient("2", "Jones"));
+    master.add(newPatient("3", "Smith"));
+
+    final List<String[]> rows = new ArrayList<String[]>();
+    File jobDir = proc.newRunDir(workDir.toFile().getAbsolutePath());
+    assertEquals(3, proc.retrieveAndStoreMasterData(serverBase + "Patient",
+        serverBase, jobDir, rows, schema));
+    assertEquals(1, searchUrls.size());
+    // values are kept as they are for FRIL's distance functions
+    assertArrayEquals(new String[] { serverBase + "Patient/1", "McDonald",
+        "MALE" }, rows.get(0));
+
+    // only the ids and updated records are retrieved; the deleted one goes
+    searchUrls.clear();
+    master.remove(2);
+    final Patient changed = newPatient("2", "Jonas");
+    changed.getMeta().setVersionId("2");
+    master.set(1, changed);
+    updated.add(changed);
+    jobDir = proc.newRunDir(workDir.toFile().getAbsolutePath());
+    assertEquals(2, proc.retrieveAndStoreMasterData(serverBase + "Patient",
+        serverBase, jobDir, null, schema));
+    assertEquals(2, searchUrls.size());
+    assertTrue(searchUrls.get(0).startsWith(serverBase + "Patient"));
+    assertTrue(searchUrls.get(1).startsWith(
+        serverBase + "Patient?_lastUpdated=ge"));
+
+    final List<String> lines = Files.readAllLines(
+        new File(jobDir, "master-data.csv").toPath());
+    assertEquals(Arrays.asList("fullUrl,name__family,gender",
+        "\"" + serverBase + "Patient/1\",\"McDonald\",MALE",
+        "\"" + serverBase + "Patient/2\",\"Jonas\",MALE"), lines);
+  }
+
+  private static Patient newPatient(String id, String family) {
+    final Patient patient = new Patient();
+    patient.setId("Patient/" + id);
+    patient.addName().addFamily(family);
+    patient.setGender(AdministrativeGender.MALE);
+    return patient;
+  }
 }
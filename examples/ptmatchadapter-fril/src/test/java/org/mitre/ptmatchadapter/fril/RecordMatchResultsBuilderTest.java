@@ -0,0 +1,136 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.fril;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.CodeType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class RecordMatchResultsBuilderTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteDuplicates() throws Exception {
+    // the first record of each set of duplicates is the reference record
+    final File dupsFile = tmpFolder.newFile("duplicates.csv");
+    final List<String> lines = Arrays.asList(
+        "1,100,http://localhost/Patient/1",
+        "1,90,http://localhost/Patient/2",
+        "1,70,http://localhost/Patient/3",
+        "2,100,http://localhost/Patient/4",
+        "2,50,http://localhost/Patient/5");
+    Files.write(dupsFile.toPath(), lines, StandardCharsets.UTF_8);
+
+    final Bundle built = newBuilder(dupsFile).build();
+
+    final File msgFile = tmpFolder.newFile("results.json");
+    final Bundle msg = newBuilder(dupsFile).writeTo(msgFile, FHIR_CONTEXT);
+    final Bundle written = (Bundle) FHIR_CONTEXT.newJsonParser().parseResource(
+        new String(Files.readAllBytes(msgFile.toPath()), StandardCharsets.UTF_8));
+
+    assertEquals(msg.getIdElement().getIdPart(),
+        written.getIdElement().getIdPart());
+    assertEquals(msg.getEntry().size() + 3, written.getEntry().size());
+    assertEquals(built.getEntry().size(), written.getEntry().size());
+
+    // linked record entries follow the header, outcome and parameters
+    final int first = msg.getEntry().size();
+    for (int i = first; i < built.getEntry().size(); i++) {
+      final BundleEntryComponent expected = built.getEntry().get(i);
+      final BundleEntryComponent actual = written.getEntry().get(i);
+      assertEquals(expected.getFullUrl(), actual.getFullUrl());
+      assertEquals(expected.getLink().get(1).getUrl(), actual.getLink().get(1).getUrl());
+      assertEquals(0, expected.getSearch().getScore().compareTo(
+          actual.getSearch().getScore()));
+      assertEquals(
+          ((CodeType) expected.getSearch().getExtension().get(0).getValue()).getValue(),
+          ((CodeType) actual.getSearch().getExtension().get(0).getValue()).getValue());
+    }
+    assertEquals("http://localhost/Patient/4",
+        written.getEntry().get(first + 2).getFullUrl());
+  }
+
+  @Test
+  public void testDuplicatesOutput() throws Exception {
+    final File dupsFile = new File(tmpFolder.getRoot(), "linked-records.csv");
+    final RecordMatchResultsBuilder builder = newBuilder(null);
+    builder.duplicatesOutput(dupsFile);
+    builder.linkedRecordFrilScore("http://localhost/Patient/1",
+        "http://localhost/Patient/2", 90);
+    builder.linkedRecordFrilScore("http://localhost/Patient/1",
+        "http://localhost/Patient/3", 70);
+    builder.linkedRecordFrilScore("http://localhost/Patient/4",
+        "http://localhost/Patient/5", 50);
+    builder.closeDuplicatesOutput();
+
+    // written in the layout of FRIL's duplicates file, not held in memory
+    assertEquals(0, builder.getLinkedRecordCount());
+    assertEquals(Arrays.asList(
+        "1,100,http://localhost/Patient/1",
+        "1,90,http://localhost/Patient/2",
+        "1,70,http://localhost/Patient/3",
+        "2,100,http://localhost/Patient/4",
+        "2,50,http://localhost/Patient/5"),
+        Files.readAllLines(dupsFile.toPath(), StandardCharsets.UTF_8));
+
+    final List<BundleEntryComponent> entries = builder.build().getEntry();
+    final BundleEntryComponent last = entries.get(entries.size() - 1);
+    assertEquals("http://localhost/Patient/4", last.getFullUrl());
+    assertEquals("http://localhost/Patient/5", last.getLink().get(1).getUrl());
+    assertEquals(0.5, last.getSearch().getScore().doubleValue(), 0.);
+  }
+
+  private static RecordMatchResultsBuilder newBuilder(File dupsFile) {
+    final Bundle request = new Bundle();
+    request.setId("msg1");
+    request.setType(BundleType.MESSAGE);
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId("hdr1");
+    hdr.getSource().setEndpoint("http://acme.com/requester");
+    hdr.addDestination().setEndpoint("http://acme.com/record-matcher");
+    request.addEntry().setResource(hdr);
+
+    final RecordMatchResultsBuilder builder = new RecordMatchResultsBuilder(
+        request, ResponseType.OK);
+    builder.outcomeDetailText("Deduplication Complete");
+    builder.duplicates(dupsFile);
+    return builder;
+  }
+}
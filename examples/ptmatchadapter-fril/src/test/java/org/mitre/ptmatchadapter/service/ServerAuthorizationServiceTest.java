@@ -0,0 +1,175 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.service;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.model.ServerAuthorization;
+import org.mitre.ptmatchadapter.util.ServerAuthorizationRegistry;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ServerAuthorizationServiceTest {
+
+  private static final String TOKEN_RESPONSE =
+      "{\"access_token\": \"new-token\", \"token_type\": \"Bearer\", "
+          + "\"expires_in\": 3600, \"refresh_token\": \"new-refresh\"}";
+
+  /** Answers token requests without an authorization server. */
+  private static class FakeTokenService extends ServerAuthorizationService {
+    final List<String> requests = new ArrayList<String>();
+    final AtomicInteger calls = new AtomicInteger();
+    volatile String response = TOKEN_RESPONSE;
+    volatile CountDownLatch release;
+
+    @Override
+    protected String postTokenRequest(String formParams) {
+      calls.incrementAndGet();
+      synchronized (requests) {
+        requests.add(formParams);
+      }
+      if (release != null) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return response;
+    }
+  }
+
+  private ServerAuthorizationRegistry registry;
+  private FakeTokenService service;
+
+  private static ServerAuthorization serverAuth(String serverUrl,
+      String refreshToken, long expiresIn) {
+    final ServerAuthorization sa = new ServerAuthorization();
+    sa.setId(serverUrl);
+    sa.setServerUrl(serverUrl);
+    sa.setAccessToken("old-token");
+    sa.setRefreshToken(refreshToken);
+    sa.setExpiresAt(new Date(System.currentTimeMillis() + expiresIn));
+    return sa;
+  }
+
+  @Before
+  public void setUp() {
+    registry = new ServerAuthorizationRegistry();
+    service = new FakeTokenService();
+    service.setServerAuthorizationRegistry(registry);
+    service.setClientId("adapter");
+    service.setClientSecret("secret");
+    service.setRefreshMarginMillis(5 * 60000L);
+  }
+
+  @Test
+  public void testRefreshExpiringTokens() {
+    final ServerAuthorization expiring = serverAuth("http://a.org/fhir", "r1", 60000L);
+    registry.put(expiring);
+    registry.put(serverAuth("http://b.org/fhir", null, 60000L));
+    registry.put(serverAuth("http://c.org/fhir", "r3", 3600000L));
+
+    assertEquals(1, service.refreshExpiringTokens());
+
+    assertEquals(1, service.requests.size());
+    final String req = service.requests.get(0);
+    assertTrue(req, req.startsWith("grant_type=refresh_token&refresh_token=r1&"));
+    assertTrue(req, req.contains("client_id=adapter"));
+
+    final ServerAuthorization renewed = registry.get("http://a.org/fhir");
+    assertNotSame(expiring, renewed);
+    assertEquals("new-token", renewed.getAccessToken());
+    assertEquals("new-refresh", renewed.getRefreshToken());
+    assertTrue(renewed.getExpiresAt().getTime() > System.currentTimeMillis() + 3000000L);
+    assertEquals(expiring.getId(), renewed.getId());
+    // requests in progress keep a consistent view of the old authorization
+    assertEquals("old-token", expiring.getAccessToken());
+
+    assertEquals("old-token", registry.get("http://b.org/fhir").getAccessToken());
+    assertEquals("old-token", registry.get("http://c.org/fhir").getAccessToken());
+    assertEquals(1, service.getRefreshes());
+    assertEquals(0, service.getFailedRefreshes());
+  }
+
+  @Test
+  public void testFailedRefresh() {
+    final ServerAuthorization expiring = serverAuth("http://a.org/fhir", "r1", 60000L);
+    registry.put(expiring);
+    service.response = null;
+
+    assertFalse(service.refreshAccessToken("http://a.org/fhir"));
+    assertSame(expiring, registry.get("http://a.org/fhir"));
+    assertEquals(0, service.getRefreshes());
+    assertEquals(1, service.getFailedRefreshes());
+
+    // response without an access token is also a failure
+    service.response = "{\"error\": \"invalid_grant\"}";
+    assertFalse(service.refreshAccessToken("http://a.org/fhir"));
+    assertSame(expiring, registry.get("http://a.org/fhir"));
+    assertEquals(2, service.getFailedRefreshes());
+  }
+
+  @Test
+  public void testConcurrentRefreshesCoalesced() throws InterruptedException {
+    registry.put(serverAuth("http://a.org/fhir", "r1", 60000L));
+    service.release = new CountDownLatch(1);
+
+    final int numThreads = 4;
+    final AtomicInteger succeeded = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      final Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          if (service.refreshAccessToken("HTTP://a.org:80/fhir/")) {
+            succeeded.incrementAndGet();
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+
+    final long deadline = System.currentTimeMillis() + 10000L;
+    while (service.getCoalescedRefreshes() < numThreads - 1
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    service.release.countDown();
+    for (Thread t : threads) {
+      t.join(10000L);
+    }
+
+    assertEquals(1, service.calls.get());
+    assertEquals(numThreads, succeeded.get());
+    assertEquals(numThreads - 1, service.getCoalescedRefreshes());
+    assertEquals(1, service.getRefreshes());
+    assertEquals("new-token", registry.get("http://a.org/fhir").getAccessToken());
+  }
+}
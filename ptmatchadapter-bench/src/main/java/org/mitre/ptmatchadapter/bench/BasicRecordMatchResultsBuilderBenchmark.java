@@ -0,0 +1,64 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.mitre.ptmatchadapter.recordmatch.BasicRecordMatchResultsBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures construction of a record match response message.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BasicRecordMatchResultsBuilderBenchmark {
+
+  private Bundle request;
+
+  @Setup
+  public void setup() {
+    request = new BundleGenerator(42L).recordMatchRequest();
+  }
+
+  @Benchmark
+  public Bundle build() throws IOException {
+    final BasicRecordMatchResultsBuilder builder =
+        new BasicRecordMatchResultsBuilder(request, ResponseType.OK);
+    builder.outcomeIssueDiagnostics("No Matches Found");
+    return builder.build();
+  }
+}
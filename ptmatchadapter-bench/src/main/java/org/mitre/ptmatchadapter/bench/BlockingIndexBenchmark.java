@@ -0,0 +1,143 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.mitre.ptmatchadapter.match.BlockingIndex;
+import org.mitre.ptmatchadapter.match.BlockingIndex.CandidatePairHandler;
+import org.mitre.ptmatchadapter.match.PatientBlocker;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures building a blocking index of the given number of distinct
+ * patients with the default passes, and enumerating its candidate pairs.
+ * Candidate pairs per second are reported as the secondary result "pairs";
+ * the size of the index is printed when each trial ends.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class BlockingIndexBenchmark {
+
+  /** patients whose keys are extracted by each extractKeys operation. */
+  private static final int NUM_SAMPLE_PATIENTS = 1000;
+
+  @Param({ "1000", "100000", "1000000" })
+  private int numPatients;
+
+  private PatientBlocker blocker;
+
+  /** key value of each patient, by pass. */
+  private long[][] keys;
+
+  private BlockingIndex index;
+
+  private Patient[] samplePatients;
+
+  /**
+   * Counts the candidate pairs enumerated by an iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters
+  public static class PairCounter {
+    public long pairs;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      pairs = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    blocker = new PatientBlocker();
+    final int numPasses = blocker.getPasses().length;
+    keys = new long[numPasses][numPatients];
+
+    // only the keys are kept; a million patients would not fit in the heap
+    final PatientGenerator generator = new PatientGenerator(42L);
+    for (int r = 0; r < numPatients; r++) {
+      final long[] patientKeys = blocker.keys(generator.next());
+      for (int pass = 0; pass < numPasses; pass++) {
+        keys[pass][r] = patientKeys[pass];
+      }
+    }
+    index = BlockingIndex.build(keys, blocker.getMaxBlockSize());
+    samplePatients = generator.next(NUM_SAMPLE_PATIENTS);
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.out.println();
+    System.out.println("index of " + numPatients + " patients: "
+        + index.getMemoryBytes() + " bytes, "
+        + index.countCandidates() + " candidate pairs");
+  }
+
+  /**
+   * Each operation extracts the keys of 1,000 patients.
+   */
+  @Benchmark
+  public void extractKeys(Blackhole bh) {
+    for (Patient p : samplePatients) {
+      bh.consume(blocker.keys(p));
+    }
+  }
+
+  /**
+   * Each operation indexes every patient's keys.
+   */
+  @Benchmark
+  public BlockingIndex buildIndex() {
+    return BlockingIndex.build(keys, blocker.getMaxBlockSize());
+  }
+
+  /**
+   * Each operation enumerates every candidate pair.
+   */
+  @Benchmark
+  public void candidates(PairCounter counter, final Blackhole bh) {
+    counter.pairs += index.forEachCandidate(new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        bh.consume(left ^ right);
+      }
+    });
+  }
+}
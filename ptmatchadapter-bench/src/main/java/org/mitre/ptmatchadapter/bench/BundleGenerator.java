@@ -0,0 +1,153 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.MessageDestinationComponent;
+import org.hl7.fhir.instance.model.MessageHeader.MessageSourceComponent;
+import org.hl7.fhir.instance.model.Parameters;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.StringType;
+import org.hl7.fhir.instance.model.UriType;
+
+/**
+ * Generates synthetic search result and record match request bundles.
+ *
+ * <p>
+ * Search result bundles may hold up to a million entries. Holding that many
+ * distinct Patient resources would take several gigabytes, so at most
+ * {@value #MAX_DISTINCT_PATIENTS} distinct patients are generated and larger
+ * bundles reuse them; each entry still has its own full url. A generator
+ * created with a given seed always produces the same bundles.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class BundleGenerator {
+  /** the number of distinct patients shared by the entries of a bundle. */
+  public static final int MAX_DISTINCT_PATIENTS = 10000;
+
+  public static final String SERVER_BASE = "http://localhost:3001";
+
+  private static final String EVENT_SPACE = "http://github.com/mitre/ptmatch/fhir/message-events";
+  private static final String EVENT_CODE = "record-match";
+
+  private final PatientGenerator patientGenerator;
+
+  private Patient[] distinctPatients = new Patient[0];
+
+  private int msgCount = 0;
+
+  public BundleGenerator(long seed) {
+    patientGenerator = new PatientGenerator(seed);
+  }
+
+  /**
+   * Returns the given number of patients. Beyond
+   * {@value #MAX_DISTINCT_PATIENTS}, the same patients are repeated.
+   *
+   * @param num
+   *          number of patients
+   * @return array of patients
+   */
+  public Patient[] patients(int num) {
+    final int numDistinct = Math.min(num, MAX_DISTINCT_PATIENTS);
+    if (distinctPatients.length < numDistinct) {
+      final Patient[] more = new Patient[numDistinct];
+      System.arraycopy(distinctPatients, 0, more, 0, distinctPatients.length);
+      for (int i = distinctPatients.length; i < numDistinct; i++) {
+        more[i] = patientGenerator.next();
+      }
+      distinctPatients = more;
+    }
+
+    final Patient[] patients = new Patient[num];
+    for (int i = 0; i < num; i++) {
+      patients[i] = distinctPatients[i % numDistinct];
+    }
+    return patients;
+  }
+
+  /**
+   * @param numEntries
+   *          number of Patient entries
+   * @return a searchset bundle such as a FHIR server returns for a Patient
+   *         search
+   */
+  public Bundle searchSet(int numEntries) {
+    final Bundle bundle = new Bundle();
+    bundle.setId(String.format("%024x", ++msgCount));
+    bundle.setType(BundleType.SEARCHSET);
+    bundle.setTotal(numEntries);
+    bundle.addLink().setRelation(Bundle.LINK_SELF)
+        .setUrl(SERVER_BASE + "/Patient?_count=" + numEntries);
+
+    final Patient[] patients = patients(numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      bundle.addEntry()
+          .setFullUrl(SERVER_BASE + "/Patient/" + Integer.toString(i + 1))
+          .setResource(patients[i]);
+    }
+    return bundle;
+  }
+
+  /**
+   * @return a deduplication request message for the patients of the server
+   */
+  public Bundle recordMatchRequest() {
+    return recordMatchRequest(String.format("%024x", ++msgCount));
+  }
+
+  /**
+   * @param msgId
+   *          id of the message header
+   * @return a deduplication request message for the patients of the server
+   */
+  public Bundle recordMatchRequest(String msgId) {
+    final Bundle msg = new Bundle();
+    msg.setId(String.format("%024x", ++msgCount));
+    msg.setType(BundleType.MESSAGE);
+
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId(msgId);
+    hdr.setEvent(new Coding().setSystem(EVENT_SPACE).setCode(EVENT_CODE));
+    final MessageSourceComponent src = new MessageSourceComponent();
+    src.setName("ptmatch-test-harness");
+    src.setEndpoint("http://localhost:3000");
+    hdr.setSource(src);
+    final MessageDestinationComponent dest = new MessageDestinationComponent();
+    dest.setName("ptmatchadapter");
+    dest.setEndpoint("http://mitre.org/ptmatchadapter-fril");
+    hdr.addDestination(dest);
+
+    final Parameters params = new Parameters();
+    params.setId(String.format("%024x", ++msgCount));
+    params.addParameter().setName("type").setValue(new StringType("master"));
+    params.addParameter().setName("resourceType").setValue(new StringType("Patient"));
+    params.addParameter().setName("searchExpression")
+        .setValue(new UriType(SERVER_BASE + "/Patient?_count=100"));
+    hdr.addData().setReference("Parameters/" + params.getId());
+
+    msg.addEntry().setFullUrl("urn:uuid:" + hdr.getId()).setResource(hdr);
+    msg.addEntry().setFullUrl("urn:uuid:" + params.getId()).setResource(params);
+    return msg;
+  }
+}
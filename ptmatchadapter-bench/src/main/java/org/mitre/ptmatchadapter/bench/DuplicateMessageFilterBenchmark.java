@@ -0,0 +1,94 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.mitre.ptmatchadapter.DuplicateMessageFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the duplicate message filter holding the given number of message
+ * ids. Repeat messages are the common case: each poll of the FHIR server
+ * returns the messages of the whole look-back period again.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuplicateMessageFilterBenchmark {
+
+  /** power of two, so the next message is found with a mask. */
+  private static final int NUM_MESSAGES = 1024;
+
+  @Param({ "1000", "100000", "1000000" })
+  private int numIds;
+
+  private DuplicateMessageFilter filter;
+
+  /** messages whose ids the filter has seen. */
+  private Bundle[] repeatMessages;
+
+  private int next = 0;
+  private long newIdSeq = 0;
+
+  @Setup
+  public void setup() {
+    filter = new DuplicateMessageFilter();
+    filter.setMaxEntries(numIds);
+    filter.setMaxAgeMillis(0);
+    for (int i = 0; i < numIds; i++) {
+      filter.isNewMessageId("m" + i);
+    }
+
+    final BundleGenerator generator = new BundleGenerator(42L);
+    repeatMessages = new Bundle[NUM_MESSAGES];
+    for (int i = 0; i < NUM_MESSAGES; i++) {
+      // most recent ids, so they are not evicted by newMessageId
+      repeatMessages[i] = generator.recordMatchRequest("m" + (numIds - 1 - i % numIds));
+    }
+  }
+
+  @Benchmark
+  public boolean repeatMessage() {
+    return filter.isNewMessage(repeatMessages[next++ & (NUM_MESSAGES - 1)]);
+  }
+
+  /**
+   * Each new id evicts the oldest id once the filter is full.
+   */
+  @Benchmark
+  public boolean newMessageId() {
+    return filter.isNewMessageId("n" + newIdSeq++);
+  }
+}
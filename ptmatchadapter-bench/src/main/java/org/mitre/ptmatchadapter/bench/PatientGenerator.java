@@ -0,0 +1,142 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import org.hl7.fhir.instance.model.ContactPoint;
+import org.hl7.fhir.instance.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.instance.model.ContactPoint.ContactPointUse;
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.HumanName;
+import org.hl7.fhir.instance.model.HumanName.NameUse;
+import org.hl7.fhir.instance.model.Identifier;
+import org.hl7.fhir.instance.model.Identifier.IdentifierUse;
+import org.hl7.fhir.instance.model.Patient;
+
+/**
+ * Generates synthetic Patient resources shaped like the records the adapter
+ * receives from the test harness. A generator created with a given seed
+ * always produces the same sequence of patients.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PatientGenerator {
+  private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams",
+      "Brown", "Jones", "Miller", "Davis", "Garcia", "Rodriguez", "Wilson",
+      "Martinez", "Anderson", "Taylor", "Thomas", "Hernandez", "Moore",
+      "Martin", "Jackson", "Thompson", "White", "Lopez", "Lee", "Gonzalez",
+      "Harris", "Clark", "Lewis", "Robinson", "Walker", "Perez", "Hall",
+      "Young", "Allen", "Baldwin", "Nguyen" };
+
+  private static final String[] GIVEN_NAMES = { "James", "Mary", "John",
+      "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William",
+      "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica",
+      "Thomas", "Sarah", "Charles", "Karen", "Earl", "Nancy", "Daniel", "Lisa" };
+
+  private static final String[] SUFFIXES = { "Jr", "Sr", "III", "MD" };
+
+  private final Random rand;
+
+  private int count = 0;
+
+  public PatientGenerator(long seed) {
+    rand = new Random(seed);
+  }
+
+  /**
+   * @return a new patient with a logical id, SSN, one or two names, gender,
+   *         birth date and a few contact points
+   */
+  public Patient next() {
+    final Patient p = new Patient();
+    p.setId(String.format("%024x", ++count));
+
+    p.setGender(rand.nextBoolean() ? AdministrativeGender.MALE
+        : AdministrativeGender.FEMALE);
+
+    final Identifier ssn = new Identifier();
+    ssn.setUse(IdentifierUse.OFFICIAL);
+    ssn.setSystem("SSN");
+    ssn.setValue(String.format("%03d-%02d-%04d", rand.nextInt(999) + 1,
+        rand.nextInt(99) + 1, rand.nextInt(9999) + 1));
+    p.addIdentifier(ssn);
+
+    final String family = FAMILY_NAMES[rand.nextInt(FAMILY_NAMES.length)];
+    final String given = GIVEN_NAMES[rand.nextInt(GIVEN_NAMES.length)];
+
+    final HumanName name = new HumanName();
+    name.setText(given + " " + family);
+    name.addFamily(family);
+    name.addGiven(given);
+    if (rand.nextInt(10) == 0) {
+      name.addSuffix(SUFFIXES[rand.nextInt(SUFFIXES.length)]);
+    }
+    p.addName(name);
+
+    if (rand.nextInt(4) == 0) {
+      final HumanName official = new HumanName();
+      official.setUse(NameUse.OFFICIAL);
+      official.addFamily(family);
+      official.addGiven(given);
+      official.addGiven(GIVEN_NAMES[rand.nextInt(GIVEN_NAMES.length)]);
+      p.addName(official);
+    }
+
+    final Calendar dob = new GregorianCalendar(1920 + rand.nextInt(95),
+        rand.nextInt(12), 1 + rand.nextInt(28));
+    p.setBirthDate(dob.getTime());
+
+    p.addTelecom(newContactPoint(ContactPointSystem.PHONE, ContactPointUse.HOME,
+        String.format("734.555.%04d", rand.nextInt(10000))));
+    if (rand.nextBoolean()) {
+      p.addTelecom(newContactPoint(ContactPointSystem.PHONE,
+          ContactPointUse.MOBILE,
+          String.format("248.555.%04d", rand.nextInt(10000))));
+    }
+    if (rand.nextBoolean()) {
+      p.addTelecom(newContactPoint(ContactPointSystem.EMAIL,
+          ContactPointUse.WORK, given + "." + family + "@example.org"));
+    }
+    return p;
+  }
+
+  /**
+   * @param num
+   *          number of patients to generate
+   * @return array of newly generated patients
+   */
+  public Patient[] next(int num) {
+    final Patient[] patients = new Patient[num];
+    for (int i = 0; i < num; i++) {
+      patients[i] = next();
+    }
+    return patients;
+  }
+
+  private ContactPoint newContactPoint(ContactPointSystem system,
+      ContactPointUse use, String value) {
+    final ContactPoint cp = new ContactPoint();
+    cp.setSystem(system);
+    cp.setUse(use);
+    cp.setValue(value);
+    return cp;
+  }
+}
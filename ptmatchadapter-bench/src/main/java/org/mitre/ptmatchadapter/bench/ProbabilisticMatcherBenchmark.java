@@ -0,0 +1,138 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+import org.mitre.ptmatchadapter.match.BlockingIndex;
+import org.mitre.ptmatchadapter.match.MatchRecords;
+import org.mitre.ptmatchadapter.match.PatientBlocker;
+import org.mitre.ptmatchadapter.match.ProbabilisticMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures an in-memory deduplication of the given number of distinct
+ * patients: indexing the records and scoring the candidate pairs with the
+ * default fields, on one thread and on one thread per processor, and scoring
+ * only the pairs of one record in a thousand, as when a deduplication is
+ * brought up to date.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class ProbabilisticMatcherBenchmark {
+
+  @Param({ "1000", "100000", "1000000" })
+  private int numPatients;
+
+  private PatientBlocker blocker;
+
+  private MatchRecords records;
+
+  private BlockingIndex index;
+
+  private ProbabilisticMatcher singleThreaded;
+
+  private ProbabilisticMatcher multiThreaded;
+
+  /** records changed since the last deduplication, one in a thousand. */
+  private BitSet changed;
+
+  @Setup
+  public void setup() {
+    blocker = new PatientBlocker();
+    singleThreaded = new ProbabilisticMatcher();
+    singleThreaded.setThreads(1);
+    multiThreaded = new ProbabilisticMatcher();
+    multiThreaded.setThreads(0);
+
+    final SimplePatientCsvFormat format = new SimplePatientCsvFormat();
+    format.setColumns(singleThreaded.getColumns());
+    records = new MatchRecords(format.getColumnNames(),
+        blocker.getPasses().length);
+
+    // only the compared values are kept, as when records are retrieved
+    final PatientGenerator generator = new PatientGenerator(42L);
+    for (int i = 0; i < numPatients; i++) {
+      final Patient p = generator.next();
+      records.add(p.getIdElement().getIdPart(), format.toValues(p),
+          blocker.keys(p));
+    }
+    index = records.index(blocker.getMaxBlockSize());
+
+    changed = new BitSet(numPatients);
+    for (int r = 0; r < numPatients; r += 1000) {
+      changed.set(r);
+    }
+  }
+
+  @Benchmark
+  public BlockingIndex index() {
+    return records.index(blocker.getMaxBlockSize());
+  }
+
+  @Benchmark
+  public long matchSingleThreaded(Blackhole bh) throws InterruptedException {
+    return singleThreaded.match(records, index, records.size(),
+        new Consumer(bh));
+  }
+
+  @Benchmark
+  public long matchMultiThreaded(Blackhole bh) throws InterruptedException {
+    return multiThreaded.match(records, index, records.size(),
+        new Consumer(bh));
+  }
+
+  @Benchmark
+  public long rematch(Blackhole bh) {
+    return singleThreaded.rematch(records, index, changed, new Consumer(bh));
+  }
+
+  private static final class Consumer
+      implements ProbabilisticMatcher.MatchHandler {
+    private final Blackhole bh;
+
+    Consumer(Blackhole bh) {
+      this.bh = bh;
+    }
+
+    @Override
+    public void match(int left, int right, double score) {
+      bh.consume(score);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Resource;
+import org.mitre.ptmatchadapter.util.ResourceSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Measures encoding and parsing of a search result page, as done for each
+ * message logged or sent by the Camel routes.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceSerializerBenchmark {
+
+  /** entries in the bundle; a search result page rarely exceeds 1000. */
+  @Param({ "1", "100", "1000" })
+  private int numEntries;
+
+  @Param({ "json", "xml" })
+  private String format;
+
+  @Param({ "true", "false" })
+  private boolean prettyPrint;
+
+  private ResourceSerializer serializer;
+
+  private Bundle bundle;
+
+  private String encoded;
+
+  @Setup
+  public void setup() {
+    serializer = new ResourceSerializer(FhirContext.forDstu2Hl7Org());
+    serializer.setFormat(format);
+    serializer.setPrettyPrint(prettyPrint);
+    bundle = new BundleGenerator(42L).searchSet(numEntries);
+    encoded = serializer.toString(bundle);
+  }
+
+  @Benchmark
+  public String toResourceString() {
+    return serializer.toString(bundle);
+  }
+
+  @Benchmark
+  public Resource toResource() {
+    return serializer.toResource(encoded);
+  }
+}
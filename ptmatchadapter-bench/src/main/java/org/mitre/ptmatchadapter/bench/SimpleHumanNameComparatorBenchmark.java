@@ -0,0 +1,78 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.HumanName;
+import org.hl7.fhir.instance.model.Patient;
+import org.mitre.ptmatchadapter.util.SimpleHumanNameComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures comparison of pairs of names drawn from generated patients.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleHumanNameComparatorBenchmark {
+
+  /** power of two, so the next pair is found with a mask. */
+  private static final int NUM_NAMES = 1024;
+
+  private final SimpleHumanNameComparator comparator = new SimpleHumanNameComparator();
+
+  private HumanName[] names;
+
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    names = new HumanName[NUM_NAMES];
+    final Patient[] patients = new PatientGenerator(42L).next(NUM_NAMES);
+    for (int i = 0; i < NUM_NAMES; i++) {
+      names[i] = patients[i].getName().get(0);
+    }
+  }
+
+  @Benchmark
+  public int compare() {
+    final int i = next++ & (NUM_NAMES - 1);
+    return comparator.compare(names[i], names[(i + 1) & (NUM_NAMES - 1)]);
+  }
+
+  @Benchmark
+  public int compareEqual() {
+    final int i = next++ & (NUM_NAMES - 1);
+    return comparator.compare(names[i], names[i]);
+  }
+}
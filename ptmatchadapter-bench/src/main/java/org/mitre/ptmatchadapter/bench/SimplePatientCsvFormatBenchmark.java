@@ -0,0 +1,101 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.mitre.ptmatchadapter.format.JXPathPatientCsvFormat;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares CSV row generation using the compiled field extractor with the
+ * JXPath-based implementation it replaced.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class SimplePatientCsvFormatBenchmark {
+
+  @Param({ "1000", "100000", "1000000" })
+  private int numPatients;
+
+  private Patient[] patients;
+
+  private SimplePatientCsvFormat compiledFormat;
+
+  private JXPathPatientCsvFormat jxpathFormat;
+
+  @Setup
+  public void setup() {
+    patients = new BundleGenerator(42L).patients(numPatients);
+    compiledFormat = new SimplePatientCsvFormat();
+    jxpathFormat = new JXPathPatientCsvFormat();
+  }
+
+  /**
+   * Each operation formats every patient in the set.
+   */
+  @Benchmark
+  public void compiledToCsv(Blackhole bh) {
+    for (Patient p : patients) {
+      bh.consume(compiledFormat.toCsv(p));
+    }
+  }
+
+  /**
+   * Appends every row to one reused builder, as data source files are
+   * written.
+   */
+  @Benchmark
+  public void compiledAppendCsv(Blackhole bh) {
+    final StringBuilder sb = new StringBuilder(64 * 1024);
+    for (Patient p : patients) {
+      if (sb.length() > 60 * 1024) {
+        bh.consume(sb.length());
+        sb.setLength(0);
+      }
+      compiledFormat.appendCsv(p, sb);
+    }
+    bh.consume(sb.length());
+  }
+
+  @Benchmark
+  public void jxpathToCsv(Blackhole bh) {
+    for (Patient p : patients) {
+      bh.consume(jxpathFormat.toCsv(p));
+    }
+  }
+}
@@ -16,7 +16,22 @@
  */
 package org.mitre.ptmatchadapter;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.hl7.fhir.instance.model.Bundle;
@@ -27,34 +42,390 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Passes only messages whose id has not been seen recently.
+ *
+ * <p>
+ * The ids of messages that have been seen are remembered for at most
+ * {@code maxAgeMillis} and no more than {@code maxEntries} ids are kept; the
+ * oldest are forgotten first. The age limit must exceed the look-back period
+ * of the message poller so that repeat polls of the same window are filtered;
+ * when the poller looks back to the epoch, disable the age limit by setting it
+ * to zero.
+ * </p>
+ *
+ * <p>
+ * A message that passes the filter is unfinished until
+ * {@link #markProcessed(Resource)} is called for it, typically once its
+ * response has been handed to the outbox. When a {@code stateFile} is
+ * configured, only processed ids are appended to it, and the ids that are
+ * still within the limits are reloaded on startup so requests processed
+ * before a restart are not processed again, while requests that were
+ * unfinished are processed once they are retrieved again. The file is
+ * rewritten with only the live ids once it grows to twice their number.
+ * </p>
+ *
  * @author Michael Los, mel@mitre.org
  *
  */
 public class DuplicateMessageFilter {
   private static final Logger LOG    = LoggerFactory.getLogger(DuplicateMessageFilter.class);
 
-  private Set<String> msgIds = new HashSet<String>();
-  
+  /** 24 hours. */
+  private static final long DEFAULT_MAX_AGE = 24L * 60L * 60L * 1000L;
+
+  /** state file is not compacted until it holds at least this many lines. */
+  private static final int MIN_COMPACT_LINES = 1000;
+
+  private static final char SEPARATOR = '\t';
+
+  /** message ids and when each was first seen, oldest first. */
+  private final LinkedHashMap<String, Long> msgIds = new LinkedHashMap<String, Long>();
+
+  /** ids of messages that passed the filter but have not been processed. */
+  private final Set<String> unfinishedIds = new HashSet<String>();
+
+  /** maximum number of message ids to remember. */
+  private int maxEntries = 100000;
+
+  /** number of milliseconds for which a message id is remembered. */
+  private long maxAgeMillis = DEFAULT_MAX_AGE;
+
+  /** file in which processed message ids are recorded; null for memory only. */
+  private File stateFile;
+
+  private boolean stateLoaded = false;
+
+  /** number of lines in the state file. */
+  private int stateFileLines = 0;
+
   public boolean isNewMessage(Resource resource) {
     boolean isNew = false;
-    
-    final ResourceType resType = resource.getResourceType();
-    if (resType == ResourceType.Bundle) {
-      Bundle bundle = (Bundle) resource;
-      LOG.debug("bundle id: {}, type: {} ", bundle.getId(), bundle.getType());
-
-      if (BundleType.MESSAGE.equals(bundle.getType())) {
-        // First Entry is expected to be a message header
-        final String msgId = bundle.getEntry().get(0).getResource().getId();
-        if (!msgIds.contains(msgId)) {
-          msgIds.add(msgId);
-          isNew = true;
-          LOG.info("NEW MESSAGE!   id: {} ", msgId);
-        } else {
-          LOG.info("REPEAT MESSAGE id: {} ", msgId);
-        }
+
+    final String msgId = getMessageId(resource);
+    if (msgId != null) {
+      if (isNewMessageId(msgId)) {
+        isNew = true;
+        LOG.info("NEW MESSAGE!   id: {} ", msgId);
+      } else {
+        LOG.info("REPEAT MESSAGE id: {} ", msgId);
       }
     }
     return isNew;
   }
+
+  /**
+   * Records the given message id as seen, but unfinished.
+   *
+   * @param msgId
+   *          message id
+   * @return true when the id has not been seen within the configured limits
+   */
+  public synchronized boolean isNewMessageId(String msgId) {
+    if (!stateLoaded) {
+      loadState();
+    }
+
+    final long now = currentTimeMillis();
+    expire(now);
+
+    if (msgIds.containsKey(msgId)) {
+      return false;
+    }
+
+    msgIds.put(msgId, now);
+    unfinishedIds.add(msgId);
+    evict();
+    return true;
+  }
+
+  /**
+   * Records that the given message needs no further work, e.g., its response
+   * has been handed to the outbox, so it is not processed again after a
+   * restart.
+   *
+   * @param resource
+   *          message bundle; other resources are ignored
+   */
+  public void markProcessed(Resource resource) {
+    final String msgId = getMessageId(resource);
+    if (msgId != null) {
+      markProcessedId(msgId);
+    }
+  }
+
+  /**
+   * Records that the message with the given id needs no further work.
+   *
+   * @param msgId
+   *          message id
+   */
+  public synchronized void markProcessedId(String msgId) {
+    if (!stateLoaded) {
+      loadState();
+    }
+
+    final boolean unfinished = unfinishedIds.remove(msgId);
+    Long seenAt = msgIds.get(msgId);
+    if (seenAt == null) {
+      // e.g., a message that is not a request and so never passed the filter
+      seenAt = currentTimeMillis();
+      msgIds.put(msgId, seenAt);
+      evict();
+    } else if (!unfinished) {
+      // already recorded
+      return;
+    }
+    appendState(msgId, seenAt);
+  }
+
+  /**
+   * @param msgId
+   *          message id
+   * @return true when the message has been seen and processed within the
+   *         configured limits
+   */
+  public synchronized boolean isProcessed(String msgId) {
+    if (!stateLoaded) {
+      loadState();
+    }
+    return msgIds.containsKey(msgId) && !unfinishedIds.contains(msgId);
+  }
+
+  /**
+   * @return number of message ids currently remembered
+   */
+  public synchronized int size() {
+    return msgIds.size();
+  }
+
+  /**
+   * @param resource
+   *          resource retrieved from the server
+   * @return id of the message header of the given message bundle; null when
+   *         the resource is not a message bundle
+   */
+  public static String getMessageId(Resource resource) {
+    if (resource == null || resource.getResourceType() != ResourceType.Bundle) {
+      return null;
+    }
+    final Bundle bundle = (Bundle) resource;
+    LOG.debug("bundle id: {}, type: {} ", bundle.getId(), bundle.getType());
+    if (!BundleType.MESSAGE.equals(bundle.getType()) || bundle.getEntry().isEmpty()) {
+      return null;
+    }
+    // First Entry is expected to be a message header
+    final Resource hdr = bundle.getEntry().get(0).getResource();
+    return hdr != null ? hdr.getId() : null;
+  }
+
+  /**
+   * Returns the current time. Exists so tests can control the clock.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Removes ids that are older than the age limit.
+   */
+  private void expire(long now) {
+    if (maxAgeMillis <= 0) {
+      return;
+    }
+    final long oldest = now - maxAgeMillis;
+    final Iterator<Map.Entry<String, Long>> iter = msgIds.entrySet().iterator();
+    while (iter.hasNext()) {
+      final Map.Entry<String, Long> entry = iter.next();
+      // entries are in the order seen, so stop at the first live one
+      if (entry.getValue() > oldest) {
+        break;
+      }
+      iter.remove();
+      unfinishedIds.remove(entry.getKey());
+    }
+  }
+
+  /**
+   * Stays within the size limit by forgetting the oldest ids.
+   */
+  private void evict() {
+    final Iterator<String> iter = msgIds.keySet().iterator();
+    while (msgIds.size() > maxEntries && iter.hasNext()) {
+      unfinishedIds.remove(iter.next());
+      iter.remove();
+    }
+  }
+
+  /**
+   * Reads ids from the state file, keeping those within the limits.
+   */
+  private void loadState() {
+    stateLoaded = true;
+    if (stateFile == null || !stateFile.exists()) {
+      return;
+    }
+
+    final long now = currentTimeMillis();
+    int lines = 0;
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(stateFile), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          final int pos = line.indexOf(SEPARATOR);
+          if (pos <= 0 || pos == line.length() - 1) {
+            // e.g., partial line written when the process was stopped
+            continue;
+          }
+          try {
+            final long seenAt = Long.parseLong(line.substring(0, pos));
+            final String msgId = line.substring(pos + 1);
+            if (!msgIds.containsKey(msgId)) {
+              msgIds.put(msgId, seenAt);
+            }
+          } catch (NumberFormatException e) {
+            LOG.warn("Skipping malformed line in {}", stateFile.getAbsolutePath());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to read seen message ids from {}",
+          stateFile.getAbsolutePath(), e);
+    }
+    stateFileLines = lines;
+
+    expire(now);
+    evict();
+    LOG.info("Loaded {} seen message ids from {}", msgIds.size(),
+        stateFile.getAbsolutePath());
+
+    if (stateFileLines > msgIds.size()) {
+      compactState();
+    }
+  }
+
+  /**
+   * Appends the id to the state file, compacting the file when most of its
+   * lines refer to forgotten ids.
+   */
+  private void appendState(String msgId, long seenAt) {
+    if (stateFile == null) {
+      return;
+    }
+    if (stateFileLines >= MIN_COMPACT_LINES
+        && stateFileLines >= 2 * msgIds.size()) {
+      // rewritten file already contains the new id
+      compactState();
+      return;
+    }
+
+    try {
+      final File parent = stateFile.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists()) {
+        // e.g., the work folder of a fresh install
+        parent.mkdirs();
+      }
+      final Writer w = new OutputStreamWriter(
+          new FileOutputStream(stateFile, true), StandardCharsets.UTF_8);
+      try {
+        w.write(Long.toString(seenAt));
+        w.write(SEPARATOR);
+        w.write(msgId);
+        w.write('\n');
+      } finally {
+        w.close();
+      }
+      stateFileLines++;
+    } catch (IOException e) {
+      LOG.error("Unable to record message id in {}",
+          stateFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Rewrites the state file with only the processed ids currently remembered.
+   */
+  private void compactState() {
+    final File parent = stateFile.getAbsoluteFile().getParentFile();
+    try {
+      if (parent != null && !parent.exists()) {
+        parent.mkdirs();
+      }
+      final File tmp = new File(parent, stateFile.getName() + ".tmp");
+      final Writer w = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(tmp), StandardCharsets.UTF_8));
+      try {
+        for (Map.Entry<String, Long> entry : msgIds.entrySet()) {
+          if (unfinishedIds.contains(entry.getKey())) {
+            continue;
+          }
+          w.write(Long.toString(entry.getValue()));
+          w.write(SEPARATOR);
+          w.write(entry.getKey());
+          w.write('\n');
+        }
+      } finally {
+        w.close();
+      }
+      Files.move(tmp.toPath(), stateFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      stateFileLines = msgIds.size() - unfinishedIds.size();
+      LOG.debug("Compacted {} to {} message ids", stateFile.getAbsolutePath(),
+          stateFileLines);
+    } catch (IOException e) {
+      LOG.error("Unable to compact {}", stateFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return the maxEntries
+   */
+  public final int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param maxEntries
+   *          maximum number of message ids to remember
+   */
+  public final void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the maxAgeMillis
+   */
+  public final long getMaxAgeMillis() {
+    return maxAgeMillis;
+  }
+
+  /**
+   * @param maxAgeMillis
+   *          number of milliseconds for which a message id is remembered; 0
+   *          or less to remember ids until evicted by the size limit
+   */
+  public final void setMaxAgeMillis(long maxAgeMillis) {
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * @return the stateFile
+   */
+  public final File getStateFile() {
+    return stateFile;
+  }
+
+  /**
+   * @param stateFile
+   *          file in which processed message ids are recorded; null to keep
+   *          them in memory only
+   */
+  public final synchronized void setStateFile(File stateFile) {
+    this.stateFile = stateFile;
+    stateLoaded = false;
+  }
 }
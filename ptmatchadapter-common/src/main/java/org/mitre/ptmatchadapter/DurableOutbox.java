@@ -0,0 +1,749 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.mitre.ptmatchadapter.ResultSender.MessageOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Holds outgoing messages until the FHIR server has accepted them.
+ *
+ * <p>
+ * Each submitted message is appended to a journal file before
+ * {@link #submit(Bundle)} returns, and worker threads send the messages with
+ * the {@link ResultSender}, several at a time when more than one is ready. A
+ * message the server does not accept is retried after a delay that doubles
+ * with each attempt, from {@code initialRetryMillis} up to
+ * {@code maxRetryMillis}; it is abandoned when the server refuses it as
+ * invalid (a 4xx status other than 408 or 429) or, when {@code maxAttempts}
+ * is set, after that many attempts. Messages still in the journal when the
+ * adapter stops are sent after it restarts.
+ * </p>
+ *
+ * <p>
+ * Messages are keyed by bundle id; a message submitted while another with the
+ * same id is waiting is dropped. No more than {@code maxPending} messages
+ * wait at a time: beyond that, {@code submit} blocks until a message has been
+ * sent, which slows the routes and jobs that produce messages.
+ * </p>
+ *
+ * <p>
+ * The journal holds a line for each submitted message and a line for each
+ * message sent or abandoned. It is rewritten with only the waiting messages
+ * once it grows to twice their number.
+ * </p>
+ *
+ * <p>
+ * A message already encoded to a file (see {@link ResultSender#ENCODED_MESSAGE})
+ * is never held in memory: the journal records the name of the file, the
+ * file is sent on its own, and it is deleted once the message has been sent
+ * or abandoned.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DurableOutbox {
+  private static final Logger LOG = LoggerFactory.getLogger(DurableOutbox.class);
+
+  /** journal is not compacted until it holds at least this many lines. */
+  private static final int MIN_COMPACT_LINES = 1000;
+
+  private static final char SEPARATOR = '\t';
+  private static final String ADDED = "A";
+  private static final String DONE = "D";
+  /** starts the journal record of a message encoded to a file. */
+  private static final String FILE_REF = "@";
+
+  private static final AtomicInteger THREAD_NUM = new AtomicInteger();
+
+  private ResultSender resultSender;
+
+  private FhirContext fhirContext;
+
+  /** file in which waiting messages are recorded; null for memory only. */
+  private File journalFile;
+
+  /** true to force each journal record to disk before continuing. */
+  private boolean syncJournal = true;
+
+  /** number of threads sending messages. */
+  private int workers = 1;
+
+  /** maximum number of messages sent together. */
+  private int batchSize = 20;
+
+  /** maximum number of waiting messages. */
+  private int maxPending = 1000;
+
+  private long initialRetryMillis = 1000L;
+  private long maxRetryMillis = 5L * 60L * 1000L;
+
+  /** number of attempts after which a message is abandoned; 0 for no limit. */
+  private int maxAttempts = 0;
+
+  /** waiting messages by key, oldest first; guarded by this. */
+  private final Map<String, OutboxEntry> entries = new LinkedHashMap<String, OutboxEntry>();
+
+  /** waiting messages ordered by when they may next be sent. */
+  private final DelayQueue<OutboxEntry> readyQueue = new DelayQueue<OutboxEntry>();
+
+  private ExecutorService executor;
+
+  private boolean journalLoaded = false;
+
+  /** number of lines in the journal; guarded by this. */
+  private int journalLines = 0;
+
+  private final AtomicLong deliveredMessages = new AtomicLong();
+  private final AtomicLong abandonedMessages = new AtomicLong();
+  private final AtomicLong duplicateMessages = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong blockedSubmits = new AtomicLong();
+
+  /**
+   * A waiting message.
+   */
+  private static final class OutboxEntry implements Delayed {
+    final String key;
+    final Bundle message;
+    /** encoded message, as recorded in the journal. */
+    final String encoded;
+    /** file holding the encoded message; null when held in memory. */
+    final File file;
+    int attempts = 0;
+    volatile long readyAtNanos = System.nanoTime();
+
+    OutboxEntry(String key, Bundle message, String encoded) {
+      this.key = key;
+      this.message = message;
+      this.encoded = encoded;
+      this.file = encoded.startsWith(FILE_REF)
+          ? new File(encoded.substring(FILE_REF.length())) : null;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      final long diff = readyAtNanos - ((OutboxEntry) o).readyAtNanos;
+      return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+    }
+  }
+
+  /**
+   * Loads waiting messages from the journal and starts the worker threads.
+   */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    if (!journalLoaded) {
+      loadJournal();
+    }
+    executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, "outbox-" + THREAD_NUM.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    for (int i = 0; i < workers; i++) {
+      executor.execute(new Worker());
+    }
+    LOG.info("Outbox started, workers: {}, waiting messages: {}", workers,
+        entries.size());
+  }
+
+  /**
+   * Stops the worker threads. Waiting messages remain in the journal.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+      // release blocked submitters
+      notifyAll();
+      LOG.info("Outbox stopped, {} messages waiting", entries.size());
+    }
+  }
+
+  /**
+   * Records the given message and queues it to be sent. Blocks while the
+   * maximum number of messages are waiting. A message whose
+   * {@link ResultSender#ENCODED_MESSAGE} user data names a file is sent from
+   * that file, which is deleted once the message is done with.
+   *
+   * @param bundle
+   *          message to send
+   * @throws InterruptedException
+   *           when interrupted while waiting for room in the outbox
+   */
+  public void submit(Bundle bundle) throws InterruptedException {
+    String key = bundle.getIdElement().getIdPart();
+    if (key == null) {
+      key = UUID.randomUUID().toString();
+    }
+
+    synchronized (this) {
+      if (executor == null) {
+        start();
+      }
+      if (entries.containsKey(key)) {
+        duplicateMessages.incrementAndGet();
+        LOG.info("Message {} is already waiting to be sent", key);
+        return;
+      }
+      if (entries.size() >= maxPending) {
+        blockedSubmits.incrementAndGet();
+        LOG.warn("Outbox full, {} messages waiting", entries.size());
+        while (entries.size() >= maxPending) {
+          if (executor == null) {
+            throw new IllegalStateException("Outbox stopped while full");
+          }
+          wait();
+        }
+      }
+
+      final Object encodedFile = bundle.getUserData(ResultSender.ENCODED_MESSAGE);
+      final String encoded = encodedFile instanceof File
+          ? FILE_REF + ((File) encodedFile).getAbsolutePath()
+          : fhirContext.newJsonParser().encodeResourceToString(bundle);
+      final OutboxEntry entry = new OutboxEntry(key, bundle, encoded);
+      appendJournal(ADDED, entry);
+      entries.put(key, entry);
+      readyQueue.add(entry);
+    }
+  }
+
+  /**
+   * Sends ready messages until interrupted.
+   */
+  private final class Worker implements Runnable {
+    @Override
+    public void run() {
+      final List<OutboxEntry> batch = new ArrayList<OutboxEntry>(batchSize);
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          batch.clear();
+          batch.add(readyQueue.take());
+          readyQueue.drainTo(batch, batchSize - 1);
+          send(batch);
+        }
+      } catch (InterruptedException e) {
+        // outbox stopped
+        LOG.debug("outbox worker interrupted");
+      } catch (RuntimeException e) {
+        LOG.error("Outbox worker failed", e);
+      }
+    }
+  }
+
+  /**
+   * Sends the given messages and records the outcome of each.
+   */
+  private void send(List<OutboxEntry> batch) {
+    // messages encoded to a file are sent on their own
+    final List<OutboxEntry> inMemory = new ArrayList<OutboxEntry>(batch.size());
+    final List<Bundle> messages = new ArrayList<Bundle>(batch.size());
+    final Map<OutboxEntry, MessageOutcome> outcomes = new HashMap<OutboxEntry, MessageOutcome>();
+    for (OutboxEntry entry : batch) {
+      entry.attempts++;
+      if (entry.file != null) {
+        outcomes.put(entry, resultSender.sendEncodedMessage(entry.message,
+            entry.file));
+      } else {
+        inMemory.add(entry);
+        messages.add(entry.message);
+      }
+    }
+
+    if (!messages.isEmpty()) {
+      try {
+        final List<MessageOutcome> sent = resultSender.sendMessages(messages);
+        for (int i = 0; i < inMemory.size(); i++) {
+          outcomes.put(inMemory.get(i), sent.get(i));
+        }
+      } catch (RuntimeException e) {
+        LOG.warn("Unable to send {} messages: {}", messages.size(),
+            e.getMessage());
+      }
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      final OutboxEntry entry = batch.get(i);
+      final MessageOutcome outcome = outcomes.get(entry);
+      if (outcome != null && outcome.isSuccess()) {
+        deliveredMessages.incrementAndGet();
+        complete(entry);
+      } else if (outcome != null && isRefused(outcome.getStatus())) {
+        abandonedMessages.incrementAndGet();
+        LOG.error("Abandoning message {}, refused by server, status: {}",
+            entry.key, outcome.getStatus());
+        complete(entry);
+      } else if (maxAttempts > 0 && entry.attempts >= maxAttempts) {
+        abandonedMessages.incrementAndGet();
+        LOG.error("Abandoning message {} after {} attempts", entry.key,
+            entry.attempts);
+        complete(entry);
+      } else {
+        final long delay = retryDelayMillis(entry.attempts);
+        retries.incrementAndGet();
+        LOG.info("Retrying message {} in {} ms, attempt: {}", entry.key, delay,
+            entry.attempts);
+        entry.readyAtNanos = System.nanoTime() + delay * 1000000L;
+        readyQueue.add(entry);
+      }
+    }
+  }
+
+  /**
+   * @return number of milliseconds to wait after the given number of failed
+   *         attempts
+   */
+  final long retryDelayMillis(int attempts) {
+    final int doublings = Math.min(attempts - 1, 30);
+    return Math.min(maxRetryMillis, initialRetryMillis << doublings);
+  }
+
+  /**
+   * @return true when the status is a client error that will recur on retry
+   */
+  private static boolean isRefused(String status) {
+    if (status == null || status.length() < 3) {
+      return false;
+    }
+    try {
+      final int code = Integer.parseInt(status.substring(0, 3));
+      return code >= 400 && code < 500 && code != 408 && code != 429;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Removes a sent or abandoned message.
+   */
+  private synchronized void complete(OutboxEntry entry) {
+    if (entries.remove(entry.key) != null) {
+      appendJournal(DONE, entry);
+      notifyAll();
+      if (entry.file != null && !entry.file.delete()) {
+        LOG.warn("Unable to delete sent message {}", entry.file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Reads waiting messages from the journal.
+   */
+  private void loadJournal() {
+    journalLoaded = true;
+    if (journalFile == null || !journalFile.exists()) {
+      return;
+    }
+
+    final Map<String, String> waiting = new LinkedHashMap<String, String>();
+    int lines = 0;
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(journalFile), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          final int pos = line.indexOf(SEPARATOR);
+          if (pos <= 0) {
+            // e.g., partial line written when the process was stopped
+            continue;
+          }
+          final String type = line.substring(0, pos);
+          final int pos2 = line.indexOf(SEPARATOR, pos + 1);
+          if (ADDED.equals(type) && pos2 > pos + 1) {
+            waiting.put(line.substring(pos + 1, pos2), line.substring(pos2 + 1));
+          } else if (DONE.equals(type)) {
+            waiting.remove(line.substring(pos + 1));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to read outbox journal {}", journalFile.getAbsolutePath(), e);
+    }
+    journalLines = lines;
+
+    for (Map.Entry<String, String> w : waiting.entrySet()) {
+      if (w.getValue().startsWith(FILE_REF)) {
+        final File file = new File(w.getValue().substring(FILE_REF.length()));
+        if (file.exists()) {
+          final Bundle message = new Bundle();
+          message.setId(w.getKey());
+          message.setUserData(ResultSender.ENCODED_MESSAGE, file);
+          final OutboxEntry entry = new OutboxEntry(w.getKey(), message, w.getValue());
+          entries.put(entry.key, entry);
+          readyQueue.add(entry);
+        } else {
+          LOG.warn("Skipping message {} in outbox journal, {} not found",
+              w.getKey(), file.getAbsolutePath());
+        }
+        continue;
+      }
+      try {
+        final IBaseResource r = fhirContext.newJsonParser().parseResource(w.getValue());
+        final OutboxEntry entry = new OutboxEntry(w.getKey(), (Bundle) r, w.getValue());
+        entries.put(entry.key, entry);
+        readyQueue.add(entry);
+      } catch (RuntimeException e) {
+        // e.g., partial line written when the process was stopped
+        LOG.warn("Skipping unreadable message {} in outbox journal", w.getKey());
+      }
+    }
+    LOG.info("Loaded {} waiting messages from {}", entries.size(),
+        journalFile.getAbsolutePath());
+
+    if (journalLines > entries.size()) {
+      compactJournal();
+    }
+  }
+
+  /**
+   * Appends a record to the journal, compacting the journal when most of its
+   * lines refer to messages no longer waiting.
+   */
+  private void appendJournal(String type, OutboxEntry entry) {
+    if (journalFile == null) {
+      return;
+    }
+    if (DONE.equals(type) && journalLines >= MIN_COMPACT_LINES
+        && journalLines >= 2 * entries.size()) {
+      // rewritten journal no longer contains the message
+      compactJournal();
+      return;
+    }
+
+    try {
+      final File parent = journalFile.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists()) {
+        // e.g., the work folder of a fresh install
+        parent.mkdirs();
+      }
+      final FileOutputStream out = new FileOutputStream(journalFile, true);
+      try {
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out,
+            StandardCharsets.UTF_8));
+        w.write(type);
+        w.write(SEPARATOR);
+        w.write(entry.key);
+        if (ADDED.equals(type)) {
+          w.write(SEPARATOR);
+          w.write(entry.encoded);
+        }
+        w.write('\n');
+        w.flush();
+        if (syncJournal) {
+          out.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+      journalLines++;
+    } catch (IOException e) {
+      if (ADDED.equals(type)) {
+        // the caller must know the message may be lost
+        throw new IllegalStateException("Unable to record message "
+            + entry.key + " in " + journalFile.getAbsolutePath(), e);
+      }
+      LOG.error("Unable to record sent message {} in {}", entry.key,
+          journalFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Rewrites the journal with only the waiting messages.
+   */
+  private void compactJournal() {
+    final File parent = journalFile.getAbsoluteFile().getParentFile();
+    try {
+      if (parent != null && !parent.exists()) {
+        parent.mkdirs();
+      }
+      final File tmp = new File(parent, journalFile.getName() + ".tmp");
+      final FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out,
+            StandardCharsets.UTF_8));
+        for (OutboxEntry entry : entries.values()) {
+          w.write(ADDED);
+          w.write(SEPARATOR);
+          w.write(entry.key);
+          w.write(SEPARATOR);
+          w.write(entry.encoded);
+          w.write('\n');
+        }
+        w.flush();
+        if (syncJournal) {
+          out.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), journalFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      journalLines = entries.size();
+      LOG.debug("Compacted {} to {} messages", journalFile.getAbsolutePath(),
+          journalLines);
+    } catch (IOException e) {
+      LOG.error("Unable to compact {}", journalFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return number of messages waiting to be sent
+   */
+  public final synchronized int getPendingMessages() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of messages the server has accepted
+   */
+  public final long getDeliveredMessages() {
+    return deliveredMessages.get();
+  }
+
+  /**
+   * @return number of messages given up on
+   */
+  public final long getAbandonedMessages() {
+    return abandonedMessages.get();
+  }
+
+  /**
+   * @return number of messages dropped because one with the same id was waiting
+   */
+  public final long getDuplicateMessages() {
+    return duplicateMessages.get();
+  }
+
+  /**
+   * @return number of failed attempts scheduled to be retried
+   */
+  public final long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return number of submissions that had to wait for room in the outbox
+   */
+  public final long getBlockedSubmits() {
+    return blockedSubmits.get();
+  }
+
+  /**
+   * @return the resultSender
+   */
+  public final ResultSender getResultSender() {
+    return resultSender;
+  }
+
+  /**
+   * @param resultSender
+   *          sends messages to the FHIR server
+   */
+  public final void setResultSender(ResultSender resultSender) {
+    this.resultSender = resultSender;
+  }
+
+  /**
+   * @return the fhirContext
+   */
+  public final FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  /**
+   * @param fhirContext
+   *          context used to record messages in the journal
+   */
+  public final void setFhirContext(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+  }
+
+  /**
+   * @return the journalFile
+   */
+  public final File getJournalFile() {
+    return journalFile;
+  }
+
+  /**
+   * @param journalFile
+   *          file in which waiting messages are recorded; null to keep them
+   *          in memory only
+   */
+  public final synchronized void setJournalFile(File journalFile) {
+    this.journalFile = journalFile;
+    journalLoaded = false;
+  }
+
+  /**
+   * @return the syncJournal
+   */
+  public final boolean isSyncJournal() {
+    return syncJournal;
+  }
+
+  /**
+   * @param syncJournal
+   *          true to force each journal record to disk before continuing
+   */
+  public final void setSyncJournal(boolean syncJournal) {
+    this.syncJournal = syncJournal;
+  }
+
+  /**
+   * @return the workers
+   */
+  public final int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * @param workers
+   *          number of threads sending messages
+   */
+  public final void setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers must be at least 1");
+    }
+    this.workers = workers;
+  }
+
+  /**
+   * @return the batchSize
+   */
+  public final int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize
+   *          maximum number of ready messages sent together
+   */
+  public final void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * @return the maxPending
+   */
+  public final int getMaxPending() {
+    return maxPending;
+  }
+
+  /**
+   * @param maxPending
+   *          maximum number of waiting messages
+   */
+  public final synchronized void setMaxPending(int maxPending) {
+    this.maxPending = maxPending;
+    notifyAll();
+  }
+
+  /**
+   * @return the initialRetryMillis
+   */
+  public final long getInitialRetryMillis() {
+    return initialRetryMillis;
+  }
+
+  /**
+   * @param initialRetryMillis
+   *          number of milliseconds before the first retry of a message
+   */
+  public final void setInitialRetryMillis(long initialRetryMillis) {
+    this.initialRetryMillis = initialRetryMillis;
+  }
+
+  /**
+   * @return the maxRetryMillis
+   */
+  public final long getMaxRetryMillis() {
+    return maxRetryMillis;
+  }
+
+  /**
+   * @param maxRetryMillis
+   *          longest number of milliseconds between retries of a message
+   */
+  public final void setMaxRetryMillis(long maxRetryMillis) {
+    this.maxRetryMillis = maxRetryMillis;
+  }
+
+  /**
+   * @return the maxAttempts
+   */
+  public final int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @param maxAttempts
+   *          number of attempts after which a message is abandoned; 0 or less
+   *          to keep trying
+   */
+  public final void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+}
@@ -17,23 +17,60 @@
 
 package org.mitre.ptmatchadapter;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.hl7.fhir.instance.model.Bundle;
-import org.mitre.ptmatchadapter.model.ServerAuthorization;
-import org.mitre.ptmatchadapter.util.AuthorizationUtil;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.rest.client.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 /**
+ * Retrieves record match request messages addressed to this adapter.
+ *
+ * <p>
+ * The retriever keeps a cursor: the latest <code>meta.lastUpdated</code> of
+ * the messages it has retrieved. Each search asks for messages updated after
+ * the cursor less {@code overlapMillis}, so a message is fetched again only
+ * when it falls within the overlap; the overlap covers messages the server
+ * makes visible slightly out of timestamp order, and the repeats are removed
+ * by the DuplicateMessageFilter. Before any message has been seen, the search
+ * starts {@code period} milliseconds before the first poll.
+ * </p>
+ *
+ * <p>
+ * Every page of the search result is retrieved and the entries are returned
+ * in a single bundle. The cursor advances only once all pages have been
+ * retrieved; when a {@code cursorFile} is configured, it is saved there and
+ * reloaded on startup.
+ * </p>
+ *
+ * <p>
+ * When a {@code duplicateMessageFilter} is configured, the saved cursor does
+ * not pass a retrieved message until the filter records it as processed, so
+ * the messages that were still queued or running when the adapter stopped are
+ * retrieved again after a restart.
+ * </p>
+ *
  * @author Michael Los, mel@mitre.org
  *
  */
@@ -45,50 +82,59 @@ public class MessageRetriever {
   /** destination uri being sought in the record match request. */
   private String destinationUri;
 
-  /** number of milliseconds back in time for which to ask FHIR Server for messages. */
+  /**
+   * number of milliseconds back in time for which to ask FHIR Server for
+   * messages before the first message is seen.
+   */
   private long period = 30000;
 
-  private SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+  /** number of milliseconds before the cursor at which each search begins. */
+  private long overlapMillis = 5000;
+
+  /** file in which the cursor is recorded; null for memory only. */
+  private File cursorFile;
+
+  /** latest lastUpdated time of a retrieved message; null until known. */
+  private Date cursor;
 
-  private List<ServerAuthorization> serverAuthorizations;
+  private boolean cursorLoaded = false;
+
+  /** cursor last written to the cursor file; -1 when none. */
+  private long savedCursorMillis = -1L;
+
+  /** tells which retrieved messages have been processed; may be null. */
+  private DuplicateMessageFilter duplicateMessageFilter;
+
+  /** ids and lastUpdated times of retrieved messages not yet processed. */
+  private final Map<String, Date> unfinished = new HashMap<String, Date>();
+
+  private SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
 
   /**
    * Initiates a search for record match request messages from the
-   * server configured at destinationUri.
+   * server configured at destinationUri. The client is expected to attach
+   * the server's authorization to the request (see SharedFhirClientFactory).
    * 
-   * @return
+   * @return search results containing the entries of every page retrieved,
+   *         or null when the first page could not be retrieved
    */
-  public Bundle doSearch() {
-    Bundle results = null;
-
-    final ServerAuthorization serverAuthorization =
-        AuthorizationUtil.findServerAuthorization(serverAuthorizations, client.getServerBase());
-
-    BearerTokenAuthInterceptor authInterceptor = null;
-    if (serverAuthorization != null) {
-      // register authorization interceptor with the client
-      LOG.info("assigning bearing token interceptor, {}", serverAuthorization.getAccessToken() );
-      authInterceptor = new BearerTokenAuthInterceptor(serverAuthorization.getAccessToken());
-      client.registerInterceptor(authInterceptor);
+  public synchronized Bundle doSearch() {
+    if (!cursorLoaded) {
+      loadCursor();
     }
-
-    LoggingInterceptor loggingInterceptor = null;
-    if (LOG.isDebugEnabled()) {
-      // Note: Logging Intercepter output is at INFO level and based on
-      // ca.uhn... tree
-      loggingInterceptor = new LoggingInterceptor(true);
-      client.registerInterceptor(loggingInterceptor);
-    }
-
-    final Date d;
-    if (period <= 0) {
-      d = new Date(0); // Use Java Epoch
-    } else {
-      d = new Date(System.currentTimeMillis() - period);
+    if (cursor == null) {
+      if (period <= 0) {
+        cursor = new Date(0); // Use Java Epoch
+      } else {
+        cursor = new Date(currentTimeMillis() - period);
+      }
     }
 
+    Bundle results = null;
     try {
+      final Date d = new Date(Math.max(0L, cursor.getTime() - overlapMillis));
+
       // Prepare search query for messages
       final StringBuilder sb = new StringBuilder(100);
       sb.append("Bundle?message.destination-uri=");
@@ -96,40 +142,193 @@ public class MessageRetriever {
       // the lastUpdated() convenience method uses an operator (from DSTU1) not
       // supported by the Intervention Engine FHIR Server so use 'gt' operator manually
       sb.append("&_lastUpdated=gt");
-      sb.append(df.format(d));
-
-      results = client.search()
-          .byUrl(sb.toString())
-          // .forResource(Bundle.class)
-          // .encodedJson() // results in _format query parameter, which is not
-          // supported by Intervention Engine FHIR Server
-          // .lastUpdated(new DateRangeParam(d, null)) // 2/10/16 - IE FHIR
-          // Server doesn't support date comparison operator
-          // .where((new
-          // StringClientParam(Bundle.SP_TYPE)).matches().value(BundleTypeEnum.MESSAGE.toString()))
-          // .and(Patient.CAREPROVIDER.hasChainedProperty(Organization.NAME.matches().value(destinationUri)))
-          // .and(Patient.CAREPROVIDER.hasChainedProperty(Organization.NAME.matches().value("Health")))
-          .returnBundle(Bundle.class)
-          .execute();
+      sb.append(URLEncoder.encode(df.format(d), "UTF-8"));
 
+      results = search(sb.toString());
+
+      // gather the entries of the remaining pages into the first
+      Bundle page = results;
+      int numPages = 1;
+      while (page != null && page.getLink(Bundle.LINK_NEXT) != null) {
+        page = loadNextPage(page);
+        if (page != null) {
+          numPages++;
+          for (BundleEntryComponent entry : page.getEntry()) {
+            results.addEntry(entry);
+          }
+        }
+      }
+      if (results != null) {
+        results.getLink().remove(results.getLink(Bundle.LINK_NEXT));
+        advanceCursor(results);
+        LOG.debug("retrieved {} messages in {} pages, cursor: {}",
+            results.getEntry().size(), numPages, cursor);
+      }
     } catch (BaseServerResponseException e) {
       LOG.warn(String.format("Error response from server.  code: %d, %s",
           e.getStatusCode(), e.getMessage()));
     } catch (Exception e) {
       LOG.warn(String.format("Unable to retrieve messages: %s", e.getMessage()), e);
-    } finally {
-      if (authInterceptor != null) {
-        // unregister authorization interceptor with the client
-        client.unregisterInterceptor(authInterceptor);
+    }
+
+    return results;
+  }
+
+  /**
+   * Performs the search given by the query.
+   *
+   * @param query
+   *          search url, relative to the client's server base
+   * @return first page of the search results
+   */
+  protected Bundle search(String query) {
+    return client.search()
+        .byUrl(query)
+        // .forResource(Bundle.class)
+        // .encodedJson() // results in _format query parameter, which is not
+        // supported by Intervention Engine FHIR Server
+        // .lastUpdated(new DateRangeParam(d, null)) // 2/10/16 - IE FHIR
+        // Server doesn't support date comparison operator
+        .returnBundle(Bundle.class)
+        .execute();
+  }
+
+  /**
+   * Loads the page that follows the given page.
+   *
+   * @param page
+   *          page that contains a next link
+   * @return the next page
+   */
+  protected Bundle loadNextPage(Bundle page) {
+    return client.loadPage().next(page).execute();
+  }
+
+  /**
+   * Returns the current time. Exists so tests can control the clock.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Moves the cursor to the latest lastUpdated time of the retrieved
+   * messages and saves the cursor, held back to the earliest message that
+   * is not yet processed, when that changes.
+   */
+  private void advanceCursor(Bundle results) {
+    Date latest = cursor;
+    for (BundleEntryComponent entry : results.getEntry()) {
+      final Resource resource = entry.getResource();
+      if (resource != null && resource.hasMeta()) {
+        final Date lastUpdated = resource.getMeta().getLastUpdated();
+        if (lastUpdated != null && lastUpdated.after(latest)) {
+          latest = lastUpdated;
+        }
+        trackUnfinished(resource, lastUpdated);
       }
-      if (loggingInterceptor != null) {
-        client.unregisterInterceptor(loggingInterceptor);
+    }
+    cursor = latest;
+
+    long toSave = cursor.getTime();
+    final Iterator<Map.Entry<String, Date>> iter = unfinished.entrySet().iterator();
+    while (iter.hasNext()) {
+      final Map.Entry<String, Date> entry = iter.next();
+      if (duplicateMessageFilter.isProcessed(entry.getKey())) {
+        iter.remove();
+      } else {
+        // just before the message, so the next search includes it
+        toSave = Math.min(toSave, entry.getValue().getTime() - 1L);
       }
     }
 
-    return results;
+    if (toSave != savedCursorMillis) {
+      saveCursor(toSave);
+    }
+  }
+
+  /**
+   * Remembers the given message until the duplicateMessageFilter records it
+   * as processed.
+   */
+  private void trackUnfinished(Resource resource, Date lastUpdated) {
+    if (duplicateMessageFilter == null || lastUpdated == null) {
+      return;
+    }
+    final String msgId = DuplicateMessageFilter.getMessageId(resource);
+    if (msgId != null && !unfinished.containsKey(msgId)
+        && !duplicateMessageFilter.isProcessed(msgId)) {
+      unfinished.put(msgId, lastUpdated);
+    }
   }
 
+  /**
+   * Reads the cursor from the cursor file, when there is one.
+   */
+  private void loadCursor() {
+    cursorLoaded = true;
+    if (cursorFile == null || !cursorFile.exists()) {
+      return;
+    }
+
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(cursorFile), StandardCharsets.UTF_8));
+      try {
+        final String line = reader.readLine();
+        if (line != null && !line.trim().isEmpty()) {
+          cursor = new Date(Long.parseLong(line.trim()));
+          savedCursorMillis = cursor.getTime();
+          LOG.info("Resuming message retrieval from {}", cursor);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to read message cursor from {}",
+          cursorFile.getAbsolutePath(), e);
+    } catch (NumberFormatException e) {
+      LOG.warn("Ignoring malformed message cursor in {}", cursorFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Replaces the cursor file with one holding the given cursor.
+   */
+  private void saveCursor(long cursorMillis) {
+    savedCursorMillis = cursorMillis;
+    if (cursorFile == null) {
+      return;
+    }
+    final File parent = cursorFile.getAbsoluteFile().getParentFile();
+    try {
+      if (parent != null && !parent.exists()) {
+        parent.mkdirs();
+      }
+      final File tmp = new File(parent, cursorFile.getName() + ".tmp");
+      final Writer w = new OutputStreamWriter(new FileOutputStream(tmp),
+          StandardCharsets.UTF_8);
+      try {
+        w.write(Long.toString(cursorMillis));
+        w.write('\n');
+      } finally {
+        w.close();
+      }
+      Files.move(tmp.toPath(), cursorFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.error("Unable to save message cursor to {}",
+          cursorFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return latest lastUpdated time of a retrieved message; null before the
+   *         first search
+   */
+  public final synchronized Date getCursor() {
+    return cursor != null ? new Date(cursor.getTime()) : null;
+  }
   
   /**
    * @return the desinationUri
@@ -172,25 +371,62 @@ public class MessageRetriever {
   /**
    * @param period
    *          number of milliseconds back in time for which to ask for messages
+   *          before any message has been retrieved
    */
   public final void setPeriod(long period) {
     this.period = period;
   }
 
+  /**
+   * @return the overlapMillis
+   */
+  public final long getOverlapMillis() {
+    return overlapMillis;
+  }
+
+  /**
+   * @param overlapMillis
+   *          number of milliseconds before the cursor at which each search
+   *          begins
+   */
+  public final void setOverlapMillis(long overlapMillis) {
+    this.overlapMillis = overlapMillis;
+  }
 
   /**
-   * @return the serverAuthorizations
+   * @return the cursorFile
    */
-  public final List<ServerAuthorization> getServerAuthorizations() {
-    return serverAuthorizations;
+  public final File getCursorFile() {
+    return cursorFile;
   }
 
+  /**
+   * @param cursorFile
+   *          file in which the cursor is recorded; null to keep it in memory
+   *          only
+   */
+  public final synchronized void setCursorFile(File cursorFile) {
+    this.cursorFile = cursorFile;
+    cursorLoaded = false;
+  }
 
   /**
-   * @param serverAuthorizations the serverAuthorizations to set
+   * @return the duplicateMessageFilter
    */
-  public final void setServerAuthorizations(
-      List<ServerAuthorization> serverAuthorizations) {
-    this.serverAuthorizations = serverAuthorizations;
+  public final synchronized DuplicateMessageFilter getDuplicateMessageFilter() {
+    return duplicateMessageFilter;
   }
+
+  /**
+   * @param duplicateMessageFilter
+   *          filter that records which retrieved messages have been
+   *          processed; null to save the cursor as soon as messages are
+   *          retrieved
+   */
+  public final synchronized void setDuplicateMessageFilter(
+      DuplicateMessageFilter duplicateMessageFilter) {
+    this.duplicateMessageFilter = duplicateMessageFilter;
+    unfinished.clear();
+  }
+
 }
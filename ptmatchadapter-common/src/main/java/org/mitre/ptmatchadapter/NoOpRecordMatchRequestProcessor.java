@@ -37,7 +37,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.rest.client.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
@@ -116,11 +115,6 @@ public class NoOpRecordMatchRequestProcessor {
           return;
         }
 
-        LoggingInterceptor loggingInterceptor = null;
-        if (LOG.isDebugEnabled()) {
-          loggingInterceptor = new LoggingInterceptor(true);
-          fhirRestClient.registerInterceptor(loggingInterceptor);
-        }
         try {
           // Retrieve the data associated with the search urls
           final Bundle masterSetResults = fhirRestClient.search()
@@ -140,10 +134,6 @@ public class NoOpRecordMatchRequestProcessor {
         } catch (Exception e) {
           LOG.warn(String.format("Unable to retrieve messages: %s", e.getMessage()),
               e);
-        } finally {
-          if (loggingInterceptor != null) {
-            fhirRestClient.unregisterInterceptor(loggingInterceptor);
-          }
         }
 
         final BasicRecordMatchResultsBuilder builder = new BasicRecordMatchResultsBuilder(
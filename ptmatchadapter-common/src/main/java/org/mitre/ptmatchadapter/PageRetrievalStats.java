@@ -0,0 +1,123 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+/**
+ * Page-level throughput figures for a single paged search retrieval.
+ *
+ * <p>
+ * Fetch time is spent on the prefetch thread waiting for the FHIR server.
+ * Handle time is spent on the caller's thread converting and writing pages.
+ * Wait time is the portion of the caller's time spent blocked because the
+ * next page had not yet arrived; when it is small relative to the fetch time,
+ * network and disk work are overlapping as intended.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PageRetrievalStats {
+  private int pages;
+  private int records;
+  private long fetchNanos;
+  private long handleNanos;
+  private long waitNanos;
+  private long elapsedNanos;
+
+  final void pageFetched(long nanos) {
+    fetchNanos += nanos;
+  }
+
+  final void pageHandled(int numRecords, long nanos) {
+    pages++;
+    records += numRecords;
+    handleNanos += nanos;
+  }
+
+  final void waited(long nanos) {
+    waitNanos += nanos;
+  }
+
+  final void finished(long nanos) {
+    elapsedNanos = nanos;
+  }
+
+  /**
+   * @return number of pages handed to the page handler
+   */
+  public final int getPages() {
+    return pages;
+  }
+
+  /**
+   * @return number of records reported by the page handler
+   */
+  public final int getRecords() {
+    return records;
+  }
+
+  /**
+   * @return milliseconds spent loading pages from the server
+   */
+  public final long getFetchMillis() {
+    return fetchNanos / 1000000L;
+  }
+
+  /**
+   * @return milliseconds spent converting and storing pages
+   */
+  public final long getHandleMillis() {
+    return handleNanos / 1000000L;
+  }
+
+  /**
+   * @return milliseconds the page handler sat idle waiting for a page
+   */
+  public final long getWaitMillis() {
+    return waitNanos / 1000000L;
+  }
+
+  /**
+   * @return wall-clock milliseconds for the whole retrieval
+   */
+  public final long getElapsedMillis() {
+    return elapsedNanos / 1000000L;
+  }
+
+  /**
+   * @return pages handled per second of wall-clock time
+   */
+  public final double getPagesPerSecond() {
+    return elapsedNanos > 0 ? pages * 1.0e9 / elapsedNanos : 0.;
+  }
+
+  /**
+   * @return records handled per second of wall-clock time
+   */
+  public final double getRecordsPerSecond() {
+    return elapsedNanos > 0 ? records * 1.0e9 / elapsedNanos : 0.;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "pages: %d, records: %d, elapsed: %d ms, fetch: %d ms, handle: %d ms, "
+            + "wait: %d ms, %.1f pages/s, %.1f records/s",
+        pages, records, getElapsedMillis(), getFetchMillis(), getHandleMillis(),
+        getWaitMillis(), getPagesPerSecond(), getRecordsPerSecond());
+  }
+}
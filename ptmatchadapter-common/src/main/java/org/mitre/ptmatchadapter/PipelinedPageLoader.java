@@ -0,0 +1,288 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.IGenericClient;
+
+/**
+ * Walks the pages of a search result, loading page N+1 on a background thread
+ * while the caller processes page N.
+ *
+ * <p>
+ * Loaded pages are handed to the caller through a bounded queue, so no more
+ * than {@code prefetchPages} pages are held in memory ahead of the page
+ * handler. Pages are always handed to the handler on the calling thread and
+ * in server order, so output written by the handler is the same as when the
+ * pages are loaded one at a time.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PipelinedPageLoader {
+  private static final Logger LOG = LoggerFactory.getLogger(PipelinedPageLoader.class);
+
+  private static final AtomicInteger THREAD_NUM = new AtomicInteger();
+
+  private IGenericClient client;
+
+  /** maximum number of loaded pages waiting for the page handler. */
+  private int prefetchPages = 2;
+
+  // cumulative counters across all retrievals performed by this loader
+  private final AtomicLong totalPages = new AtomicLong();
+  private final AtomicLong totalRecords = new AtomicLong();
+  private final AtomicLong totalFetchMillis = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+
+  /**
+   * Receives each page of a search result.
+   */
+  public interface PageHandler {
+    /**
+     * @param page
+     *          page of search results
+     * @param pageNum
+     *          zero-based position of the page in the result set
+     * @return number of records consumed from the page
+     * @throws IOException
+     *           when the page could not be stored
+     */
+    int handlePage(Bundle page, int pageNum) throws IOException;
+  }
+
+  /**
+   * Hands the given page and every page that follows it to the page handler.
+   * The pages after the first are loaded by a prefetch thread.
+   *
+   * @param firstPage
+   *          first page of a search result
+   * @param handler
+   *          receives each page, in order, on the calling thread
+   * @return throughput figures for the retrieval
+   * @throws IOException
+   *           thrown by the page handler
+   * @throws RuntimeException
+   *           thrown while loading a page (e.g., a server error response)
+   */
+  public PageRetrievalStats processPages(Bundle firstPage, PageHandler handler)
+      throws IOException {
+    final PageRetrievalStats stats = new PageRetrievalStats();
+    final long start = System.nanoTime();
+
+    final PageFetcher fetcher = new PageFetcher(firstPage,
+        new ArrayBlockingQueue<PageSlot>(Math.max(1, prefetchPages)));
+    final Thread fetchThread = new Thread(fetcher,
+        "page-prefetch-" + THREAD_NUM.incrementAndGet());
+    fetchThread.setDaemon(true);
+    fetchThread.start();
+
+    boolean completed = false;
+    try {
+      int pageNum = 0;
+      Bundle page = firstPage;
+      while (page != null) {
+        long t0 = System.nanoTime();
+        final int numRecords = handler.handlePage(page, pageNum++);
+        stats.pageHandled(numRecords, System.nanoTime() - t0);
+
+        t0 = System.nanoTime();
+        final PageSlot slot = fetcher.queue.take();
+        stats.waited(System.nanoTime() - t0);
+
+        if (slot.failure instanceof RuntimeException) {
+          throw (RuntimeException) slot.failure;
+        }
+        if (slot.failure != null) {
+          throw (Error) slot.failure;
+        }
+        if (slot == PageSlot.END) {
+          stats.pageFetched(fetcher.fetchNanos);
+        }
+        page = slot.page;
+      }
+      completed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for next page", e);
+    } finally {
+      if (!completed) {
+        // stop loading pages no one will consume
+        fetcher.cancelled = true;
+        fetchThread.interrupt();
+      }
+    }
+
+    stats.finished(System.nanoTime() - start);
+
+    totalPages.addAndGet(stats.getPages());
+    totalRecords.addAndGet(stats.getRecords());
+    totalFetchMillis.addAndGet(stats.getFetchMillis());
+    totalWaitMillis.addAndGet(stats.getWaitMillis());
+
+    LOG.debug("paged retrieval complete, {}", stats);
+    return stats;
+  }
+
+  /**
+   * Loads the page that follows the given page.
+   *
+   * @param page
+   *          page that contains a next link
+   * @return the next page
+   */
+  protected Bundle loadNextPage(Bundle page) {
+    return client.loadPage().next(page).execute();
+  }
+
+  /**
+   * Unit of hand-off between the prefetch thread and the page handler.
+   */
+  private static final class PageSlot {
+    static final PageSlot END = new PageSlot(null, null);
+
+    final Bundle page;
+    /** a RuntimeException or Error thrown while loading the next page. */
+    final Throwable failure;
+
+    PageSlot(Bundle page, Throwable failure) {
+      this.page = page;
+      this.failure = failure;
+    }
+  }
+
+  /**
+   * Follows next links, placing each page on the queue. The queue's capacity
+   * bounds how far ahead of the page handler the fetcher may run.
+   */
+  private final class PageFetcher implements Runnable {
+    private final Bundle firstPage;
+    private final BlockingQueue<PageSlot> queue;
+    private volatile boolean cancelled = false;
+    /** written only by the fetch thread; read after END is taken. */
+    private long fetchNanos;
+
+    PageFetcher(Bundle firstPage, BlockingQueue<PageSlot> queue) {
+      this.firstPage = firstPage;
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Bundle page = firstPage;
+        while (!cancelled && page != null
+            && page.getLink(Bundle.LINK_NEXT) != null) {
+          final long t0 = System.nanoTime();
+          page = loadNextPage(page);
+          fetchNanos += System.nanoTime() - t0;
+          if (page != null) {
+            queue.put(new PageSlot(page, null));
+          }
+        }
+        queue.put(PageSlot.END);
+      } catch (InterruptedException e) {
+        // consumer gave up; nothing left to do
+        LOG.debug("page prefetch interrupted");
+      } catch (RuntimeException e) {
+        LOG.warn("Unable to load next page: {}", e.getMessage());
+        fail(e);
+      } catch (Error e) {
+        // e.g., OutOfMemoryError on a large page; the consumer must not wait
+        // for a page that will never come
+        LOG.error("Unable to load next page", e);
+        fail(e);
+      }
+    }
+
+    private void fail(Throwable failure) {
+      try {
+        queue.put(new PageSlot(null, failure));
+      } catch (InterruptedException ie) {
+        // consumer gave up; nothing left to do
+      }
+    }
+  }
+
+  /**
+   * @return total number of pages handled by this loader
+   */
+  public final long getTotalPages() {
+    return totalPages.get();
+  }
+
+  /**
+   * @return total number of records handled by this loader
+   */
+  public final long getTotalRecords() {
+    return totalRecords.get();
+  }
+
+  /**
+   * @return total milliseconds spent loading pages
+   */
+  public final long getTotalFetchMillis() {
+    return totalFetchMillis.get();
+  }
+
+  /**
+   * @return total milliseconds page handlers spent waiting for a page
+   */
+  public final long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  /**
+   * @return the client
+   */
+  public final IGenericClient getClient() {
+    return client;
+  }
+
+  /**
+   * @param client
+   *          the client to set
+   */
+  public final void setClient(IGenericClient client) {
+    this.client = client;
+  }
+
+  /**
+   * @return the prefetchPages
+   */
+  public final int getPrefetchPages() {
+    return prefetchPages;
+  }
+
+  /**
+   * @param prefetchPages
+   *          maximum number of loaded pages waiting to be handled
+   */
+  public final void setPrefetchPages(int prefetchPages) {
+    this.prefetchPages = prefetchPages;
+  }
+}
@@ -0,0 +1,996 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.hl7.fhir.instance.model.Parameters;
+import org.hl7.fhir.instance.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.PrimitiveType;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ResourceType;
+import org.hl7.fhir.instance.model.Type;
+import org.mitre.ptmatchadapter.format.SimplePatientCsvFormat;
+import org.mitre.ptmatchadapter.match.BlockingIndex;
+import org.mitre.ptmatchadapter.match.CachedRecordSet;
+import org.mitre.ptmatchadapter.match.MatchPairs;
+import org.mitre.ptmatchadapter.match.MatchRecords;
+import org.mitre.ptmatchadapter.match.PatientBlocker;
+import org.mitre.ptmatchadapter.match.ProbabilisticMatcher;
+import org.mitre.ptmatchadapter.match.RecordSetCache;
+import org.mitre.ptmatchadapter.recordmatch.LinkedRecordResultsBuilder;
+import org.mitre.ptmatchadapter.util.ParametersUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Processes record-match requests in memory, without an external record
+ * matching system. The records of the master set and, for a linkage request,
+ * of the query set are retrieved, blocked by a {@link PatientBlocker} and the
+ * candidate pairs scored by a {@link ProbabilisticMatcher}. Each match is
+ * reported as a linked record of the response, graded with the
+ * patient-mpi-match extension.
+ *
+ * <p>
+ * Only the values of the compared columns and the blocking keys of each
+ * record are kept while the records are retrieved, and the matches found are
+ * kept as pairs of record positions. When {@code resultsDir} is set, the
+ * response is written to a file there one linked record at a time, and the
+ * Bundle returned holds only the message header, outcome and parameters, with
+ * the file as its {@link ResultSender#ENCODED_MESSAGE} user data, so that a
+ * set of a million records may be deduplicated in a couple of gigabytes of
+ * heap. Such a response is to be sent by a {@link DurableOutbox} or a
+ * {@link ResultSender}, which send the file.
+ * </p>
+ *
+ * <p>
+ * With a {@link RecordSetCache}, the master set of each search is kept
+ * between requests, so that a test harness sending many linkages against the
+ * same master set has only the updated master records and the query set
+ * retrieved for each. The matches of a deduplication are kept with the
+ * master set, and a later deduplication of the set scores only the pairs of
+ * the records added or changed since, told by their version ids.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ProbabilisticRecordMatchRequestProcessor {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(ProbabilisticRecordMatchRequestProcessor.class);
+
+  private ProducerTemplate producer;
+
+  private IGenericClient fhirRestClient;
+
+  private String producerEndpointUri;
+
+  /** Loads the next page of search results while the current one is stored. */
+  private final PipelinedPageLoader pageLoader = new PipelinedPageLoader();
+
+  /** Computes the blocking keys of the records. */
+  private PatientBlocker blocker = new PatientBlocker();
+
+  /** Scores candidate pairs. */
+  private ProbabilisticMatcher matcher = new ProbabilisticMatcher();
+
+  /** Keeps master record sets between requests; null to retrieve each time. */
+  private RecordSetCache recordCache;
+
+  /** folder in which responses are written; null to build them in memory. */
+  private String resultsDir;
+
+  /** true to score only the pairs of changed records of a cached master set. */
+  private boolean incrementalDedupe = true;
+
+  /**
+   * lock of each cached master set, by cache key; held while the set is
+   * brought up to date and matched, so requests for other sets need not wait.
+   */
+  private final ConcurrentMap<String, ReentrantLock> masterSetLocks =
+      new ConcurrentHashMap<String, ReentrantLock>();
+
+  private static final String MASTER = "master";
+  private static final String QUERY = "query";
+  private static final String RESOURCE_TYPE = "resourceType";
+  private static final String SEARCH_EXPR = "searchExpression";
+  private static final String RESOURCE_URL = "resourceUrl";
+
+  private static final String LAST_UPDATED = "_lastUpdated";
+  private static final String ELEMENTS = "_elements";
+
+  private static final char SLASH = '/';
+
+  public void process(Bundle bundle) {
+    sendResponse(bundle, buildResponse(bundle));
+  }
+
+  /**
+   * Performs the record match operation for the given request and returns the
+   * response message. Errors are reported in the response rather than thrown.
+   *
+   * @param bundle
+   *          record match request message
+   * @return response message or null when no response could be built
+   */
+  protected Bundle buildResponse(Bundle bundle) {
+    if (!BundleType.MESSAGE.equals(bundle.getType())) {
+      final String errMsg = "Unsupported Bundle type: " + bundle.getType();
+      LOG.info("{} msgId: {}", errMsg, bundle.getId());
+      return buildErrorResponse(bundle, errMsg);
+    }
+
+    final List<BundleEntryComponent> bundleEntries = bundle.getEntry();
+    try {
+      // The first entry is supposed to be the MessageHeader
+      // This will force an exception if not true.
+      final MessageHeader msgHdr = (MessageHeader) bundleEntries.get(0)
+          .getResource();
+      LOG.trace("msg hdr id {}", msgHdr.getId());
+
+      String masterSearchUrl = null;
+      String querySearchUrl = null;
+      String masterServerBase = null;
+      String queryServerBase = null;
+      String resourceType = "Patient";
+
+      // Find the Parameters resources that contain the search parameters
+      // and use those to construct search Urls
+      for (BundleEntryComponent entry : bundleEntries) {
+        Resource r = entry.getResource();
+        if (ResourceType.Parameters.equals(r.getResourceType())) {
+          Parameters params = (Parameters) r;
+          List<ParametersParameterComponent> paramList = params.getParameter();
+          ParametersParameterComponent p = ParametersUtil.findByName(paramList,
+              RESOURCE_TYPE);
+          if (p != null) {
+            resourceType = valueOf(p);
+          }
+          p = ParametersUtil.findByName(paramList, "type");
+          if (p != null) {
+            String val = valueOf(p);
+            if (val.equalsIgnoreCase(MASTER)) {
+              masterSearchUrl = buildSearchUrl(params);
+              masterServerBase = getServerBase(resourceType, params);
+            } else if (val.equalsIgnoreCase(QUERY)) {
+              querySearchUrl = buildSearchUrl(params);
+              queryServerBase = getServerBase(resourceType, params);
+            }
+          }
+        }
+      }
+
+      if (masterSearchUrl == null) {
+        final String errMsg = "Required Parameter for master record set is missing, bundle: "
+            + bundle.getId();
+        LOG.warn(errMsg);
+        return buildErrorResponse(bundle, errMsg);
+      }
+
+      final boolean incremental = querySearchUrl == null
+          && recordCache != null && incrementalDedupe;
+      final ReentrantLock lock = incremental ? masterSetLock(
+          RecordSetCache.key(masterServerBase, masterSearchUrl)) : null;
+      if (lock != null) {
+        // one request at a time brings a master set and its matches up to
+        // date
+        lock.lock();
+      }
+      try {
+        return matchRecordSets(bundle, masterSearchUrl, masterServerBase,
+            querySearchUrl, queryServerBase, incremental);
+      } finally {
+        if (lock != null) {
+          lock.unlock();
+        }
+      }
+
+    } catch (Exception e) {
+      LOG.error("Processing bundle: {}", bundle.getId(), e);
+      return buildErrorResponse(bundle, "Unexpected Error");
+    }
+  }
+
+  /**
+   * Retrieves the records of the master set and, for a linkage, the query
+   * set, and builds the response reporting the matches among them.
+   *
+   * @param incremental
+   *          true to deduplicate the cached master set by scoring only the
+   *          pairs of the records added or changed since the last
+   *          deduplication
+   * @return response message or null when no response could be built
+   * @throws IOException
+   *           when the response could not be built
+   * @throws InterruptedException
+   *           when interrupted while the pairs are scored
+   */
+  private Bundle matchRecordSets(Bundle bundle, String masterSearchUrl,
+      String masterServerBase, String querySearchUrl, String queryServerBase,
+      boolean incremental) throws IOException, InterruptedException {
+    final MatchRecords records = newRecords();
+    CachedRecordSet masterSet = null;
+    final int numMasterRecs;
+    try {
+      if (incremental) {
+        masterSet = retrieveMasterSet(masterSearchUrl, masterServerBase);
+        numMasterRecs = masterSet.getRecords().size();
+      } else {
+        numMasterRecs = retrieveMasterRecords(masterSearchUrl,
+            masterServerBase, records);
+        if (querySearchUrl != null) {
+          retrieveRecords(querySearchUrl, queryServerBase, records);
+        }
+      }
+    } catch (BaseServerResponseException e) {
+      final String errMsg = String.format(
+          "Error response from server.  code: %d, %s", e.getStatusCode(),
+          e.getMessage());
+      LOG.warn(errMsg);
+      return buildErrorResponse(bundle, errMsg);
+    } catch (Exception e) {
+      final String errMsg = String.format("Unable to retrieve messages: %s",
+          e.getMessage());
+      LOG.warn(errMsg, e);
+      return buildErrorResponse(bundle, errMsg);
+    }
+
+    if (numMasterRecs == 0) {
+      final LinkedRecordResultsBuilder respBuilder = new LinkedRecordResultsBuilder(
+          bundle, ResponseType.OK);
+      respBuilder.outcomeDetailText("No Records Found in Master Record Set");
+      return respBuilder.build();
+    }
+
+    final MatchPairs matches;
+    if (masterSet != null) {
+      matches = findMatches(
+          RecordSetCache.key(masterServerBase, masterSearchUrl), masterSet);
+    } else {
+      matches = new MatchPairs();
+      findMatches(records,
+          querySearchUrl != null ? numMasterRecs : records.size(), matches);
+    }
+    LOG.info("Number of Matches: {}", matches.size());
+
+    final MatchResultsBuilder respBuilder = new MatchResultsBuilder(bundle,
+        masterSet != null ? masterSet.getRecords() : records, matches);
+    respBuilder.outcomeDetailText(matches.size() == 0 ? "No Matches Found"
+        : querySearchUrl != null ? "Linkage Complete"
+            : "Deduplication Complete");
+    return buildResults(respBuilder);
+  }
+
+  /**
+   * Builds a response with the linked records found. When a results folder
+   * is configured, the response is written to a file in it, and the Bundle
+   * returned holds only the message header, outcome and parameters, with the
+   * file as its {@link ResultSender#ENCODED_MESSAGE} user data.
+   */
+  private Bundle buildResults(LinkedRecordResultsBuilder respBuilder)
+      throws IOException {
+    if (resultsDir == null || resultsDir.isEmpty()) {
+      return respBuilder.build();
+    }
+
+    final File dir = new File(resultsDir);
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+    final File file = File.createTempFile("results-", ".json", dir);
+    boolean written = false;
+    try {
+      final Bundle response = respBuilder.writeTo(file,
+          fhirRestClient.getFhirContext());
+      response.setUserData(ResultSender.ENCODED_MESSAGE, file);
+      written = true;
+      LOG.info("Wrote results message {}, {} bytes", response.getId(),
+          file.length());
+      return response;
+    } finally {
+      if (!written && !file.delete()) {
+        LOG.warn("Unable to delete {}", file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Reports each match, a pair of record positions, as a linked record,
+   * reading the fullUrls of the records only as each entry is built.
+   */
+  private static final class MatchResultsBuilder
+      extends LinkedRecordResultsBuilder {
+    private final MatchRecords records;
+    private final MatchPairs matches;
+
+    MatchResultsBuilder(Bundle requestMsg, MatchRecords records,
+        MatchPairs matches) {
+      super(requestMsg, ResponseType.OK);
+      this.records = records;
+      this.matches = matches;
+    }
+
+    @Override
+    protected void forEachLinkedRecord(LinkedRecordHandler handler)
+        throws IOException {
+      super.forEachLinkedRecord(handler);
+      for (int i = 0; i < matches.size(); i++) {
+        // the master record, or the first of the duplicates, is the
+        // reference record
+        handler.linkedRecord(records.getFullUrl(matches.getLeft(i)),
+            records.getFullUrl(matches.getRight(i)), matches.getScore(i));
+      }
+    }
+  }
+
+  /**
+   * Scores the candidate pairs of the records and adds each match to the
+   * given matches.
+   *
+   * @param records
+   *          records retrieved
+   * @param firstQueryRecord
+   *          position of the first record of the query set; records.size()
+   *          to deduplicate the records
+   * @param matches
+   *          receives the matches found
+   * @return number of matches found
+   * @throws InterruptedException
+   *           when interrupted while the pairs are scored
+   */
+  protected long findMatches(MatchRecords records, int firstQueryRecord,
+      MatchPairs matches) throws InterruptedException {
+    final long start = System.currentTimeMillis();
+    final BlockingIndex index = records.index(blocker.getMaxBlockSize());
+    LOG.info("indexed {} records, {} bytes, {} ms", records.size(),
+        index.getMemoryBytes(), System.currentTimeMillis() - start);
+
+    return matcher.match(records, index, firstQueryRecord, matches);
+  }
+
+  /**
+   * Deduplicates a cached master set and returns the matches found. The
+   * matches of the last deduplication of the set are kept for the records
+   * unchanged since, and only the candidate pairs of the records added or
+   * changed since are scored; every pair is scored when the set has not
+   * been deduplicated with the current settings, or when a block may have
+   * crossed the maximum block size.
+   *
+   * @param key
+   *          key of the master set in the record cache
+   * @param masterSet
+   *          master set, brought up to date
+   * @return the matches among the records of the master set
+   * @throws InterruptedException
+   *           when interrupted while the pairs are scored
+   */
+  protected MatchPairs findMatches(String key, CachedRecordSet masterSet)
+      throws InterruptedException {
+    final MatchRecords records = masterSet.getRecords();
+    final long start = System.currentTimeMillis();
+    // kept with the set, so built only when its records have changed
+    final BlockingIndex index = masterSet.getIndex(blocker.getMaxBlockSize());
+    LOG.info("index of {} records, {} bytes, {} ms", records.size(),
+        index.getMemoryBytes(), System.currentTimeMillis() - start);
+
+    final String settings = matcher.getSettings() + ';'
+        + blocker.getMaxBlockSize();
+    final MatchPairs matches;
+    if (masterSet.isRematchable(settings, index)) {
+      matches = masterSet.getMatches().without(masterSet.getUnmatched());
+      LOG.info("kept {} of {} matches of {}", matches.size(),
+          masterSet.getMatches().size(), key);
+      matcher.rematch(records, index, masterSet.getUnmatched(), matches);
+    } else {
+      matches = new MatchPairs();
+      matcher.match(records, index, records.size(), matches);
+    }
+    masterSet.setMatches(settings, matches);
+    recordCache.put(key, masterSet);
+    return matches;
+  }
+
+  /**
+   * @return an empty set of records with the columns the matcher compares
+   */
+  protected MatchRecords newRecords() {
+    return new MatchRecords(newFormat().getColumnNames(),
+        blocker.getPasses().length);
+  }
+
+  /**
+   * @return format of the values of the columns the matcher compares
+   */
+  protected SimplePatientCsvFormat newFormat() {
+    final SimplePatientCsvFormat format = new SimplePatientCsvFormat();
+    format.setColumns(matcher.getColumns());
+    return format;
+  }
+
+  /**
+   * Adds the records of the master record set. When a record cache is set,
+   * a set retrieved by an earlier request is brought up to date by
+   * retrieving only the records updated since, and the whole set is
+   * retrieved only the first time or once the cached set has expired.
+   *
+   * @param searchUrl
+   *          search url of the master record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param records
+   *          records to which the master records are added
+   * @return number of master records
+   * @throws IOException
+   *           when the records could not be stored
+   */
+  protected int retrieveMasterRecords(String searchUrl, String serverBase,
+      MatchRecords records) throws IOException {
+    if (recordCache == null) {
+      return retrieveRecords(searchUrl, serverBase, records);
+    }
+
+    final ReentrantLock lock = masterSetLock(
+        RecordSetCache.key(serverBase, searchUrl));
+    lock.lock();
+    try {
+      final CachedRecordSet masterSet = retrieveMasterSet(searchUrl,
+          serverBase);
+      records.addAll(masterSet.getRecords());
+      return masterSet.getRecords().size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param key
+   *          cache key of a master set
+   * @return the lock held while the master set is brought up to date
+   */
+  private ReentrantLock masterSetLock(String key) {
+    ReentrantLock lock = masterSetLocks.get(key);
+    if (lock == null) {
+      lock = new ReentrantLock();
+      final ReentrantLock existing = masterSetLocks.putIfAbsent(key, lock);
+      if (existing != null) {
+        lock = existing;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Brings the cached master set of a search up to date, retrieving only the
+   * records updated since the set was last retrieved, or every record the
+   * first time or once the set has expired. Since a search for updated
+   * records does not return deleted records, the ids of every record of the
+   * search are retrieved too, and the records no longer among them are
+   * dropped with their matches. Called holding the lock of the master set.
+   *
+   * @param searchUrl
+   *          search url of the master record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @return the master set
+   * @throws IOException
+   *           when the records could not be stored
+   */
+  protected CachedRecordSet retrieveMasterSet(String searchUrl,
+      String serverBase) throws IOException {
+    final String key = RecordSetCache.key(serverBase, searchUrl);
+    final String schema = getSchema();
+    final long start = System.currentTimeMillis();
+    CachedRecordSet cached = recordCache.get(key, schema);
+    if (cached == null || recordCache.isExpired(cached, start)) {
+      final MatchRecords master = newRecords();
+      retrieveRecords(searchUrl, serverBase, master);
+      if (cached == null) {
+        cached = new CachedRecordSet(schema, master, start);
+      } else {
+        final int before = cached.getRecords().size();
+        cached = cached.reload(master, start);
+        LOG.info("{} records of {} retrieved again, {} before, {} new or changed",
+            master.size(), key, before, cached.getUnmatched().cardinality());
+      }
+    } else {
+      final String since = Instant
+          .ofEpochMilli(recordCache.getUpdatedSince(cached)).toString();
+      // ids first, so that a record created in between is not dropped
+      final Set<String> fullUrls = retrieveFullUrls(searchUrl, serverBase);
+      final MatchRecords updated = newRecords();
+      retrieveRecords(searchUrl + (searchUrl.indexOf('?') < 0 ? '?' : '&')
+          + LAST_UPDATED + "=ge" + since, serverBase, updated);
+      final int before = cached.getRecords().size();
+      cached = cached.retain(fullUrls);
+      final int numDropped = before - cached.getRecords().size();
+      final int numChanged = cached.update(updated, start);
+      LOG.info(
+          "{} records of {} updated since {}, {} new or changed, {} dropped",
+          updated.size(), key, since, numChanged, numDropped);
+    }
+    recordCache.put(key, cached);
+    return cached;
+  }
+
+  /**
+   * @return the columns and blocking passes with which record values and
+   *         keys are computed
+   */
+  private String getSchema() {
+    final StringBuilder schema = new StringBuilder(200);
+    for (String column : newFormat().getColumnNames()) {
+      schema.append(column).append(',');
+    }
+    schema.append(';');
+    for (String pass : blocker.getPasses()) {
+      schema.append(pass.trim()).append(',');
+    }
+    return schema.toString();
+  }
+
+  /**
+   * Invokes the given search Url and adds the records of every page of the
+   * results.
+   *
+   * @param searchUrl
+   *          search url of the record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @param records
+   *          records to which the patients found are added
+   * @return number of records retrieved
+   * @throws IOException
+   *           when the records could not be stored
+   */
+  protected int retrieveRecords(String searchUrl, final String serverBase,
+      final MatchRecords records) throws IOException {
+    final String url = urlEncodeQueryParams(searchUrl);
+    LOG.info("retrieveRecords, serverBase: {}  searchUrl: {} encoded query: {}",
+        serverBase, searchUrl, url);
+
+    // Perform a search
+    final Bundle searchResults = fhirRestClient.search().byUrl(url)
+        .returnBundle(Bundle.class).execute();
+
+    final SearchResultSplitter resultSplitter = new SearchResultSplitter();
+    final SimplePatientCsvFormat format = newFormat();
+    final PageRetrievalStats stats = pageLoader.processPages(searchResults,
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            final List<Resource> resources = resultSplitter.splitBundle(page);
+            addRecords(records, resources, serverBase, format);
+            return resources.size();
+          }
+        });
+    LOG.info("retrieved {} records, {}", stats.getRecords(), stats);
+    return stats.getRecords();
+  }
+
+  /**
+   * Invokes the given search Url asking for only the ids of the records, and
+   * returns the fullUrl of every record of the results.
+   *
+   * @param searchUrl
+   *          search url of the record set
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   * @return fullUrl of every record found
+   * @throws IOException
+   *           when interrupted while the pages are retrieved
+   */
+  protected Set<String> retrieveFullUrls(String searchUrl,
+      final String serverBase) throws IOException {
+    final String url = urlEncodeQueryParams(searchUrl
+        + (searchUrl.indexOf('?') < 0 ? '?' : '&') + ELEMENTS + "=id");
+    LOG.info("retrieveFullUrls, serverBase: {}  searchUrl: {} encoded query: {}",
+        serverBase, searchUrl, url);
+
+    final Bundle searchResults = fhirRestClient.search().byUrl(url)
+        .returnBundle(Bundle.class).execute();
+
+    final Set<String> fullUrls = new HashSet<String>();
+    final SearchResultSplitter resultSplitter = new SearchResultSplitter();
+    pageLoader.processPages(searchResults,
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            final List<Resource> resources = resultSplitter.splitBundle(page);
+            for (Resource r : resources) {
+              if (ResourceType.Patient.equals(r.getResourceType())) {
+                fullUrls.add(fullUrlOf(r, serverBase));
+              }
+            }
+            return resources.size();
+          }
+        });
+    return fullUrls;
+  }
+
+  /**
+   * @param serverBase
+   *          server base to which the resource id is appended
+   * @return fullUrl of the resource, without its version
+   */
+  private static String fullUrlOf(Resource r, String serverBase) {
+    final String fullUrlBase = serverBase.endsWith("/") ? serverBase
+        : serverBase + "/";
+    return fullUrlBase + r.getIdElement().getResourceType() + SLASH
+        + r.getIdElement().getIdPart();
+  }
+
+  /**
+   * Adds the values and blocking keys of each Patient of the given resources
+   * to the records.
+   *
+   * @param serverBase
+   *          server base to which the resource id is appended to build the
+   *          fullUrl
+   */
+  protected void addRecords(MatchRecords records, List<Resource> resources,
+      String serverBase, SimplePatientCsvFormat format) {
+    for (Resource r : resources) {
+      if (ResourceType.Patient.equals(r.getResourceType())) {
+        final Patient patient = (Patient) r;
+        records.add(fullUrlOf(r, serverBase), versionOf(r),
+            format.toValues(patient), blocker.keys(patient));
+      } else {
+        LOG.error("Unsupported Resource Type: {}",
+            r.getResourceType().toString());
+      }
+    }
+  }
+
+  /**
+   * @return version id of the resource; null when it has none
+   */
+  private static String versionOf(Resource r) {
+    if (r.hasMeta() && r.getMeta().hasVersionId()) {
+      return r.getMeta().getVersionId();
+    }
+    return r.getIdElement().getVersionIdPart();
+  }
+
+  /**
+   * Sends the response back to the requester.
+   *
+   * @param request
+   *          record match request message
+   * @param response
+   *          response message; null is logged as an error
+   */
+  protected void sendResponse(Bundle request, Bundle response) {
+    if (response != null) {
+      getProducer().sendBody(getProducerEndpointUri(), response);
+    } else {
+      LOG.error("Null Response for request! bundleId: {}", request.getId());
+    }
+  }
+
+  /**
+   * Builds an error response for the given request.
+   *
+   * @param request
+   *          record match request message
+   * @param errMsg
+   *          description of the error
+   * @return response message or null when no response could be built
+   */
+  protected Bundle buildErrorResponse(Bundle request, String errMsg) {
+    final LinkedRecordResultsBuilder respBuilder = new LinkedRecordResultsBuilder(
+        request, ResponseType.FATALERROR);
+    respBuilder.outcomeIssueDiagnostics(errMsg);
+    try {
+      return respBuilder.build();
+    } catch (Exception e) {
+      LOG.error("Unable to build error response. request bundle: {}",
+          request.getId(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Constructs a search URL using the information in the Parameters resource.
+   *
+   * @param params
+   *          Parameters resource containing a searchExpression parameter whose
+   *          value is a Parameters resource containing a resourceUrl parameter
+   *          and other parameters that comprise the query expression.
+   * @return search url or an empty string if the url could not be formed
+   */
+  private String buildSearchUrl(Parameters params) {
+    final StringBuilder searchUrl = new StringBuilder(200);
+
+    final Parameters searchExprParams = getSearchExpression(params);
+    if (searchExprParams != null) {
+      String resourceUrl = null;
+      final StringBuilder queryExpr = new StringBuilder(100);
+      // all parameters except resourceUrl contribute to the query expression
+      for (ParametersParameterComponent searchExprParam : searchExprParams
+          .getParameter()) {
+        final String name = searchExprParam.getName();
+        if (searchExprParam.getValue() == null) {
+          LOG.error("Null Value for search expression parameter, {}", name);
+          continue;
+        }
+        final String value = valueOf(searchExprParam);
+        // resourceUrl is different than others
+        if (RESOURCE_URL.equals(name)) {
+          resourceUrl = value;
+        } else {
+          if (queryExpr.length() > 0) {
+            queryExpr.append("&");
+          }
+          queryExpr.append(name);
+          queryExpr.append("=");
+          queryExpr.append(value);
+        }
+      }
+
+      if (resourceUrl == null) {
+        LOG.warn("Required parameter, resourceUrl, is missing!");
+      } else {
+        searchUrl.append(resourceUrl);
+        searchUrl.append("?");
+        searchUrl.append(queryExpr);
+      }
+      LOG.info("search Url: {}", searchUrl.toString());
+    } else {
+      LOG.warn("Unable to find search expression in message parameters");
+    }
+    return searchUrl.toString();
+  }
+
+  /**
+   * Returns the server base URL found in the resourceUrl.
+   */
+  private String getServerBase(String resourceType, Parameters params) {
+    final Parameters searchExprParams = getSearchExpression(params);
+    if (searchExprParams != null) {
+      final ParametersParameterComponent p = ParametersUtil
+          .findByName(searchExprParams.getParameter(), RESOURCE_URL);
+      if (p != null && p.getValue() != null) {
+        final String resourceUrl = valueOf(p);
+        final int pos = resourceUrl.lastIndexOf(resourceType);
+        if (pos > 0) {
+          // strip off the resource type from the end of the search url base
+          return resourceUrl.substring(0, pos);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the value of the parameter; the value itself, not its type and
+   *         value, when it is a primitive (e.g., a uri)
+   */
+  private static String valueOf(ParametersParameterComponent p) {
+    final Type value = p.getValue();
+    return value instanceof PrimitiveType
+        ? ((PrimitiveType<?>) value).getValueAsString() : value.toString();
+  }
+
+  private Parameters getSearchExpression(Parameters params) {
+    final ParametersParameterComponent p = ParametersUtil
+        .findByName(params.getParameter(), SEARCH_EXPR);
+    if (p != null && p.getResource() != null
+        && ResourceType.Parameters.equals(p.getResource().getResourceType())) {
+      return (Parameters) p.getResource();
+    }
+    return null;
+  }
+
+  /**
+   * URL encodes the value of each query parameter of the given url.
+   */
+  private String urlEncodeQueryParams(String url) {
+    final int pos = url.indexOf('?');
+    if (pos < 0) {
+      return url;
+    }
+    final StringBuilder sb = new StringBuilder((int) (url.length() * 1.2));
+    sb.append(url, 0, pos + 1);
+    boolean first = true;
+    for (String param : url.substring(pos + 1).split("&")) {
+      if (param.isEmpty()) {
+        continue;
+      }
+      if (!first) {
+        sb.append("&");
+      }
+      first = false;
+      final int eq = param.indexOf('=');
+      try {
+        if (eq < 0) {
+          sb.append(param);
+        } else {
+          sb.append(param, 0, eq + 1);
+          sb.append(URLEncoder.encode(param.substring(eq + 1), "UTF-8"));
+        }
+      } catch (UnsupportedEncodingException e) {
+        // Ignore - We know UTF-8 is supported
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param producer
+   *          the producer to set
+   */
+  public final void setProducer(ProducerTemplate producer) {
+    this.producer = producer;
+  }
+
+  /**
+   * @return the producer
+   */
+  public final ProducerTemplate getProducer() {
+    return producer;
+  }
+
+  /**
+   * @return the producerEndpointUri
+   */
+  public final String getProducerEndpointUri() {
+    return producerEndpointUri;
+  }
+
+  /**
+   * @param producerEndpointUri
+   *          the producerEndpointUri to set
+   */
+  public final void setProducerEndpointUri(String producerEndpointUri) {
+    this.producerEndpointUri = producerEndpointUri;
+  }
+
+  /**
+   * @return the fhirRestClient
+   */
+  public final IGenericClient getFhirRestClient() {
+    return fhirRestClient;
+  }
+
+  /**
+   * @param fhirRestClient
+   *          the fhirRestClient to set
+   */
+  public final void setFhirRestClient(IGenericClient fhirRestClient) {
+    this.fhirRestClient = fhirRestClient;
+    pageLoader.setClient(fhirRestClient);
+  }
+
+  /**
+   * @return the prefetchPages
+   */
+  public final int getPrefetchPages() {
+    return pageLoader.getPrefetchPages();
+  }
+
+  /**
+   * @param prefetchPages
+   *          number of search result pages loaded ahead of the page being
+   *          stored
+   */
+  public final void setPrefetchPages(int prefetchPages) {
+    pageLoader.setPrefetchPages(prefetchPages);
+  }
+
+  /**
+   * @return the blocker
+   */
+  public final PatientBlocker getBlocker() {
+    return blocker;
+  }
+
+  /**
+   * @param blocker
+   *          computes the blocking keys of the records
+   */
+  public final void setBlocker(PatientBlocker blocker) {
+    this.blocker = blocker;
+  }
+
+  /**
+   * @return the matcher
+   */
+  public final ProbabilisticMatcher getMatcher() {
+    return matcher;
+  }
+
+  /**
+   * @param matcher
+   *          scores candidate pairs
+   */
+  public final void setMatcher(ProbabilisticMatcher matcher) {
+    this.matcher = matcher;
+  }
+
+  /**
+   * @return the recordCache
+   */
+  public final RecordSetCache getRecordCache() {
+    return recordCache;
+  }
+
+  /**
+   * @param recordCache
+   *          keeps master record sets between requests; null to retrieve
+   *          every master record of each request
+   */
+  public final void setRecordCache(RecordSetCache recordCache) {
+    this.recordCache = recordCache;
+  }
+
+  /**
+   * @return the incrementalDedupe
+   */
+  public final boolean isIncrementalDedupe() {
+    return incrementalDedupe;
+  }
+
+  /**
+   * @param incrementalDedupe
+   *          true to deduplicate a cached master set by scoring only the
+   *          pairs of the records added or changed since its last
+   *          deduplication; false to score every pair each time
+   */
+  public final void setIncrementalDedupe(boolean incrementalDedupe) {
+    this.incrementalDedupe = incrementalDedupe;
+  }
+
+  /**
+   * @return the resultsDir
+   */
+  public final String getResultsDir() {
+    return resultsDir;
+  }
+
+  /**
+   * @param resultsDir
+   *          folder in which responses are written before they are sent;
+   *          null or empty to build them in memory
+   */
+  public final void setResultsDir(String resultsDir) {
+    this.resultsDir = resultsDir;
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Body;
+import org.apache.camel.Exchange;
+import org.apache.camel.Headers;
+import org.apache.camel.OutHeaders;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.MessageDestinationComponent;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Accepts messages pushed to the adapter by a FHIR server, either as the body
+ * of a <code>$process-message</code> request or as the payload of a rest-hook
+ * Subscription notification.
+ *
+ * <p>
+ * The body may be a message bundle or a bundle of message bundles, encoded
+ * in JSON or XML. Messages addressed to {@code destinationUri} are sent to
+ * {@code producerEndpointUri} in a searchset bundle, the same form in which
+ * polled messages arrive, so pushed and polled messages pass through the same
+ * split and filter chain; the DuplicateMessageFilter drops a message that is
+ * both pushed and polled. A notification without a payload is forwarded to
+ * {@code notificationEndpointUri}, when one is configured (e.g., to poll the
+ * server right away).
+ * </p>
+ *
+ * <p>
+ * Requests whose Authorization header does not equal
+ * {@code requiredAuthorization} are refused. Until a value is configured,
+ * every request is refused, so the endpoint cannot be used to inject record
+ * match requests. A Subscription passes the value to the adapter through its
+ * <code>channel.header</code>.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PushMessageReceiver {
+  private static final Logger LOG = LoggerFactory.getLogger(PushMessageReceiver.class);
+
+  private static final String AUTHORIZATION_HDR = "Authorization";
+
+  private FhirContext fhirContext;
+
+  /** destination uri being sought in the record match request. */
+  private String destinationUri;
+
+  private ProducerTemplate producer;
+
+  /** endpoint to which accepted messages are sent. */
+  private String producerEndpointUri = "seda:msgIn";
+
+  /** endpoint notified of notifications without a payload; null for none. */
+  private String notificationEndpointUri;
+
+  /** value the Authorization header must have; null to refuse every request. */
+  private String requiredAuthorization;
+
+  private final AtomicLong acceptedMessages = new AtomicLong();
+  private final AtomicLong ignoredMessages = new AtomicLong();
+  private final AtomicLong rejectedRequests = new AtomicLong();
+
+  /**
+   * Receives a pushed message or notification.
+   *
+   * @param body
+   *          request body
+   * @param reqHdrs
+   *          request headers
+   * @param respHdrs
+   *          response headers; the response code is set here
+   * @return response body
+   */
+  public String receive(@Body String body,
+      @Headers Map<String, Object> reqHdrs,
+      @OutHeaders Map<String, Object> respHdrs) {
+
+    if (!isAuthorized(reqHdrs)) {
+      rejectedRequests.incrementAndGet();
+      LOG.warn("Refusing pushed message with missing or invalid authorization");
+      respHdrs.put(Exchange.HTTP_RESPONSE_CODE, 401); // UNAUTHORIZED
+      return "";
+    }
+
+    if (body == null || body.trim().isEmpty()) {
+      LOG.info("Received notification without payload");
+      if (notificationEndpointUri != null) {
+        producer.sendBody(notificationEndpointUri, null);
+      }
+      respHdrs.put(Exchange.HTTP_RESPONSE_CODE, 200); // OK
+      return "";
+    }
+
+    final Resource resource;
+    try {
+      resource = parse(body);
+    } catch (DataFormatException e) {
+      rejectedRequests.incrementAndGet();
+      LOG.warn("Unable to parse pushed message: {}", e.getMessage());
+      respHdrs.put(Exchange.HTTP_RESPONSE_CODE, 400); // BAD REQUEST
+      return "Unable to parse message: " + e.getMessage();
+    }
+    if (!(resource instanceof Bundle)) {
+      rejectedRequests.incrementAndGet();
+      LOG.warn("Pushed resource is not a bundle: {}",
+          resource == null ? null : resource.getResourceType());
+      respHdrs.put(Exchange.HTTP_RESPONSE_CODE, 400); // BAD REQUEST
+      return "Expected a message bundle";
+    }
+
+    final List<Bundle> messages = findMessages((Bundle) resource);
+    if (!messages.isEmpty()) {
+      final Bundle results = new Bundle();
+      results.setType(BundleType.SEARCHSET);
+      results.setTotal(messages.size());
+      for (Bundle msg : messages) {
+        results.addEntry().setResource(msg);
+      }
+      producer.sendBody(producerEndpointUri, results);
+      acceptedMessages.addAndGet(messages.size());
+      LOG.info("Accepted {} pushed messages", messages.size());
+    }
+
+    respHdrs.put(Exchange.HTTP_RESPONSE_CODE, 202); // ACCEPTED
+    return "";
+  }
+
+  private boolean isAuthorized(Map<String, Object> reqHdrs) {
+    if (requiredAuthorization == null || requiredAuthorization.isEmpty()) {
+      LOG.warn("No authorization is configured for pushed messages");
+      return false;
+    }
+    // request headers are considered case-insensitive, but camel has not normalized
+    Object auth = reqHdrs.get(AUTHORIZATION_HDR);
+    if (auth == null) {
+      auth = reqHdrs.get(AUTHORIZATION_HDR.toLowerCase());
+    }
+    if (!(auth instanceof String)) {
+      return false;
+    }
+    // constant-time comparison, so the secret cannot be guessed from timing
+    return MessageDigest.isEqual(
+        requiredAuthorization.getBytes(StandardCharsets.UTF_8),
+        ((String) auth).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Resource parse(String body) {
+    final IParser parser = body.trim().startsWith("<")
+        ? fhirContext.newXmlParser() : fhirContext.newJsonParser();
+    final IBaseResource r = parser.parseResource(body);
+    return r instanceof Resource ? (Resource) r : null;
+  }
+
+  /**
+   * @return the given message, or the messages within the given bundle, that
+   *         are addressed to this adapter
+   */
+  private List<Bundle> findMessages(Bundle bundle) {
+    final List<Bundle> messages = new ArrayList<Bundle>();
+    if (BundleType.MESSAGE.equals(bundle.getType())) {
+      addIfAddressed(bundle, messages);
+    } else {
+      for (BundleEntryComponent entry : bundle.getEntry()) {
+        final Resource r = entry.getResource();
+        if (r instanceof Bundle && BundleType.MESSAGE.equals(((Bundle) r).getType())) {
+          addIfAddressed((Bundle) r, messages);
+        }
+      }
+    }
+    return messages;
+  }
+
+  private void addIfAddressed(Bundle msg, List<Bundle> messages) {
+    if (!msg.getEntry().isEmpty()
+        && msg.getEntry().get(0).getResource() instanceof MessageHeader) {
+      final MessageHeader hdr = (MessageHeader) msg.getEntry().get(0).getResource();
+      for (MessageDestinationComponent dest : hdr.getDestination()) {
+        if (destinationUri.equals(dest.getEndpoint())) {
+          messages.add(msg);
+          return;
+        }
+      }
+    }
+    ignoredMessages.incrementAndGet();
+    LOG.info("Ignoring pushed message not addressed to {}, bundle id: {}",
+        destinationUri, msg.getId());
+  }
+
+  /**
+   * @return number of pushed messages sent on for processing
+   */
+  public final long getAcceptedMessages() {
+    return acceptedMessages.get();
+  }
+
+  /**
+   * @return number of pushed messages not addressed to this adapter
+   */
+  public final long getIgnoredMessages() {
+    return ignoredMessages.get();
+  }
+
+  /**
+   * @return number of requests refused as unauthorized or malformed
+   */
+  public final long getRejectedRequests() {
+    return rejectedRequests.get();
+  }
+
+  /**
+   * @return the fhirContext
+   */
+  public final FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  /**
+   * @param fhirContext
+   *          context used to parse pushed messages
+   */
+  public final void setFhirContext(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+  }
+
+  /**
+   * @return the destinationUri
+   */
+  public final String getDestinationUri() {
+    return destinationUri;
+  }
+
+  /**
+   * @param destinationUri
+   *          destination uri of the messages to accept
+   */
+  public final void setDestinationUri(String destinationUri) {
+    this.destinationUri = destinationUri;
+  }
+
+  /**
+   * @return the producer
+   */
+  public final ProducerTemplate getProducer() {
+    return producer;
+  }
+
+  /**
+   * @param producer
+   *          sends accepted messages to the producer endpoint
+   */
+  public final void setProducer(ProducerTemplate producer) {
+    this.producer = producer;
+  }
+
+  /**
+   * @return the producerEndpointUri
+   */
+  public final String getProducerEndpointUri() {
+    return producerEndpointUri;
+  }
+
+  /**
+   * @param producerEndpointUri
+   *          endpoint to which accepted messages are sent
+   */
+  public final void setProducerEndpointUri(String producerEndpointUri) {
+    this.producerEndpointUri = producerEndpointUri;
+  }
+
+  /**
+   * @return the notificationEndpointUri
+   */
+  public final String getNotificationEndpointUri() {
+    return notificationEndpointUri;
+  }
+
+  /**
+   * @param notificationEndpointUri
+   *          endpoint notified of notifications without a payload; null for
+   *          none
+   */
+  public final void setNotificationEndpointUri(String notificationEndpointUri) {
+    this.notificationEndpointUri = notificationEndpointUri;
+  }
+
+  /**
+   * @return the requiredAuthorization
+   */
+  public final String getRequiredAuthorization() {
+    return requiredAuthorization;
+  }
+
+  /**
+   * @param requiredAuthorization
+   *          value the Authorization header of a request must have; while
+   *          null or empty, every request is refused
+   */
+  public final void setRequiredAuthorization(String requiredAuthorization) {
+    this.requiredAuthorization = requiredAuthorization;
+  }
+}
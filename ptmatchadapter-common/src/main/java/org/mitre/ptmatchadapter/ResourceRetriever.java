@@ -21,7 +21,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.rest.client.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.method.SearchStyleEnum;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
@@ -44,13 +43,6 @@ public class ResourceRetriever {
   public Bundle doSearch(String queryExpr) {
     Bundle results = null;
 
-    LoggingInterceptor loggingInterceptor = null; 
-    if (LOG.isDebugEnabled()) {
-      // Note: Logging Intercepter output is at INFO level and based on ca.uhn... tree
-      loggingInterceptor = new LoggingInterceptor(true);
-      client.registerInterceptor(loggingInterceptor);
-    }
-
     LOG.info("query expr: {}", queryExpr);
     try {
       // Prepare search query for messages
@@ -68,10 +60,6 @@ public class ResourceRetriever {
       LOG.warn(String.format("Error response from server.  code: %d, %s", e.getStatusCode(), e.getMessage()));
     } catch (Exception e) {
       LOG.warn(String.format("Unable to retrieve messages: %s", e.getMessage()), e);
-    } finally {
-      if (loggingInterceptor != null) {
-        client.unregisterInterceptor(loggingInterceptor);
-      }
     }
 
     return results;
@@ -27,7 +27,6 @@ import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.IGenericClient;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientInappropriateForServerException;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
 
 /**
  * @author Michael Los, mel@mitre.org
@@ -46,21 +45,9 @@ public class ResourceSender {
    *          Resource containing record match results
    */
   public void update(Resource resource) {
-    LoggingInterceptor loggingInterceptor = null;
-    if (LOG.isDebugEnabled()) {
-      loggingInterceptor = new LoggingInterceptor(true);
-      client.registerInterceptor(loggingInterceptor);
-    }
-
-    MethodOutcome outcome;
-    try {
-      // Invoke the server update method
-      outcome = client.update().resource(resource).encodedJson().execute();
-    } finally {
-      if (loggingInterceptor != null) {
-        client.unregisterInterceptor(loggingInterceptor);
-      }
-    }
+    // Invoke the server update method
+    final MethodOutcome outcome =
+        client.update().resource(resource).encodedJson().execute();
 
     // The MethodOutcome object will contain information about the
     // response from the server, including the ID of the created
@@ -88,12 +75,6 @@ public class ResourceSender {
   }
 
   public void create(Resource resource) {
-    LoggingInterceptor loggingInterceptor = null;
-    if (LOG.isDebugEnabled()) {
-      loggingInterceptor = new LoggingInterceptor(true);
-      client.registerInterceptor(loggingInterceptor);
-    }
-
     MethodOutcome outcome;
     try {
       // Invoke the server update method
@@ -104,10 +85,6 @@ public class ResourceSender {
     } catch (FhirClientInappropriateForServerException e) {
       LOG.error("Client is not compatible with the FHIR Server. {}", e.getMessage());
       return;
-    } finally {
-      if (loggingInterceptor != null) {
-        client.unregisterInterceptor(loggingInterceptor);
-      }
     }
 
     // The MethodOutcome object will contain information about the
@@ -16,71 +16,490 @@
  */
 package org.mitre.ptmatchadapter;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Bundle.HTTPVerb;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.mitre.ptmatchadapter.model.ServerAuthorization;
-import org.mitre.ptmatchadapter.util.AuthorizationUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.BaseClient;
+import ca.uhn.fhir.rest.client.IClientInterceptor;
 import ca.uhn.fhir.rest.client.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.rest.client.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 /**
+ * Sends outgoing messages (e.g., acknowledgments and record match results) to
+ * the FHIR server.
+ *
+ * <p>
+ * When {@code batchSize} is greater than one, messages are collected for up
+ * to {@code batchWindowMillis}, or until {@code batchSize} messages are
+ * waiting, and submitted together in a single batch (or transaction) bundle.
+ * Each message is PUT individually instead when only one is waiting, and from
+ * then on when the server rejects a batch as unsupported; a batch that fails
+ * for another reason is resent as individual PUTs. The outcome of each message
+ * is logged and counted.
+ * </p>
+ *
+ * <p>
+ * A message already encoded to a file (e.g., a large record match result
+ * written by {@code LinkedRecordResultsBuilder}) is named by the
+ * {@link #ENCODED_MESSAGE} user data of its Bundle, and is always sent on its
+ * own by {@link #sendEncodedMessage(Bundle, File)}, which streams the file as
+ * the body of the PUT. Such a Bundle may hold only the message header, so it
+ * is never PUT itself nor added to a batch, whichever method it is given to.
+ * </p>
+ *
  * @author Michael Los, mel@mitre.org
  *
  */
 public class ResultSender {
   private static final Logger LOG = LoggerFactory.getLogger(ResultSender.class);
 
+  /**
+   * name of the Bundle user data holding the File to which the message has
+   * been encoded.
+   */
+  public static final String ENCODED_MESSAGE = "ptmatchadapter.encodedMessage";
+
+  private static final ContentType FHIR_JSON = ContentType.create(
+      "application/json+fhir", StandardCharsets.UTF_8);
+
   private IGenericClient client;
 
-  /** list of servers for which the user authorized access. */
-  private List<ServerAuthorization> serverAuthorizations;
+  /** sends encoded messages; the client factory's when null. */
+  private HttpClient httpClient;
+
+  /** maximum number of messages per batch; 1 or less to send each at once. */
+  private int batchSize = 1;
+
+  /** longest time a message waits for others to join its batch. */
+  private long batchWindowMillis = 200L;
+
+  /** type of bundle in which a batch is submitted. */
+  private BundleType batchType = BundleType.BATCH;
+
+  /** messages waiting to be sent; guarded by this. */
+  private final List<Bundle> pending = new ArrayList<Bundle>();
+  /** sends the pending messages when the batch window closes; guarded by this. */
+  private ScheduledFuture<?> scheduledFlush;
+  private ScheduledExecutorService flusher;
+
+  /** set once the server has rejected a batch as unsupported. */
+  private volatile boolean batchesRejected = false;
+
+  private final AtomicLong sentMessages = new AtomicLong();
+  private final AtomicLong failedMessages = new AtomicLong();
+  private final AtomicLong batchesSent = new AtomicLong();
+  private final AtomicLong individualPuts = new AtomicLong();
+
+  /**
+   * Outcome of sending a single message.
+   */
+  public static final class MessageOutcome {
+    private final Bundle message;
+    private final String status;
+    private final boolean success;
+
+    MessageOutcome(Bundle message, String status, boolean success) {
+      this.message = message;
+      this.status = status;
+      this.success = success;
+    }
+
+    /**
+     * @return the message that was sent
+     */
+    public Bundle getMessage() {
+      return message;
+    }
+
+    /**
+     * @return the HTTP status reported by the server (e.g., "200 OK"), or a
+     *         description of the failure
+     */
+    public String getStatus() {
+      return status;
+    }
 
+    /**
+     * @return true when the server accepted the message
+     */
+    public boolean isSuccess() {
+      return success;
+    }
+  }
 
   /**
-   * Submits the given Bundle to a pre-configured FHIR Server using PUT.
+   * Submits the given Bundle to a pre-configured FHIR Server. The client is
+   * expected to attach the server's authorization to the request (see
+   * SharedFhirClientFactory).
+   *
+   * <p>
+   * When batching is enabled, the message may be sent later, along with
+   * others, on another thread.
+   * </p>
    * 
    * @param bundle
    *          Bundle containing record match results
+   * @throws IllegalStateException
+   *           thrown when a message encoded to a file could not be sent
    */
   public void sendMessage(Bundle bundle) {
-    LoggingInterceptor loggingInterceptor = null;
-    if (LOG.isDebugEnabled()) {
-      loggingInterceptor = new LoggingInterceptor(true);
-      client.registerInterceptor(loggingInterceptor);
-    }
-    final ServerAuthorization serverAuthorization = 
-        AuthorizationUtil.findServerAuthorization(serverAuthorizations, client.getServerBase());
-    
-    BearerTokenAuthInterceptor authInterceptor = null;
-    if (serverAuthorization != null) {
-      // register authorization interceptor with the client
-      LOG.info("assigning bearing token interceptor, {}", serverAuthorization.getAccessToken() );
-      authInterceptor = new BearerTokenAuthInterceptor(serverAuthorization.getAccessToken());
-      client.registerInterceptor(authInterceptor);
-    }
-
-    MethodOutcome outcome;
+    final File encoded = getEncodedMessage(bundle);
+    if (encoded != null) {
+      final MessageOutcome outcome = sendEncodedMessage(bundle, encoded);
+      if (!outcome.isSuccess()) {
+        // as a failed PUT of a message does, let the caller retry
+        throw new IllegalStateException("Unable to send message "
+            + bundle.getId() + ", status: " + outcome.getStatus());
+      }
+      return;
+    }
+
+    if (batchSize <= 1) {
+      putMessage(bundle);
+      sentMessages.incrementAndGet();
+      return;
+    }
+
+    List<Bundle> batch = null;
+    synchronized (this) {
+      pending.add(bundle);
+      if (pending.size() >= batchSize) {
+        batch = takePending();
+      } else if (pending.size() == 1) {
+        scheduleFlush();
+      }
+    }
+    if (batch != null) {
+      sendMessages(batch);
+    }
+  }
+
+  /**
+   * Sends the messages waiting for their batch window to close.
+   */
+  public void flush() {
+    final List<Bundle> batch;
+    synchronized (this) {
+      batch = takePending();
+    }
+    if (!batch.isEmpty()) {
+      sendMessages(batch);
+    }
+  }
+
+  /**
+   * Sends any waiting messages and stops the thread that sends batches when
+   * their window closes.
+   */
+  public void stop() {
+    flush();
+    synchronized (this) {
+      if (flusher != null) {
+        flusher.shutdown();
+        flusher = null;
+      }
+    }
+  }
+
+  private List<Bundle> takePending() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    final List<Bundle> batch = new ArrayList<Bundle>(pending);
+    pending.clear();
+    return batch;
+  }
+
+  private void scheduleFlush() {
+    if (flusher == null) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "result-sender-flush");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    scheduledFlush = flusher.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          LOG.error("Unexpected error while sending messages", e);
+        }
+      }
+    }, batchWindowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the given messages in a single batch when there is more than one,
+   * falling back to individual PUTs when the batch is not accepted. Messages
+   * encoded to a file are always sent on their own.
+   *
+   * @param messages
+   *          messages to send
+   * @return the outcome of each message, in the order given
+   */
+  public List<MessageOutcome> sendMessages(List<Bundle> messages) {
+    final List<Bundle> batchable = new ArrayList<Bundle>(messages.size());
+    for (Bundle msg : messages) {
+      if (getEncodedMessage(msg) == null) {
+        batchable.add(msg);
+      }
+    }
+
+    List<MessageOutcome> batchOutcomes = null;
+    if (batchable.size() > 1 && !batchesRejected) {
+      try {
+        final Bundle response = postBatch(toBatch(batchable));
+        batchesSent.incrementAndGet();
+        batchOutcomes = toOutcomes(batchable, response);
+      } catch (BaseServerResponseException e) {
+        final int code = e.getStatusCode();
+        if (code == 400 || code == 404 || code == 405 || code == 501) {
+          batchesRejected = true;
+          LOG.warn("Server rejected {} bundle, code: {}, {}; sending messages individually",
+              batchType.toCode(), code, e.getMessage());
+        } else {
+          LOG.warn("Unable to send {} bundle, code: {}, {}; sending messages individually",
+              batchType.toCode(), code, e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        LOG.warn("Unable to send {} bundle: {}; sending messages individually",
+            batchType.toCode(), e.getMessage());
+      }
+    }
+    final List<MessageOutcome> outcomes = batchOutcomes == null
+        ? putEach(messages) : new ArrayList<MessageOutcome>(messages.size());
+    if (batchOutcomes != null) {
+      // the outcomes of the batch, with those of the encoded messages put
+      // in their place
+      int next = 0;
+      for (Bundle msg : messages) {
+        outcomes.add(getEncodedMessage(msg) == null ? batchOutcomes.get(next++)
+            : putEach(Collections.singletonList(msg)).get(0));
+      }
+    }
+
+    for (MessageOutcome outcome : outcomes) {
+      if (outcome.isSuccess()) {
+        sentMessages.incrementAndGet();
+        LOG.info("Sent message {}, status: {}", outcome.getMessage().getId(),
+            outcome.getStatus());
+      } else {
+        failedMessages.incrementAndGet();
+        LOG.error("Unable to send message {}, status: {}",
+            outcome.getMessage().getId(), outcome.getStatus());
+      }
+    }
+    return outcomes;
+  }
+
+  /**
+   * Sends a message that has been encoded to the given file, streaming the
+   * file as the body of the PUT.
+   *
+   * @param message
+   *          the message, whose id names the Bundle to PUT; its entries need
+   *          not be present
+   * @param encoded
+   *          file holding the JSON encoded message
+   * @return the outcome of sending the message
+   */
+  public MessageOutcome sendEncodedMessage(Bundle message, File encoded) {
+    individualPuts.incrementAndGet();
+    final MessageOutcome outcome = putEncoded(message, encoded);
+    if (outcome.isSuccess()) {
+      sentMessages.incrementAndGet();
+      LOG.info("Sent message {} ({} bytes), status: {}", message.getId(),
+          encoded.length(), outcome.getStatus());
+    } else {
+      failedMessages.incrementAndGet();
+      LOG.error("Unable to send message {}, status: {}", message.getId(),
+          outcome.getStatus());
+    }
+    return outcome;
+  }
+
+  /**
+   * @return the file to which the message has been encoded; null when it has
+   *         not been
+   */
+  private static File getEncodedMessage(Bundle message) {
+    final Object encoded = message.getUserData(ENCODED_MESSAGE);
+    return encoded instanceof File ? (File) encoded : null;
+  }
+
+  private MessageOutcome putEncoded(Bundle message, File encoded) {
+    try {
+      final String status = putEncodedMessage(
+          message.getIdElement().getIdPart(), encoded);
+      return new MessageOutcome(message, status, status.startsWith("2"));
+    } catch (IOException e) {
+      return new MessageOutcome(message, e.toString(), false);
+    } catch (RuntimeException e) {
+      return new MessageOutcome(message, e.toString(), false);
+    }
+  }
+
+  /**
+   * PUTs the encoded message in the given file to Bundle/[id]. The request
+   * passes through the client's interceptors, which attach the server's
+   * authorization.
+   *
+   * @param id
+   *          id of the message
+   * @param encoded
+   *          file holding the JSON encoded message
+   * @return the HTTP status of the response (e.g., "200 OK")
+   * @throws IOException
+   *           thrown when the message could not be sent
+   */
+  protected String putEncodedMessage(String id, File encoded)
+      throws IOException {
+    String serverBase = client.getServerBase();
+    if (!serverBase.endsWith("/")) {
+      serverBase += "/";
+    }
+    final HttpPut put = new HttpPut(serverBase + "Bundle/" + id);
+    put.setEntity(new FileEntity(encoded, FHIR_JSON));
+    put.addHeader("Accept", FHIR_JSON.getMimeType());
+    final ApacheHttpRequest request = new ApacheHttpRequest(getHttpClient(),
+        put);
+
+    final List<IClientInterceptor> interceptors = client instanceof BaseClient
+        ? ((BaseClient) client).getInterceptors()
+        : Collections.<IClientInterceptor> emptyList();
+    for (IClientInterceptor interceptor : interceptors) {
+      interceptor.interceptRequest(request);
+    }
+    final IHttpResponse response = request.execute();
     try {
-      // Invoke the server update method
-      outcome = client.update().resource(bundle).encodedJson().execute();
+      for (IClientInterceptor interceptor : interceptors) {
+        interceptor.interceptResponse(response);
+      }
+      return response.getStatus() + " " + response.getStatusInfo();
     } finally {
-      if (authInterceptor != null) {
-        // unregister authorization interceptor with the client
-        client.unregisterInterceptor(authInterceptor);
+      response.close();
+    }
+  }
+
+  private List<MessageOutcome> putEach(List<Bundle> messages) {
+    final List<MessageOutcome> outcomes = new ArrayList<MessageOutcome>(messages.size());
+    for (Bundle msg : messages) {
+      individualPuts.incrementAndGet();
+      final File encoded = getEncodedMessage(msg);
+      if (encoded != null) {
+        outcomes.add(putEncoded(msg, encoded));
+        continue;
+      }
+      try {
+        putMessage(msg);
+        outcomes.add(new MessageOutcome(msg, "200 OK", true));
+      } catch (BaseServerResponseException e) {
+        outcomes.add(new MessageOutcome(msg, e.getStatusCode() + " " + e.getMessage(), false));
+      } catch (RuntimeException e) {
+        outcomes.add(new MessageOutcome(msg, e.toString(), false));
+      }
+    }
+    return outcomes;
+  }
+
+  /**
+   * @param messages
+   *          messages, none of which has been encoded to a file
+   * @return a batch bundle that PUTs each of the given messages
+   */
+  private Bundle toBatch(List<Bundle> messages) {
+    final Bundle batch = new Bundle();
+    batch.setType(batchType);
+    for (Bundle msg : messages) {
+      final BundleEntryComponent entry = batch.addEntry().setResource(msg);
+      final String id = msg.getIdElement().getIdPart();
+      if (id != null) {
+        entry.getRequest().setMethod(HTTPVerb.PUT).setUrl("Bundle/" + id);
+      } else {
+        entry.getRequest().setMethod(HTTPVerb.POST).setUrl("Bundle");
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Matches the entries of a batch response with the messages sent; the
+   * server answers in the order of the request entries.
+   */
+  private List<MessageOutcome> toOutcomes(List<Bundle> messages, Bundle response) {
+    final List<MessageOutcome> outcomes = new ArrayList<MessageOutcome>(messages.size());
+    final List<BundleEntryComponent> entries = response != null
+        ? response.getEntry() : Collections.<BundleEntryComponent> emptyList();
+    for (int i = 0; i < messages.size(); i++) {
+      String status = null;
+      if (i < entries.size() && entries.get(i).hasResponse()) {
+        status = entries.get(i).getResponse().getStatus();
       }
-      if (loggingInterceptor != null) {
-        client.unregisterInterceptor(loggingInterceptor);
+      if (status == null) {
+        outcomes.add(new MessageOutcome(messages.get(i), "no response entry", false));
+      } else {
+        outcomes.add(new MessageOutcome(messages.get(i), status, status.startsWith("2")));
       }
     }
+    return outcomes;
+  }
+
+  /**
+   * Submits a batch or transaction bundle.
+   *
+   * @param batch
+   *          bundle to submit
+   * @return the server's response bundle
+   */
+  protected Bundle postBatch(Bundle batch) {
+    return client.transaction().withBundle(batch).encodedJson().execute();
+  }
+
+  /**
+   * Submits the given Bundle using PUT.
+   *
+   * @param bundle
+   *          message to submit
+   */
+  protected void putMessage(Bundle bundle) {
+    // Invoke the server update method
+    final MethodOutcome outcome =
+        client.update().resource(bundle).encodedJson().execute();
 
     // The MethodOutcome object will contain information about the
     // response from the server, including the ID of the created
@@ -94,7 +513,7 @@ public class ResultSender {
       LOG.info("Result of Put to Server, Operation Outcome is  null");
     }
     IBaseResource returned = outcome.getResource();
-    if (!returned.isEmpty()) {
+    if (returned != null && !returned.isEmpty()) {
       LOG.info("Result of Put to Server, resource type: " + returned.toString());
     } else {
       LOG.info("Result of Put to Server, Resource is empty");
@@ -107,6 +526,42 @@ public class ResultSender {
     }
   }
 
+  /**
+   * @return number of messages the server accepted
+   */
+  public final long getSentMessages() {
+    return sentMessages.get();
+  }
+
+  /**
+   * @return number of messages that could not be sent
+   */
+  public final long getFailedMessages() {
+    return failedMessages.get();
+  }
+
+  /**
+   * @return number of batch bundles the server answered
+   */
+  public final long getBatchesSent() {
+    return batchesSent.get();
+  }
+
+  /**
+   * @return number of messages sent with an individual PUT by
+   *         {@link #sendMessages(List)}
+   */
+  public final long getIndividualPuts() {
+    return individualPuts.get();
+  }
+
+  /**
+   * @return true once the server has rejected a batch as unsupported
+   */
+  public final boolean isBatchesRejected() {
+    return batchesRejected;
+  }
+
   /**
    * @return the client
    */
@@ -123,18 +578,84 @@ public class ResultSender {
   }
 
   /**
-   * @return the serverAuthorizations
+   * @return the client that sends encoded messages; by default, the pooled
+   *         client of the FHIR client's restful client factory
+   */
+  public final synchronized HttpClient getHttpClient() {
+    if (httpClient == null) {
+      final IRestfulClientFactory factory = client.getFhirContext()
+          .getRestfulClientFactory();
+      if (!(factory instanceof ApacheRestfulClientFactory)) {
+        throw new IllegalStateException(
+            "No HTTP client for encoded messages; set httpClient");
+      }
+      httpClient = ((ApacheRestfulClientFactory) factory).getNativeHttpClient();
+    }
+    return httpClient;
+  }
+
+  /**
+   * @param httpClient
+   *          client that sends encoded messages
+   */
+  public final synchronized void setHttpClient(HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * @return the batchSize
+   */
+  public final int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize
+   *          maximum number of messages per batch; 1 or less to send each
+   *          message as it arrives
+   */
+  public final void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @return the batchWindowMillis
    */
-  public final List<ServerAuthorization> getServerAuthorizations() {
-    return serverAuthorizations;
+  public final long getBatchWindowMillis() {
+    return batchWindowMillis;
   }
 
   /**
-   * @param serverAuthorizations the serverAuthorizations to set
+   * @param batchWindowMillis
+   *          longest number of milliseconds a message waits for others to
+   *          join its batch
    */
-  public final void setServerAuthorizations(
-      List<ServerAuthorization> serverAuthorizations) {
-    this.serverAuthorizations = serverAuthorizations;
+  public final void setBatchWindowMillis(long batchWindowMillis) {
+    this.batchWindowMillis = batchWindowMillis;
   }
 
+  /**
+   * @return the type of bundle in which a batch is submitted
+   */
+  public final String getBatchType() {
+    return batchType.toCode();
+  }
+
+  /**
+   * @param batchType
+   *          "batch" to have the server process each message on its own, or
+   *          "transaction" to have it accept all messages or none
+   */
+  public final void setBatchType(String batchType) {
+    final BundleType type;
+    try {
+      type = BundleType.fromCode(batchType);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Unsupported batch type: " + batchType);
+    }
+    if (type != BundleType.BATCH && type != BundleType.TRANSACTION) {
+      throw new IllegalArgumentException("Unsupported batch type: " + batchType);
+    }
+    this.batchType = type;
+  }
 }
@@ -0,0 +1,193 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import java.io.IOException;
+import org.mitre.ptmatchadapter.util.ServerAuthorizationInterceptor;
+import org.mitre.ptmatchadapter.util.ServerAuthorizationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.IGenericClient;
+import ca.uhn.fhir.rest.client.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+
+/**
+ * Creates FHIR REST clients that may be shared by any number of threads.
+ *
+ * <p>
+ * Interceptors are registered once, when the client is created, and never
+ * added or removed afterwards, so concurrent requests do not contend for the
+ * client's interceptor list. The bearer token of the server being called is
+ * attached to each request by a {@link ServerAuthorizationInterceptor}, and
+ * requests and responses are logged while this class's logger is at DEBUG.
+ * </p>
+ *
+ * <p>
+ * HTTP connections come from the pool of the underlying restful client
+ * factory. The pool is sized from {@code poolMaxTotal} and
+ * {@code poolMaxPerRoute} when either is positive; otherwise the HAPI defaults
+ * are kept.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class SharedFhirClientFactory {
+  private static final Logger LOG = LoggerFactory.getLogger(SharedFhirClientFactory.class);
+
+  private IRestfulClientFactory restfulClientFactory;
+
+  /** servers for which the user authorized access. */
+  private ServerAuthorizationRegistry serverAuthorizationRegistry;
+
+  /** maximum number of pooled connections; 0 for the HAPI default. */
+  private int poolMaxTotal = 0;
+
+  /** maximum number of pooled connections per server; 0 for the HAPI default. */
+  private int poolMaxPerRoute = 0;
+
+  private boolean poolConfigured = false;
+
+  /**
+   * Creates a client for the given server.
+   *
+   * @param serverBase
+   *          URL string to the server; include scheme, host name + port + root
+   *          path
+   * @return client that may be shared between threads
+   */
+  public IGenericClient newGenericClient(String serverBase) {
+    configurePool();
+
+    final IGenericClient client = restfulClientFactory.newGenericClient(serverBase);
+    client.registerInterceptor(
+        new ServerAuthorizationInterceptor(serverAuthorizationRegistry, serverBase));
+    client.registerInterceptor(new DebugLoggingInterceptor());
+    return client;
+  }
+
+  /**
+   * Applies the pool limits to the restful client factory, once.
+   */
+  private synchronized void configurePool() {
+    if (poolConfigured) {
+      return;
+    }
+    if (poolMaxTotal > 0) {
+      restfulClientFactory.setPoolMaxTotal(poolMaxTotal);
+    }
+    if (poolMaxPerRoute > 0) {
+      restfulClientFactory.setPoolMaxPerRoute(poolMaxPerRoute);
+    }
+    poolConfigured = true;
+    LOG.info("FHIR client connection pool, max total: {}, max per route: {}",
+        poolMaxTotal, poolMaxPerRoute);
+  }
+
+  /**
+   * Logs requests and responses only while DEBUG is enabled, so logging may be
+   * switched at run time without touching the client's interceptors.
+   */
+  private static final class DebugLoggingInterceptor extends LoggingInterceptor {
+    DebugLoggingInterceptor() {
+      // Note: Logging Intercepter output is at INFO level and based on
+      // ca.uhn... tree
+      super(true);
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+      if (LOG.isDebugEnabled()) {
+        super.interceptRequest(request);
+      }
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response)
+        throws IOException {
+      if (LOG.isDebugEnabled()) {
+        super.interceptResponse(response);
+      }
+    }
+  }
+
+  /**
+   * @return the restfulClientFactory
+   */
+  public final IRestfulClientFactory getRestfulClientFactory() {
+    return restfulClientFactory;
+  }
+
+  /**
+   * @param restfulClientFactory
+   *          factory of the FHIR context for which clients are created
+   */
+  public final void setRestfulClientFactory(
+      IRestfulClientFactory restfulClientFactory) {
+    this.restfulClientFactory = restfulClientFactory;
+  }
+
+  /**
+   * @return the serverAuthorizationRegistry
+   */
+  public final ServerAuthorizationRegistry getServerAuthorizationRegistry() {
+    return serverAuthorizationRegistry;
+  }
+
+  /**
+   * @param serverAuthorizationRegistry
+   *          servers for which the user authorized access
+   */
+  public final void setServerAuthorizationRegistry(
+      ServerAuthorizationRegistry serverAuthorizationRegistry) {
+    this.serverAuthorizationRegistry = serverAuthorizationRegistry;
+  }
+
+  /**
+   * @return the poolMaxTotal
+   */
+  public final int getPoolMaxTotal() {
+    return poolMaxTotal;
+  }
+
+  /**
+   * @param poolMaxTotal
+   *          maximum number of pooled HTTP connections; 0 for the default
+   */
+  public final void setPoolMaxTotal(int poolMaxTotal) {
+    this.poolMaxTotal = poolMaxTotal;
+  }
+
+  /**
+   * @return the poolMaxPerRoute
+   */
+  public final int getPoolMaxPerRoute() {
+    return poolMaxPerRoute;
+  }
+
+  /**
+   * @param poolMaxPerRoute
+   *          maximum number of pooled HTTP connections to a single server; 0
+   *          for the default
+   */
+  public final void setPoolMaxPerRoute(int poolMaxPerRoute) {
+    this.poolMaxPerRoute = poolMaxPerRoute;
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.ptmatchadapter.format;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.ContactPoint;
+import org.hl7.fhir.instance.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.instance.model.ContactPoint.ContactPointUse;
+import org.hl7.fhir.instance.model.HumanName;
+import org.hl7.fhir.instance.model.HumanName.NameUse;
+import org.hl7.fhir.instance.model.Identifier;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.StringType;
+
+/**
+ * Extracts the identifier, name and telecom fields written by
+ * {@link SimplePatientCsvFormat} by walking the Patient model directly.
+ *
+ * <p>
+ * An extractor is built once from a column configuration; the configured
+ * name uses and parts are resolved to model accessors at that time so no
+ * per-row parsing or reflection takes place. The selection rules are those of
+ * the XPath expressions previously evaluated for every row (e.g.,
+ * <code>identifier[system='SSN']</code>, <code>name[use='official']</code>,
+ * <code>name[not(use)]</code>), so the extracted values are unchanged.
+ * </p>
+ *
+ * <p>
+ * Columns are numbered in the order of the CSV row: the resource id, the
+ * identifiers, the name parts of each name use, gender, date of birth and the
+ * telecoms. Only the selected columns are extracted and emitted.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+final class PatientFieldExtractor {
+  /** HumanName properties that may be requested as name parts. */
+  private enum NamePart {
+    TEXT, FAMILY, GIVEN, PREFIX, SUFFIX
+  }
+
+  private final String[] identifierSystems;
+
+  /** true when the corresponding name column selects names without a use. */
+  private final boolean[] selectsNoUse;
+  /**
+   * name use selected by the corresponding name column; null when the
+   * configured use names no NameUse constant, in which case no name matches.
+   */
+  private final NameUse[] selectedUses;
+
+  private final NamePart[] nameParts;
+
+  /** system and use of each telecom column, mobile phone first. */
+  private final ContactPointSystem[] telecomColumnSystems;
+  private final ContactPointUse[] telecomColumnUses;
+
+  /** position in the row of the first column of each group. */
+  private final int firstNameColumn;
+  private final int genderColumn;
+  private final int firstTelecomColumn;
+
+  /** true for each column to extract; null to extract all. */
+  private final boolean[] selected;
+
+  /**
+   * @param selected
+   *          true for each row column to extract, by position; null to
+   *          extract all columns
+   */
+  PatientFieldExtractor(String[] identifierSystems, String[] nameUses,
+      String[] nameParts, ContactPointSystem[] telecomSystems,
+      ContactPointUse[] telecomUses, boolean[] selected) {
+    this.identifierSystems = identifierSystems.clone();
+    this.selected = selected != null ? selected.clone() : null;
+    firstNameColumn = 1 + identifierSystems.length;
+    genderColumn = firstNameColumn + nameUses.length * nameParts.length;
+    firstTelecomColumn = genderColumn + 2;
+
+    selectsNoUse = new boolean[nameUses.length];
+    selectedUses = new NameUse[nameUses.length];
+    for (int i = 0; i < nameUses.length; i++) {
+      if (nameUses[i].isEmpty()) {
+        selectsNoUse[i] = true;
+      } else {
+        // XPath compared the configured use with the string value of the
+        // enumeration (i.e., its constant name), so do the same here
+        for (NameUse use : NameUse.values()) {
+          if (use.toString().equals(nameUses[i])) {
+            selectedUses[i] = use;
+          }
+        }
+      }
+    }
+
+    this.nameParts = new NamePart[nameParts.length];
+    for (int i = 0; i < nameParts.length; i++) {
+      try {
+        this.nameParts[i] = NamePart.valueOf(nameParts[i].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unsupported name part: " + nameParts[i]);
+      }
+    }
+
+    final int numColumns = 1 + telecomSystems.length * telecomUses.length;
+    telecomColumnSystems = new ContactPointSystem[numColumns];
+    telecomColumnUses = new ContactPointUse[numColumns];
+    telecomColumnSystems[0] = ContactPointSystem.PHONE;
+    telecomColumnUses[0] = ContactPointUse.MOBILE;
+    int col = 1;
+    for (ContactPointSystem system : telecomSystems) {
+      for (ContactPointUse use : telecomUses) {
+        telecomColumnSystems[col] = system;
+        telecomColumnUses[col] = use;
+        col++;
+      }
+    }
+  }
+
+  /**
+   * Receives extracted fields in column order.
+   */
+  interface FieldSink {
+    /**
+     * @param value
+     *          field value; null is written as the text "null", as it always
+     *          has been in the CSV format
+     * @param quoted
+     *          true when the CSV format encloses the value in double quotes
+     */
+    void field(String value, boolean quoted);
+  }
+
+  /**
+   * @return true when the column at the given position is extracted
+   */
+  boolean isSelected(int column) {
+    return selected == null || selected[column];
+  }
+
+  /**
+   * @return position of the gender column; date of birth follows it
+   */
+  int getGenderColumn() {
+    return genderColumn;
+  }
+
+  /**
+   * Emits the value of the first identifier of each configured system.
+   */
+  void extractIdentifiers(Patient patient, FieldSink sink) {
+    final List<Identifier> identifiers = patient.getIdentifier();
+    for (int s = 0; s < identifierSystems.length; s++) {
+      if (!isSelected(1 + s)) {
+        continue;
+      }
+      final String system = identifierSystems[s];
+      String value = "";
+      for (int i = 0; i < identifiers.size(); i++) {
+        final Identifier id = identifiers.get(i);
+        if (system.equals(id.getSystem())) {
+          value = id.getValue();
+          break;
+        }
+      }
+      sink.field(value, false);
+    }
+  }
+
+  /**
+   * Emits the configured parts of the first name of each configured use.
+   * Parts of a matching name are quoted; parts of a missing name are blank.
+   */
+  void extractNames(Patient patient, FieldSink sink) {
+    final List<HumanName> names = patient.getName();
+    for (int u = 0; u < selectedUses.length; u++) {
+      final int first = firstNameColumn + u * nameParts.length;
+      if (!anySelected(first, nameParts.length)) {
+        continue;
+      }
+      final HumanName name = findName(names, u);
+      for (int i = 0; i < nameParts.length; i++) {
+        if (!isSelected(first + i)) {
+          continue;
+        }
+        if (name != null) {
+          sink.field(getNamePart(name, nameParts[i]), true);
+        } else {
+          // add blank sections for the name parts
+          sink.field("", false);
+        }
+      }
+    }
+  }
+
+  private boolean anySelected(int first, int count) {
+    for (int i = first; i < first + count; i++) {
+      if (isSelected(i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private HumanName findName(List<HumanName> names, int useIdx) {
+    final boolean noUse = selectsNoUse[useIdx];
+    final NameUse use = selectedUses[useIdx];
+    if (!noUse && use == null) {
+      return null;
+    }
+    for (int i = 0; i < names.size(); i++) {
+      final HumanName name = names.get(i);
+      if (noUse ? name.getUse() == null : use == name.getUse()) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  private String getNamePart(HumanName name, NamePart part) {
+    switch (part) {
+    case TEXT:
+      final String text = name.getText();
+      return text != null ? text : "";
+    case FAMILY:
+      return getFirst(name.getFamily());
+    case GIVEN:
+      return getFirst(name.getGiven());
+    case PREFIX:
+      return getFirst(name.getPrefix());
+    case SUFFIX:
+      return getFirst(name.getSuffix());
+    default:
+      return "";
+    }
+  }
+
+  private static String getFirst(List<StringType> values) {
+    return values.size() > 0 ? values.get(0).getValue() : "";
+  }
+
+  /**
+   * Emits the highest ranked value of each telecom column. The mobile phone
+   * column comes first, followed by each configured system and use pair.
+   */
+  void extractTelecoms(Patient patient, FieldSink sink) {
+    final List<ContactPoint> telecoms = patient.getTelecom();
+    for (int col = 0; col < telecomColumnSystems.length; col++) {
+      if (!isSelected(firstTelecomColumn + col)) {
+        continue;
+      }
+      final ContactPoint cp = findBestRanked(telecoms, telecomColumnSystems[col],
+          telecomColumnUses[col]);
+      sink.field(cp != null ? cp.getValue() : "", false);
+    }
+  }
+
+  /**
+   * Returns the first contact point of the given system and use that sorts
+   * lowest by ContactPointComparator (unranked first, then by rank).
+   */
+  private static ContactPoint findBestRanked(List<ContactPoint> telecoms,
+      ContactPointSystem system, ContactPointUse use) {
+    ContactPoint best = null;
+    int bestRank = 0;
+    for (int i = 0; i < telecoms.size(); i++) {
+      final ContactPoint cp = telecoms.get(i);
+      if (system.equals(cp.getSystem()) && use.equals(cp.getUse())) {
+        final int rank = cp.getRank();
+        if (best == null) {
+          best = cp;
+          bestRank = rank;
+        } else if (bestRank != 0 && (rank == 0 || rank < bestRank)) {
+          best = cp;
+          bestRank = rank;
+        }
+      }
+    }
+    return best;
+  }
+}
@@ -17,21 +17,17 @@
 
 package org.mitre.ptmatchadapter.format;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import org.apache.commons.jxpath.JXPathContext;
-import org.apache.commons.jxpath.Pointer;
-import org.hl7.fhir.instance.model.ContactPoint;
-import org.hl7.fhir.instance.model.HumanName;
-import org.hl7.fhir.instance.model.Identifier;
 import org.hl7.fhir.instance.model.Patient;
-import org.hl7.fhir.instance.model.StringType;
 import org.hl7.fhir.instance.model.ContactPoint.ContactPointSystem;
 import org.hl7.fhir.instance.model.ContactPoint.ContactPointUse;
-import org.mitre.ptmatchadapter.util.ContactPointUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +48,21 @@ import org.slf4j.LoggerFactory;
  * <li>home email address</li>
  * </ul>
  * 
+ * <p>
+ * The columns written may be limited to a selection of those listed above,
+ * e.g., to the columns a set of matching rules compares. Unselected columns
+ * are neither extracted nor written, and the selected columns keep their
+ * relative order.
+ * </p>
+ *
+ * <p>
+ * A format holds no per-row state, so one instance may format rows for any
+ * number of threads at once. Rows are built in a buffer kept by each thread
+ * and appended to the caller's destination, so formatting a row allocates
+ * little beyond the field values themselves. The column titles are built
+ * once per column configuration.
+ * </p>
+ *
  * @author Michael Los, mel@mitre.org
  *
  */
@@ -60,10 +71,24 @@ public class SimplePatientCsvFormat {
       .getLogger(SimplePatientCsvFormat.class);
 
   private static final int INITIAL_ROW_LENGTH = 500;
-  private static final String COMMA = ",";
-  private static final String DOUBLE_QUOTE = "\"";
+  /** row buffers that grow past this size are not kept for reuse. */
+  private static final int MAX_KEPT_ROW_LENGTH = 16 * 1024;
+  private static final char COMMA = ',';
+  private static final char DOUBLE_QUOTE = '"';
   private static final String UNDERSCORE = "_";
 
+  /** format of the date of birth; immutable, unlike SimpleDateFormat. */
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd");
+
+  /** row under construction on each thread. */
+  private static final ThreadLocal<CsvRow> ROWS = new ThreadLocal<CsvRow>() {
+    @Override
+    protected CsvRow initialValue() {
+      return new CsvRow();
+    }
+  };
+
   private String[] identifierSystems = { "SSN" };
 
   private String[] nameUses = { "", "official", "usual" };
@@ -76,7 +101,32 @@ public class SimplePatientCsvFormat {
   private ContactPointUse[] telecomUses = { ContactPointUse.WORK,
       ContactPointUse.HOME };
 
-  public final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+  /** names of the columns to write; null for all. */
+  private String[] columns;
+
+  /**
+   * Field extractor and column titles compiled from the current column
+   * configuration; rebuilt whenever the configuration changes.
+   */
+  private volatile Layout layout;
+
+  /**
+   * Everything derived from a column configuration.
+   */
+  private static final class Layout {
+    final PatientFieldExtractor extractor;
+    final String headers;
+    final String[] columnNames;
+    final String[] availableColumnNames;
+
+    Layout(PatientFieldExtractor extractor, String headers,
+        String[] columnNames, String[] availableColumnNames) {
+      this.extractor = extractor;
+      this.headers = headers;
+      this.columnNames = columnNames;
+      this.availableColumnNames = availableColumnNames;
+    }
+  }
 
   /**
    * Returns column titles as a comma-separated strings.
@@ -84,53 +134,54 @@ public class SimplePatientCsvFormat {
    * @return String of comma-separated column titles
    */
   public String getHeaders() {
-    final StringBuilder sb = new StringBuilder(INITIAL_ROW_LENGTH);
+    return getLayout().headers;
+  }
 
+  /**
+   * Returns the column titles in the order of the values returned by
+   * {@link #toValues(Patient)}.
+   *
+   * @return column titles
+   */
+  public String[] getColumnNames() {
+    return getLayout().columnNames.clone();
+  }
+
+  /**
+   * Returns the titles of all columns the current configuration provides,
+   * whether or not they are selected.
+   *
+   * @return column titles
+   */
+  public String[] getAvailableColumnNames() {
+    return getLayout().availableColumnNames.clone();
+  }
+
+  private void columns(PatientFieldExtractor.FieldSink sink) {
     // resource Id
-    sb.append("id");
-    sb.append(COMMA);
+    sink.field("id", false);
 
     // Identifiers
     for (String sysName : identifierSystems) {
-      sb.append(DOUBLE_QUOTE);
-      sb.append("identifier_");
-      sb.append(sysName);
-      sb.append(DOUBLE_QUOTE);
-      sb.append(COMMA);
+      sink.field("identifier_" + sysName, true);
     }
     // Name fields. Title formed as name_use_part (e.g., name_official_family)
-    String sep = "";
     for (String use : nameUses) {
       for (String part : nameParts) {
-        sb.append(sep);
-        sb.append("name_");
-        sb.append(use);
-        sb.append(UNDERSCORE);
-        sb.append(part);
-        sep = COMMA;
+        sink.field("name_" + use + UNDERSCORE + part, false);
       }
     }
 
-    sb.append(COMMA);
-    sb.append("gender");
-
-    sb.append(COMMA);
-    sb.append("DOB");
-
-    sb.append(COMMA);
-    sb.append("telecom_phone_mobile");
+    sink.field("gender", false);
+    sink.field("DOB", false);
+    sink.field("telecom_phone_mobile", false);
 
     for (ContactPointSystem system : telecomSystems) {
       for (ContactPointUse use : telecomUses) {
-        sb.append(COMMA);
-        sb.append("telecom_");
-        sb.append(system.toString().toLowerCase());
-        sb.append(UNDERSCORE);
-        sb.append(use.toString().toLowerCase());
+        sink.field("telecom_" + system.toString().toLowerCase() + UNDERSCORE
+            + use.toString().toLowerCase(), false);
       }
     }
-
-    return sb.toString();
   }
 
   /**
@@ -143,112 +194,269 @@ public class SimplePatientCsvFormat {
    *          comma-delimited values of fields associated with the Patient
    */
   public String toCsv(Patient patient) {
-    final StringBuilder sb = new StringBuilder(INITIAL_ROW_LENGTH);
-    JXPathContext patientCtx = JXPathContext.newContext(patient);
+    final CsvRow row = ROWS.get();
+    final StringBuilder sb = row.buffer();
+    try {
+      row.start(sb);
+      fields(patient, getLayout().extractor, row);
+      return sb.toString();
+    } finally {
+      row.finish();
+    }
+  }
 
+  /**
+   * Appends the line returned by {@link #toCsv(Patient)}, without a line
+   * separator, to the given builder.
+   *
+   * @param patient
+   *          the patient resource to serialize
+   * @param sb
+   *          builder to which the line is appended
+   */
+  public void appendCsv(Patient patient, StringBuilder sb) {
+    final CsvRow row = ROWS.get();
     try {
-      // resource id (logical id only)
-      sb.append(patient.getIdElement().getIdPart());
-    } catch (NullPointerException e) {
-      // check for null by exception since it is unexpected. 
-      // Privacy concern keeps me from logging anything about this patient.
-      LOG.error("Patient has null identifier element. This is unexpected!");
+      row.start(sb);
+      fields(patient, getLayout().extractor, row);
+    } finally {
+      row.finish();
     }
-    sb.append(COMMA);
+  }
 
-    // identifiers of interest
-    for (String sysName : identifierSystems) {
-      Pointer ptr = patientCtx.getPointer("identifier[system='" + sysName + "']");
-      Identifier id = (Identifier) ptr.getValue();
-      if (id != null) {
-        sb.append(id.getValue());
+  /**
+   * Writes the line returned by {@link #toCsv(Patient)}, without a line
+   * separator, to the given destination.
+   *
+   * @param patient
+   *          the patient resource to serialize
+   * @param out
+   *          destination of the line (e.g., a Writer)
+   * @throws IOException
+   *           when the destination could not be written
+   */
+  public void writeCsv(Patient patient, Appendable out) throws IOException {
+    final CsvRow row = ROWS.get();
+    final StringBuilder sb = row.buffer();
+    try {
+      row.start(sb);
+      fields(patient, getLayout().extractor, row);
+      if (out instanceof Writer) {
+        // Writer.append(CharSequence) would copy the line to a String
+        final char[] chars = row.chars(sb.length());
+        sb.getChars(0, sb.length(), chars, 0);
+        ((Writer) out).write(chars, 0, sb.length());
+      } else {
+        out.append(sb);
       }
-      sb.append(COMMA);
+    } finally {
+      row.finish();
     }
+  }
+
+  /**
+   * Returns the values of supported Patient properties, one per column. Each
+   * value is the field as read back from the line returned by
+   * {@link #toCsv(Patient)}, without the enclosing double-quotes.
+   *
+   * @param patient
+   *          the patient resource from which to extract values
+   * @return values in the order of {@link #getColumnNames()}
+   */
+  public String[] toValues(Patient patient) {
+    final Layout current = getLayout();
+    final ValueRow row = new ValueRow(current.columnNames.length);
+    fields(patient, current.extractor, row);
+    return row.toArray();
+  }
+
+  private static void fields(Patient patient, PatientFieldExtractor fields,
+      PatientFieldExtractor.FieldSink sink) {
+    if (fields.isSelected(0)) {
+      String id = "";
+      try {
+        // resource id (logical id only)
+        id = patient.getIdElement().getIdPart();
+      } catch (NullPointerException e) {
+        // check for null by exception since it is unexpected. 
+        // Privacy concern keeps me from logging anything about this patient.
+        LOG.error("Patient has null identifier element. This is unexpected!");
+      }
+      sink.field(id, false);
+    }
+
+    // identifiers of interest
+    fields.extractIdentifiers(patient, sink);
 
     // Extract Name Parts of interest
-    for (String use : nameUses) {
-      Pointer ptr;
-      if (use.isEmpty()) {
-        ptr = patientCtx.getPointer("name[not(use)]");
-      } else {
-        ptr = patientCtx.getPointer("name[use='" + use + "']");
+    fields.extractNames(patient, sink);
+
+    // Gender
+    final int genderColumn = fields.getGenderColumn();
+    if (fields.isSelected(genderColumn)) {
+      sink.field(patient.getGender().toString(), false);
+    }
+
+    // Date of Birth, as a date in the local time zone
+    if (fields.isSelected(genderColumn + 1)) {
+      final Date dob = patient.getBirthDate();
+      sink.field(dob != null ? DATE_FORMAT.format(dob.toInstant().atZone(
+          ZoneId.systemDefault())) : "", false);
+    }
+
+    fields.extractTelecoms(patient, sink);
+  }
+
+  /**
+   * Writes fields as a line of comma-separated values. Each thread reuses a
+   * single row, along with the buffers it keeps.
+   */
+  private static final class CsvRow implements PatientFieldExtractor.FieldSink {
+    private StringBuilder buffer = new StringBuilder(INITIAL_ROW_LENGTH);
+    private char[] chars = new char[INITIAL_ROW_LENGTH];
+    private StringBuilder sb;
+    private boolean first;
+
+    /**
+     * @return the thread's row buffer, emptied
+     */
+    StringBuilder buffer() {
+      if (buffer.capacity() > MAX_KEPT_ROW_LENGTH) {
+        buffer = new StringBuilder(INITIAL_ROW_LENGTH);
       }
-      HumanName name = (HumanName) ptr.getValue();
-      if (name != null) {
-        JXPathContext nameCtx = JXPathContext.newContext(ptr.getValue());
-        for (String part : nameParts) {
-          sb.append(DOUBLE_QUOTE);
-          if (TEXT_NAME_PART.equals(part)) {
-            Object val = nameCtx.getValue(part);
-            if (val != null) {
-              sb.append(val.toString());
-            }
-          } else {
-            // other supported parts return lists of string types
-            Object namePart = nameCtx.getValue(part);
-            if (namePart instanceof List<?>) {
-              List<StringType> partList = (List<StringType>) namePart;
-              if (partList.size() > 0) {
-                sb.append(partList.get(0).getValue());
-              }
-            }
-          }
-          sb.append(DOUBLE_QUOTE);
-          sb.append(COMMA);
-        }
-      } else {
-        // add blank sections for the name parts
-        for (int i = 0; i < nameParts.length; i++) {
-          sb.append(COMMA);
-        }
+      buffer.setLength(0);
+      return buffer;
+    }
+
+    /**
+     * @return the thread's character buffer, holding at least len chars
+     */
+    char[] chars(int len) {
+      if (chars.length < len) {
+        chars = new char[Math.max(len, chars.length * 2)];
       }
+      return chars;
     }
 
-    // Gender
-    sb.append(patient.getGender().toString());
-    sb.append(COMMA);
+    void start(StringBuilder target) {
+      sb = target;
+      first = true;
+    }
 
-    // Date of Birth
-    Date dob = patient.getBirthDate();
-    if (dob != null) {
-      sb.append(dateFormat.format(dob));
+    void finish() {
+      // do not keep the caller's builder reachable
+      sb = null;
     }
 
-    sb.append(COMMA);
-    sb.append(buidContactInfo(patient));
+    @Override
+    public void field(String value, boolean quoted) {
+      if (!first) {
+        sb.append(COMMA);
+      }
+      first = false;
+      if (quoted) {
+        sb.append(DOUBLE_QUOTE);
+        sb.append(value);
+        sb.append(DOUBLE_QUOTE);
+      } else {
+        sb.append(value);
+      }
+    }
+  }
+
+  /**
+   * Passes on the fields of the selected columns.
+   */
+  private static final class SelectedFields implements PatientFieldExtractor.FieldSink {
+    private final boolean[] selected;
+    private final PatientFieldExtractor.FieldSink sink;
+    private int column = 0;
+
+    SelectedFields(boolean[] selected, PatientFieldExtractor.FieldSink sink) {
+      this.selected = selected;
+      this.sink = sink;
+    }
 
-    return sb.toString();
+    @Override
+    public void field(String value, boolean quoted) {
+      if (selected == null || selected[column]) {
+        sink.field(value, quoted);
+      }
+      column++;
+    }
   }
 
   /**
-   * Concatenate contact point information as a string of comma-separated
-   * values.
-   * 
-   * @param patient
-   * @return String containing comma-separated list of contact information
+   * Collects field values.
    */
-  private String buidContactInfo(Patient patient) {
-    final StringBuilder sb = new StringBuilder(100);
+  private static final class ValueRow implements PatientFieldExtractor.FieldSink {
+    private final List<String> values;
 
-    List<ContactPoint> matches = ContactPointUtil.find(patient.getTelecom(),
-        ContactPointSystem.PHONE, ContactPointUse.MOBILE);
+    ValueRow(int numColumns) {
+      values = new ArrayList<String>(numColumns);
+    }
 
-    if (matches.size() > 0) {
-      sb.append(matches.get(0).getValue());
+    @Override
+    public void field(String value, boolean quoted) {
+      values.add(String.valueOf(value));
     }
 
-    for (ContactPointSystem system : telecomSystems) {
-      for (ContactPointUse use : telecomUses) {
-        matches = ContactPointUtil.find(patient.getTelecom(), system, use);
-        sb.append(COMMA);
-        if (matches.size() > 0) {
-          sb.append(matches.get(0).getValue());
+    String[] toArray() {
+      return values.toArray(new String[values.size()]);
+    }
+  }
+
+  /**
+   * Returns the layout for the current configuration, compiling it on first
+   * use.
+   */
+  private Layout getLayout() {
+    Layout current = layout;
+    if (current == null) {
+      final ValueRow available = new ValueRow(24);
+      columns(available);
+      final String[] availableNames = available.toArray();
+      final boolean[] selected = select(availableNames, columns);
+
+      final StringBuilder headers = new StringBuilder(INITIAL_ROW_LENGTH);
+      final CsvRow headerRow = new CsvRow();
+      headerRow.start(headers);
+      columns(new SelectedFields(selected, headerRow));
+      final ValueRow names = new ValueRow(availableNames.length);
+      columns(new SelectedFields(selected, names));
+
+      current = new Layout(new PatientFieldExtractor(identifierSystems,
+          nameUses, nameParts, telecomSystems, telecomUses, selected),
+          headers.toString(), names.toArray(), availableNames);
+      layout = current;
+    }
+    return current;
+  }
+
+  /**
+   * @return true for each available column that is selected; null when all
+   *         are selected
+   * @throws IllegalArgumentException
+   *           when a selected column is not available
+   */
+  private static boolean[] select(String[] available, String[] columns) {
+    if (columns == null) {
+      return null;
+    }
+    final boolean[] selected = new boolean[available.length];
+    for (String column : columns) {
+      boolean found = false;
+      for (int i = 0; i < available.length; i++) {
+        if (available[i].equals(column)) {
+          selected[i] = true;
+          found = true;
         }
       }
+      if (!found) {
+        throw new IllegalArgumentException("Unknown column: " + column);
+      }
     }
-
-    return sb.toString();
+    return selected;
   }
 
   /**
@@ -256,10 +464,13 @@ public class SimplePatientCsvFormat {
    *          the nameParts to set
    */
   public final void setNameParts(String[] nameParts) {
-    this.nameParts = new String[nameParts.length];
+    // complete the new configuration before other threads can see it
+    final String[] lowered = new String[nameParts.length];
     for (int i = 0; i < nameParts.length; i++) {
-      this.nameParts[i] = nameParts[i].toLowerCase();
+      lowered[i] = nameParts[i].toLowerCase();
     }
+    this.nameParts = lowered;
+    layout = null;
   }
 
   /**
@@ -274,10 +485,34 @@ public class SimplePatientCsvFormat {
    *          the nameUses to set
    */
   public final void setNameUses(String[] nameUses) {
-    this.nameUses = new String[nameUses.length];
+    // complete the new configuration before other threads can see it
+    final String[] lowered = new String[nameUses.length];
     for (int i = 0; i < nameUses.length; i++) {
-      this.nameUses[i] = nameUses[i].toLowerCase();
+      lowered[i] = nameUses[i].toLowerCase();
     }
+    this.nameUses = lowered;
+    layout = null;
   }
 
+  /**
+   * @return names of the selected columns, or null when all are written
+   */
+  public final String[] getColumns() {
+    return columns != null ? columns.clone() : null;
+  }
+
+  /**
+   * @param columns
+   *          names of the columns to write, as returned by
+   *          {@link #getAvailableColumnNames()}; null to write all
+   * @throws IllegalArgumentException
+   *           when a column is not available in the current configuration
+   */
+  public final void setColumns(String[] columns) {
+    final String[] selection = columns != null ? columns.clone() : null;
+    // fail now rather than when the first row is formatted
+    select(getAvailableColumnNames(), selection);
+    this.columns = selection;
+    layout = null;
+  }
 }
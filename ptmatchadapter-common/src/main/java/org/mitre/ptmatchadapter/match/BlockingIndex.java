@@ -0,0 +1,394 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Groups records that share a blocking key value, one grouping per blocking
+ * pass, and enumerates the pairs of records that share a block: the
+ * candidate pairs worth comparing.
+ *
+ * <p>
+ * Records are identified by their position in the indexed list. The blocks
+ * of each pass are held in flat int arrays (block of each record, first
+ * member of each block, members grouped by block), so the index takes about
+ * twelve bytes per record per pass no matter how many records there are. A
+ * pair that shares a block in more than one pass is emitted only by the first
+ * of them, so no set of emitted pairs is kept.
+ * </p>
+ *
+ * <p>
+ * Blocks larger than the maximum block size (e.g., a common family name
+ * born in a common month) would produce a number of pairs that grows with
+ * the square of their size and are skipped; their records remain candidates
+ * through the other passes.
+ * </p>
+ *
+ * <p>
+ * An index is immutable once built and may be shared between threads, each
+ * enumerating a different range of blocks. A {@link RecordSetCache} saves
+ * the index of a cached record set with its records.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class BlockingIndex {
+
+  /**
+   * Receives candidate pairs as they are enumerated.
+   */
+  public interface CandidatePairHandler {
+    /**
+     * @param left
+     *          position of the first record of the pair
+     * @param right
+     *          position of the second record of the pair; greater than left
+     */
+    void candidate(int left, int right);
+  }
+
+  private final int numRecords;
+  private final int maxBlockSize;
+
+  /** block of each record, by pass; -1 when the record has no key value. */
+  private final int[][] blockOf;
+  /** position in members of the first member of each block, by pass. */
+  private final int[][] blockStart;
+  /** records grouped by block, in record order within a block, by pass. */
+  private final int[][] members;
+
+  private BlockingIndex(int numRecords, int maxBlockSize, int[][] blockOf,
+      int[][] blockStart, int[][] members) {
+    this.numRecords = numRecords;
+    this.maxBlockSize = maxBlockSize;
+    this.blockOf = blockOf;
+    this.blockStart = blockStart;
+    this.members = members;
+  }
+
+  /**
+   * Builds an index from the key values of each record.
+   *
+   * @param keys
+   *          key value of each record, by pass; {@link BlockingKey#MISSING}
+   *          when a record has no value, so is not blocked in that pass
+   * @param maxBlockSize
+   *          largest block whose pairs are enumerated; 0 or less for no
+   *          limit
+   * @return the index
+   */
+  public static BlockingIndex build(long[][] keys, int maxBlockSize) {
+    final int numPasses = keys.length;
+    final int numRecords = numPasses > 0 ? keys[0].length : 0;
+    final int[][] blockOf = new int[numPasses][];
+    final int[][] blockStart = new int[numPasses][];
+    final int[][] members = new int[numPasses][];
+
+    for (int pass = 0; pass < numPasses; pass++) {
+      final long[] passKeys = keys[pass];
+      if (passKeys.length != numRecords) {
+        throw new IllegalArgumentException("Pass " + pass + " has "
+            + passKeys.length + " keys; expected " + numRecords);
+      }
+
+      // number the distinct key values in order of first appearance
+      final LongIntHashMap blockNums = new LongIntHashMap(
+          Math.max(16, numRecords / 4));
+      final int[] recordBlock = new int[numRecords];
+      int[] counts = new int[Math.max(16, numRecords / 4)];
+      int numBlocks = 0;
+      int numBlocked = 0;
+      for (int r = 0; r < numRecords; r++) {
+        if (passKeys[r] == BlockingKey.MISSING) {
+          recordBlock[r] = -1;
+          continue;
+        }
+        final int block = blockNums.getOrPut(passKeys[r], numBlocks);
+        if (block == numBlocks) {
+          numBlocks++;
+          if (numBlocks > counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+          }
+        }
+        recordBlock[r] = block;
+        counts[block]++;
+        numBlocked++;
+      }
+
+      // lay the blocks out one after another
+      final int[] start = new int[numBlocks + 1];
+      for (int b = 0; b < numBlocks; b++) {
+        start[b + 1] = start[b] + counts[b];
+      }
+      final int[] fill = Arrays.copyOf(start, numBlocks);
+      final int[] passMembers = new int[numBlocked];
+      for (int r = 0; r < numRecords; r++) {
+        if (recordBlock[r] >= 0) {
+          passMembers[fill[recordBlock[r]]++] = r;
+        }
+      }
+
+      blockOf[pass] = recordBlock;
+      blockStart[pass] = start;
+      members[pass] = passMembers;
+    }
+    return new BlockingIndex(numRecords, maxBlockSize, blockOf, blockStart,
+        members);
+  }
+
+  /**
+   * Writes the index, to be read back by {@link #read(DataInputStream)}.
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(numRecords);
+    out.writeInt(maxBlockSize);
+    out.writeInt(blockOf.length);
+    for (int pass = 0; pass < blockOf.length; pass++) {
+      writeInts(out, blockOf[pass]);
+      writeInts(out, blockStart[pass]);
+      writeInts(out, members[pass]);
+    }
+  }
+
+  /**
+   * Reads an index written by {@link #write(DataOutputStream)}.
+   */
+  static BlockingIndex read(DataInputStream in) throws IOException {
+    final int numRecords = in.readInt();
+    final int maxBlockSize = in.readInt();
+    final int numPasses = in.readInt();
+    final int[][] blockOf = new int[numPasses][];
+    final int[][] blockStart = new int[numPasses][];
+    final int[][] members = new int[numPasses][];
+    for (int pass = 0; pass < numPasses; pass++) {
+      blockOf[pass] = readInts(in);
+      blockStart[pass] = readInts(in);
+      members[pass] = readInts(in);
+      if (blockOf[pass].length != numRecords) {
+        throw new IOException("Pass " + pass + " indexes "
+            + blockOf[pass].length + " records; expected " + numRecords);
+      }
+    }
+    return new BlockingIndex(numRecords, maxBlockSize, blockOf, blockStart,
+        members);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values)
+      throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    final int[] values = new int[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  /**
+   * @return number of records indexed
+   */
+  public int size() {
+    return numRecords;
+  }
+
+  /**
+   * @return number of blocking passes
+   */
+  public int getPassCount() {
+    return blockOf.length;
+  }
+
+  /**
+   * @return largest block whose pairs are enumerated; 0 or less for no limit
+   */
+  public int getMaxBlockSize() {
+    return maxBlockSize;
+  }
+
+  /**
+   * @return number of blocks of the given pass
+   */
+  public int getBlockCount(int pass) {
+    return blockStart[pass].length - 1;
+  }
+
+  /**
+   * @return number of records in the given block of the given pass
+   */
+  public int getBlockSize(int pass, int block) {
+    return blockStart[pass][block + 1] - blockStart[pass][block];
+  }
+
+  /**
+   * @return block of the given record in the given pass; -1 when the record
+   *         is not blocked in that pass
+   */
+  public int getBlock(int pass, int record) {
+    return blockOf[pass][record];
+  }
+
+  /**
+   * @return true when the pairs of the given block of the given pass are not
+   *         enumerated, the block being larger than the maximum block size
+   */
+  public boolean isSkipped(int pass, int block) {
+    return maxBlockSize > 0 && getBlockSize(pass, block) > maxBlockSize;
+  }
+
+  /**
+   * @return number of blocks of the given pass that are too large to
+   *         enumerate
+   */
+  public int getSkippedBlockCount(int pass) {
+    int skipped = 0;
+    for (int b = 0; b < getBlockCount(pass); b++) {
+      if (isSkipped(pass, b)) {
+        skipped++;
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * @return bytes held by the index's arrays
+   */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (int pass = 0; pass < blockOf.length; pass++) {
+      bytes += 4L * (blockOf[pass].length + blockStart[pass].length
+          + members[pass].length);
+    }
+    return bytes;
+  }
+
+  /**
+   * Hands every candidate pair of every pass to the handler.
+   *
+   * @return number of pairs handed to the handler
+   */
+  public long forEachCandidate(CandidatePairHandler handler) {
+    long numPairs = 0;
+    for (int pass = 0; pass < blockOf.length; pass++) {
+      numPairs += forEachCandidate(pass, 0, getBlockCount(pass), handler);
+    }
+    return numPairs;
+  }
+
+  /**
+   * Hands the candidate pairs of a range of blocks of one pass to the
+   * handler. Pairs already enumerated by an earlier pass are left out, so
+   * the ranges of all passes together enumerate each pair once.
+   *
+   * @param pass
+   *          blocking pass
+   * @param fromBlock
+   *          first block, inclusive
+   * @param toBlock
+   *          last block, exclusive
+   * @return number of pairs handed to the handler
+   */
+  public long forEachCandidate(int pass, int fromBlock, int toBlock,
+      CandidatePairHandler handler) {
+    final int[] start = blockStart[pass];
+    final int[] passMembers = members[pass];
+    long numPairs = 0;
+    for (int b = fromBlock; b < toBlock; b++) {
+      if (isSkipped(pass, b)) {
+        continue;
+      }
+      final int end = start[b + 1];
+      for (int i = start[b]; i < end; i++) {
+        final int left = passMembers[i];
+        for (int j = i + 1; j < end; j++) {
+          final int right = passMembers[j];
+          if (!pairedBefore(pass, left, right)) {
+            handler.candidate(left, right);
+            numPairs++;
+          }
+        }
+      }
+    }
+    return numPairs;
+  }
+
+  /**
+   * Hands every candidate pair that includes the given record to the
+   * handler, each once.
+   *
+   * @param record
+   *          position of a record
+   * @return number of pairs handed to the handler
+   */
+  public long forEachCandidateOf(int record, CandidatePairHandler handler) {
+    long numPairs = 0;
+    for (int pass = 0; pass < blockOf.length; pass++) {
+      final int b = blockOf[pass][record];
+      if (b < 0 || isSkipped(pass, b)) {
+        continue;
+      }
+      final int end = blockStart[pass][b + 1];
+      for (int i = blockStart[pass][b]; i < end; i++) {
+        final int other = members[pass][i];
+        if (other == record) {
+          continue;
+        }
+        final int left = Math.min(record, other);
+        final int right = Math.max(record, other);
+        if (!pairedBefore(pass, left, right)) {
+          handler.candidate(left, right);
+          numPairs++;
+        }
+      }
+    }
+    return numPairs;
+  }
+
+  /**
+   * @return number of candidate pairs of all passes
+   */
+  public long countCandidates() {
+    return forEachCandidate(new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        // counted by forEachCandidate
+      }
+    });
+  }
+
+  /**
+   * @return true when an earlier pass enumerates the pair
+   */
+  private boolean pairedBefore(int pass, int left, int right) {
+    for (int p = 0; p < pass; p++) {
+      final int b = blockOf[p][left];
+      if (b >= 0 && b == blockOf[p][right] && !isSkipped(p, b)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.ContactPoint;
+import org.hl7.fhir.instance.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.instance.model.HumanName;
+import org.hl7.fhir.instance.model.Identifier;
+import org.hl7.fhir.instance.model.Patient;
+import org.mitre.ptmatchadapter.util.Phonetics;
+
+/**
+ * A Patient property on which records are blocked, reduced to a number.
+ * Records whose numbers are equal are candidates for comparison.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public enum BlockingKey {
+  /** Soundex code of the family name. */
+  FAMILY_SOUNDEX("familySoundex") {
+    @Override
+    long extract(Patient patient) {
+      return pack(Phonetics.soundex(getFamilyName(patient)));
+    }
+  },
+
+  /** NYSIIS code of the family name. */
+  FAMILY_NYSIIS("familyNysiis") {
+    @Override
+    long extract(Patient patient) {
+      return pack(Phonetics.nysiis(getFamilyName(patient)));
+    }
+  },
+
+  /** year and month of birth, in the local time zone. */
+  BIRTH_YEAR_MONTH("birthYearMonth") {
+    @Override
+    long extract(Patient patient) {
+      final Date dob = patient.getBirthDate();
+      if (dob == null) {
+        return MISSING;
+      }
+      // same local date as the DOB column of the CSV format
+      final LocalDate date = dob.toInstant().atZone(ZoneId.systemDefault())
+          .toLocalDate();
+      return date.getYear() * 12L + date.getMonthValue() - 1;
+    }
+  },
+
+  /** last four digits of the social security number. */
+  SSN_LAST4("ssnLast4") {
+    @Override
+    long extract(Patient patient) {
+      final List<Identifier> identifiers = patient.getIdentifier();
+      for (int i = 0; i < identifiers.size(); i++) {
+        final Identifier id = identifiers.get(i);
+        if (SSN_SYSTEM.equals(id.getSystem())) {
+          return lastDigits(id.getValue());
+        }
+      }
+      return MISSING;
+    }
+  },
+
+  /** last four digits of the first phone number. */
+  PHONE_SUFFIX("phoneSuffix") {
+    @Override
+    long extract(Patient patient) {
+      final List<ContactPoint> telecoms = patient.getTelecom();
+      for (int i = 0; i < telecoms.size(); i++) {
+        final ContactPoint cp = telecoms.get(i);
+        if (ContactPointSystem.PHONE.equals(cp.getSystem())
+            && cp.getValue() != null && !cp.getValue().isEmpty()) {
+          return lastDigits(cp.getValue());
+        }
+      }
+      return MISSING;
+    }
+  };
+
+  /** number of a property the patient does not have. */
+  public static final long MISSING = Long.MIN_VALUE;
+
+  /** identifier system of social security numbers, as in the CSV format. */
+  static final String SSN_SYSTEM = "SSN";
+
+  private static final int SUFFIX_DIGITS = 4;
+
+  private final String name;
+
+  private BlockingKey(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the patient's number for this key, or {@link #MISSING}
+   */
+  abstract long extract(Patient patient);
+
+  /**
+   * @return name by which the key is configured (e.g., familySoundex)
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param name
+   *          name by which a key is configured (e.g., familySoundex)
+   * @return the named key
+   * @throws IllegalArgumentException
+   *           when no key has the given name
+   */
+  public static BlockingKey forName(String name) {
+    for (BlockingKey key : values()) {
+      if (key.name.equals(name)) {
+        return key;
+      }
+    }
+    throw new IllegalArgumentException("Unknown blocking key: " + name);
+  }
+
+  /**
+   * @return family name of the first name that has one; empty when none has
+   */
+  static String getFamilyName(Patient patient) {
+    final List<HumanName> names = patient.getName();
+    for (int i = 0; i < names.size(); i++) {
+      final HumanName name = names.get(i);
+      if (!name.getFamily().isEmpty()) {
+        final String family = name.getFamily().get(0).getValue();
+        if (family != null && !family.isEmpty()) {
+          return family;
+        }
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Packs up to ten letters and digits into a number, six bits apiece.
+   */
+  static long pack(String code) {
+    if (code.isEmpty()) {
+      return MISSING;
+    }
+    long packed = 0;
+    final int len = Math.min(code.length(), 10);
+    for (int i = 0; i < len; i++) {
+      final char c = code.charAt(i);
+      final int v = c >= 'A' && c <= 'Z' ? c - 'A' + 1 : c - '0' + 27;
+      packed = (packed << 6) | (v & 0x3F);
+    }
+    return packed;
+  }
+
+  /**
+   * @return the last four digits of the value, or MISSING when it has fewer
+   */
+  static long lastDigits(String value) {
+    if (value == null) {
+      return MISSING;
+    }
+    long digits = 0;
+    long scale = 1;
+    int found = 0;
+    for (int i = value.length() - 1; i >= 0 && found < SUFFIX_DIGITS; i--) {
+      final char c = value.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits += (c - '0') * scale;
+        scale *= 10;
+        found++;
+      }
+    }
+    return found == SUFFIX_DIGITS ? digits : MISSING;
+  }
+}
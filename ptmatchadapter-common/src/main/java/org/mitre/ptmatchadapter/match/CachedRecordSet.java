@@ -0,0 +1,509 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The records of a search kept between record-match requests, with the
+ * times at which they were retrieved, so that a later request need retrieve
+ * only the records updated since, and the matches found among them, so that
+ * a later deduplication need score only the pairs of the records added or
+ * changed since.
+ *
+ * <p>
+ * Records are identified by fullUrl: a record retrieved again replaces the
+ * values it had. A record whose version id (or, when it has none, whose
+ * values and keys) is the same as before is unchanged. The schema names the
+ * columns and blocking passes the values and keys were computed with;
+ * records computed with another schema are not reused.
+ * </p>
+ *
+ * <p>
+ * Since the matches were found, the records added or changed are unmatched
+ * and the blocking key values of the records replaced or dropped are kept,
+ * so that it can be told whether any block has crossed the maximum block
+ * size, which changes the candidate pairs of records that are unchanged.
+ * </p>
+ *
+ * <p>
+ * Once built, the blocking index of the records is kept with them, and
+ * saved with them, until a record is added, changed or dropped.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class CachedRecordSet {
+  private final String schema;
+  private final MatchRecords records;
+
+  /** position of each record by fullUrl; built when first needed. */
+  private Map<String, Integer> positions;
+
+  /** time at which the last retrieval of every record began. */
+  private final long loadedAt;
+
+  /** time at which the last retrieval, full or not, began. */
+  private long refreshedAt;
+
+  /** settings with which the matches were found; null when none were. */
+  private String matchSettings;
+
+  private MatchPairs matches = new MatchPairs();
+
+  /** blocking index of the records; null until built or once they change. */
+  private BlockingIndex index;
+
+  /** records added or changed since the matches were found. */
+  private final BitSet unmatched = new BitSet();
+
+  /** key values of the records replaced or dropped, by pass. */
+  private final long[][] removedKeys;
+  private int numRemoved = 0;
+
+  /** true when updated since last saved. */
+  private boolean changed;
+
+  /**
+   * @param schema
+   *          columns and blocking passes of the records
+   * @param records
+   *          every record of the search
+   * @param loadedAt
+   *          time in milliseconds at which the records began to be retrieved
+   */
+  public CachedRecordSet(String schema, MatchRecords records, long loadedAt) {
+    this(schema, records, loadedAt, loadedAt);
+    this.changed = true;
+  }
+
+  CachedRecordSet(String schema, MatchRecords records, long loadedAt,
+      long refreshedAt) {
+    this.schema = schema;
+    this.records = records;
+    this.loadedAt = loadedAt;
+    this.refreshedAt = refreshedAt;
+    this.removedKeys = new long[records.getPassCount()][16];
+  }
+
+  /**
+   * Adds records that are new and replaces those retrieved before.
+   *
+   * @param updated
+   *          records updated since the last retrieval
+   * @param retrievedAt
+   *          time in milliseconds at which the updated records began to be
+   *          retrieved
+   * @return number of records added or changed
+   */
+  public int update(MatchRecords updated, long retrievedAt) {
+    final Map<String, Integer> recordPositions = getPositions();
+    int numChanged = 0;
+    for (int r = 0; r < updated.size(); r++) {
+      final String fullUrl = updated.getFullUrl(r);
+      final Integer position = recordPositions.get(fullUrl);
+      if (position == null) {
+        final int added = records.add(fullUrl, updated.getVersion(r),
+            updated.getValues(r), keysOf(updated, r));
+        recordPositions.put(fullUrl, added);
+        unmatched.set(added);
+        numChanged++;
+      } else if (!isSame(records, position, updated, r)) {
+        removeKeys(records, position);
+        records.set(position, updated.getVersion(r), updated.getValues(r),
+            keysOf(updated, r));
+        unmatched.set(position);
+        numChanged++;
+      }
+    }
+    if (numChanged > 0) {
+      index = null;
+    }
+    refreshedAt = retrievedAt;
+    changed = true;
+    return numChanged;
+  }
+
+  /**
+   * Returns a set of the records of this set that are among the given
+   * records, keeping the matches of the records kept. Records that are not
+   * among the given records have been deleted, or no longer match the
+   * search, and are dropped with their matches.
+   *
+   * @param fullUrls
+   *          fullUrl of every record of the search
+   * @return the new set, or this set when no record is dropped
+   */
+  public CachedRecordSet retain(Set<String> fullUrls) {
+    final MatchRecords kept = new MatchRecords(records.getColumnNames(),
+        records.getPassCount(), records.isUpperCase());
+    final int[] newPositions = new int[records.size()];
+    for (int r = 0; r < records.size(); r++) {
+      final String fullUrl = records.getFullUrl(r);
+      newPositions[r] = fullUrls.contains(fullUrl)
+          ? kept.add(fullUrl, records.getVersion(r), records.getValues(r),
+              keysOf(records, r))
+          : -1;
+    }
+    if (kept.size() == records.size()) {
+      return this;
+    }
+
+    final CachedRecordSet retained = new CachedRecordSet(schema, kept,
+        loadedAt, refreshedAt);
+    for (int r = 0; r < records.size(); r++) {
+      if (newPositions[r] < 0) {
+        retained.removeKeys(records, r);
+      } else if (unmatched.get(r)) {
+        retained.unmatched.set(newPositions[r]);
+      }
+    }
+    for (int i = 0; i < numRemoved; i++) {
+      retained.removeKeys(removedKeys, i);
+    }
+
+    for (int i = 0; i < matches.size(); i++) {
+      final int left = newPositions[matches.getLeft(i)];
+      final int right = newPositions[matches.getRight(i)];
+      if (left >= 0 && right >= 0) {
+        retained.matches.match(left, right, matches.getScore(i));
+      }
+    }
+    retained.matchSettings = matchSettings;
+    retained.changed = true;
+    return retained;
+  }
+
+  /**
+   * Returns a set of the given records, all the records of the search
+   * retrieved again, that keeps the matches of the records that are
+   * unchanged. Records of this set that are not among the given records
+   * have been deleted, or no longer match the search, and are dropped.
+   *
+   * @param all
+   *          every record of the search
+   * @param retrievedAt
+   *          time in milliseconds at which the records began to be retrieved
+   * @return the new set
+   */
+  public CachedRecordSet reload(MatchRecords all, long retrievedAt) {
+    final CachedRecordSet reloaded = new CachedRecordSet(schema, all,
+        retrievedAt);
+    if (matchSettings == null) {
+      return reloaded;
+    }
+
+    final Map<String, Integer> recordPositions = getPositions();
+    final int[] newPositions = new int[records.size()];
+    Arrays.fill(newPositions, -1);
+    for (int r = 0; r < all.size(); r++) {
+      final Integer position = recordPositions.get(all.getFullUrl(r));
+      if (position != null && !unmatched.get(position)
+          && isSame(records, position, all, r)) {
+        newPositions[position] = r;
+      } else {
+        reloaded.unmatched.set(r);
+      }
+    }
+    for (int r = 0; r < records.size(); r++) {
+      if (newPositions[r] < 0) {
+        reloaded.removeKeys(records, r);
+      }
+    }
+    for (int i = 0; i < numRemoved; i++) {
+      reloaded.removeKeys(removedKeys, i);
+    }
+
+    for (int i = 0; i < matches.size(); i++) {
+      final int left = newPositions[matches.getLeft(i)];
+      final int right = newPositions[matches.getRight(i)];
+      if (left >= 0 && right >= 0) {
+        reloaded.matches.match(Math.min(left, right), Math.max(left, right),
+            matches.getScore(i));
+      }
+    }
+    reloaded.matchSettings = matchSettings;
+    return reloaded;
+  }
+
+  /**
+   * Tells whether the matches may be brought up to date by scoring only the
+   * pairs of the unmatched records: the matches were found with the given
+   * settings, and no block that gained or lost records since may have
+   * crossed the maximum block size.
+   *
+   * @param settings
+   *          settings with which matches are to be found
+   * @param index
+   *          blocking index of the records
+   * @return true when the matches may be brought up to date
+   */
+  public boolean isRematchable(String settings, BlockingIndex index) {
+    if (!settings.equals(matchSettings)) {
+      return false;
+    }
+    final int maxBlockSize = index.getMaxBlockSize();
+    if (maxBlockSize <= 0) {
+      return true;
+    }
+
+    // blocks that gained records
+    for (int r = unmatched.nextSetBit(0); r >= 0; r = unmatched.nextSetBit(r + 1)) {
+      for (int pass = 0; pass < index.getPassCount(); pass++) {
+        final int block = index.getBlock(pass, r);
+        if (block >= 0 && index.isSkipped(pass, block)) {
+          return false;
+        }
+      }
+    }
+
+    // blocks that lost records, which may have been too large before
+    for (int pass = 0; pass < removedKeys.length && numRemoved > 0; pass++) {
+      final long[] sorted = Arrays.copyOf(removedKeys[pass], numRemoved);
+      Arrays.sort(sorted);
+      final long[] lostKeys = new long[sorted.length];
+      final int[] numLost = new int[sorted.length];
+      int numKeys = 0;
+      for (long key : sorted) {
+        if (key == BlockingKey.MISSING) {
+          continue;
+        }
+        if (numKeys > 0 && lostKeys[numKeys - 1] == key) {
+          numLost[numKeys - 1]++;
+        } else {
+          lostKeys[numKeys] = key;
+          numLost[numKeys++] = 1;
+        }
+      }
+
+      final int[] sizes = new int[numKeys];
+      for (int r = 0; r < records.size(); r++) {
+        final int i = Arrays.binarySearch(lostKeys, 0, numKeys,
+            records.getKey(pass, r));
+        if (i >= 0) {
+          sizes[i]++;
+        }
+      }
+      for (int i = 0; i < numKeys; i++) {
+        if (sizes[i] <= maxBlockSize && sizes[i] + numLost[i] > maxBlockSize) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the matches found among every record, which are then matched.
+   *
+   * @param settings
+   *          settings with which the matches were found
+   * @param found
+   *          matches among every record
+   */
+  public void setMatches(String settings, MatchPairs found) {
+    matchSettings = settings;
+    matches = found;
+    unmatched.clear();
+    numRemoved = 0;
+    changed = true;
+  }
+
+  /**
+   * Returns the blocking index of the records, building it when the records
+   * have changed since it was built or it was built with another maximum
+   * block size.
+   *
+   * @param maxBlockSize
+   *          largest block whose pairs are enumerated; 0 or less for no limit
+   * @return the index
+   */
+  public BlockingIndex getIndex(int maxBlockSize) {
+    if (index == null || index.getMaxBlockSize() != maxBlockSize
+        || index.size() != records.size()) {
+      index = records.index(maxBlockSize);
+      changed = true;
+    }
+    return index;
+  }
+
+  private Map<String, Integer> getPositions() {
+    if (positions == null) {
+      positions = new HashMap<String, Integer>(records.size() * 2);
+      for (int r = 0; r < records.size(); r++) {
+        positions.put(records.getFullUrl(r), r);
+      }
+    }
+    return positions;
+  }
+
+  /**
+   * @return true when a record has the same version as another or, when
+   *         either has no version, the same values and keys
+   */
+  private static boolean isSame(MatchRecords records1, int record1,
+      MatchRecords records2, int record2) {
+    final String version1 = records1.getVersion(record1);
+    final String version2 = records2.getVersion(record2);
+    if (version1 != null && version2 != null) {
+      return version1.equals(version2);
+    }
+    return Arrays.equals(records1.getValues(record1),
+        records2.getValues(record2))
+        && Arrays.equals(keysOf(records1, record1), keysOf(records2, record2));
+  }
+
+  private static long[] keysOf(MatchRecords records, int record) {
+    final long[] keys = new long[records.getPassCount()];
+    for (int pass = 0; pass < keys.length; pass++) {
+      keys[pass] = records.getKey(pass, record);
+    }
+    return keys;
+  }
+
+  private void removeKeys(MatchRecords from, int record) {
+    ensureRemovedCapacity();
+    for (int pass = 0; pass < removedKeys.length; pass++) {
+      removedKeys[pass][numRemoved] = from.getKey(pass, record);
+    }
+    numRemoved++;
+  }
+
+  private void removeKeys(long[][] from, int i) {
+    ensureRemovedCapacity();
+    for (int pass = 0; pass < removedKeys.length; pass++) {
+      removedKeys[pass][numRemoved] = from[pass][i];
+    }
+    numRemoved++;
+  }
+
+  private void ensureRemovedCapacity() {
+    for (int pass = 0; pass < removedKeys.length; pass++) {
+      if (numRemoved == removedKeys[pass].length) {
+        removedKeys[pass] = Arrays.copyOf(removedKeys[pass], numRemoved * 2);
+      }
+    }
+  }
+
+  /**
+   * @return the columns and blocking passes of the records
+   */
+  public String getSchema() {
+    return schema;
+  }
+
+  /**
+   * @return the records; not to be modified but through
+   *         {@link #update(MatchRecords, long)}
+   */
+  public MatchRecords getRecords() {
+    return records;
+  }
+
+  /**
+   * @return time in milliseconds at which the last retrieval of every
+   *         record began
+   */
+  public long getLoadedAt() {
+    return loadedAt;
+  }
+
+  /**
+   * @return time in milliseconds at which the last retrieval began
+   */
+  public long getRefreshedAt() {
+    return refreshedAt;
+  }
+
+  /**
+   * @return settings with which the matches were found; null when none were
+   */
+  public String getMatchSettings() {
+    return matchSettings;
+  }
+
+  /**
+   * @return the matches found; those of unmatched records may be out of date
+   */
+  public MatchPairs getMatches() {
+    return matches;
+  }
+
+  /**
+   * @return positions of the records added or changed since the matches were
+   *         found; not to be modified
+   */
+  public BitSet getUnmatched() {
+    return unmatched;
+  }
+
+  /**
+   * @return number of records replaced or dropped since the matches were
+   *         found
+   */
+  public int getRemovedCount() {
+    return numRemoved;
+  }
+
+  /**
+   * @return key value of a record replaced or dropped since the matches were
+   *         found
+   */
+  long getRemovedKey(int pass, int i) {
+    return removedKeys[pass][i];
+  }
+
+  /**
+   * Restores the matches as they were saved.
+   */
+  void restoreMatches(String settings, MatchPairs saved, BitSet savedUnmatched,
+      long[][] savedRemovedKeys, int savedRemoved) {
+    matchSettings = settings;
+    matches = saved;
+    unmatched.or(savedUnmatched);
+    for (int i = 0; i < savedRemoved; i++) {
+      removeKeys(savedRemovedKeys, i);
+    }
+  }
+
+  /**
+   * @return the blocking index as last built; null when there is none
+   */
+  BlockingIndex getBuiltIndex() {
+    return index;
+  }
+
+  /**
+   * Restores the blocking index as it was saved.
+   */
+  void restoreIndex(BlockingIndex saved) {
+    index = saved;
+  }
+
+  boolean isChanged() {
+    return changed;
+  }
+
+  void setChanged(boolean changed) {
+    this.changed = changed;
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import org.mitre.ptmatchadapter.util.StringSimilarity;
+
+/**
+ * Compares the values of a field of two records. Values are compared as they
+ * are; {@link MatchRecords} upper-cases them when records are added.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public enum FieldComparator {
+  /** values agree when they are equal. */
+  EXACT("exact") {
+    @Override
+    public double similarity(String value1, String value2) {
+      return value1.equals(value2) ? 1. : 0.;
+    }
+  },
+
+  /** Jaro-Winkler similarity, for names. */
+  JARO_WINKLER("jaroWinkler") {
+    @Override
+    public double similarity(String value1, String value2) {
+      return StringSimilarity.jaroWinkler(value1, value2);
+    }
+  },
+
+  /** scaled edit distance, for numbers and dates. */
+  EDIT_DISTANCE("editDistance") {
+    @Override
+    public double similarity(String value1, String value2) {
+      return StringSimilarity.editSimilarity(value1, value2);
+    }
+
+    @Override
+    public double similarity(String value1, String value2,
+        double minSimilarity) {
+      // values far apart are given up on before their distance is known
+      return StringSimilarity.editSimilarity(value1, value2, minSimilarity);
+    }
+  };
+
+  private final String name;
+
+  private FieldComparator(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return 1 when the values are alike, down to 0 when they are not
+   */
+  public abstract double similarity(String value1, String value2);
+
+  /**
+   * Compares values whose similarity is of interest only when it reaches the
+   * given minimum, which some comparators use to stop early.
+   *
+   * @param minSimilarity
+   *          lowest similarity of interest
+   * @return the similarity when it is at least minSimilarity; otherwise some
+   *         value less than minSimilarity
+   */
+  public double similarity(String value1, String value2,
+      double minSimilarity) {
+    return similarity(value1, value2);
+  }
+
+  /**
+   * @return name by which the comparator is configured (e.g., jaroWinkler)
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param name
+   *          name by which a comparator is configured (e.g., jaroWinkler)
+   * @return the named comparator
+   * @throws IllegalArgumentException
+   *           when no comparator has the given name
+   */
+  public static FieldComparator forName(String name) {
+    for (FieldComparator comparator : values()) {
+      if (comparator.name.equals(name)) {
+        return comparator;
+      }
+    }
+    throw new IllegalArgumentException("Unknown field comparator: " + name);
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long keys to int values, held in two
+ * primitive arrays so that a million keys take a few tens of megabytes
+ * rather than the hundred or more of a HashMap of boxed values.
+ *
+ * <p>
+ * {@link Long#MIN_VALUE} marks an empty slot and may not be used as a key.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+final class LongIntHashMap {
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size = 0;
+
+  /**
+   * @param expectedSize
+   *          number of keys the map is expected to hold
+   */
+  LongIntHashMap(int expectedSize) {
+    // at most half full, so probe sequences stay short
+    int capacity = 16;
+    while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Returns the value of the given key, adding the key with the given value
+   * when it is absent.
+   *
+   * @return the key's value; valueIfAbsent when the key was added
+   */
+  int getOrPut(long key, int valueIfAbsent) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("Unsupported key: " + key);
+    }
+    int slot = slot(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = valueIfAbsent;
+    if (++size * 2 > keys.length) {
+      grow();
+    }
+    return valueIfAbsent;
+  }
+
+  /**
+   * @return the key's value, or missingValue when the key is absent
+   */
+  int get(long key, int missingValue) {
+    int slot = slot(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return missingValue;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return bytes held by the map's arrays
+   */
+  long memoryBytes() {
+    return keys.length * 12L;
+  }
+
+  private int slot(long key) {
+    return (int) mix(key) & mask;
+  }
+
+  /**
+   * Spreads the bits of a key so that keys differing only in their high
+   * bits land in different slots.
+   */
+  static long mix(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private void grow() {
+    final long[] oldKeys = keys;
+    final int[] oldValues = values;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+/**
+ * A field compared by the probabilistic matcher and the evidence its
+ * agreement gives that two records are the same patient.
+ *
+ * <p>
+ * Following Fellegi and Sunter, m is the probability that the field agrees
+ * for records of the same patient and u the probability that it agrees for
+ * records of different patients. Agreement adds log2(m/u) to the weight of a
+ * pair; disagreement adds log2((1-m)/(1-u)), which is negative. Values whose
+ * similarity is between the threshold and 1 partially agree and add a weight
+ * proportionally between the two. A field blank in either record adds
+ * nothing.
+ * </p>
+ *
+ * <p>
+ * A field is configured as <code>column:comparator:m:u:threshold</code>
+ * (e.g., <code>name__family:jaroWinkler:0.9:0.01:0.85</code>), where column
+ * is a column of {@link org.mitre.ptmatchadapter.format.SimplePatientCsvFormat}
+ * and comparator names a {@link FieldComparator}. The threshold may be left
+ * out, in which case only equal values agree.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class MatchField {
+  private static final String SEPARATOR = ":";
+
+  private static final double LN2 = Math.log(2.);
+
+  private final String column;
+  private final FieldComparator comparator;
+  private final double m;
+  private final double u;
+  private final double threshold;
+  private final double agreementWeight;
+  private final double disagreementWeight;
+
+  /**
+   * @param column
+   *          column of the field
+   * @param comparator
+   *          compares the values of the field
+   * @param m
+   *          probability the field agrees for records of the same patient
+   * @param u
+   *          probability the field agrees for records of different patients
+   * @param threshold
+   *          lowest similarity of values that partially agree
+   * @throws IllegalArgumentException
+   *           when a probability is not between 0 and 1, exclusive, or the
+   *           threshold is not between 0 and 1, inclusive
+   */
+  public MatchField(String column, FieldComparator comparator, double m,
+      double u, double threshold) {
+    if (!(m > 0. && m < 1.) || !(u > 0. && u < 1.)) {
+      throw new IllegalArgumentException(
+          "m and u of " + column + " must be between 0 and 1");
+    }
+    if (!(threshold >= 0. && threshold <= 1.)) {
+      throw new IllegalArgumentException(
+          "Threshold of " + column + " must be between 0 and 1");
+    }
+    this.column = column;
+    this.comparator = comparator;
+    this.m = m;
+    this.u = u;
+    this.threshold = threshold;
+    this.agreementWeight = Math.log(m / u) / LN2;
+    this.disagreementWeight = Math.log((1. - m) / (1. - u)) / LN2;
+  }
+
+  /**
+   * Creates a field from its configuration.
+   *
+   * @param spec
+   *          column:comparator:m:u[:threshold]
+   * @return the field
+   * @throws IllegalArgumentException
+   *           when the configuration is not valid
+   */
+  public static MatchField parse(String spec) {
+    final String[] parts = spec.trim().split(SEPARATOR);
+    if (parts.length != 4 && parts.length != 5) {
+      throw new IllegalArgumentException("Invalid match field: " + spec);
+    }
+    try {
+      return new MatchField(parts[0].trim(),
+          FieldComparator.forName(parts[1].trim()),
+          Double.parseDouble(parts[2].trim()),
+          Double.parseDouble(parts[3].trim()),
+          parts.length == 5 ? Double.parseDouble(parts[4].trim()) : 1.);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid match field: " + spec, e);
+    }
+  }
+
+  /**
+   * Returns the weight of the evidence the given values give that their
+   * records are the same patient.
+   *
+   * @param value1
+   *          value of the first record; null or empty when blank
+   * @param value2
+   *          value of the second record; null or empty when blank
+   * @return weight between {@link #getDisagreementWeight()} and
+   *         {@link #getAgreementWeight()}; 0 when either value is blank
+   */
+  public double weight(String value1, String value2) {
+    if (value1 == null || value2 == null || value1.isEmpty()
+        || value2.isEmpty()) {
+      return 0.;
+    }
+    if (value1.equals(value2)) {
+      return agreementWeight;
+    }
+    final double similarity = comparator.similarity(value1, value2,
+        threshold);
+    if (similarity >= 1.) {
+      return agreementWeight;
+    }
+    if (similarity < threshold || threshold >= 1.) {
+      return disagreementWeight;
+    }
+    final double fraction = (similarity - threshold) / (1. - threshold);
+    return disagreementWeight
+        + fraction * (agreementWeight - disagreementWeight);
+  }
+
+  /**
+   * @return the column
+   */
+  public String getColumn() {
+    return column;
+  }
+
+  /**
+   * @return the comparator
+   */
+  public FieldComparator getComparator() {
+    return comparator;
+  }
+
+  /**
+   * @return the m probability
+   */
+  public double getM() {
+    return m;
+  }
+
+  /**
+   * @return the u probability
+   */
+  public double getU() {
+    return u;
+  }
+
+  /**
+   * @return the threshold
+   */
+  public double getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * @return weight of values that agree
+   */
+  public double getAgreementWeight() {
+    return agreementWeight;
+  }
+
+  /**
+   * @return weight of values that disagree
+   */
+  public double getDisagreementWeight() {
+    return disagreementWeight;
+  }
+
+  @Override
+  public String toString() {
+    return column + SEPARATOR + comparator.getName() + SEPARATOR + m
+        + SEPARATOR + u + SEPARATOR + threshold;
+  }
+}
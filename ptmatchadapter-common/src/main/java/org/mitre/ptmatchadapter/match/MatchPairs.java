@@ -0,0 +1,96 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Matches found among a set of records: the positions of the two records of
+ * each pair and its score, held in primitive arrays.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class MatchPairs implements ProbabilisticMatcher.MatchHandler {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] lefts = new int[INITIAL_CAPACITY];
+  private int[] rights = new int[INITIAL_CAPACITY];
+  private double[] scores = new double[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Adds a match.
+   */
+  @Override
+  public void match(int left, int right, double score) {
+    if (size == scores.length) {
+      final int capacity = size * 2;
+      lefts = Arrays.copyOf(lefts, capacity);
+      rights = Arrays.copyOf(rights, capacity);
+      scores = Arrays.copyOf(scores, capacity);
+    }
+    lefts[size] = left;
+    rights[size] = right;
+    scores[size++] = score;
+  }
+
+  /**
+   * @param records
+   *          positions of records
+   * @return the matches of which neither record is one of the given records
+   */
+  public MatchPairs without(BitSet records) {
+    final MatchPairs kept = new MatchPairs();
+    for (int i = 0; i < size; i++) {
+      if (!records.get(lefts[i]) && !records.get(rights[i])) {
+        kept.match(lefts[i], rights[i], scores[i]);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * @return number of matches
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return position of the first record of the given match
+   */
+  public int getLeft(int match) {
+    return lefts[match];
+  }
+
+  /**
+   * @return position of the second record of the given match; greater than
+   *         the first
+   */
+  public int getRight(int match) {
+    return rights[match];
+  }
+
+  /**
+   * @return probability the records of the given match are the same patient
+   */
+  public double getScore(int match) {
+    return scores[match];
+  }
+}
@@ -0,0 +1,306 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records to be matched, held in memory: the fullUrl, the resource version,
+ * the values of the compared columns and the blocking key values of each
+ * record. Records are identified by the order in which they are added.
+ *
+ * <p>
+ * Only the values are kept, not the resources they came from, so a million
+ * records take a few hundred megabytes. Values are upper-cased when added,
+ * so that comparisons need not fold case for every pair, unless the records
+ * are created to keep values as they are (e.g., for a matcher whose
+ * comparisons are case-sensitive). Records are added
+ * by one thread; once complete, the records may be read by any number of
+ * threads.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class MatchRecords {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final String[] columnNames;
+  private final int numPasses;
+  /** true to upper-case values as they are added. */
+  private final boolean upperCase;
+
+  private String[] fullUrls = new String[INITIAL_CAPACITY];
+  /** version id of each record's resource; null when unknown. */
+  private String[] versions = new String[INITIAL_CAPACITY];
+  private String[][] values = new String[INITIAL_CAPACITY][];
+  /** key value of each record, by pass. */
+  private long[][] keys;
+  private int size = 0;
+
+  /**
+   * @param columnNames
+   *          names of the columns of the values of each record
+   * @param numPasses
+   *          number of blocking key values of each record
+   */
+  public MatchRecords(String[] columnNames, int numPasses) {
+    this(columnNames, numPasses, true);
+  }
+
+  /**
+   * @param columnNames
+   *          names of the columns of the values of each record
+   * @param numPasses
+   *          number of blocking key values of each record
+   * @param upperCase
+   *          true to upper-case values as they are added; false to keep them
+   *          as they are
+   */
+  public MatchRecords(String[] columnNames, int numPasses, boolean upperCase) {
+    this.columnNames = columnNames.clone();
+    this.numPasses = numPasses;
+    this.upperCase = upperCase;
+    this.keys = new long[numPasses][INITIAL_CAPACITY];
+  }
+
+  /**
+   * Adds a record.
+   *
+   * @param fullUrl
+   *          fullUrl of the record's resource
+   * @param recordValues
+   *          values of the record, one per column; upper-cased in place
+   *          unless values are kept as they are
+   * @param recordKeys
+   *          blocking key values of the record, one per pass
+   * @return position of the record
+   */
+  public int add(String fullUrl, String[] recordValues, long[] recordKeys) {
+    return add(fullUrl, null, recordValues, recordKeys);
+  }
+
+  /**
+   * Adds a record of the given version.
+   *
+   * @param fullUrl
+   *          fullUrl of the record's resource
+   * @param version
+   *          version id of the record's resource; null when unknown
+   * @param recordValues
+   *          values of the record, one per column; upper-cased in place
+   *          unless values are kept as they are
+   * @param recordKeys
+   *          blocking key values of the record, one per pass
+   * @return position of the record
+   */
+  public int add(String fullUrl, String version, String[] recordValues,
+      long[] recordKeys) {
+    checkRecord(recordValues, recordKeys);
+    ensureCapacity(size + 1);
+    if (upperCase) {
+      upperCase(recordValues);
+    }
+    fullUrls[size] = fullUrl;
+    store(size, version, recordValues, recordKeys);
+    return size++;
+  }
+
+  /**
+   * Replaces the values and blocking key values of a record.
+   *
+   * @param record
+   *          position of the record
+   * @param recordValues
+   *          values of the record, one per column; upper-cased in place
+   *          unless values are kept as they are
+   * @param recordKeys
+   *          blocking key values of the record, one per pass
+   */
+  public void set(int record, String[] recordValues, long[] recordKeys) {
+    set(record, null, recordValues, recordKeys);
+  }
+
+  /**
+   * Replaces a record with another version.
+   *
+   * @param record
+   *          position of the record
+   * @param version
+   *          version id of the record's resource; null when unknown
+   * @param recordValues
+   *          values of the record, one per column; upper-cased in place
+   *          unless values are kept as they are
+   * @param recordKeys
+   *          blocking key values of the record, one per pass
+   */
+  public void set(int record, String version, String[] recordValues,
+      long[] recordKeys) {
+    if (record < 0 || record >= size) {
+      throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+    }
+    checkRecord(recordValues, recordKeys);
+    if (upperCase) {
+      upperCase(recordValues);
+    }
+    store(record, version, recordValues, recordKeys);
+  }
+
+  /**
+   * Adds every record of the given records, which must have the same columns,
+   * passes and casing. The values are shared, not copied.
+   */
+  public void addAll(MatchRecords other) {
+    if (!Arrays.equals(columnNames, other.columnNames)
+        || numPasses != other.numPasses || upperCase != other.upperCase) {
+      throw new IllegalArgumentException("Records of columns "
+          + Arrays.toString(other.columnNames) + " and " + other.numPasses
+          + " passes; expected " + Arrays.toString(columnNames) + " and "
+          + numPasses);
+    }
+    ensureCapacity(size + other.size);
+    System.arraycopy(other.fullUrls, 0, fullUrls, size, other.size);
+    System.arraycopy(other.versions, 0, versions, size, other.size);
+    System.arraycopy(other.values, 0, values, size, other.size);
+    for (int pass = 0; pass < numPasses; pass++) {
+      System.arraycopy(other.keys[pass], 0, keys[pass], size, other.size);
+    }
+    size += other.size;
+  }
+
+  private void checkRecord(String[] recordValues, long[] recordKeys) {
+    if (recordValues.length != columnNames.length
+        || recordKeys.length != numPasses) {
+      throw new IllegalArgumentException("Record of " + recordValues.length
+          + " values and " + recordKeys.length + " keys; expected "
+          + columnNames.length + " and " + numPasses);
+    }
+  }
+
+  private void ensureCapacity(int minCapacity) {
+    if (minCapacity > fullUrls.length) {
+      final int capacity = Math.max(minCapacity, fullUrls.length * 2);
+      fullUrls = Arrays.copyOf(fullUrls, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+      values = Arrays.copyOf(values, capacity);
+      for (int pass = 0; pass < numPasses; pass++) {
+        keys[pass] = Arrays.copyOf(keys[pass], capacity);
+      }
+    }
+  }
+
+  private static void upperCase(String[] recordValues) {
+    for (int i = 0; i < recordValues.length; i++) {
+      if (recordValues[i] != null) {
+        recordValues[i] = recordValues[i].toUpperCase(Locale.ROOT);
+      }
+    }
+  }
+
+  private void store(int record, String version, String[] recordValues,
+      long[] recordKeys) {
+    versions[record] = version;
+    values[record] = recordValues;
+    for (int pass = 0; pass < numPasses; pass++) {
+      keys[pass][record] = recordKeys[pass];
+    }
+  }
+
+  /**
+   * Builds a blocking index of the records added so far.
+   *
+   * @param maxBlockSize
+   *          largest block whose pairs are enumerated; 0 or less for no limit
+   * @return the index
+   */
+  public BlockingIndex index(int maxBlockSize) {
+    final long[][] recordKeys = new long[numPasses][];
+    for (int pass = 0; pass < numPasses; pass++) {
+      recordKeys[pass] = Arrays.copyOf(keys[pass], size);
+    }
+    return BlockingIndex.build(recordKeys, maxBlockSize);
+  }
+
+  /**
+   * @return number of records
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return fullUrl of the given record
+   */
+  public String getFullUrl(int record) {
+    return fullUrls[record];
+  }
+
+  /**
+   * @return version id of the given record's resource; null when unknown
+   */
+  public String getVersion(int record) {
+    return versions[record];
+  }
+
+  /**
+   * @return values of the given record, one per column
+   */
+  public String[] getValues(int record) {
+    return values[record];
+  }
+
+  /**
+   * @return blocking key value of the given record in the given pass
+   */
+  public long getKey(int pass, int record) {
+    return keys[pass][record];
+  }
+
+  /**
+   * @return number of blocking key values of each record
+   */
+  public int getPassCount() {
+    return numPasses;
+  }
+
+  /**
+   * @return true when values are upper-cased as they are added
+   */
+  public boolean isUpperCase() {
+    return upperCase;
+  }
+
+  /**
+   * @return names of the columns of the values
+   */
+  public String[] getColumnNames() {
+    return columnNames.clone();
+  }
+
+  /**
+   * @return position of the named column, or -1 when there is none
+   */
+  public int getColumnIndex(String name) {
+    for (int i = 0; i < columnNames.length; i++) {
+      if (columnNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
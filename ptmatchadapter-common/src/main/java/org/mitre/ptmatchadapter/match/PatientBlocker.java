@@ -0,0 +1,172 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds blocking indexes of Patient resources, so that a record matcher
+ * compares only the pairs of records that agree on some blocking key rather
+ * than every pair.
+ *
+ * <p>
+ * Each pass blocks on one or more {@link BlockingKey}s, joined by '+' (e.g.,
+ * <code>familySoundex+birthYearMonth</code>); records agree in a pass when
+ * they agree on every key of the pass. A record missing any key of a pass is
+ * not blocked in that pass. Several passes catch duplicates that differ in
+ * any one property: a changed family name is caught by a pass on the SSN,
+ * a mistyped SSN by a pass on the name.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PatientBlocker {
+  private static final Logger LOG = LoggerFactory.getLogger(PatientBlocker.class);
+
+  private static final String KEY_SEPARATOR = "\\+";
+
+  /** seed of the combination of the keys of a pass. */
+  private static final long SEED = 0x9E3779B97F4A7C15L;
+
+  private static final String[] DEFAULT_PASSES = {
+      "familySoundex+birthYearMonth", "familyNysiis+ssnLast4",
+      "ssnLast4+birthYearMonth", "phoneSuffix+birthYearMonth" };
+
+  private String[] passes = DEFAULT_PASSES;
+
+  /** keys of each pass, compiled from passes. */
+  private volatile BlockingKey[][] passKeys = compile(DEFAULT_PASSES);
+
+  /** largest block whose pairs are enumerated. */
+  private int maxBlockSize = 1000;
+
+  /**
+   * Indexes the given patients.
+   *
+   * @param patients
+   *          patients to index; each is identified by its position in the
+   *          list
+   * @return index of the patients
+   */
+  public BlockingIndex index(List<Patient> patients) {
+    final BlockingKey[][] currentPasses = passKeys;
+    final long[][] keys = new long[currentPasses.length][patients.size()];
+    for (int r = 0; r < patients.size(); r++) {
+      final Patient patient = patients.get(r);
+      for (int pass = 0; pass < currentPasses.length; pass++) {
+        keys[pass][r] = passKey(currentPasses[pass], patient);
+      }
+    }
+
+    final BlockingIndex index = BlockingIndex.build(keys, maxBlockSize);
+    if (LOG.isDebugEnabled()) {
+      for (int pass = 0; pass < currentPasses.length; pass++) {
+        LOG.debug("pass {}: {} blocks, {} too large", passes[pass],
+            index.getBlockCount(pass), index.getSkippedBlockCount(pass));
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns the patient's value for each pass.
+   *
+   * @return key value of each pass; {@link BlockingKey#MISSING} for a pass
+   *         in which the patient is not blocked
+   */
+  public long[] keys(Patient patient) {
+    final BlockingKey[][] currentPasses = passKeys;
+    final long[] keys = new long[currentPasses.length];
+    for (int pass = 0; pass < currentPasses.length; pass++) {
+      keys[pass] = passKey(currentPasses[pass], patient);
+    }
+    return keys;
+  }
+
+  /**
+   * Combines the patient's values of the keys of a pass into one number.
+   * Distinct combinations may, very rarely, share a number; that merges two
+   * blocks and adds candidates, but loses none.
+   */
+  private static long passKey(BlockingKey[] keys, Patient patient) {
+    if (keys.length == 1) {
+      return keys[0].extract(patient);
+    }
+    long combined = SEED;
+    for (BlockingKey key : keys) {
+      final long value = key.extract(patient);
+      if (value == BlockingKey.MISSING) {
+        return BlockingKey.MISSING;
+      }
+      combined = LongIntHashMap.mix(combined ^ value) + value;
+    }
+    return combined != BlockingKey.MISSING ? combined : combined + 1;
+  }
+
+  private static BlockingKey[][] compile(String[] passes) {
+    final BlockingKey[][] compiled = new BlockingKey[passes.length][];
+    for (int pass = 0; pass < passes.length; pass++) {
+      final String[] names = passes[pass].trim().split(KEY_SEPARATOR);
+      compiled[pass] = new BlockingKey[names.length];
+      for (int i = 0; i < names.length; i++) {
+        compiled[pass][i] = BlockingKey.forName(names[i].trim());
+      }
+    }
+    return compiled;
+  }
+
+  /**
+   * @return the passes
+   */
+  public final String[] getPasses() {
+    return passes.clone();
+  }
+
+  /**
+   * @param passes
+   *          blocking keys of each pass, joined by '+' (e.g.,
+   *          familySoundex+birthYearMonth)
+   * @throws IllegalArgumentException
+   *           when a pass names an unknown key
+   */
+  public final void setPasses(String[] passes) {
+    final String[] copy = passes.clone();
+    // fail now rather than when the first index is built
+    this.passKeys = compile(copy);
+    this.passes = copy;
+  }
+
+  /**
+   * @return the maxBlockSize
+   */
+  public final int getMaxBlockSize() {
+    return maxBlockSize;
+  }
+
+  /**
+   * @param maxBlockSize
+   *          largest block whose pairs are enumerated; 0 or less for no limit
+   */
+  public final void setMaxBlockSize(int maxBlockSize) {
+    this.maxBlockSize = maxBlockSize;
+  }
+}
@@ -0,0 +1,508 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.mitre.ptmatchadapter.match.BlockingIndex.CandidatePairHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scores the candidate pairs of a blocking index with a Fellegi-Sunter model
+ * and reports the pairs likely to be the same patient.
+ *
+ * <p>
+ * The weights of the compared fields (see {@link MatchField}) are added to
+ * the log2 odds of a match before any field is compared, given by the prior
+ * match probability, and the sum turned back into a probability: the score
+ * of the pair, between 0 and 1. Pairs scoring at least the match threshold
+ * are matches.
+ * </p>
+ *
+ * <p>
+ * Candidate pairs are scored by a pool of threads, each taking a range of
+ * blocks. The matches of each range are handed to the caller's handler on the
+ * calling thread in range order, so the handler need not be thread-safe and
+ * the matches are reported in the same order on every run.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ProbabilisticMatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(ProbabilisticMatcher.class);
+
+  /**
+   * Receives the matches found.
+   */
+  public interface MatchHandler {
+    /**
+     * @param left
+     *          position of the first record of the pair
+     * @param right
+     *          position of the second record of the pair; greater than left
+     * @param score
+     *          probability the records are the same patient
+     */
+    void match(int left, int right, double score);
+  }
+
+  /** candidate pairs scored by a single task, about. */
+  private static final long PAIRS_PER_TASK = 1 << 16;
+
+  private static final double LN2 = Math.log(2.);
+
+  private static final String[] DEFAULT_FIELDS = {
+      "identifier_SSN:editDistance:0.95:0.001:0.8",
+      "name__family:jaroWinkler:0.9:0.02:0.85",
+      "name__given:jaroWinkler:0.9:0.02:0.85",
+      "gender:exact:0.98:0.5",
+      "DOB:editDistance:0.95:0.005:0.75",
+      "telecom_phone_home:editDistance:0.8:0.001:0.8",
+      "telecom_phone_mobile:editDistance:0.8:0.001:0.8",
+      "telecom_email_home:jaroWinkler:0.8:0.001:0.9" };
+
+  private String[] fields = DEFAULT_FIELDS;
+
+  /** fields compiled from fields. */
+  private volatile MatchField[] matchFields = compile(DEFAULT_FIELDS);
+
+  /** probability that a candidate pair is a match, before comparison. */
+  private double priorMatchProbability = 0.0001;
+
+  /** lowest score of a match. */
+  private double matchThreshold = 0.65;
+
+  /** number of threads scoring candidate pairs. */
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /** threads scoring candidate pairs; created on first use. */
+  private ForkJoinPool pool;
+
+  /**
+   * Scores the candidate pairs of the index and hands the matches to the
+   * handler.
+   *
+   * @param records
+   *          records indexed
+   * @param index
+   *          blocking index of the records
+   * @param firstQueryRecord
+   *          position of the first record of the query set, when records
+   *          of a query set follow those of a master set and only pairs of a
+   *          master and a query record are to be scored; records.size() to
+   *          score every pair
+   * @param handler
+   *          receives the matches
+   * @return number of matches
+   * @throws InterruptedException
+   *           when interrupted while waiting for the pairs to be scored
+   * @throws IllegalArgumentException
+   *           when the records lack a column compared by the fields
+   */
+  public long match(final MatchRecords records, final BlockingIndex index,
+      final int firstQueryRecord, MatchHandler handler)
+      throws InterruptedException {
+    final MatchField[] currentFields = matchFields;
+    final int[] columns = columnIndexes(currentFields, records);
+    final double priorLogOdds = logOdds(priorMatchProbability);
+    final double threshold = matchThreshold;
+    final long start = System.currentTimeMillis();
+
+    final List<int[]> ranges = ranges(index);
+    final ForkJoinPool scoringPool = ranges.size() > 1 ? getPool() : null;
+    final List<ForkJoinTask<Matches>> tasks = new ArrayList<ForkJoinTask<Matches>>();
+    long numMatches = 0;
+    try {
+      for (final int[] range : ranges) {
+        final Callable<Matches> task = new Callable<Matches>() {
+          @Override
+          public Matches call() {
+            return score(records, index, range, firstQueryRecord,
+                currentFields, columns, priorLogOdds, threshold);
+          }
+        };
+        if (scoringPool != null) {
+          tasks.add(scoringPool.submit(task));
+        } else {
+          numMatches += task.call().handTo(handler);
+        }
+      }
+
+      // hand over the matches of each range in order as they are finished
+      for (ForkJoinTask<Matches> task : tasks) {
+        numMatches += task.get().handTo(handler);
+      }
+    } catch (InterruptedException e) {
+      cancel(tasks);
+      throw e;
+    } catch (ExecutionException e) {
+      cancel(tasks);
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("Unable to score candidate pairs", cause);
+    } catch (Exception e) {
+      cancel(tasks);
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new IllegalStateException("Unable to score candidate pairs", e);
+    }
+
+    LOG.info("{} matches among {} records, {} ranges, {} ms", numMatches,
+        records.size(), ranges.size(), System.currentTimeMillis() - start);
+    return numMatches;
+  }
+
+  /**
+   * Scores the candidate pairs that include any of the given records, each
+   * pair once, and hands the matches to the handler. The pairs are scored on
+   * the calling thread, as the records are expected to be few: those added
+   * or changed since the other pairs were scored.
+   *
+   * @param records
+   *          records indexed
+   * @param index
+   *          blocking index of the records
+   * @param affected
+   *          positions of the records whose pairs are scored
+   * @param handler
+   *          receives the matches
+   * @return number of matches
+   * @throws IllegalArgumentException
+   *           when the records lack a column compared by the fields
+   */
+  public long rematch(final MatchRecords records, BlockingIndex index,
+      final BitSet affected, MatchHandler handler) {
+    final MatchField[] currentFields = matchFields;
+    final int[] columns = columnIndexes(currentFields, records);
+    final double priorLogOdds = logOdds(priorMatchProbability);
+    final double threshold = matchThreshold;
+    final long start = System.currentTimeMillis();
+
+    final Matches matches = new Matches();
+    long numPairs = 0;
+    for (int r = affected.nextSetBit(0); r >= 0; r = affected.nextSetBit(r + 1)) {
+      final int record = r;
+      numPairs += index.forEachCandidateOf(record, new CandidatePairHandler() {
+        @Override
+        public void candidate(int left, int right) {
+          final int other = left == record ? right : left;
+          if (other < record && affected.get(other)) {
+            // scored with the other record
+            return;
+          }
+          final double score = score(records.getValues(left),
+              records.getValues(right), currentFields, columns, priorLogOdds);
+          if (score >= threshold) {
+            matches.add(left, right, score);
+          }
+        }
+      });
+    }
+
+    LOG.info("{} matches of {} records among {}, {} pairs, {} ms",
+        matches.size, affected.cardinality(), records.size(), numPairs,
+        System.currentTimeMillis() - start);
+    return matches.handTo(handler);
+  }
+
+  private static void cancel(List<ForkJoinTask<Matches>> tasks) {
+    for (ForkJoinTask<Matches> task : tasks) {
+      task.cancel(false);
+    }
+  }
+
+  /**
+   * Splits the blocks of each pass into ranges of about the same number of
+   * candidate pairs.
+   *
+   * @return pass, first block and last block (exclusive) of each range
+   */
+  private static List<int[]> ranges(BlockingIndex index) {
+    final List<int[]> ranges = new ArrayList<int[]>();
+    final int maxBlockSize = index.getMaxBlockSize();
+    for (int pass = 0; pass < index.getPassCount(); pass++) {
+      final int numBlocks = index.getBlockCount(pass);
+      int from = 0;
+      long pairs = 0;
+      for (int b = 0; b < numBlocks; b++) {
+        final long size = index.getBlockSize(pass, b);
+        if (maxBlockSize <= 0 || size <= maxBlockSize) {
+          pairs += size * (size - 1) / 2;
+        }
+        if (pairs >= PAIRS_PER_TASK) {
+          ranges.add(new int[] { pass, from, b + 1 });
+          from = b + 1;
+          pairs = 0;
+        }
+      }
+      if (from < numBlocks) {
+        ranges.add(new int[] { pass, from, numBlocks });
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * Scores the candidate pairs of a range of blocks.
+   */
+  private static Matches score(final MatchRecords records,
+      BlockingIndex index, int[] range, final int firstQueryRecord,
+      final MatchField[] fields, final int[] columns,
+      final double priorLogOdds, final double threshold) {
+    final Matches matches = new Matches();
+    index.forEachCandidate(range[0], range[1], range[2],
+        new CandidatePairHandler() {
+          @Override
+          public void candidate(int left, int right) {
+            if (firstQueryRecord < records.size()
+                && (left >= firstQueryRecord || right < firstQueryRecord)) {
+              // linkage compares master records with query records only
+              return;
+            }
+            final double score = score(records.getValues(left),
+                records.getValues(right), fields, columns, priorLogOdds);
+            if (score >= threshold) {
+              matches.add(left, right, score);
+            }
+          }
+        });
+    return matches;
+  }
+
+  /**
+   * Returns the probability that two records are the same patient.
+   *
+   * @param values1
+   *          values of the first record
+   * @param values2
+   *          values of the second record
+   * @param columns
+   *          position in the values of each field
+   * @return score between 0 and 1
+   */
+  static double score(String[] values1, String[] values2, MatchField[] fields,
+      int[] columns, double priorLogOdds) {
+    double weight = priorLogOdds;
+    for (int f = 0; f < fields.length; f++) {
+      weight += fields[f].weight(values1[columns[f]], values2[columns[f]]);
+    }
+    return 1. / (1. + Math.pow(2., -weight));
+  }
+
+  /**
+   * Returns the probability that two records are the same patient.
+   *
+   * @param columnNames
+   *          columns of the values
+   * @param values1
+   *          values of the first record
+   * @param values2
+   *          values of the second record
+   * @return score between 0 and 1
+   */
+  public double score(String[] columnNames, String[] values1,
+      String[] values2) {
+    final MatchField[] currentFields = matchFields;
+    // upper-cased as when held by records
+    final MatchRecords records = new MatchRecords(columnNames, 0);
+    final long[] noKeys = new long[0];
+    records.add("", values1.clone(), noKeys);
+    records.add("", values2.clone(), noKeys);
+    return score(records.getValues(0), records.getValues(1), currentFields,
+        columnIndexes(currentFields, records), logOdds(priorMatchProbability));
+  }
+
+  private static double logOdds(double probability) {
+    return Math.log(probability / (1. - probability)) / LN2;
+  }
+
+  private static int[] columnIndexes(MatchField[] fields,
+      MatchRecords records) {
+    final int[] columns = new int[fields.length];
+    for (int f = 0; f < fields.length; f++) {
+      columns[f] = records.getColumnIndex(fields[f].getColumn());
+      if (columns[f] < 0) {
+        throw new IllegalArgumentException(
+            "Records lack compared column: " + fields[f].getColumn());
+      }
+    }
+    return columns;
+  }
+
+  private static MatchField[] compile(String[] fields) {
+    final MatchField[] compiled = new MatchField[fields.length];
+    for (int f = 0; f < fields.length; f++) {
+      compiled[f] = MatchField.parse(fields[f]);
+    }
+    return compiled;
+  }
+
+  /**
+   * Matches found in a range of blocks.
+   */
+  private static final class Matches {
+    private int[] pairs = new int[32];
+    private double[] scores = new double[16];
+    private int size = 0;
+
+    void add(int left, int right, double score) {
+      if (size == scores.length) {
+        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        scores = Arrays.copyOf(scores, scores.length * 2);
+      }
+      pairs[2 * size] = left;
+      pairs[2 * size + 1] = right;
+      scores[size++] = score;
+    }
+
+    int handTo(MatchHandler handler) {
+      for (int i = 0; i < size; i++) {
+        handler.match(pairs[2 * i], pairs[2 * i + 1], scores[i]);
+      }
+      return size;
+    }
+  }
+
+  /**
+   * @return the fields, prior match probability and match threshold, which
+   *         together decide which pairs are matches and their scores
+   */
+  public String getSettings() {
+    final StringBuilder settings = new StringBuilder(300);
+    for (String field : fields) {
+      settings.append(field.trim()).append(',');
+    }
+    settings.append(';').append(priorMatchProbability);
+    settings.append(';').append(matchThreshold);
+    return settings.toString();
+  }
+
+  /**
+   * @return the columns compared by the fields
+   */
+  public String[] getColumns() {
+    final MatchField[] currentFields = matchFields;
+    final String[] columns = new String[currentFields.length];
+    for (int f = 0; f < currentFields.length; f++) {
+      columns[f] = currentFields[f].getColumn();
+    }
+    return columns;
+  }
+
+  /**
+   * @return the fields
+   */
+  public final String[] getFields() {
+    return fields.clone();
+  }
+
+  /**
+   * @param fields
+   *          compared fields, each column:comparator:m:u[:threshold] (see
+   *          {@link MatchField})
+   * @throws IllegalArgumentException
+   *           when a field is not valid
+   */
+  public final void setFields(String[] fields) {
+    final String[] copy = fields.clone();
+    // fail now rather than when the first pairs are scored
+    this.matchFields = compile(copy);
+    this.fields = copy;
+  }
+
+  /**
+   * @return the priorMatchProbability
+   */
+  public final double getPriorMatchProbability() {
+    return priorMatchProbability;
+  }
+
+  /**
+   * @param priorMatchProbability
+   *          probability that a candidate pair is a match, before its
+   *          fields are compared
+   */
+  public final void setPriorMatchProbability(double priorMatchProbability) {
+    if (!(priorMatchProbability > 0. && priorMatchProbability < 1.)) {
+      throw new IllegalArgumentException(
+          "Prior match probability must be between 0 and 1");
+    }
+    this.priorMatchProbability = priorMatchProbability;
+  }
+
+  /**
+   * @return the matchThreshold
+   */
+  public final double getMatchThreshold() {
+    return matchThreshold;
+  }
+
+  /**
+   * @param matchThreshold
+   *          lowest score of a match
+   */
+  public final void setMatchThreshold(double matchThreshold) {
+    this.matchThreshold = matchThreshold;
+  }
+
+  /**
+   * @return the threads
+   */
+  public final int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param threads
+   *          number of threads scoring candidate pairs; 1 to score them on
+   *          the calling thread, 0 or less for one per processor
+   */
+  public final synchronized void setThreads(int threads) {
+    this.threads = threads > 0 ? threads
+        : Runtime.getRuntime().availableProcessors();
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  /**
+   * @return pool scoring candidate pairs; null when pairs are scored on the
+   *         calling thread
+   */
+  private synchronized ForkJoinPool getPool() {
+    if (threads < 2) {
+      return null;
+    }
+    if (pool == null) {
+      pool = new ForkJoinPool(threads);
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,453 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the records of searches between record-match requests, so that a
+ * request against a record set retrieved before retrieves only the records
+ * updated since (a search with <code>_lastUpdated</code>) rather than the
+ * whole set.
+ *
+ * <p>
+ * Record sets are keyed by server base and search url, with the parameters
+ * of the search in a canonical order. The most recently used sets are held
+ * in memory; when a directory is set, every set is also saved to a file
+ * there, one per key, so that the sets outlive the adapter. A file holds the
+ * version, values and blocking key values of every record, the blocking
+ * index of the records once built, and the matches last found among the
+ * records, so that a set read back is matched without indexing it again.
+ * </p>
+ *
+ * <p>
+ * A search for updated records finds neither deleted records nor those
+ * updated so that they no longer match the search. The processor therefore
+ * also retrieves the ids of every record of the search and drops the others
+ * from the set, and a set is retrieved in full again once it is
+ * {@code maxAgeSeconds} old.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class RecordSetCache {
+  private static final Logger LOG = LoggerFactory.getLogger(RecordSetCache.class);
+
+  private static final int MAGIC = 0x50544d52;
+  private static final int VERSION = 3;
+  private static final String FILE_SUFFIX = ".records";
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** directory of the record set files; null to keep sets in memory only. */
+  private File directory;
+
+  /** number of record sets held in memory. */
+  private int maxSetsInMemory = 2;
+
+  /** age at which a set is retrieved in full again; 0 or less for never. */
+  private long maxAgeSeconds = 3600L;
+
+  /** margin for the difference between our clock and the server's. */
+  private long clockSkewSeconds = 300L;
+
+  /** most recently used sets, by key; guarded by this. */
+  private final Map<String, CachedRecordSet> sets = new LinkedHashMap<String, CachedRecordSet>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedRecordSet> eldest) {
+      return size() > maxSetsInMemory;
+    }
+  };
+
+  /**
+   * Returns the key of the record set of a search: the server base and the
+   * search url with its parameters sorted, so that searches that differ only
+   * in the order of their parameters share a set.
+   *
+   * @param serverBase
+   *          server base of the fullUrls of the records
+   * @param searchUrl
+   *          search url, before its parameter values are encoded
+   * @return key of the record set
+   */
+  public static String key(String serverBase, String searchUrl) {
+    final StringBuilder key = new StringBuilder(200);
+    key.append(stripSlash(serverBase == null ? "" : serverBase.trim()));
+    key.append(' ');
+
+    final int pos = searchUrl.indexOf('?');
+    key.append(stripSlash(pos < 0 ? searchUrl.trim()
+        : searchUrl.substring(0, pos).trim()));
+    if (pos >= 0) {
+      final List<String> params = new ArrayList<String>();
+      for (String param : searchUrl.substring(pos + 1).split("&")) {
+        if (!param.isEmpty()) {
+          params.add(param);
+        }
+      }
+      Collections.sort(params);
+      char separator = '?';
+      for (String param : params) {
+        key.append(separator).append(param);
+        separator = '&';
+      }
+    }
+    return key.toString();
+  }
+
+  private static String stripSlash(String s) {
+    return s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
+  }
+
+  /**
+   * Returns the record set of the given key, from memory or else from its
+   * file.
+   *
+   * @param key
+   *          key of the record set
+   * @param schema
+   *          columns and blocking passes the records must have been computed
+   *          with
+   * @return the record set, or null when there is none of the given schema
+   */
+  public synchronized CachedRecordSet get(String key, String schema) {
+    CachedRecordSet set = sets.get(key);
+    if (set == null && directory != null) {
+      final File file = fileOf(key);
+      if (file.exists()) {
+        try {
+          final long start = System.currentTimeMillis();
+          set = read(file, key);
+          LOG.info("read {} records of {} from {}, {} ms",
+              set.getRecords().size(), key, file.getPath(),
+              System.currentTimeMillis() - start);
+          sets.put(key, set);
+        } catch (IOException e) {
+          LOG.warn("Unable to read record set {}", file.getPath(), e);
+        }
+      }
+    }
+    if (set != null && !set.getSchema().equals(schema)) {
+      LOG.info("record set {} was computed for {}; not reused", key,
+          set.getSchema());
+      return null;
+    }
+    return set;
+  }
+
+  /**
+   * Holds the given record set and, when a directory is set and the set has
+   * changed, saves it to its file. A set that cannot be saved is logged and
+   * remains in memory.
+   *
+   * @param key
+   *          key of the record set
+   */
+  public synchronized void put(String key, CachedRecordSet set) {
+    sets.put(key, set);
+    if (directory != null && set.isChanged()) {
+      final File file = fileOf(key);
+      try {
+        final long start = System.currentTimeMillis();
+        write(file, key, set);
+        set.setChanged(false);
+        LOG.info("wrote {} records of {} to {}, {} ms",
+            set.getRecords().size(), key, file.getPath(),
+            System.currentTimeMillis() - start);
+      } catch (IOException e) {
+        LOG.error("Unable to write record set {}", file.getPath(), e);
+      }
+    }
+  }
+
+  /**
+   * @param now
+   *          current time in milliseconds
+   * @return true when the set is to be retrieved in full again
+   */
+  public boolean isExpired(CachedRecordSet set, long now) {
+    return maxAgeSeconds > 0L
+        && now - set.getLoadedAt() >= maxAgeSeconds * 1000L;
+  }
+
+  /**
+   * @return time in milliseconds after which records updated since the last
+   *         retrieval of the set may have been updated, by the server's clock
+   */
+  public long getUpdatedSince(CachedRecordSet set) {
+    return set.getRefreshedAt() - clockSkewSeconds * 1000L;
+  }
+
+  private File fileOf(String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder(digest.length * 2 + 8);
+      for (byte b : digest) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16));
+        name.append(Character.forDigit(b & 0xF, 16));
+      }
+      return new File(directory, name.append(FILE_SUFFIX).toString());
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void write(File file, String key, CachedRecordSet set)
+      throws IOException {
+    final File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent.getPath());
+    }
+    final File tmp = new File(parent, file.getName() + ".tmp");
+    final MatchRecords records = set.getRecords();
+    final String[] columnNames = records.getColumnNames();
+
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(key);
+      out.writeUTF(set.getSchema());
+      out.writeLong(set.getLoadedAt());
+      out.writeLong(set.getRefreshedAt());
+      out.writeInt(columnNames.length);
+      for (String name : columnNames) {
+        out.writeUTF(name);
+      }
+      out.writeBoolean(records.isUpperCase());
+      out.writeInt(records.getPassCount());
+      out.writeInt(records.size());
+      for (int r = 0; r < records.size(); r++) {
+        out.writeUTF(records.getFullUrl(r));
+        writeNullable(out, records.getVersion(r));
+        for (String value : records.getValues(r)) {
+          writeNullable(out, value);
+        }
+        for (int pass = 0; pass < records.getPassCount(); pass++) {
+          out.writeLong(records.getKey(pass, r));
+        }
+      }
+
+      writeNullable(out, set.getMatchSettings());
+      final MatchPairs matches = set.getMatches();
+      out.writeInt(matches.size());
+      for (int i = 0; i < matches.size(); i++) {
+        out.writeInt(matches.getLeft(i));
+        out.writeInt(matches.getRight(i));
+        out.writeDouble(matches.getScore(i));
+      }
+      final long[] unmatched = set.getUnmatched().toLongArray();
+      out.writeInt(unmatched.length);
+      for (long word : unmatched) {
+        out.writeLong(word);
+      }
+      out.writeInt(set.getRemovedCount());
+      for (int pass = 0; pass < records.getPassCount(); pass++) {
+        for (int i = 0; i < set.getRemovedCount(); i++) {
+          out.writeLong(set.getRemovedKey(pass, i));
+        }
+      }
+
+      final BlockingIndex index = set.getBuiltIndex();
+      out.writeBoolean(index != null);
+      if (index != null) {
+        index.write(out);
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static CachedRecordSet read(File file, String key)
+      throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a record set file of version " + VERSION);
+      }
+      final String fileKey = in.readUTF();
+      if (!fileKey.equals(key)) {
+        throw new IOException("File holds the record set of " + fileKey);
+      }
+      final String schema = in.readUTF();
+      final long loadedAt = in.readLong();
+      final long refreshedAt = in.readLong();
+      final String[] columnNames = new String[in.readInt()];
+      for (int i = 0; i < columnNames.length; i++) {
+        columnNames[i] = in.readUTF();
+      }
+      final boolean upperCase = in.readBoolean();
+      final int numPasses = in.readInt();
+      final int numRecords = in.readInt();
+
+      final MatchRecords records = new MatchRecords(columnNames, numPasses,
+          upperCase);
+      for (int r = 0; r < numRecords; r++) {
+        final String fullUrl = in.readUTF();
+        final String version = readNullable(in);
+        final String[] values = new String[columnNames.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = readNullable(in);
+        }
+        final long[] keys = new long[numPasses];
+        for (int pass = 0; pass < numPasses; pass++) {
+          keys[pass] = in.readLong();
+        }
+        records.add(fullUrl, version, values, keys);
+      }
+      final CachedRecordSet set = new CachedRecordSet(schema, records,
+          loadedAt, refreshedAt);
+
+      final String matchSettings = readNullable(in);
+      final MatchPairs matches = new MatchPairs();
+      final int numMatches = in.readInt();
+      for (int i = 0; i < numMatches; i++) {
+        matches.match(in.readInt(), in.readInt(), in.readDouble());
+      }
+      final long[] unmatched = new long[in.readInt()];
+      for (int i = 0; i < unmatched.length; i++) {
+        unmatched[i] = in.readLong();
+      }
+      final int numRemoved = in.readInt();
+      final long[][] removedKeys = new long[numPasses][numRemoved];
+      for (int pass = 0; pass < numPasses; pass++) {
+        for (int i = 0; i < numRemoved; i++) {
+          removedKeys[pass][i] = in.readLong();
+        }
+      }
+      if (matchSettings != null) {
+        set.restoreMatches(matchSettings, matches, BitSet.valueOf(unmatched),
+            removedKeys, numRemoved);
+      }
+      if (in.readBoolean()) {
+        final BlockingIndex index = BlockingIndex.read(in);
+        if (index.size() == numRecords) {
+          set.restoreIndex(index);
+        }
+      }
+      return set;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeNullable(DataOutputStream out, String s)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * @return the directory
+   */
+  public final File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param directory
+   *          directory of the record set files; null to keep sets in memory
+   *          only
+   */
+  public final synchronized void setDirectory(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return the maxSetsInMemory
+   */
+  public final int getMaxSetsInMemory() {
+    return maxSetsInMemory;
+  }
+
+  /**
+   * @param maxSetsInMemory
+   *          number of record sets held in memory; others are read from their
+   *          files when used
+   */
+  public final synchronized void setMaxSetsInMemory(int maxSetsInMemory) {
+    this.maxSetsInMemory = maxSetsInMemory;
+  }
+
+  /**
+   * @return the maxAgeSeconds
+   */
+  public final long getMaxAgeSeconds() {
+    return maxAgeSeconds;
+  }
+
+  /**
+   * @param maxAgeSeconds
+   *          age at which a set is retrieved in full again; 0 or less for
+   *          never
+   */
+  public final void setMaxAgeSeconds(long maxAgeSeconds) {
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  /**
+   * @return the clockSkewSeconds
+   */
+  public final long getClockSkewSeconds() {
+    return clockSkewSeconds;
+  }
+
+  /**
+   * @param clockSkewSeconds
+   *          how far the server's clock may be behind ours; updated records
+   *          are searched for from that long before the last retrieval
+   */
+  public final void setClockSkewSeconds(long clockSkewSeconds) {
+    this.clockSkewSeconds = clockSkewSeconds;
+  }
+}
@@ -59,6 +59,25 @@ public class ServerAuthorization {
   @XmlElement
   private String scope;
   
+  public ServerAuthorization() {
+  }
+
+  /**
+   * Creates a copy of the given authorization.
+   */
+  public ServerAuthorization(ServerAuthorization other) {
+    this.id = other.id;
+    this.title = other.title;
+    this.description = other.description;
+    this.serverUrl = other.serverUrl;
+    this.accessToken = other.accessToken;
+    this.tokenType = other.tokenType;
+    this.expiresAt = other.expiresAt != null ? new Date(other.expiresAt.getTime()) : null;
+    this.refreshToken = other.refreshToken;
+    this.idToken = other.idToken;
+    this.scope = other.scope;
+  }
+
   /**
    * @return the id
    */
@@ -0,0 +1,347 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * </p>
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * </p>
+ */
+
+package org.mitre.ptmatchadapter.recordmatch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleEntrySearchComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.instance.model.CodeType;
+import org.hl7.fhir.instance.model.DecimalType;
+import org.hl7.fhir.instance.model.Extension;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.hl7.fhir.instance.model.StringType;
+import org.hl7.fhir.instance.model.UriType;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Builds a record-match results message with an entry for each pair of
+ * linked records: the reference record's fullUrl, its duplicate as a related
+ * link, and the match score with a patient-mpi-match grade.
+ *
+ * <p>
+ * A message with many linked records may be written as JSON with
+ * {@link #writeTo(Writer, FhirContext)}, which encodes each linked record
+ * entry as it is read rather than holding them all in a Bundle.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class LinkedRecordResultsBuilder extends BasicRecordMatchResultsBuilder {
+
+  public static final String MPI_MATCH_EXTENSION_URL = "http://hl7.org/fhir/StructureDefinition/patient-mpi-match";
+
+  private static final String PATIENT_TYPE_URL = "http://hl7.org/fhir/Patient";
+
+  // see https://www.hl7.org/fhir/valueset-patient-mpi-match.html
+  private final CodeType certain = new CodeType("certain");
+  private final CodeType probable = new CodeType("probable");
+  private final CodeType possible = new CodeType("possible");
+  private final CodeType certainlyNot = new CodeType("certainly-not");
+
+  private final List<LinkedRecord> linkedRecords = new ArrayList<LinkedRecord>();
+
+  public LinkedRecordResultsBuilder(Bundle requestMsg, ResponseType respCode) {
+    super(requestMsg, respCode);
+  }
+
+  /**
+   * @see BasicRecordMatchResultsBuilder#build()
+   */
+  @Override
+  public Bundle build() throws IOException {
+    final Bundle resultMsg = super.build();
+
+    // Add entries for the Linked Records
+    addLinkedRecordEntries(resultMsg);
+
+    return resultMsg;
+  }
+
+  /**
+   * Adds an entry for each linked record to the results message.
+   *
+   * @param bundle
+   *          Bundle to which an entry for each linked record will be added
+   * @throws IOException
+   *           thrown when the linked records could not be read
+   */
+  protected void addLinkedRecordEntries(final Bundle bundle) throws IOException {
+    forEachLinkedRecord(new LinkedRecordHandler() {
+      @Override
+      public void linkedRecord(String referenceUrl, String fullUrl, double score) {
+        addLinkedRecordEntry(bundle, referenceUrl, fullUrl, score);
+      }
+    });
+  }
+
+  /**
+   * Passes each linked record to the given handler, in the order its entry
+   * appears in the results message.
+   *
+   * @throws IOException
+   *           thrown when the linked records could not be read
+   */
+  protected void forEachLinkedRecord(LinkedRecordHandler handler)
+      throws IOException {
+    for (LinkedRecord linked : linkedRecords) {
+      handler.linkedRecord(linked.referenceUrl, linked.fullUrl, linked.score);
+    }
+  }
+
+  /**
+   * Adds an entry that links the reference record to one of its duplicates.
+   *
+   * @param score
+   *          match score, 0 - 1
+   */
+  protected final void addLinkedRecordEntry(Bundle bundle, String refRecordUrl,
+      String fullUrl, double score) {
+    BundleEntryComponent entry = new BundleEntryComponent();
+    entry.setFullUrl(refRecordUrl);
+
+    BundleEntrySearchComponent search = new BundleEntrySearchComponent();
+    search.setScoreElement(new DecimalType(score));
+
+    // Extension that maps score value to a term (e.g., probable)
+    Extension searchExt = new Extension(new UriType(MPI_MATCH_EXTENSION_URL));
+    searchExt.setValue(grade(score));
+    search.addExtension(searchExt);
+    entry.setSearch(search);
+
+    // Add information about the resource type
+    BundleLinkComponent link = new BundleLinkComponent(
+        new StringType("type"),
+        new UriType(PATIENT_TYPE_URL));
+    entry.addLink(link);
+
+    // Add the link to the duplicate record
+    link = new BundleLinkComponent(
+        new StringType("related"), new UriType(fullUrl));
+    entry.addLink(link);
+
+    bundle.addEntry(entry);
+  }
+
+  /**
+   * @return the patient-mpi-match term for the given score
+   */
+  private CodeType grade(double score) {
+    if (score > 0.85) {
+      return certain;
+    } else if (score > 0.65) {
+      return probable;
+    } else if (score > .45) {
+      return possible;
+    } else {
+      return certainlyNot;
+    }
+  }
+
+  /**
+   * Writes the results message as JSON. The message header, outcome and
+   * request parameters are encoded by the FHIR parser; the entry of each
+   * linked record is written as the record is read, so the memory used does
+   * not grow with the number of linked records.
+   *
+   * @param out
+   *          receives the message
+   * @param fhirContext
+   *          context used to encode the message header, outcome and
+   *          parameters
+   * @return the message without its linked record entries; its id is the id
+   *         of the message written
+   * @throws IOException
+   *           thrown when the linked records could not be read or the message
+   *           could not be written
+   */
+  public Bundle writeTo(Writer out, FhirContext fhirContext) throws IOException {
+    final Bundle resultMsg = super.build();
+
+    // encode the message with a placeholder entry where the linked records go
+    final String placeholderUrl = "urn:uuid:" + UUID.randomUUID().toString();
+    resultMsg.addEntry().setFullUrl(placeholderUrl);
+    final String encoded = fhirContext.newJsonParser().setPrettyPrint(false)
+        .encodeResourceToString(resultMsg);
+    resultMsg.getEntry().remove(resultMsg.getEntry().size() - 1);
+
+    final String placeholder = "{\"fullUrl\":\"" + placeholderUrl + "\"}";
+    final int pos = encoded.indexOf(placeholder);
+    if (pos < 0) {
+      throw new IllegalStateException("Unable to find the linked record entries in the results message");
+    }
+
+    // the separator before the placeholder is written before each linked record
+    final boolean hasEntries = encoded.charAt(pos - 1) == ',';
+    out.write(encoded, 0, hasEntries ? pos - 1 : pos);
+    final JsonEntryWriter entryWriter = new JsonEntryWriter(out, hasEntries);
+    forEachLinkedRecord(entryWriter);
+    out.write(encoded, pos + placeholder.length(),
+        encoded.length() - pos - placeholder.length());
+    out.flush();
+
+    return resultMsg;
+  }
+
+  /**
+   * Writes the results message as JSON to the given file.
+   *
+   * @return the message without its linked record entries; its id is the id
+   *         of the message written
+   * @see #writeTo(Writer, FhirContext)
+   */
+  public Bundle writeTo(File file, FhirContext fhirContext) throws IOException {
+    final Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), StandardCharsets.UTF_8));
+    try {
+      return writeTo(out, fhirContext);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Adds a linked record.
+   *
+   * @param referenceUrl
+   *          fullUrl of the first record of a set of duplicates
+   * @param fullUrl
+   *          fullUrl of a record that duplicates the reference record
+   * @param score
+   *          match score, 0 - 1
+   */
+  public LinkedRecordResultsBuilder linkedRecord(String referenceUrl,
+      String fullUrl, double score) {
+    linkedRecords.add(new LinkedRecord(referenceUrl, fullUrl, score));
+    return this;
+  }
+
+  /**
+   * @return number of linked records added
+   */
+  public int getLinkedRecordCount() {
+    return linkedRecords.size();
+  }
+
+  /**
+   * Receives the linked records of a results message.
+   */
+  protected interface LinkedRecordHandler {
+    /**
+     * @param referenceUrl
+     *          fullUrl of the first record of a set of duplicates
+     * @param fullUrl
+     *          fullUrl of a record that duplicates the reference record
+     * @param score
+     *          match score, 0 - 1
+     */
+    void linkedRecord(String referenceUrl, String fullUrl, double score)
+        throws IOException;
+  }
+
+  /**
+   * Writes a JSON Bundle entry for each linked record, matching the entries
+   * added by {@link LinkedRecordResultsBuilder#addLinkedRecordEntry}.
+   */
+  private final class JsonEntryWriter implements LinkedRecordHandler {
+    private final Writer out;
+    private boolean separate;
+
+    JsonEntryWriter(Writer out, boolean separate) {
+      this.out = out;
+      this.separate = separate;
+    }
+
+    @Override
+    public void linkedRecord(String referenceUrl, String fullUrl, double score)
+        throws IOException {
+      if (separate) {
+        out.write(',');
+      }
+      separate = true;
+      out.write("{\"link\":[{\"relation\":\"type\",\"url\":");
+      writeString(PATIENT_TYPE_URL);
+      out.write("},{\"relation\":\"related\",\"url\":");
+      writeString(fullUrl);
+      out.write("}],\"fullUrl\":");
+      writeString(referenceUrl);
+      out.write(",\"search\":{\"extension\":[{\"url\":");
+      writeString(MPI_MATCH_EXTENSION_URL);
+      out.write(",\"valueCode\":");
+      writeString(grade(score).getValue());
+      out.write("}],\"score\":");
+      out.write(new DecimalType(score).getValueAsString());
+      out.write("}}");
+    }
+
+    private void writeString(String value) throws IOException {
+      out.write('"');
+      for (int i = 0; i < value.length(); i++) {
+        final char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          out.write('\\');
+          out.write(c);
+        } else if (c == '\n') {
+          out.write("\\n");
+        } else if (c == '\r') {
+          out.write("\\r");
+        } else if (c == '\t') {
+          out.write("\\t");
+        } else if (c == '\b') {
+          out.write("\\b");
+        } else if (c == '\f') {
+          out.write("\\f");
+        } else if (c < 0x20) {
+          out.write(String.format("\\u%04x", (int) c));
+        } else {
+          out.write(c);
+        }
+      }
+      out.write('"');
+    }
+  }
+
+  private static final class LinkedRecord {
+    final String referenceUrl;
+    final String fullUrl;
+    final double score;
+
+    LinkedRecord(String referenceUrl, String fullUrl, double score) {
+      this.referenceUrl = referenceUrl;
+      this.fullUrl = fullUrl;
+      this.score = score;
+    }
+  }
+}
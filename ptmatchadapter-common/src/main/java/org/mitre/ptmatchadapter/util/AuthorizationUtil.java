@@ -16,11 +16,9 @@
  */
 package org.mitre.ptmatchadapter.util;
 
-import java.util.List;
-
-import org.mitre.ptmatchadapter.model.ServerAuthorization;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
 
 /**
  * @author Michael Los, mel@mitre.org
@@ -28,35 +26,64 @@ import org.slf4j.LoggerFactory;
  */
 public abstract class AuthorizationUtil {
 
-  private static final Logger LOG = LoggerFactory
-      .getLogger(AuthorizationUtil.class);
+  private static final int HTTP_PORT = 80;
+  private static final int HTTPS_PORT = 443;
 
-  public static final ServerAuthorization findServerAuthorization(
-      List<ServerAuthorization> serverAuthorizations, String serverBase) {
-    
-    String slashlessBaseUrl;
-    // Remove any trailing slash
-    if (serverBase != null && serverBase.endsWith("/")) {
-      slashlessBaseUrl = serverBase.substring(0, serverBase.length() - 1);
-    } else {
-      slashlessBaseUrl = serverBase;
+  /**
+   * Returns the form of a server base URL used to index server authorizations:
+   * scheme and host in lower case, without a default port (80 for http, 443
+   * for https), query, fragment or trailing slashes. The path is kept as
+   * given, since paths are case-sensitive.
+   *
+   * @param serverBase
+   *          URL string to a server (e.g., http://Example.org:80/fhir/)
+   * @return normalized URL (e.g., http://example.org/fhir) or null when
+   *         serverBase is null
+   */
+  public static final String normalizeServerBase(String serverBase) {
+    if (serverBase == null) {
+      return null;
+    }
+    String url = serverBase.trim();
+    final int end = firstIndexOf(url, '?', '#');
+    if (end >= 0) {
+      url = url.substring(0, end);
     }
-    
-    if (serverAuthorizations != null && slashlessBaseUrl != null) {
-      for (ServerAuthorization sa : serverAuthorizations) {
-        LOG.info("findServerAuth serverUrl: {}  {}", sa.getServerUrl(), slashlessBaseUrl);
-        try {
-          if (sa.getServerUrl().equals(slashlessBaseUrl)) {
-            return sa;
-          }
-        } catch (NullPointerException e) {
-          // should never happen
-          LOG.warn("NULL Server URL found for server authorization: {}",
-              sa.getTitle());
+
+    try {
+      final URI uri = new URI(url);
+      if (uri.getScheme() != null && uri.getHost() != null) {
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        final StringBuilder sb = new StringBuilder(url.length());
+        sb.append(scheme).append("://");
+        sb.append(uri.getHost().toLowerCase(Locale.ROOT));
+        final int port = uri.getPort();
+        if (port >= 0 && !(port == HTTP_PORT && "http".equals(scheme))
+            && !(port == HTTPS_PORT && "https".equals(scheme))) {
+          sb.append(':').append(port);
+        }
+        if (uri.getRawPath() != null) {
+          sb.append(uri.getRawPath());
         }
+        url = sb.toString();
       }
+    } catch (URISyntaxException e) {
+      // not a well-formed url; index it as given
     }
-    return null;
+
+    int len = url.length();
+    while (len > 0 && url.charAt(len - 1) == '/') {
+      len--;
+    }
+    return url.substring(0, len);
   }
 
+  private static int firstIndexOf(String s, char c1, char c2) {
+    final int p1 = s.indexOf(c1);
+    final int p2 = s.indexOf(c2);
+    if (p1 < 0) {
+      return p2;
+    }
+    return p2 < 0 ? p1 : Math.min(p1, p2);
+  }
 }
@@ -0,0 +1,199 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+/**
+ * Phonetic codes of names, so that names that sound alike (e.g., Smith and
+ * Smyth) have the same code.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class Phonetics {
+  /** Soundex digit of each letter; '0' for vowels, ' ' for H and W. */
+  private static final String SOUNDEX_CODES = "01230120022455012623010202";
+
+  /** length of a NYSIIS code; longer codes are truncated. */
+  private static final int NYSIIS_LENGTH = 6;
+
+  private static final char SPACE = ' ';
+
+  private Phonetics() {
+  }
+
+  /**
+   * Returns the American Soundex code of a name: its first letter followed by
+   * three digits (e.g., Robert and Rupert are R163). Characters other than
+   * the letters A to Z are ignored.
+   *
+   * @param name
+   *          name to encode
+   * @return Soundex code, or an empty string when the name has no letters
+   */
+  public static String soundex(String name) {
+    final String letters = letters(name);
+    if (letters.isEmpty()) {
+      return "";
+    }
+
+    final char[] code = { letters.charAt(0), '0', '0', '0' };
+    int len = 1;
+    char last = soundexDigit(letters.charAt(0));
+    for (int i = 1; i < letters.length() && len < code.length; i++) {
+      final char digit = soundexDigit(letters.charAt(i));
+      if (digit == SPACE) {
+        // H and W do not separate letters with the same digit
+        continue;
+      }
+      if (digit != '0' && digit != last) {
+        code[len++] = digit;
+      }
+      last = digit;
+    }
+    return new String(code);
+  }
+
+  private static char soundexDigit(char letter) {
+    final char digit = SOUNDEX_CODES.charAt(letter - 'A');
+    return letter == 'H' || letter == 'W' ? SPACE : digit;
+  }
+
+  /**
+   * Returns the NYSIIS code of a name, truncated to six characters (e.g.,
+   * Knight is NAGT and Brown is BRAN). Characters other than the letters A to
+   * Z are ignored.
+   *
+   * @param name
+   *          name to encode
+   * @return NYSIIS code, or an empty string when the name has no letters
+   */
+  public static String nysiis(String name) {
+    String str = letters(name);
+    if (str.isEmpty()) {
+      return "";
+    }
+
+    // translate first characters of name
+    if (str.startsWith("MAC")) {
+      str = "MCC" + str.substring(3);
+    } else if (str.startsWith("KN")) {
+      str = "NN" + str.substring(2);
+    } else if (str.startsWith("K")) {
+      str = "C" + str.substring(1);
+    } else if (str.startsWith("PH") || str.startsWith("PF")) {
+      str = "FF" + str.substring(2);
+    } else if (str.startsWith("SCH")) {
+      str = "SSS" + str.substring(3);
+    }
+
+    // translate last characters of name
+    if (str.endsWith("EE") || str.endsWith("IE")) {
+      str = str.substring(0, str.length() - 2) + "Y";
+    } else if (str.endsWith("DT") || str.endsWith("RT") || str.endsWith("RD")
+        || str.endsWith("NT") || str.endsWith("ND")) {
+      str = str.substring(0, str.length() - 2) + "D";
+    }
+
+    final char[] chars = str.toCharArray();
+    final StringBuilder key = new StringBuilder(chars.length);
+    key.append(chars[0]);
+    for (int i = 1; i < chars.length; i++) {
+      final char next = i < chars.length - 1 ? chars[i + 1] : SPACE;
+      final char aNext = i < chars.length - 2 ? chars[i + 2] : SPACE;
+      final String transcoded = nysiisTranscode(chars[i - 1], chars[i], next,
+          aNext);
+      // later letters see the translated ones
+      transcoded.getChars(0, transcoded.length(), chars, i);
+      if (chars[i] != chars[i - 1]) {
+        key.append(chars[i]);
+      }
+    }
+
+    if (key.length() > 1) {
+      char lastChar = key.charAt(key.length() - 1);
+      if (lastChar == 'S') {
+        key.deleteCharAt(key.length() - 1);
+        lastChar = key.charAt(key.length() - 1);
+      }
+      if (key.length() > 2 && lastChar == 'Y'
+          && key.charAt(key.length() - 2) == 'A') {
+        key.deleteCharAt(key.length() - 2);
+      }
+      if (lastChar == 'A') {
+        key.deleteCharAt(key.length() - 1);
+      }
+    }
+    return key.length() > NYSIIS_LENGTH ? key.substring(0, NYSIIS_LENGTH)
+        : key.toString();
+  }
+
+  private static String nysiisTranscode(char prev, char curr, char next,
+      char aNext) {
+    if (curr == 'E' && next == 'V') {
+      return "AF";
+    }
+    if (isVowel(curr)) {
+      return "A";
+    }
+    switch (curr) {
+    case 'Q':
+      return "G";
+    case 'Z':
+      return "S";
+    case 'M':
+      return "N";
+    case 'K':
+      return next == 'N' ? "NN" : "C";
+    default:
+      break;
+    }
+    if (curr == 'S' && next == 'C' && aNext == 'H') {
+      return "SSS";
+    }
+    if (curr == 'P' && next == 'H') {
+      return "FF";
+    }
+    if (curr == 'H' && (!isVowel(prev) || !isVowel(next))) {
+      return String.valueOf(prev);
+    }
+    if (curr == 'W' && isVowel(prev)) {
+      return String.valueOf(prev);
+    }
+    return String.valueOf(curr);
+  }
+
+  private static boolean isVowel(char c) {
+    return c == 'A' || c == 'E' || c == 'I' || c == 'O' || c == 'U';
+  }
+
+  /**
+   * @return the letters A to Z of the given string, upper-cased
+   */
+  private static String letters(String s) {
+    if (s == null) {
+      return "";
+    }
+    final StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      final char c = Character.toUpperCase(s.charAt(i));
+      if (c >= 'A' && c <= 'Z') {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
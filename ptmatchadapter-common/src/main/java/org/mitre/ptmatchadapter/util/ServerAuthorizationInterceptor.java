@@ -0,0 +1,104 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import org.mitre.ptmatchadapter.model.ServerAuthorization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+
+/**
+ * Adds the bearer token of the server being called to each request.
+ *
+ * <p>
+ * The authorization is looked up for every request from the URL the request
+ * is sent to, so a single instance stays registered with a client for its
+ * lifetime and the client may be shared between threads. Requests to servers
+ * for which no authorization exists, or whose access token has expired, are
+ * sent without one.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ServerAuthorizationInterceptor implements IClientInterceptor {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(ServerAuthorizationInterceptor.class);
+
+  private static final String AUTHORIZATION_HEADER = "Authorization";
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  /** servers for which the user authorized access. */
+  private final ServerAuthorizationRegistry serverAuthorizations;
+
+  /** base url of the client; used when the request url is unavailable. */
+  private final String serverBase;
+
+  /**
+   * @param serverAuthorizations
+   *          authorizations to consult; null to send no authorization
+   * @param serverBase
+   *          base url of the client with which the interceptor is registered
+   */
+  public ServerAuthorizationInterceptor(
+      ServerAuthorizationRegistry serverAuthorizations, String serverBase) {
+    this.serverAuthorizations = serverAuthorizations;
+    this.serverBase = serverBase;
+  }
+
+  @Override
+  public void interceptRequest(IHttpRequest request) {
+    if (serverAuthorizations == null) {
+      return;
+    }
+    // never fall back to the client's server; its token must not be sent to
+    // another server named by an absolute search or paging url
+    final ServerAuthorization serverAuthorization = serverAuthorizations
+        .findValidForUrl(getRequestUrl(request));
+
+    if (serverAuthorization != null
+        && serverAuthorization.getAccessToken() != null) {
+      LOG.debug("adding bearer token for {}", serverAuthorization.getServerUrl());
+      request.addHeader(AUTHORIZATION_HEADER,
+          BEARER_PREFIX + serverAuthorization.getAccessToken());
+    }
+  }
+
+  @Override
+  public void interceptResponse(IHttpResponse response) {
+    // nothing to do
+  }
+
+  /**
+   * Returns the URL to which the request will be sent, or the client's base
+   * URL when the request does not reveal it.
+   */
+  protected String getRequestUrl(IHttpRequest request) {
+    if (request instanceof ApacheHttpRequest) {
+      final ApacheHttpRequest apacheRequest = (ApacheHttpRequest) request;
+      if (apacheRequest.getApacheRequest() != null
+          && apacheRequest.getApacheRequest().getURI() != null) {
+        return apacheRequest.getApacheRequest().getURI().toString();
+      }
+    }
+    return serverBase;
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mitre.ptmatchadapter.model.ServerAuthorization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server authorizations indexed by normalized server base URL (see
+ * {@link AuthorizationUtil#normalizeServerBase(String)}).
+ *
+ * <p>
+ * Readers work from an immutable snapshot, so lookups take no lock and cost a
+ * single hash lookup per candidate base URL. Changes copy the current snapshot
+ * and publish the copy. A server has at most one authorization; authorizing a
+ * server again replaces its previous authorization.
+ * </p>
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ServerAuthorizationRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger(ServerAuthorizationRegistry.class);
+
+  /** Immutable view of the registry contents. */
+  private static final class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(
+        new LinkedHashMap<String, ServerAuthorization>());
+
+    /** authorizations by normalized server base, in order added. */
+    final Map<String, ServerAuthorization> byServer;
+    final Map<String, ServerAuthorization> byId;
+    final List<ServerAuthorization> all;
+
+    Snapshot(LinkedHashMap<String, ServerAuthorization> byServer) {
+      this.byServer = Collections.unmodifiableMap(byServer);
+      final Map<String, ServerAuthorization> ids = new HashMap<String, ServerAuthorization>();
+      for (ServerAuthorization sa : byServer.values()) {
+        if (sa.getId() != null) {
+          ids.put(sa.getId(), sa);
+        }
+      }
+      this.byId = Collections.unmodifiableMap(ids);
+      this.all = Collections.unmodifiableList(
+          new ArrayList<ServerAuthorization>(byServer.values()));
+    }
+  }
+
+  private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+  /**
+   * Adds the given authorization, replacing any authorization for the same
+   * server.
+   *
+   * @param serverAuth
+   *          authorization with a server url
+   * @return the authorization that was replaced, or null
+   * @throws IllegalArgumentException
+   *           when the authorization has no server url
+   */
+  public synchronized ServerAuthorization put(ServerAuthorization serverAuth) {
+    final String key = AuthorizationUtil.normalizeServerBase(serverAuth.getServerUrl());
+    if (key == null || key.isEmpty()) {
+      throw new IllegalArgumentException("Server authorization has no server url");
+    }
+    final LinkedHashMap<String, ServerAuthorization> copy =
+        new LinkedHashMap<String, ServerAuthorization>(snapshot.byServer);
+    final ServerAuthorization previous = copy.put(key, serverAuth);
+    snapshot = new Snapshot(copy);
+    LOG.info("server authorization for {} {}", key, previous != null ? "replaced" : "added");
+    return previous;
+  }
+
+  /**
+   * Replaces the given authorization, provided it is still the authorization
+   * registered for its server (e.g., the user did not authorize the server
+   * again while a token was being renewed).
+   *
+   * @param current
+   *          authorization expected to be registered
+   * @param replacement
+   *          authorization for the same server
+   * @return true when the replacement was registered
+   */
+  public synchronized boolean replace(ServerAuthorization current,
+      ServerAuthorization replacement) {
+    final String key = AuthorizationUtil.normalizeServerBase(current.getServerUrl());
+    if (key == null || snapshot.byServer.get(key) != current
+        || !key.equals(AuthorizationUtil.normalizeServerBase(replacement.getServerUrl()))) {
+      return false;
+    }
+    final LinkedHashMap<String, ServerAuthorization> copy =
+        new LinkedHashMap<String, ServerAuthorization>(snapshot.byServer);
+    copy.put(key, replacement);
+    snapshot = new Snapshot(copy);
+    return true;
+  }
+
+  /**
+   * Removes the authorization for the given server.
+   *
+   * @param serverBase
+   *          URL string to the server
+   * @return the authorization removed, or null
+   */
+  public synchronized ServerAuthorization remove(String serverBase) {
+    final String key = AuthorizationUtil.normalizeServerBase(serverBase);
+    if (!snapshot.byServer.containsKey(key)) {
+      return null;
+    }
+    final LinkedHashMap<String, ServerAuthorization> copy =
+        new LinkedHashMap<String, ServerAuthorization>(snapshot.byServer);
+    final ServerAuthorization previous = copy.remove(key);
+    snapshot = new Snapshot(copy);
+    return previous;
+  }
+
+  /**
+   * @param serverBase
+   *          URL string to the server
+   * @return the authorization for the server, or null
+   */
+  public ServerAuthorization get(String serverBase) {
+    final String key = AuthorizationUtil.normalizeServerBase(serverBase);
+    return key != null ? snapshot.byServer.get(key) : null;
+  }
+
+  /**
+   * @param id
+   *          id of a server authorization
+   * @return the authorization with the given id, or null
+   */
+  public ServerAuthorization getById(String id) {
+    return id != null ? snapshot.byId.get(id) : null;
+  }
+
+  /**
+   * Returns the authorization for the server whose base URL the given request
+   * URL falls under. When the base URLs of more than one server match, the
+   * longest is used.
+   *
+   * @param url
+   *          absolute URL of a request
+   * @return authorization for the server, or null
+   */
+  public ServerAuthorization findForUrl(String url) {
+    String key = AuthorizationUtil.normalizeServerBase(url);
+    if (key == null) {
+      return null;
+    }
+    final Map<String, ServerAuthorization> byServer = snapshot.byServer;
+    if (byServer.isEmpty()) {
+      return null;
+    }
+
+    // try the url, then each shorter path, down to the host
+    final int hostStart = key.indexOf("://");
+    final int minLen = hostStart >= 0 ? hostStart + 3 : 0;
+    while (true) {
+      final ServerAuthorization sa = byServer.get(key);
+      if (sa != null) {
+        return sa;
+      }
+      final int pos = key.lastIndexOf('/');
+      if (pos < minLen) {
+        return null;
+      }
+      key = key.substring(0, pos);
+    }
+  }
+
+  /**
+   * Returns the authorization for the server of the given request URL when its
+   * access token has not expired.
+   *
+   * @param url
+   *          absolute URL of a request
+   * @return unexpired authorization for the server, or null
+   */
+  public ServerAuthorization findValidForUrl(String url) {
+    final ServerAuthorization sa = findForUrl(url);
+    if (sa != null && isExpired(sa)) {
+      LOG.warn("access token for {} expired at {}", sa.getServerUrl(), sa.getExpiresAt());
+      return null;
+    }
+    return sa;
+  }
+
+  /**
+   * @return true when the authorization's access token has an expiration time
+   *         and that time has passed
+   */
+  public boolean isExpired(ServerAuthorization serverAuth) {
+    return expiresBefore(serverAuth, currentTimeMillis());
+  }
+
+  /**
+   * Returns the authorizations whose access tokens expire before the given
+   * time; authorizations without an expiration time never do.
+   *
+   * @param time
+   *          milliseconds since the epoch
+   * @return authorizations in the order added
+   */
+  public List<ServerAuthorization> getExpiringBefore(long time) {
+    final List<ServerAuthorization> result = new ArrayList<ServerAuthorization>();
+    for (ServerAuthorization sa : snapshot.all) {
+      if (expiresBefore(sa, time)) {
+        result.add(sa);
+      }
+    }
+    return result;
+  }
+
+  private static boolean expiresBefore(ServerAuthorization serverAuth, long time) {
+    final Date expiresAt = serverAuth.getExpiresAt();
+    return expiresAt != null && expiresAt.getTime() <= time;
+  }
+
+  /**
+   * @return unmodifiable snapshot of all authorizations, in the order added
+   */
+  public List<ServerAuthorization> getAll() {
+    return snapshot.all;
+  }
+
+  /**
+   * @return number of servers with an authorization
+   */
+  public int size() {
+    return snapshot.all.size();
+  }
+
+  /**
+   * Returns the current time. Exists so tests can control the clock.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
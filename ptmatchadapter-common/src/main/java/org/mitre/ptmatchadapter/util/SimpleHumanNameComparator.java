@@ -98,6 +98,8 @@ public class SimpleHumanNameComparator implements Comparator<HumanName> {
       } else {
         result = -1;
       }
+    } else if (list2.size() == 0) {
+      result = 1;
     } else { // both lists have items
       // compare the first entry; assumption is that lists are already sorted
       result = list1.get(0).getValue().compareTo(list2.get(0).getValue());
@@ -0,0 +1,199 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+/**
+ * Measures of how alike two strings are, for comparing the values of
+ * records that may be duplicates.
+ *
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public final class StringSimilarity {
+  /** prefix scaling factor of the Jaro-Winkler similarity. */
+  private static final double WINKLER_SCALE = 0.1;
+
+  /** longest common prefix rewarded by the Jaro-Winkler similarity. */
+  private static final int WINKLER_PREFIX = 4;
+
+  private StringSimilarity() {
+  }
+
+  /**
+   * Returns the Jaro-Winkler similarity of two strings, which favors strings
+   * that agree at the start, as names with a typing error usually do.
+   *
+   * @return 1 for equal strings, 0 for strings with nothing in common
+   */
+  public static double jaroWinkler(String s1, String s2) {
+    final double jaro = jaro(s1, s2);
+    if (jaro == 0.) {
+      return 0.;
+    }
+    final int max = Math.min(WINKLER_PREFIX, Math.min(s1.length(), s2.length()));
+    int prefix = 0;
+    while (prefix < max && s1.charAt(prefix) == s2.charAt(prefix)) {
+      prefix++;
+    }
+    return jaro + prefix * WINKLER_SCALE * (1. - jaro);
+  }
+
+  /**
+   * Returns the Jaro similarity of two strings.
+   *
+   * @return 1 for equal strings, 0 for strings with nothing in common
+   */
+  public static double jaro(String s1, String s2) {
+    final int len1 = s1.length();
+    final int len2 = s2.length();
+    if (len1 == 0 || len2 == 0) {
+      return len1 == len2 ? 1. : 0.;
+    }
+    if (s1.equals(s2)) {
+      return 1.;
+    }
+
+    // characters match when equal and no farther apart than this
+    final int window = Math.max(0, Math.max(len1, len2) / 2 - 1);
+    final boolean[] matched1 = new boolean[len1];
+    final boolean[] matched2 = new boolean[len2];
+    int matches = 0;
+    for (int i = 0; i < len1; i++) {
+      final int from = Math.max(0, i - window);
+      final int to = Math.min(len2, i + window + 1);
+      for (int j = from; j < to; j++) {
+        if (!matched2[j] && s1.charAt(i) == s2.charAt(j)) {
+          matched1[i] = true;
+          matched2[j] = true;
+          matches++;
+          break;
+        }
+      }
+    }
+    if (matches == 0) {
+      return 0.;
+    }
+
+    // matched characters out of order, counted twice
+    int transpositions = 0;
+    int j = 0;
+    for (int i = 0; i < len1; i++) {
+      if (matched1[i]) {
+        while (!matched2[j]) {
+          j++;
+        }
+        if (s1.charAt(i) != s2.charAt(j)) {
+          transpositions++;
+        }
+        j++;
+      }
+    }
+
+    final double m = matches;
+    return (m / len1 + m / len2 + (m - transpositions / 2.) / m) / 3.;
+  }
+
+  /**
+   * Returns the Levenshtein distance of two strings: the fewest characters
+   * inserted, deleted or replaced to turn one into the other.
+   */
+  public static int editDistance(String s1, String s2) {
+    return editDistance(s1, s2, Math.max(s1.length(), s2.length()));
+  }
+
+  /**
+   * Returns the Levenshtein distance of two strings when it is no more than
+   * the given maximum. Only the cells of the distance table within the
+   * maximum of its diagonal are computed, and the computation stops once
+   * every cell of a row exceeds the maximum, so strings that are far apart
+   * are told apart quickly.
+   *
+   * @param maxDistance
+   *          largest distance of interest
+   * @return the distance, or maxDistance + 1 when it is greater
+   */
+  public static int editDistance(String s1, String s2, int maxDistance) {
+    final int len1 = s1.length();
+    final int len2 = s2.length();
+    final int beyond = maxDistance + 1;
+    if (Math.abs(len1 - len2) > maxDistance) {
+      return beyond;
+    }
+    if (len1 == 0 || len2 == 0) {
+      return Math.max(len1, len2);
+    }
+
+    int[] prev = new int[len2 + 1];
+    int[] curr = new int[len2 + 1];
+    for (int j = 0; j <= len2; j++) {
+      prev[j] = Math.min(j, beyond);
+    }
+    for (int i = 1; i <= len1; i++) {
+      final int from = Math.max(1, i - maxDistance);
+      final int to = Math.min(len2, i + maxDistance);
+      curr[from - 1] = from == 1 ? Math.min(i, beyond) : beyond;
+      int rowMin = curr[from - 1];
+      final char c = s1.charAt(i - 1);
+      for (int j = from; j <= to; j++) {
+        final int cost = c == s2.charAt(j - 1) ? 0 : 1;
+        final int d = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1),
+            prev[j - 1] + cost);
+        curr[j] = Math.min(d, beyond);
+        rowMin = Math.min(rowMin, curr[j]);
+      }
+      if (to < len2) {
+        // the next row reads one cell past this row's band
+        curr[to + 1] = beyond;
+      }
+      if (rowMin > maxDistance) {
+        return beyond;
+      }
+      final int[] tmp = prev;
+      prev = curr;
+      curr = tmp;
+    }
+    return prev[len2];
+  }
+
+  /**
+   * Returns the edit distance of two strings scaled to a similarity.
+   *
+   * @return 1 for equal strings, 0 when every character must change
+   */
+  public static double editSimilarity(String s1, String s2) {
+    return editSimilarity(s1, s2, 0.);
+  }
+
+  /**
+   * Returns the edit distance of two strings scaled to a similarity, when it
+   * is at least the given minimum.
+   *
+   * @param minSimilarity
+   *          lowest similarity of interest
+   * @return 1 for equal strings; 0 when less similar than the minimum
+   */
+  public static double editSimilarity(String s1, String s2,
+      double minSimilarity) {
+    final int max = Math.max(s1.length(), s2.length());
+    if (max == 0) {
+      return 1.;
+    }
+    final int maxDistance = (int) Math.floor((1. - minSimilarity) * max + 1e-9);
+    final int distance = editDistance(s1, s2, maxDistance);
+    return distance > maxDistance ? 0. : 1. - (double) distance / max;
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DuplicateMessageFilterTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /**
+   * Filter whose clock is set by the test.
+   */
+  private static class ClockedFilter extends DuplicateMessageFilter {
+    long now = 1000000L;
+
+    @Override
+    protected long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  private static Bundle newMessage(String msgId) {
+    final Bundle bundle = new Bundle();
+    bundle.setType(BundleType.MESSAGE);
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId(msgId);
+    bundle.addEntry().setResource(hdr);
+    return bundle;
+  }
+
+  @Test
+  public void testRepeatMessage() {
+    final DuplicateMessageFilter filter = new DuplicateMessageFilter();
+
+    assertTrue(filter.isNewMessage(newMessage("m1")));
+    assertFalse(filter.isNewMessage(newMessage("m1")));
+    assertTrue(filter.isNewMessage(newMessage("m2")));
+
+    final Bundle searchSet = newMessage("m3");
+    searchSet.setType(BundleType.SEARCHSET);
+    assertFalse(filter.isNewMessage(searchSet));
+  }
+
+  @Test
+  public void testSizeLimit() {
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setMaxEntries(3);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(filter.isNewMessageId("m" + i));
+      filter.now++;
+    }
+    assertEquals(3, filter.size());
+    // oldest ids are forgotten first
+    assertFalse(filter.isNewMessageId("m4"));
+    assertFalse(filter.isNewMessageId("m2"));
+    assertTrue(filter.isNewMessageId("m0"));
+  }
+
+  @Test
+  public void testAgeLimit() {
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setMaxAgeMillis(60000L);
+
+    assertTrue(filter.isNewMessageId("m1"));
+    filter.now += 30000L;
+    assertTrue(filter.isNewMessageId("m2"));
+    filter.now += 30000L;
+    assertFalse(filter.isNewMessageId("m2"));
+    // m1 has aged out
+    assertEquals(1, filter.size());
+    assertTrue(filter.isNewMessageId("m1"));
+
+    filter.setMaxAgeMillis(0);
+    filter.now += 1000000L;
+    assertFalse(filter.isNewMessageId("m1"));
+  }
+
+  @Test
+  public void testStateFolderCreated() throws IOException {
+    // e.g., the work folder of a fresh install
+    final File stateFile = new File(tmpFolder.getRoot(), "work/seen.log");
+
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setStateFile(stateFile);
+    assertTrue(filter.isNewMessageId("m1"));
+    filter.markProcessedId("m1");
+
+    final ClockedFilter restarted = new ClockedFilter();
+    restarted.setStateFile(stateFile);
+    assertFalse(restarted.isNewMessageId("m1"));
+  }
+
+  @Test
+  public void testUnfinishedRequestProcessedAfterRestart() throws IOException {
+    final File stateFile = new File(tmpFolder.getRoot(), "seen.log");
+
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setStateFile(stateFile);
+    assertTrue(filter.isNewMessage(newMessage("m1")));
+    assertTrue(filter.isNewMessage(newMessage("m2")));
+    // m2 is still queued when the adapter stops
+    filter.markProcessed(newMessage("m1"));
+    assertTrue(filter.isProcessed("m1"));
+    assertFalse(filter.isProcessed("m2"));
+    assertFalse(filter.isNewMessage(newMessage("m2")));
+
+    final ClockedFilter restarted = new ClockedFilter();
+    restarted.setStateFile(stateFile);
+    assertFalse(restarted.isNewMessage(newMessage("m1")));
+    assertTrue(restarted.isNewMessage(newMessage("m2")));
+    restarted.markProcessed(newMessage("m2"));
+    // marking again does not record the id twice
+    restarted.markProcessed(newMessage("m2"));
+
+    final List<String> lines = Files.readAllLines(stateFile.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(1).endsWith("\tm2"));
+  }
+
+  @Test
+  public void testMessageNeverPassedMarkedProcessed() {
+    final DuplicateMessageFilter filter = new DuplicateMessageFilter();
+    // e.g., a message that is not a record match request
+    filter.markProcessedId("m1");
+    assertTrue(filter.isProcessed("m1"));
+    assertFalse(filter.isNewMessageId("m1"));
+  }
+
+  @Test
+  public void testStateSurvivesRestart() throws IOException {
+    final File stateFile = new File(tmpFolder.getRoot(), "seen.log");
+
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setMaxAgeMillis(60000L);
+    filter.setStateFile(stateFile);
+    assertTrue(filter.isNewMessageId("m1"));
+    filter.markProcessedId("m1");
+    filter.now += 50000L;
+    assertTrue(filter.isNewMessageId("m2"));
+    filter.markProcessedId("m2");
+
+    // simulate a partial line written as the process was stopped
+    Files.write(stateFile.toPath(), "12".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    final ClockedFilter restarted = new ClockedFilter();
+    restarted.now = filter.now + 20000L;
+    restarted.setMaxAgeMillis(60000L);
+    restarted.setStateFile(stateFile);
+    // m1 aged out while the process was down
+    assertFalse(restarted.isNewMessageId("m2"));
+    assertEquals(1, restarted.size());
+    assertTrue(restarted.isNewMessageId("m1"));
+    restarted.markProcessedId("m1");
+
+    // file was compacted on load: expired and partial lines are gone
+    final List<String> lines = Files.readAllLines(stateFile.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).endsWith("\tm2"));
+    assertTrue(lines.get(1).endsWith("\tm1"));
+  }
+
+  @Test
+  public void testStateFileCompacted() throws IOException {
+    final File stateFile = new File(tmpFolder.getRoot(), "seen.log");
+
+    final ClockedFilter filter = new ClockedFilter();
+    filter.setMaxEntries(10);
+    filter.setStateFile(stateFile);
+    for (int i = 0; i < 5000; i++) {
+      assertTrue(filter.isNewMessageId("m" + i));
+      filter.markProcessedId("m" + i);
+    }
+
+    final List<String> lines = Files.readAllLines(stateFile.toPath(),
+        StandardCharsets.UTF_8);
+    assertTrue("log compacted: " + lines.size(), lines.size() <= 1000);
+
+    final DuplicateMessageFilter restarted = new DuplicateMessageFilter();
+    restarted.setMaxEntries(10);
+    restarted.setMaxAgeMillis(0);
+    restarted.setStateFile(stateFile);
+    assertFalse(restarted.isNewMessageId("m4999"));
+    assertFalse(restarted.isNewMessageId("m4990"));
+    assertEquals(10, restarted.size());
+  }
+}
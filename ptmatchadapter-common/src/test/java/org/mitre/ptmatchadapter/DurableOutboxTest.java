@@ -0,0 +1,355 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class DurableOutboxTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final List<DurableOutbox> outboxes = new ArrayList<DurableOutbox>();
+
+  /**
+   * Records the messages it sends, failing those the test asks it to.
+   */
+  private static class FakeSender extends ResultSender {
+    final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger batches = new AtomicInteger();
+    /** number of times each message id fails before it is accepted. */
+    final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+    volatile String refuse;
+    volatile CountDownLatch gate;
+    /** counted down once a message is being sent. */
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    @Override
+    protected Bundle postBatch(Bundle batch) {
+      batches.incrementAndGet();
+      final Bundle response = new Bundle();
+      response.setType(BundleType.BATCHRESPONSE);
+      for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+        sent.add(entry.getResource().getIdElement().getIdPart());
+        response.addEntry().getResponse().setStatus("200 OK");
+      }
+      return response;
+    }
+
+    @Override
+    protected void putMessage(Bundle bundle) {
+      final String id = bundle.getIdElement().getIdPart();
+      entered.countDown();
+      try {
+        if (gate != null) {
+          gate.await();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted");
+      }
+      if (id.equals(refuse)) {
+        throw new InvalidRequestException("invalid message");
+      }
+      final Integer remaining = failures.get(id);
+      if (remaining != null && remaining > 0) {
+        failures.put(id, remaining - 1);
+        throw new InternalErrorException("server error");
+      }
+      sent.add(id);
+    }
+
+    @Override
+    protected String putEncodedMessage(String id, File encoded) {
+      final Integer remaining = failures.get(id);
+      if (remaining != null && remaining > 0) {
+        failures.put(id, remaining - 1);
+        return "500 Internal Server Error";
+      }
+      assertTrue(encoded.exists());
+      sent.add(id);
+      return "200 OK";
+    }
+  }
+
+  private static Bundle newMessage(String id) {
+    final Bundle bundle = new Bundle();
+    bundle.setId(id);
+    bundle.setType(BundleType.MESSAGE);
+    return bundle;
+  }
+
+  private DurableOutbox newOutbox(FakeSender sender, File journal) {
+    final DurableOutbox outbox = new DurableOutbox();
+    outbox.setResultSender(sender);
+    outbox.setFhirContext(FHIR_CONTEXT);
+    outbox.setJournalFile(journal);
+    outbox.setSyncJournal(false);
+    outbox.setBatchSize(1);
+    outbox.setInitialRetryMillis(10);
+    outbox.setMaxRetryMillis(40);
+    outboxes.add(outbox);
+    return outbox;
+  }
+
+  private static void awaitPending(DurableOutbox outbox, int pending)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (outbox.getPendingMessages() != pending
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(pending, outbox.getPendingMessages());
+  }
+
+  @After
+  public void tearDown() {
+    for (DurableOutbox outbox : outboxes) {
+      outbox.stop();
+    }
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    final FakeSender sender = new FakeSender();
+    final File journal = tmpFolder.newFile("outbox.journal");
+    final DurableOutbox outbox = newOutbox(sender, journal);
+
+    outbox.submit(newMessage("m1"));
+    outbox.submit(newMessage("m2"));
+    awaitPending(outbox, 0);
+
+    assertEquals(2, sender.sent.size());
+    assertEquals(2, outbox.getDeliveredMessages());
+    final List<String> lines = Files.readAllLines(journal.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(4, lines.size());
+    assertTrue(lines.get(0).startsWith("A\tm1\t{"));
+    assertTrue(lines.contains("D\tm1"));
+    assertTrue(lines.contains("D\tm2"));
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    final FakeSender sender = new FakeSender();
+    final DurableOutbox outbox = newOutbox(sender, null);
+    outbox.setBatchSize(10);
+
+    // the worker is held sending the first message while the rest queue
+    sender.gate = new CountDownLatch(1);
+    outbox.submit(newMessage("first"));
+    assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 5; i++) {
+      outbox.submit(newMessage("m" + i));
+    }
+    sender.gate.countDown();
+    awaitPending(outbox, 0);
+
+    assertEquals(6, sender.sent.size());
+    assertEquals(1, sender.batches.get());
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    final FakeSender sender = new FakeSender();
+    final DurableOutbox outbox = newOutbox(sender, null);
+
+    sender.failures.put("m1", 3);
+    outbox.submit(newMessage("m1"));
+    awaitPending(outbox, 0);
+
+    assertEquals(Collections.singletonList("m1"), sender.sent);
+    assertEquals(3, outbox.getRetries());
+    assertEquals(1, outbox.getDeliveredMessages());
+
+    assertEquals(10, outbox.retryDelayMillis(1));
+    assertEquals(20, outbox.retryDelayMillis(2));
+    assertEquals(40, outbox.retryDelayMillis(3));
+    assertEquals(40, outbox.retryDelayMillis(40));
+  }
+
+  @Test
+  public void testAbandon() throws Exception {
+    final FakeSender sender = new FakeSender();
+    final DurableOutbox outbox = newOutbox(sender, null);
+    outbox.setMaxAttempts(2);
+
+    sender.refuse = "bad";
+    sender.failures.put("down", 10);
+    outbox.submit(newMessage("bad"));
+    outbox.submit(newMessage("down"));
+    awaitPending(outbox, 0);
+
+    assertTrue(sender.sent.isEmpty());
+    assertEquals(2, outbox.getAbandonedMessages());
+    // the refused message is not retried
+    assertEquals(1, outbox.getRetries());
+  }
+
+  @Test
+  public void testJournalFolderCreated() throws Exception {
+    // e.g., the work folder of a fresh install
+    final File journal = new File(tmpFolder.getRoot(), "work/outbox.journal");
+    final FakeSender sender = new FakeSender();
+    final DurableOutbox outbox = newOutbox(sender, journal);
+
+    outbox.submit(newMessage("m1"));
+    awaitPending(outbox, 0);
+
+    assertEquals(1, sender.sent.size());
+    final List<String> lines = Files.readAllLines(journal.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).startsWith("A\tm1\t{"));
+    assertEquals("D\tm1", lines.get(1));
+  }
+
+  @Test
+  public void testRestartResends() throws Exception {
+    final File journal = new File(tmpFolder.getRoot(), "outbox.journal");
+    final FakeSender down = new FakeSender();
+    down.failures.put("m1", 1000);
+    down.failures.put("m2", 1000);
+    final DurableOutbox first = newOutbox(down, journal);
+    first.setMaxRetryMillis(60000);
+
+    first.submit(newMessage("m1"));
+    first.submit(newMessage("m2"));
+    first.submit(newMessage("m3"));
+    awaitPending(first, 2);
+    first.stop();
+
+    final FakeSender up = new FakeSender();
+    final DurableOutbox second = newOutbox(up, journal);
+    second.start();
+    assertEquals(2, second.getPendingMessages());
+    awaitPending(second, 0);
+
+    assertEquals(2, up.sent.size());
+    assertTrue(up.sent.contains("m1"));
+    assertTrue(up.sent.contains("m2"));
+  }
+
+  @Test
+  public void testEncodedMessage() throws Exception {
+    final File journal = new File(tmpFolder.getRoot(), "outbox.journal");
+    final File encoded = tmpFolder.newFile("results.json");
+    Files.write(encoded.toPath(), "{\"resourceType\":\"Bundle\"}".getBytes(
+        StandardCharsets.UTF_8));
+    final Bundle message = newMessage("big");
+    message.setUserData(ResultSender.ENCODED_MESSAGE, encoded);
+
+    final FakeSender down = new FakeSender();
+    down.failures.put("big", 1000);
+    final DurableOutbox first = newOutbox(down, journal);
+    first.setMaxRetryMillis(60000);
+    first.submit(message);
+    first.submit(newMessage("m1"));
+    awaitPending(first, 1);
+    first.stop();
+
+    // the journal names the file rather than holding the message
+    final List<String> lines = Files.readAllLines(journal.toPath(),
+        StandardCharsets.UTF_8);
+    assertEquals("A\tbig\t@" + encoded.getAbsolutePath(), lines.get(0));
+
+    final FakeSender up = new FakeSender();
+    final DurableOutbox second = newOutbox(up, journal);
+    second.start();
+    awaitPending(second, 0);
+
+    assertEquals(Collections.singletonList("big"), up.sent);
+    assertFalse(encoded.exists());
+  }
+
+  @Test
+  public void testDuplicateIgnored() throws Exception {
+    final FakeSender sender = new FakeSender();
+    sender.gate = new CountDownLatch(1);
+    final DurableOutbox outbox = newOutbox(sender, null);
+
+    outbox.submit(newMessage("m1"));
+    outbox.submit(newMessage("m1"));
+    assertEquals(1, outbox.getPendingMessages());
+    assertEquals(1, outbox.getDuplicateMessages());
+
+    sender.gate.countDown();
+    awaitPending(outbox, 0);
+    assertEquals(Collections.singletonList("m1"), sender.sent);
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    final FakeSender sender = new FakeSender();
+    sender.gate = new CountDownLatch(1);
+    final DurableOutbox outbox = newOutbox(sender, null);
+    outbox.setMaxPending(2);
+
+    outbox.submit(newMessage("m1"));
+    outbox.submit(newMessage("m2"));
+
+    final CountDownLatch submitted = new CountDownLatch(1);
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          outbox.submit(newMessage("m3"));
+          submitted.countDown();
+        } catch (InterruptedException e) {
+          // test failed
+        }
+      }
+    });
+    producer.start();
+
+    assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, outbox.getBlockedSubmits());
+
+    sender.gate.countDown();
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    awaitPending(outbox, 0);
+    assertEquals(3, sender.sent.size());
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class MessageRetrieverTest {
+
+  private static final long NOW = 1460000000000L;
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /**
+   * Serves the pages queued by the test and records the queries it receives.
+   */
+  private static class FakeRetriever extends MessageRetriever {
+    final List<String> queries = new ArrayList<String>();
+    final List<Bundle> pages = new ArrayList<Bundle>();
+    int failOnPage = -1;
+
+    FakeRetriever() {
+      setDestinationUri("http://acme.com/record-matcher");
+      setPeriod(60000L);
+      setOverlapMillis(5000L);
+    }
+
+    @Override
+    protected Bundle search(String query) {
+      queries.add(query);
+      return pages.isEmpty() ? null : pages.get(0);
+    }
+
+    @Override
+    protected Bundle loadNextPage(Bundle page) {
+      final int next = pages.indexOf(page) + 1;
+      if (next == failOnPage) {
+        throw new IllegalStateException("server unavailable");
+      }
+      return pages.get(next);
+    }
+
+    @Override
+    protected long currentTimeMillis() {
+      return NOW;
+    }
+
+    /**
+     * Queues a search result holding the given pages of messages, each
+     * message given by its lastUpdated time.
+     */
+    void respond(long[]... pageTimes) {
+      pages.clear();
+      for (int i = 0; i < pageTimes.length; i++) {
+        final Bundle page = new Bundle();
+        page.setType(BundleType.SEARCHSET);
+        for (long t : pageTimes[i]) {
+          page.addEntry().setResource(newMessage(t));
+        }
+        if (i < pageTimes.length - 1) {
+          page.addLink().setRelation(Bundle.LINK_NEXT).setUrl("page?n=" + (i + 1));
+        }
+        pages.add(page);
+      }
+    }
+  }
+
+  private static Bundle newMessage(long lastUpdated) {
+    final Bundle bundle = new Bundle();
+    bundle.setType(BundleType.MESSAGE);
+    bundle.getMeta().setLastUpdated(new Date(lastUpdated));
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId("m" + lastUpdated);
+    bundle.addEntry().setResource(hdr);
+    return bundle;
+  }
+
+  private static String lastUpdatedParam(long time) throws UnsupportedEncodingException {
+    final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    return "&_lastUpdated=gt" + URLEncoder.encode(df.format(new Date(time)), "UTF-8");
+  }
+
+  @Test
+  public void testFirstSearchUsesPeriod() throws Exception {
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.respond(new long[0]);
+
+    assertNotNull(retriever.doSearch());
+    assertTrue(retriever.queries.get(0),
+        retriever.queries.get(0).endsWith(lastUpdatedParam(NOW - 60000L - 5000L)));
+    // no messages, so the cursor stays where the search began
+    assertEquals(NOW - 60000L, retriever.getCursor().getTime());
+  }
+
+  @Test
+  public void testCursorAdvances() throws Exception {
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.respond(new long[] { NOW - 50000L, NOW - 20000L, NOW - 30000L });
+    assertEquals(3, retriever.doSearch().getEntry().size());
+    assertEquals(NOW - 20000L, retriever.getCursor().getTime());
+
+    retriever.respond(new long[0]);
+    retriever.doSearch();
+    assertTrue(retriever.queries.get(1),
+        retriever.queries.get(1).endsWith(lastUpdatedParam(NOW - 20000L - 5000L)));
+  }
+
+  @Test
+  public void testAllPagesRetrieved() {
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.respond(new long[] { NOW - 50000L, NOW - 49000L },
+        new long[] { NOW - 48000L, NOW - 47000L }, new long[] { NOW - 46000L });
+
+    final Bundle results = retriever.doSearch();
+    assertEquals(5, results.getEntry().size());
+    assertNull(results.getLink(Bundle.LINK_NEXT));
+    assertEquals(NOW - 46000L, retriever.getCursor().getTime());
+  }
+
+  @Test
+  public void testCursorKeptWhenPageFails() {
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.respond(new long[] { NOW - 50000L }, new long[] { NOW - 40000L },
+        new long[] { NOW - 30000L });
+    retriever.failOnPage = 2;
+
+    // messages retrieved before the failure are still passed on
+    assertEquals(2, retriever.doSearch().getEntry().size());
+    assertEquals(NOW - 60000L, retriever.getCursor().getTime());
+  }
+
+  @Test
+  public void testCursorSurvivesRestart() throws Exception {
+    final File cursorFile = new File(tmpFolder.getRoot(), "cursor.txt");
+
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.setCursorFile(cursorFile);
+    retriever.respond(new long[] { NOW - 10000L });
+    retriever.doSearch();
+    assertTrue(cursorFile.exists());
+
+    final FakeRetriever restarted = new FakeRetriever();
+    restarted.setCursorFile(cursorFile);
+    restarted.respond(new long[0]);
+    restarted.doSearch();
+    assertEquals(NOW - 10000L, restarted.getCursor().getTime());
+    assertTrue(restarted.queries.get(0),
+        restarted.queries.get(0).endsWith(lastUpdatedParam(NOW - 10000L - 5000L)));
+  }
+
+  @Test
+  public void testSavedCursorWaitsForUnfinishedRequest() throws Exception {
+    final File cursorFile = new File(tmpFolder.getRoot(), "cursor.txt");
+    final DuplicateMessageFilter filter = new DuplicateMessageFilter();
+
+    final FakeRetriever retriever = new FakeRetriever();
+    retriever.setCursorFile(cursorFile);
+    retriever.setDuplicateMessageFilter(filter);
+    retriever.respond(new long[] { NOW - 30000L, NOW - 20000L });
+    for (BundleEntryComponent entry : retriever.doSearch().getEntry()) {
+      assertTrue(filter.isNewMessage(entry.getResource()));
+    }
+    // the later request is answered; the earlier one is still queued
+    filter.markProcessedId("m" + (NOW - 20000L));
+    retriever.respond(new long[] { NOW - 10000L });
+    retriever.doSearch();
+    filter.markProcessedId("m" + (NOW - 10000L));
+    assertEquals(NOW - 10000L, retriever.getCursor().getTime());
+
+    // the adapter stops before the earlier request is answered
+    final FakeRetriever restarted = new FakeRetriever();
+    restarted.setCursorFile(cursorFile);
+    restarted.setOverlapMillis(0L);
+    restarted.respond(new long[0]);
+    restarted.doSearch();
+    assertTrue(restarted.queries.get(0),
+        restarted.queries.get(0).endsWith(lastUpdatedParam(NOW - 30000L - 1L)));
+
+    // once every request is answered, the saved cursor catches up
+    filter.markProcessedId("m" + (NOW - 30000L));
+    retriever.respond(new long[0]);
+    retriever.doSearch();
+    final FakeRetriever restartedLater = new FakeRetriever();
+    restartedLater.setCursorFile(cursorFile);
+    restartedLater.respond(new long[0]);
+    restartedLater.doSearch();
+    assertEquals(NOW - 10000L, restartedLater.getCursor().getTime());
+  }
+}
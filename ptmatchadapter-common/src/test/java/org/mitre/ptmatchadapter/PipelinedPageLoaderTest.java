@@ -0,0 +1,189 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Patient;
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PipelinedPageLoaderTest {
+
+  /**
+   * Serves a fixed number of pages, each holding a fixed number of patients.
+   */
+  private static class FakePageLoader extends PipelinedPageLoader {
+    private final int numPages;
+    private final int pageSize;
+    private final int failOnPage;
+    final AtomicInteger loaded = new AtomicInteger();
+    final AtomicInteger maxAhead = new AtomicInteger();
+    final AtomicInteger handled = new AtomicInteger();
+
+    FakePageLoader(int numPages, int pageSize, int failOnPage) {
+      this.numPages = numPages;
+      this.pageSize = pageSize;
+      this.failOnPage = failOnPage;
+    }
+
+    Bundle page(int num) {
+      final Bundle b = new Bundle();
+      b.setId("page-" + num);
+      for (int i = 0; i < pageSize; i++) {
+        final Patient p = new Patient();
+        p.setId("p" + num + "-" + i);
+        b.addEntry().setResource(p);
+      }
+      if (num < numPages - 1) {
+        b.addLink().setRelation(Bundle.LINK_NEXT).setUrl("page?n=" + (num + 1));
+      }
+      return b;
+    }
+
+    @Override
+    protected Bundle loadNextPage(Bundle page) {
+      final int next = Integer.parseInt(page.getId().substring(5)) + 1;
+      if (next == failOnPage) {
+        throw new IllegalStateException("server unavailable");
+      }
+      final int ahead = loaded.incrementAndGet() - handled.get();
+      if (ahead > maxAhead.get()) {
+        maxAhead.set(ahead);
+      }
+      return page(next);
+    }
+  }
+
+  @Test
+  public void testPagesHandledInOrder() throws IOException {
+    final FakePageLoader loader = new FakePageLoader(25, 10, -1);
+    loader.setPrefetchPages(3);
+
+    final List<String> seen = new ArrayList<String>();
+    final PageRetrievalStats stats = loader.processPages(loader.page(0),
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            assertEquals("page-" + pageNum, page.getId());
+            seen.add(page.getId());
+            loader.handled.incrementAndGet();
+            return page.getEntry().size();
+          }
+        });
+
+    assertEquals(25, seen.size());
+    assertEquals(25, stats.getPages());
+    assertEquals(250, stats.getRecords());
+    assertEquals(25, loader.getTotalPages());
+    assertEquals(250, loader.getTotalRecords());
+    // queue capacity plus the page being put and the page being handled
+    assertTrue("prefetch bounded: " + loader.maxAhead.get(),
+        loader.maxAhead.get() <= 5);
+  }
+
+  @Test
+  public void testSinglePage() throws IOException {
+    final FakePageLoader loader = new FakePageLoader(1, 4, -1);
+
+    final PageRetrievalStats stats = loader.processPages(loader.page(0),
+        new PipelinedPageLoader.PageHandler() {
+          @Override
+          public int handlePage(Bundle page, int pageNum) {
+            return page.getEntry().size();
+          }
+        });
+    assertEquals(1, stats.getPages());
+    assertEquals(4, stats.getRecords());
+  }
+
+  @Test
+  public void testLoadFailurePropagates() throws IOException {
+    final FakePageLoader loader = new FakePageLoader(10, 2, 4);
+    final List<Integer> seen = new ArrayList<Integer>();
+
+    try {
+      loader.processPages(loader.page(0), new PipelinedPageLoader.PageHandler() {
+        @Override
+        public int handlePage(Bundle page, int pageNum) {
+          seen.add(pageNum);
+          return page.getEntry().size();
+        }
+      });
+      fail("exception from page load expected");
+    } catch (IllegalStateException e) {
+      assertEquals("server unavailable", e.getMessage());
+    }
+    // pages before the failure were all handled
+    assertEquals(4, seen.size());
+  }
+
+  @Test
+  public void testLoadErrorPropagates() throws IOException {
+    final FakePageLoader loader = new FakePageLoader(10, 2, -1) {
+      @Override
+      protected Bundle loadNextPage(Bundle page) {
+        throw new OutOfMemoryError("page too large");
+      }
+    };
+
+    try {
+      loader.processPages(loader.page(0), new PipelinedPageLoader.PageHandler() {
+        @Override
+        public int handlePage(Bundle page, int pageNum) {
+          return page.getEntry().size();
+        }
+      });
+      fail("error from page load expected");
+    } catch (OutOfMemoryError e) {
+      assertEquals("page too large", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testHandlerFailureStopsLoading() throws InterruptedException {
+    final FakePageLoader loader = new FakePageLoader(1000, 1, -1);
+    loader.setPrefetchPages(1);
+
+    try {
+      loader.processPages(loader.page(0), new PipelinedPageLoader.PageHandler() {
+        @Override
+        public int handlePage(Bundle page, int pageNum) throws IOException {
+          if (pageNum == 2) {
+            throw new IOException("disk full");
+          }
+          return 1;
+        }
+      });
+      fail("exception from page handler expected");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+
+    Thread.sleep(100);
+    assertTrue("loading stopped: " + loader.loaded.get(), loader.loaded.get() < 10);
+  }
+}
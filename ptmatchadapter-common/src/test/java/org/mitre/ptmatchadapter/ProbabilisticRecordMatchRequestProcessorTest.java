@@ -0,0 +1,411 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.CodeType;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.MessageDestinationComponent;
+import org.hl7.fhir.instance.model.MessageHeader.MessageSourceComponent;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.hl7.fhir.instance.model.OperationOutcome;
+import org.hl7.fhir.instance.model.Parameters;
+import org.hl7.fhir.instance.model.Patient;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.StringType;
+import org.hl7.fhir.instance.model.UriType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.ptmatchadapter.match.BlockingIndex;
+import org.mitre.ptmatchadapter.match.MatchRecords;
+import org.mitre.ptmatchadapter.match.ProbabilisticMatcher;
+import org.mitre.ptmatchadapter.match.RecordSetCache;
+import org.mitre.ptmatchadapter.recordmatch.LinkedRecordResultsBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ProbabilisticRecordMatchRequestProcessorTest {
+  private static final String SERVER_BASE = "http://localhost:3001/";
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testDeduplicate() {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Jones", "Mary", "987-65-4321"));
+    proc.master.add(newPatient("3", "Smyth", "John", "123-45-6789"));
+
+    final Bundle response = proc.buildResponse(newRequest(false));
+    assertEquals(ResponseType.OK, getResponseCode(response));
+
+    final List<BundleEntryComponent> links = getLinkedRecords(response);
+    assertEquals(1, links.size());
+    final BundleEntryComponent link = links.get(0);
+    assertEquals(SERVER_BASE + "Patient/1", link.getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/3", link.getLink().get(1).getUrl());
+    assertEquals("certain", ((CodeType) link.getSearch()
+        .getExtensionsByUrl(LinkedRecordResultsBuilder.MPI_MATCH_EXTENSION_URL)
+        .get(0).getValue()).getValue());
+    assertTrue(link.getSearch().getScore().doubleValue() > 0.85);
+  }
+
+  @Test
+  public void testLinkage() {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Smith", "John", "123-45-6789"));
+    proc.query.add(newPatient("3", "Smith", "Jon", "123-45-6789"));
+
+    final Bundle response = proc.buildResponse(newRequest(true));
+    assertEquals(ResponseType.OK, getResponseCode(response));
+
+    // the duplicate within the master set is not reported
+    final List<BundleEntryComponent> links = getLinkedRecords(response);
+    assertEquals(2, links.size());
+    for (BundleEntryComponent link : links) {
+      assertEquals(SERVER_BASE + "Patient/3", link.getLink().get(1).getUrl());
+    }
+  }
+
+  @Test
+  public void testNoMasterRecords() {
+    final FakeProcessor proc = new FakeProcessor();
+    final Bundle response = proc.buildResponse(newRequest(false));
+    assertEquals(ResponseType.OK, getResponseCode(response));
+    assertEquals(0, getLinkedRecords(response).size());
+    assertEquals("No Records Found in Master Record Set",
+        getOutcome(response).getIssue().get(0).getDetails().getText());
+  }
+
+  @Test
+  public void testResultsWrittenToFile() throws IOException {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.setFhirRestClient(FHIR_CONTEXT.newRestfulGenericClient(SERVER_BASE));
+    final File resultsDir = new File(tmpFolder.getRoot(), "results");
+    proc.setResultsDir(resultsDir.getPath());
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Jones", "Mary", "987-65-4321"));
+    proc.master.add(newPatient("3", "Smyth", "John", "123-45-6789"));
+
+    final Bundle response = proc.buildResponse(newRequest(false));
+    assertEquals(ResponseType.OK, getResponseCode(response));
+    // the linked records are only in the file
+    assertEquals(0, getLinkedRecords(response).size());
+    final File file = (File) response.getUserData(ResultSender.ENCODED_MESSAGE);
+    assertEquals(resultsDir, file.getParentFile());
+
+    final Bundle written = (Bundle) FHIR_CONTEXT.newJsonParser().parseResource(
+        new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    assertEquals(response.getIdElement().getIdPart(),
+        written.getIdElement().getIdPart());
+    final List<BundleEntryComponent> links = getLinkedRecords(written);
+    assertEquals(1, links.size());
+    assertEquals(SERVER_BASE + "Patient/1", links.get(0).getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/3", links.get(0).getLink().get(1).getUrl());
+  }
+
+  @Test
+  public void testCachedMasterSet() {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.setRecordCache(new RecordSetCache());
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Jones", "Mary", "987-65-4321"));
+    proc.query.add(newPatient("3", "Smith", "Jon", "123-45-6789"));
+    proc.query.add(newPatient("4", "Brown", "Anne", "555-12-3456"));
+
+    Bundle response = proc.buildResponse(newRequest(true));
+    assertEquals(1, getLinkedRecords(response).size());
+    assertEquals(2, proc.searchUrls.size());
+
+    // only the updated master records are retrieved again
+    proc.searchUrls.clear();
+    final Patient changed = newPatient("2", "Brown", "Ann", "555-12-3456");
+    changed.getMeta().setVersionId("2");
+    proc.updated.add(changed);
+    response = proc.buildResponse(newRequest(true));
+    assertEquals(2, proc.searchUrls.size());
+    assertTrue(proc.searchUrls.get(0).startsWith(SERVER_BASE + "Patient?family=m&_lastUpdated=ge"));
+
+    final List<BundleEntryComponent> links = getLinkedRecords(response);
+    assertEquals(2, links.size());
+    assertEquals(SERVER_BASE + "Patient/2", links.get(1).getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/4", links.get(1).getLink().get(1).getUrl());
+  }
+
+  @Test
+  public void testIncrementalDeduplicate() {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.setRecordCache(new RecordSetCache());
+    final int[] fullMatches = { 0 };
+    proc.setMatcher(new ProbabilisticMatcher() {
+      @Override
+      public long match(MatchRecords records, BlockingIndex index,
+          int firstQueryRecord, MatchHandler handler)
+          throws InterruptedException {
+        fullMatches[0]++;
+        return super.match(records, index, firstQueryRecord, handler);
+      }
+    });
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Jones", "Mary", "987-65-4321"));
+    proc.master.add(newPatient("3", "Smyth", "John", "123-45-6789"));
+    proc.master.add(newPatient("4", "Brown", "Anne", "555-12-3456"));
+
+    Bundle response = proc.buildResponse(newRequest(false));
+    assertEquals(1, getLinkedRecords(response).size());
+
+    // an unchanged version is not scored again; a new one is
+    final Patient changed = newPatient("4", "Jones", "Mary", "987-65-4321");
+    changed.getMeta().setVersionId("2");
+    proc.updated.add(changed);
+    proc.updated.add(newPatient("3", "Smyth", "John", "123-45-6789"));
+    response = proc.buildResponse(newRequest(false));
+    assertEquals(1, fullMatches[0]);
+    assertEquals("Deduplication Complete",
+        getOutcome(response).getIssue().get(0).getDetails().getText());
+
+    final List<BundleEntryComponent> links = getLinkedRecords(response);
+    assertEquals(2, links.size());
+    assertEquals(SERVER_BASE + "Patient/1", links.get(0).getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/3", links.get(0).getLink().get(1).getUrl());
+    assertEquals(SERVER_BASE + "Patient/2", links.get(1).getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/4", links.get(1).getLink().get(1).getUrl());
+  }
+
+  @Test
+  public void testDeletedMasterRecordsDropped() {
+    final FakeProcessor proc = new FakeProcessor();
+    proc.setRecordCache(new RecordSetCache());
+    proc.master.add(newPatient("1", "Smith", "John", "123-45-6789"));
+    proc.master.add(newPatient("2", "Jones", "Mary", "987-65-4321"));
+    proc.master.add(newPatient("3", "Smyth", "John", "123-45-6789"));
+
+    Bundle response = proc.buildResponse(newRequest(false));
+    assertEquals(1, getLinkedRecords(response).size());
+
+    // a deleted record is not returned by the search for updated records
+    proc.master.remove(0);
+    final Patient added = newPatient("5", "Jones", "Mary", "987-65-4321");
+    proc.master.add(added);
+    proc.updated.add(added);
+    response = proc.buildResponse(newRequest(false));
+
+    final List<BundleEntryComponent> links = getLinkedRecords(response);
+    assertEquals(1, links.size());
+    assertEquals(SERVER_BASE + "Patient/2", links.get(0).getFullUrl());
+    assertEquals(SERVER_BASE + "Patient/5", links.get(0).getLink().get(1).getUrl());
+
+    // the set kept holds only the records that remain
+    proc.updated.clear();
+    proc.master.remove(0);
+    response = proc.buildResponse(newRequest(false));
+    assertEquals(0, getLinkedRecords(response).size());
+    assertEquals("No Matches Found",
+        getOutcome(response).getIssue().get(0).getDetails().getText());
+  }
+
+  @Test
+  public void testMasterSetsLockedSeparately() throws Exception {
+    final CountDownLatch retrieving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ProbabilisticRecordMatchRequestProcessor proc =
+        new ProbabilisticRecordMatchRequestProcessor() {
+          @Override
+          protected int retrieveRecords(String searchUrl, String serverBase,
+              MatchRecords records) throws IOException {
+            if (searchUrl.contains("family=m")) {
+              // hold the lock of master set m until released
+              retrieving.countDown();
+              try {
+                release.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            final List<Resource> resources = new ArrayList<Resource>();
+            resources.add(newPatient("1", "Smith", "John", "123-45-6789"));
+            addRecords(records, resources, serverBase, newFormat());
+            return 1;
+          }
+        };
+    proc.setRecordCache(new RecordSetCache());
+
+    final Thread first = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        proc.buildResponse(newRequest(false, "m"));
+      }
+    });
+    first.start();
+    assertTrue(retrieving.await(5, TimeUnit.SECONDS));
+
+    // a request for another master set does not wait for set m
+    final Bundle[] response = new Bundle[1];
+    final Thread second = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        response[0] = proc.buildResponse(newRequest(false, "x"));
+      }
+    });
+    second.start();
+    second.join(5000);
+    final boolean finished = !second.isAlive();
+    release.countDown();
+    first.join(5000);
+
+    assertTrue("second request waited for another master set", finished);
+    assertEquals(ResponseType.OK, getResponseCode(response[0]));
+  }
+
+  private static final class FakeProcessor
+      extends ProbabilisticRecordMatchRequestProcessor {
+    final List<Resource> master = new ArrayList<Resource>();
+    final List<Resource> query = new ArrayList<Resource>();
+    /** master records updated since the last retrieval. */
+    final List<Resource> updated = new ArrayList<Resource>();
+    final List<String> searchUrls = new ArrayList<String>();
+
+    @Override
+    protected int retrieveRecords(String searchUrl, String serverBase,
+        MatchRecords records) throws IOException {
+      assertEquals(SERVER_BASE, serverBase);
+      searchUrls.add(searchUrl);
+      final List<Resource> resources = searchUrl.contains("family=q") ? query
+          : searchUrl.contains("_lastUpdated=ge") ? updated : master;
+      final int before = records.size();
+      addRecords(records, resources, serverBase, newFormat());
+      return records.size() - before;
+    }
+
+    @Override
+    protected Set<String> retrieveFullUrls(String searchUrl,
+        String serverBase) throws IOException {
+      assertEquals(SERVER_BASE, serverBase);
+      final Set<String> fullUrls = new HashSet<String>();
+      for (Resource r : master) {
+        fullUrls.add(serverBase + r.getIdElement().getResourceType() + "/"
+            + r.getIdElement().getIdPart());
+      }
+      return fullUrls;
+    }
+  }
+
+  private static Patient newPatient(String id, String family, String given,
+      String ssn) {
+    final Patient patient = new Patient();
+    patient.setId("Patient/" + id);
+    patient.getMeta().setVersionId("1");
+    patient.addName().addFamily(family).addGiven(given);
+    patient.setGender(AdministrativeGender.MALE);
+    patient.setBirthDate(new GregorianCalendar(1970, 2, 15).getTime());
+    patient.addIdentifier().setSystem("SSN").setValue(ssn);
+    return patient;
+  }
+
+  private static Bundle newRequest(boolean linkage) {
+    return newRequest(linkage, "m");
+  }
+
+  private static Bundle newRequest(boolean linkage, String masterFamily) {
+    final Bundle msg = new Bundle();
+    msg.setId("msg1");
+    msg.setType(BundleType.MESSAGE);
+
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId("hdr1");
+    hdr.setEvent(new Coding().setSystem("http://github.com/mitre/ptmatch/fhir/message-events")
+        .setCode("record-match"));
+    final MessageSourceComponent src = new MessageSourceComponent();
+    src.setName("ptmatch-test-harness");
+    src.setEndpoint("http://localhost:3000");
+    hdr.setSource(src);
+    final MessageDestinationComponent dest = new MessageDestinationComponent();
+    dest.setName("ptmatchadapter");
+    dest.setEndpoint("http://mitre.org/ptmatchadapter");
+    hdr.addDestination(dest);
+    msg.addEntry().setFullUrl("urn:uuid:hdr1").setResource(hdr);
+
+    msg.addEntry().setFullUrl("urn:uuid:p1")
+        .setResource(newSearchParameters("master", masterFamily));
+    if (linkage) {
+      msg.addEntry().setFullUrl("urn:uuid:p2")
+          .setResource(newSearchParameters("query", "q"));
+    }
+    return msg;
+  }
+
+  private static Parameters newSearchParameters(String type, String family) {
+    final Parameters searchExpr = new Parameters();
+    searchExpr.addParameter().setName("resourceUrl")
+        .setValue(new UriType(SERVER_BASE + "Patient"));
+    searchExpr.addParameter().setName("family")
+        .setValue(new StringType(family));
+
+    final Parameters params = new Parameters();
+    params.addParameter().setName("type").setValue(new StringType(type));
+    params.addParameter().setName("resourceType")
+        .setValue(new StringType("Patient"));
+    params.addParameter().setName("searchExpression").setResource(searchExpr);
+    return params;
+  }
+
+  private static ResponseType getResponseCode(Bundle response) {
+    return ((MessageHeader) response.getEntry().get(0).getResource())
+        .getResponse().getCode();
+  }
+
+  private static OperationOutcome getOutcome(Bundle response) {
+    return (OperationOutcome) response.getEntry().get(1).getResource();
+  }
+
+  private static List<BundleEntryComponent> getLinkedRecords(Bundle response) {
+    final List<BundleEntryComponent> links = new ArrayList<BundleEntryComponent>();
+    for (BundleEntryComponent entry : response.getEntry()) {
+      if (entry.getResource() == null) {
+        links.add(entry);
+      }
+    }
+    return links;
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PushMessageReceiverTest {
+
+  private static final String DESTINATION = "http://acme.com/record-matcher";
+
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  private CamelContext camelContext;
+
+  private PushMessageReceiver receiver;
+
+  private Map<String, Object> respHdrs;
+
+  @Before
+  public void setUp() throws Exception {
+    camelContext = new DefaultCamelContext();
+    camelContext.start();
+
+    receiver = new PushMessageReceiver();
+    receiver.setFhirContext(FHIR_CONTEXT);
+    receiver.setDestinationUri(DESTINATION);
+    receiver.setProducer(camelContext.createProducerTemplate());
+    receiver.setProducerEndpointUri("seda:msgIn");
+    receiver.setNotificationEndpointUri("seda:notify");
+    receiver.setRequiredAuthorization("Bearer s3cret");
+
+    respHdrs = new HashMap<String, Object>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    camelContext.stop();
+  }
+
+  private static Bundle newMessage(String msgId, String destination) {
+    final Bundle bundle = new Bundle();
+    bundle.setId(msgId);
+    bundle.setType(BundleType.MESSAGE);
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId(msgId);
+    hdr.setEvent(new Coding().setSystem("http://github.com/mitre/ptmatch/fhir/message-events")
+        .setCode("record-match"));
+    hdr.addDestination().setEndpoint(destination);
+    bundle.addEntry().setResource(hdr);
+    return bundle;
+  }
+
+  private static Map<String, Object> authorized() {
+    final Map<String, Object> reqHdrs = new HashMap<String, Object>();
+    reqHdrs.put("Authorization", "Bearer s3cret");
+    return reqHdrs;
+  }
+
+  private SedaEndpoint seda(String uri) {
+    return camelContext.getEndpoint(uri, SedaEndpoint.class);
+  }
+
+  private Bundle takeSent() {
+    final Exchange exchange = seda("seda:msgIn").getQueue().poll();
+    assertNotNull(exchange);
+    return exchange.getIn().getBody(Bundle.class);
+  }
+
+  @Test
+  public void testProcessMessageJson() {
+    final String body = FHIR_CONTEXT.newJsonParser()
+        .encodeResourceToString(newMessage("m1", DESTINATION));
+
+    assertEquals("", receiver.receive(body, authorized(), respHdrs));
+    assertEquals(202, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+
+    // sent in the same form as the results of a search
+    final Bundle sent = takeSent();
+    assertEquals(BundleType.SEARCHSET, sent.getType());
+    assertEquals(1, sent.getEntry().size());
+    final Bundle msg = (Bundle) sent.getEntry().get(0).getResource();
+    assertEquals("m1", msg.getEntry().get(0).getResource().getIdElement().getIdPart());
+    assertEquals(1, receiver.getAcceptedMessages());
+  }
+
+  @Test
+  public void testNotificationBundleXml() {
+    final Bundle notification = new Bundle();
+    notification.setType(BundleType.COLLECTION);
+    notification.addEntry().setResource(newMessage("m1", DESTINATION));
+    notification.addEntry().setResource(newMessage("m2", "http://elsewhere.org/matcher"));
+    notification.addEntry().setResource(newMessage("m3", DESTINATION));
+    final String body = FHIR_CONTEXT.newXmlParser().encodeResourceToString(notification);
+
+    receiver.receive(body, authorized(), respHdrs);
+    assertEquals(202, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(2, takeSent().getEntry().size());
+    assertEquals(2, receiver.getAcceptedMessages());
+    assertEquals(1, receiver.getIgnoredMessages());
+  }
+
+  @Test
+  public void testMessageForOtherDestinationIgnored() {
+    final String body = FHIR_CONTEXT.newJsonParser()
+        .encodeResourceToString(newMessage("m1", "http://elsewhere.org/matcher"));
+
+    receiver.receive(body, authorized(), respHdrs);
+    assertEquals(202, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(0, seda("seda:msgIn").getCurrentQueueSize());
+    assertEquals(1, receiver.getIgnoredMessages());
+  }
+
+  @Test
+  public void testEmptyNotification() {
+    receiver.receive("", authorized(), respHdrs);
+    assertEquals(200, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(0, seda("seda:msgIn").getCurrentQueueSize());
+    assertEquals(1, seda("seda:notify").getCurrentQueueSize());
+  }
+
+  @Test
+  public void testMalformedBody() {
+    receiver.receive("{ not fhir", authorized(), respHdrs);
+    assertEquals(400, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+
+    respHdrs.clear();
+    final String patient = FHIR_CONTEXT.newJsonParser().encodeResourceToString(new Patient());
+    receiver.receive(patient, authorized(), respHdrs);
+    assertEquals(400, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(2, receiver.getRejectedRequests());
+  }
+
+  @Test
+  public void testRequiredAuthorization() {
+    final String body = FHIR_CONTEXT.newJsonParser()
+        .encodeResourceToString(newMessage("m1", DESTINATION));
+
+    final Map<String, Object> reqHdrs = new HashMap<String, Object>();
+    receiver.receive(body, reqHdrs, respHdrs);
+    assertEquals(401, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+
+    reqHdrs.put("Authorization", "Bearer wrong");
+    receiver.receive(body, reqHdrs, respHdrs);
+    assertEquals(401, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(0, seda("seda:msgIn").getCurrentQueueSize());
+
+    reqHdrs.put("Authorization", "Bearer s3cret");
+    receiver.receive(body, reqHdrs, respHdrs);
+    assertEquals(202, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(1, seda("seda:msgIn").getCurrentQueueSize());
+  }
+
+  @Test
+  public void testRefusedWithoutConfiguredAuthorization() {
+    receiver.setRequiredAuthorization("");
+    final String body = FHIR_CONTEXT.newJsonParser()
+        .encodeResourceToString(newMessage("m1", DESTINATION));
+
+    receiver.receive(body, new HashMap<String, Object>(), respHdrs);
+    assertEquals(401, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+
+    receiver.receive(body, authorized(), respHdrs);
+    assertEquals(401, respHdrs.get(Exchange.HTTP_RESPONSE_CODE));
+    assertEquals(0, seda("seda:msgIn").getCurrentQueueSize());
+    assertEquals(2, receiver.getRejectedRequests());
+  }
+}
@@ -0,0 +1,269 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Bundle.HTTPVerb;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.ptmatchadapter.ResultSender.MessageOutcome;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ResultSenderTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /**
+   * Records the batches and PUTs it is asked to send, answering batches as
+   * told by the test.
+   */
+  private static class FakeSender extends ResultSender {
+    final List<Bundle> batches = Collections.synchronizedList(new ArrayList<Bundle>());
+    final List<String> puts = Collections.synchronizedList(new ArrayList<String>());
+    /** body of each encoded message PUT, by id. */
+    final Map<String, String> encodedPuts = Collections
+        .synchronizedMap(new HashMap<String, String>());
+    RuntimeException batchFailure;
+    String failPutOf;
+
+    @Override
+    protected Bundle postBatch(Bundle batch) {
+      batches.add(batch);
+      if (batchFailure != null) {
+        throw batchFailure;
+      }
+      final Bundle response = new Bundle();
+      response.setType(BundleType.BATCHRESPONSE);
+      for (int i = 0; i < batch.getEntry().size(); i++) {
+        // the second entry is refused
+        response.addEntry().getResponse().setStatus(i == 1 ? "409 Conflict" : "200 OK");
+      }
+      return response;
+    }
+
+    @Override
+    protected void putMessage(Bundle bundle) {
+      final String id = bundle.getIdElement().getIdPart();
+      if (id.equals(failPutOf)) {
+        throw new InternalErrorException("server error");
+      }
+      puts.add(id);
+    }
+
+    @Override
+    protected String putEncodedMessage(String id, File encoded)
+        throws IOException {
+      encodedPuts.put(id, new String(Files.readAllBytes(encoded.toPath()),
+          StandardCharsets.UTF_8));
+      return id.equals(failPutOf) ? "500 Internal Server Error" : "200 OK";
+    }
+  }
+
+  private static Bundle newMessage(String id) {
+    final Bundle bundle = new Bundle();
+    bundle.setId(id);
+    bundle.setType(BundleType.MESSAGE);
+    return bundle;
+  }
+
+  @Test
+  public void testUnbatched() {
+    final FakeSender sender = new FakeSender();
+    sender.sendMessage(newMessage("m1"));
+    sender.sendMessage(newMessage("m2"));
+    assertEquals(Arrays.asList("m1", "m2"), sender.puts);
+    assertEquals(0, sender.batches.size());
+    assertEquals(2, sender.getSentMessages());
+  }
+
+  @Test
+  public void testBatchSizeCap() {
+    final FakeSender sender = new FakeSender();
+    sender.setBatchSize(3);
+    sender.setBatchWindowMillis(60000L);
+    sender.sendMessage(newMessage("m1"));
+    sender.sendMessage(newMessage("m2"));
+    assertEquals(0, sender.batches.size());
+    sender.sendMessage(newMessage("m3"));
+
+    assertEquals(1, sender.batches.size());
+    final Bundle batch = sender.batches.get(0);
+    assertEquals(BundleType.BATCH, batch.getType());
+    assertEquals(3, batch.getEntry().size());
+    assertEquals(HTTPVerb.PUT, batch.getEntry().get(0).getRequest().getMethod());
+    assertEquals("Bundle/m1", batch.getEntry().get(0).getRequest().getUrl());
+    assertEquals(0, sender.puts.size());
+
+    // per-entry outcomes
+    assertEquals(2, sender.getSentMessages());
+    assertEquals(1, sender.getFailedMessages());
+  }
+
+  @Test
+  public void testBatchWindow() throws InterruptedException {
+    final FakeSender sender = new FakeSender();
+    sender.setBatchSize(10);
+    sender.setBatchWindowMillis(50L);
+    sender.setBatchType("transaction");
+    sender.sendMessage(newMessage("m1"));
+    sender.sendMessage(newMessage("m2"));
+
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (sender.batches.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    sender.stop();
+    assertEquals(1, sender.batches.size());
+    assertEquals(BundleType.TRANSACTION, sender.batches.get(0).getType());
+    assertEquals(2, sender.batches.get(0).getEntry().size());
+  }
+
+  @Test
+  public void testSingleWaitingMessageIsPut() {
+    final FakeSender sender = new FakeSender();
+    sender.setBatchSize(10);
+    sender.setBatchWindowMillis(60000L);
+    sender.sendMessage(newMessage("m1"));
+    sender.flush();
+    assertEquals(Arrays.asList("m1"), sender.puts);
+    assertEquals(0, sender.batches.size());
+  }
+
+  @Test
+  public void testFallBackWhenBatchRejected() {
+    final FakeSender sender = new FakeSender();
+    sender.batchFailure = new InvalidRequestException("batch not supported");
+    sender.failPutOf = "m2";
+
+    final List<MessageOutcome> outcomes = sender.sendMessages(
+        Arrays.asList(newMessage("m1"), newMessage("m2"), newMessage("m3")));
+    assertEquals(Arrays.asList("m1", "m3"), sender.puts);
+    assertTrue(outcomes.get(0).isSuccess());
+    assertFalse(outcomes.get(1).isSuccess());
+    assertTrue(outcomes.get(1).getStatus(), outcomes.get(1).getStatus().startsWith("500"));
+    assertTrue(sender.isBatchesRejected());
+
+    // batches are not tried again
+    sender.sendMessages(Arrays.asList(newMessage("m4"), newMessage("m5")));
+    assertEquals(1, sender.batches.size());
+    assertEquals(5, sender.getIndividualPuts());
+  }
+
+  @Test
+  public void testFallBackWhenBatchFails() {
+    final FakeSender sender = new FakeSender();
+    sender.batchFailure = new InternalErrorException("unavailable");
+
+    sender.sendMessages(Arrays.asList(newMessage("m1"), newMessage("m2")));
+    assertEquals(Arrays.asList("m1", "m2"), sender.puts);
+    assertFalse(sender.isBatchesRejected());
+
+    // batches are tried again
+    sender.batchFailure = null;
+    sender.sendMessages(Arrays.asList(newMessage("m3"), newMessage("m4")));
+    assertEquals(2, sender.batches.size());
+    assertEquals(2, sender.puts.size());
+  }
+
+  /**
+   * @return a header-only message whose whole encoding is in a file
+   */
+  private Bundle newEncodedMessage(String id) throws IOException {
+    final Bundle stub = newMessage(id);
+    final File encoded = tmpFolder.newFile(id + ".json");
+    Files.write(encoded.toPath(), ("{\"resourceType\":\"Bundle\",\"id\":\""
+        + id + "\",\"entry\":[]}").getBytes(StandardCharsets.UTF_8));
+    stub.setUserData(ResultSender.ENCODED_MESSAGE, encoded);
+    return stub;
+  }
+
+  @Test
+  public void testEncodedMessagePutFromFile() throws IOException {
+    final FakeSender sender = new FakeSender();
+    sender.sendMessage(newEncodedMessage("m1"));
+
+    // the file is the body; the header-only stub is never PUT
+    assertEquals(0, sender.puts.size());
+    assertEquals("{\"resourceType\":\"Bundle\",\"id\":\"m1\",\"entry\":[]}",
+        sender.encodedPuts.get("m1"));
+    assertEquals(1, sender.getSentMessages());
+
+    sender.failPutOf = "m2";
+    try {
+      sender.sendMessage(newEncodedMessage("m2"));
+      fail("failed send expected");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("500"));
+    }
+    assertEquals(1, sender.getFailedMessages());
+  }
+
+  @Test
+  public void testEncodedMessageNotBatched() throws IOException {
+    final FakeSender sender = new FakeSender();
+    sender.setBatchSize(3);
+    sender.setBatchWindowMillis(60000L);
+    sender.sendMessage(newMessage("m1"));
+    sender.sendMessage(newEncodedMessage("m2"));
+    assertTrue(sender.encodedPuts.containsKey("m2"));
+
+    final List<MessageOutcome> outcomes = sender.sendMessages(Arrays.asList(
+        newMessage("m3"), newEncodedMessage("m4"), newMessage("m5")));
+    assertEquals(1, sender.batches.size());
+    final Bundle batch = sender.batches.get(0);
+    assertEquals(2, batch.getEntry().size());
+    assertEquals("Bundle/m3", batch.getEntry().get(0).getRequest().getUrl());
+    assertEquals("Bundle/m5", batch.getEntry().get(1).getRequest().getUrl());
+    assertTrue(sender.encodedPuts.containsKey("m4"));
+    assertEquals(0, sender.puts.size());
+
+    // outcomes in the order given; the batch refuses its second entry
+    assertEquals("m3", outcomes.get(0).getMessage().getId());
+    assertTrue(outcomes.get(0).isSuccess());
+    assertEquals("m4", outcomes.get(1).getMessage().getId());
+    assertTrue(outcomes.get(1).isSuccess());
+    assertEquals("m5", outcomes.get(2).getMessage().getId());
+    assertFalse(outcomes.get(2).isSuccess());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedBatchType() {
+    new FakeSender().setBatchType("searchset");
+  }
+}
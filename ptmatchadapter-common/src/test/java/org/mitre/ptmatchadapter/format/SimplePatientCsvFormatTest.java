@@ -18,10 +18,19 @@ package org.mitre.ptmatchadapter.format;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.jxpath.JXPathContext;
 import org.apache.commons.jxpath.Pointer;
@@ -118,7 +127,236 @@ public class SimplePatientCsvFormatTest {
     assertNotNull(matches.get(0));
   }
 
-  
+  @Test
+  public void testToCsvMatchesJXPath() {
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+    final JXPathPatientCsvFormat reference = new JXPathPatientCsvFormat();
+
+    // fixed seed so any difference is reproducible
+    final Random random = new Random(20160518L);
+    for (int i = 0; i < 2000; i++) {
+      final Patient patient = newVariedPatient(random);
+      assertEquals("row " + i, reference.toCsv(patient), fmt.toCsv(patient));
+    }
+
+    // other column configurations are compiled the same way
+    final String[] uses = { "", "OFFICIAL", "usual", "maiden" };
+    final String[] parts = { "given", "prefix", "Family", "text" };
+    fmt.setNameUses(uses);
+    fmt.setNameParts(parts);
+    reference.setNameUses(uses);
+    reference.setNameParts(parts);
+    for (int i = 0; i < 500; i++) {
+      final Patient patient = newVariedPatient(random);
+      assertEquals("row " + i, reference.toCsv(patient), fmt.toCsv(patient));
+    }
+  }
+
+  @Test
+  public void testToValuesMatchesCsv() {
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+
+    final String[] columns = fmt.getColumnNames();
+    assertArrayEquals("col titles", unquote(fmt.getHeaders()), columns);
+
+    final Random random = new Random(20160601L);
+    for (int i = 0; i < 1000; i++) {
+      final Patient patient = newVariedPatient(random);
+      final String[] values = fmt.toValues(patient);
+      assertEquals("row " + i, columns.length, values.length);
+      assertArrayEquals("row " + i, unquote(fmt.toCsv(patient)), values);
+    }
+  }
+
+  @Test
+  public void testWriteCsv() throws IOException {
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+    final Random random = new Random(20160715L);
+
+    final StringWriter writer = new StringWriter();
+    final StringBuilder appended = new StringBuilder();
+    final StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      final Patient patient = newVariedPatient(random);
+      fmt.writeCsv(patient, writer);
+      writer.write('\n');
+      // lines are appended after what the builder already holds
+      appended.append(i).append(',');
+      fmt.appendCsv(patient, appended);
+      appended.append('\n');
+      expected.append(i).append(',').append(fmt.toCsv(patient)).append('\n');
+    }
+    assertEquals(expected.toString(), appended.toString());
+    assertEquals(expected.toString().replaceAll("(?m)^[0-9]+,", ""),
+        writer.toString());
+
+    // the column titles are built once per configuration
+    assertSame(fmt.getHeaders(), fmt.getHeaders());
+    fmt.setNameParts(new String[] { "family" });
+    assertTrue(fmt.getHeaders().contains("name_official_family,name_usual_family"));
+  }
+
+  @Test
+  public void testSelectedColumns() {
+    final SimplePatientCsvFormat all = new SimplePatientCsvFormat();
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+    fmt.setColumns(new String[] { "DOB", "id", "name_official_family",
+        "identifier_SSN", "telecom_email_home" });
+
+    // selected columns keep their order in the full row
+    final String[] columns = { "id", "identifier_SSN", "name_official_family",
+        "DOB", "telecom_email_home" };
+    assertArrayEquals(columns, fmt.getColumnNames());
+    assertEquals("id,\"identifier_SSN\",name_official_family,DOB,telecom_email_home",
+        fmt.getHeaders());
+    assertArrayEquals(all.getColumnNames(), fmt.getAvailableColumnNames());
+
+    final List<String> allNames = Arrays.asList(all.getColumnNames());
+    final Random random = new Random(20160720L);
+    for (int i = 0; i < 500; i++) {
+      final Patient patient = newVariedPatient(random);
+      final String[] allFields = all.toCsv(patient).split(",", -1);
+      final String[] allValues = all.toValues(patient);
+      final StringBuilder expected = new StringBuilder();
+      final String[] expectedValues = new String[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        final int pos = allNames.indexOf(columns[c]);
+        if (c > 0) {
+          expected.append(',');
+        }
+        expected.append(allFields[pos]);
+        expectedValues[c] = allValues[pos];
+      }
+      assertEquals("row " + i, expected.toString(), fmt.toCsv(patient));
+      assertArrayEquals("row " + i, expectedValues, fmt.toValues(patient));
+    }
+
+    fmt.setColumns(null);
+    assertEquals(all.getHeaders(), fmt.getHeaders());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownColumn() {
+    new SimplePatientCsvFormat().setColumns(new String[] { "id", "fullUrl" });
+  }
+
+  @Test
+  public void testSharedBetweenThreads() throws Exception {
+    final SimplePatientCsvFormat fmt = new SimplePatientCsvFormat();
+    final Random random = new Random(20160716L);
+    final Patient[] patients = new Patient[2000];
+    final String[] expected = new String[patients.length];
+    for (int i = 0; i < patients.length; i++) {
+      patients[i] = newVariedPatient(random);
+      expected[i] = fmt.toCsv(patients[i]);
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            int mismatches = 0;
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < patients.length; i++) {
+              sb.setLength(0);
+              fmt.appendCsv(patients[i], sb);
+              if (!expected[i].equals(fmt.toCsv(patients[i]))
+                  || !expected[i].contentEquals(sb)) {
+                mismatches++;
+              }
+            }
+            return mismatches;
+          }
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(0, result.get().intValue());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Splits a line of comma-separated values and removes enclosing quotes. The
+   * generated values contain no commas or quotes of their own.
+   */
+  private static String[] unquote(String line) {
+    final String[] fields = line.split(",", -1);
+    for (int i = 0; i < fields.length; i++) {
+      final String f = fields[i];
+      if (f.length() >= 2 && f.startsWith("\"") && f.endsWith("\"")) {
+        fields[i] = f.substring(1, f.length() - 1);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Creates a patient whose optional fields are each present or absent at
+   * random, with several names, identifiers and ranked contact points.
+   */
+  private Patient newVariedPatient(Random random) {
+    final Patient p = new Patient();
+    p.setId(new ObjectId().toHexString());
+    p.setGender(AdministrativeGender.values()[random.nextInt(4)]);
+
+    final String[] systems = { "SSN", "MRN", null };
+    for (int i = random.nextInt(3); i > 0; i--) {
+      p.addIdentifier(newIdentifier(IdentifierUse.OFFICIAL,
+          systems[random.nextInt(systems.length)],
+          random.nextInt(4) == 0 ? null : String.format("%09d", random.nextInt(999999999))));
+    }
+
+    final NameUse[] nameUses = { null, NameUse.OFFICIAL, NameUse.USUAL, NameUse.MAIDEN };
+    final String[] surnames = { "Smith", "Jones", "Baldwin", "Nguyen" };
+    for (int i = random.nextInt(4); i > 0; i--) {
+      final HumanName name = HumanNameUtil.newHumanName(
+          random.nextBoolean() ? null : "Full Name " + i,
+          random.nextBoolean() ? new String[] { surnames[random.nextInt(4)] } : null,
+          random.nextBoolean() ? new String[] { "Earl", "Roy" } : null,
+          null, nameUses[random.nextInt(nameUses.length)]);
+      if (random.nextBoolean()) {
+        name.addSuffix("MD");
+      }
+      if (random.nextBoolean()) {
+        name.addPrefix("Dr");
+      }
+      p.addName(name);
+    }
+
+    if (random.nextBoolean()) {
+      p.setBirthDate(new Date((long) (random.nextFloat() * System.currentTimeMillis())));
+    }
+
+    for (int i = random.nextInt(6); i > 0; i--) {
+      final ContactPointBuilder cpb = new ContactPointBuilder();
+      if (random.nextBoolean()) {
+        cpb.phone(String.format("734.555.%04d", random.nextInt(9999)));
+      } else {
+        cpb.email("user" + random.nextInt(100) + "@example.org");
+      }
+      switch (random.nextInt(3)) {
+      case 0:
+        cpb.home();
+        break;
+      case 1:
+        cpb.work();
+        break;
+      default:
+        cpb.mobile();
+        break;
+      }
+      final ContactPoint cp = cpb.build();
+      cp.setRank(random.nextInt(3));
+      p.addTelecom(cp);
+    }
+    return p;
+  }
+
   public Patient newPatient() {
     final Patient p = new Patient();
 
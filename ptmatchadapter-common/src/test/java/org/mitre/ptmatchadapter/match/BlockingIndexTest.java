@@ -0,0 +1,120 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mitre.ptmatchadapter.match.BlockingIndex.CandidatePairHandler;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class BlockingIndexTest {
+  private static final long M = BlockingKey.MISSING;
+
+  @Test
+  public void testCandidates() {
+    // records 0, 2, 3 share a key in pass 0; 1 and 4 in pass 1
+    final long[][] keys = { { 7, 8, 7, 7, M }, { 1, 2, 3, 4, 2 } };
+    final BlockingIndex index = BlockingIndex.build(keys, 0);
+
+    assertEquals(5, index.size());
+    assertEquals(2, index.getPassCount());
+    assertEquals(2, index.getBlockCount(0));
+    assertEquals(4, index.getBlockCount(1));
+
+    final Set<String> pairs = collect(index);
+    assertEquals(4, pairs.size());
+    assertTrue(pairs.contains("0-2"));
+    assertTrue(pairs.contains("0-3"));
+    assertTrue(pairs.contains("2-3"));
+    assertTrue(pairs.contains("1-4"));
+    assertEquals(4, index.countCandidates());
+  }
+
+  @Test
+  public void testPairSharedByPassesEmittedOnce() {
+    final long[][] keys = { { 5, 5, 6 }, { 9, 9, 9 } };
+    final BlockingIndex index = BlockingIndex.build(keys, 0);
+
+    final List<String> pairs = new ArrayList<String>();
+    index.forEachCandidate(new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        pairs.add(left + "-" + right);
+      }
+    });
+    assertEquals(3, pairs.size());
+    assertEquals(3, new HashSet<String>(pairs).size());
+  }
+
+  @Test
+  public void testLargeBlockSkipped() {
+    // pass 0 block of three is too large; its pairs come from pass 1 only
+    final long[][] keys = { { 1, 1, 1, 2 }, { 3, 3, M, 4 } };
+    final BlockingIndex index = BlockingIndex.build(keys, 2);
+
+    assertEquals(1, index.getSkippedBlockCount(0));
+    final Set<String> pairs = collect(index);
+    assertEquals(1, pairs.size());
+    assertTrue(pairs.contains("0-1"));
+  }
+
+  @Test
+  public void testCandidatesOfRecord() {
+    final long[][] keys = { { 7, 8, 7, 7 }, { 1, 1, 2, 1 } };
+    final BlockingIndex index = BlockingIndex.build(keys, 0);
+
+    final Set<String> pairs = new HashSet<String>();
+    final long count = index.forEachCandidateOf(3, new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        assertTrue(left < right);
+        assertTrue(pairs.add(left + "-" + right));
+      }
+    });
+    assertEquals(3, count);
+    assertTrue(pairs.contains("0-3"));
+    assertTrue(pairs.contains("2-3"));
+    assertTrue(pairs.contains("1-3"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPassLengthsDiffer() {
+    BlockingIndex.build(new long[][] { { 1, 2 }, { 1 } }, 0);
+  }
+
+  private static Set<String> collect(BlockingIndex index) {
+    final Set<String> pairs = new HashSet<String>();
+    index.forEachCandidate(new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        assertTrue(left < right);
+        assertTrue("repeated " + left + "-" + right,
+            pairs.add(left + "-" + right));
+      }
+    });
+    return pairs;
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class CachedRecordSetTest {
+  private static final String[] COLUMNS = { "name__family", "gender" };
+  private static final String SCHEMA = "name__family,gender,;ssnLast4,";
+  private static final String SETTINGS = "settings";
+
+  @Test
+  public void testUpdate() {
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith", "Jones"), 1000L);
+
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1);
+    updated.add("Patient/1", new String[] { "Smyth", "male" }, new long[] { 7 });
+    updated.add("Patient/2", new String[] { "Jones", "male" }, new long[] { 1 });
+    updated.add("Patient/3", new String[] { "Brown", null }, new long[] { 9 });
+    // the same values as before are no change
+    assertEquals(2, set.update(updated, 2000L));
+
+    final MatchRecords records = set.getRecords();
+    assertEquals(3, records.size());
+    assertEquals("SMYTH", records.getValues(0)[0]);
+    assertEquals(7, records.getKey(0, 0));
+    assertEquals("JONES", records.getValues(1)[0]);
+    assertEquals("Patient/3", records.getFullUrl(2));
+    assertEquals(1000L, set.getLoadedAt());
+    assertEquals(2000L, set.getRefreshedAt());
+    assertTrue(set.getUnmatched().get(0));
+    assertFalse(set.getUnmatched().get(1));
+    assertTrue(set.getUnmatched().get(2));
+    assertEquals(1, set.getRemovedCount());
+  }
+
+  @Test
+  public void testUpdateVersions() {
+    final MatchRecords records = new MatchRecords(COLUMNS, 1);
+    records.add("Patient/1", "1", new String[] { "Smith", "male" }, new long[] { 0 });
+    records.add("Patient/2", "1", new String[] { "Jones", "male" }, new long[] { 1 });
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA, records, 1000L);
+    set.setMatches(SETTINGS, new MatchPairs());
+
+    // a new version is a change, even with the same values
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1);
+    updated.add("Patient/1", "1", new String[] { "Smyth", "male" }, new long[] { 0 });
+    updated.add("Patient/2", "2", new String[] { "Jones", "male" }, new long[] { 1 });
+    assertEquals(1, set.update(updated, 2000L));
+    assertEquals("SMITH", set.getRecords().getValues(0)[0]);
+    assertEquals("2", set.getRecords().getVersion(1));
+    assertFalse(set.getUnmatched().get(0));
+    assertTrue(set.getUnmatched().get(1));
+  }
+
+  @Test
+  public void testReload() {
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith", "Smith", "Jones", "Jones", "Brown"), 1000L);
+    final MatchPairs matches = new MatchPairs();
+    matches.match(0, 1, 0.9);
+    matches.match(2, 3, 0.8);
+    set.setMatches(SETTINGS, matches);
+
+    // Patient/1 deleted, Patient/4 changed, Patient/6 added, others reordered
+    final MatchRecords all = new MatchRecords(COLUMNS, 1);
+    all.add("Patient/6", new String[] { "Green", "male" }, new long[] { 5 });
+    all.add("Patient/5", new String[] { "Brown", "male" }, new long[] { 4 });
+    all.add("Patient/4", new String[] { "Jonas", "male" }, new long[] { 3 });
+    all.add("Patient/3", new String[] { "Jones", "male" }, new long[] { 2 });
+    all.add("Patient/2", new String[] { "Smith", "male" }, new long[] { 1 });
+    final CachedRecordSet reloaded = set.reload(all, 2000L);
+
+    assertEquals(5, reloaded.getRecords().size());
+    assertEquals(SETTINGS, reloaded.getMatchSettings());
+    assertEquals(2000L, reloaded.getLoadedAt());
+    // neither match is between unchanged records
+    assertEquals(0, reloaded.getMatches().size());
+    assertEquals(2, reloaded.getUnmatched().cardinality());
+    assertTrue(reloaded.getUnmatched().get(0));
+    assertTrue(reloaded.getUnmatched().get(2));
+    assertEquals(2, reloaded.getRemovedCount());
+
+    final MatchPairs kept = new MatchPairs();
+    kept.match(1, 4, 0.7);
+    kept.match(3, 4, 0.6);
+    reloaded.setMatches(SETTINGS, kept);
+    final MatchRecords again = new MatchRecords(COLUMNS, 1);
+    again.add("Patient/2", new String[] { "Smith", "male" }, new long[] { 1 });
+    again.add("Patient/3", new String[] { "Jones", "male" }, new long[] { 2 });
+    again.add("Patient/5", new String[] { "Brown", "male" }, new long[] { 4 });
+    final CachedRecordSet reloadedAgain = reloaded.reload(again, 3000L);
+    assertEquals(2, reloadedAgain.getMatches().size());
+    assertEquals(0, reloadedAgain.getMatches().getLeft(0));
+    assertEquals(2, reloadedAgain.getMatches().getRight(0));
+    assertEquals(0, reloadedAgain.getMatches().getLeft(1));
+    assertEquals(1, reloadedAgain.getMatches().getRight(1));
+    assertEquals(0.6, reloadedAgain.getMatches().getScore(1), 0.);
+    assertTrue(reloadedAgain.getUnmatched().isEmpty());
+  }
+
+  @Test
+  public void testRetain() {
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith", "Smith", "Jones", "Jones", "Brown"), 1000L);
+    final MatchPairs matches = new MatchPairs();
+    matches.match(0, 1, 0.9);
+    matches.match(2, 3, 0.8);
+    set.setMatches(SETTINGS, matches);
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1);
+    updated.add("Patient/5", new String[] { "Jonas", "male" }, new long[] { 4 });
+    set.update(updated, 2000L);
+
+    assertSame(set, set.retain(new HashSet<String>(Arrays.asList("Patient/1",
+        "Patient/2", "Patient/3", "Patient/4", "Patient/5"))));
+
+    // Patient/2 deleted
+    final CachedRecordSet retained = set.retain(new HashSet<String>(
+        Arrays.asList("Patient/1", "Patient/3", "Patient/4", "Patient/5")));
+    assertEquals(4, retained.getRecords().size());
+    assertEquals("Patient/3", retained.getRecords().getFullUrl(1));
+    assertEquals(SETTINGS, retained.getMatchSettings());
+    assertEquals(1000L, retained.getLoadedAt());
+    assertEquals(2000L, retained.getRefreshedAt());
+    // the match of the deleted record is dropped, the other one moves
+    assertEquals(1, retained.getMatches().size());
+    assertEquals(1, retained.getMatches().getLeft(0));
+    assertEquals(2, retained.getMatches().getRight(0));
+    assertEquals(1, retained.getUnmatched().cardinality());
+    assertTrue(retained.getUnmatched().get(3));
+    assertEquals(2, retained.getRemovedCount());
+  }
+
+  @Test
+  public void testRematchable() {
+    final MatchRecords records = new MatchRecords(COLUMNS, 1);
+    for (int i = 0; i < 4; i++) {
+      records.add("Patient/" + i, new String[] { "Smith", "male" }, new long[] { 1 });
+    }
+    records.add("Patient/4", new String[] { "Jones", "male" }, new long[] { 2 });
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA, records, 1000L);
+    assertFalse(set.isRematchable(SETTINGS, records.index(3)));
+    set.setMatches(SETTINGS, new MatchPairs());
+    assertTrue(set.isRematchable(SETTINGS, records.index(3)));
+    assertFalse(set.isRematchable("other", records.index(3)));
+
+    // a record leaving a block too large leaves it small enough
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1);
+    updated.add("Patient/0", new String[] { "Jonas", "male" }, new long[] { 2 });
+    set.update(updated, 2000L);
+    assertFalse(set.isRematchable(SETTINGS, records.index(3)));
+    assertTrue(set.isRematchable(SETTINGS, records.index(4)));
+    assertTrue(set.isRematchable(SETTINGS, records.index(0)));
+
+    // a record joining a block makes it too large
+    set.setMatches(SETTINGS, new MatchPairs());
+    updated.set(0, new String[] { "Smith", "male" }, new long[] { 1 });
+    set.update(updated, 3000L);
+    assertFalse(set.isRematchable(SETTINGS, records.index(3)));
+    assertTrue(set.isRematchable(SETTINGS, records.index(4)));
+  }
+
+  private static MatchRecords newRecords(String... families) {
+    final MatchRecords records = new MatchRecords(COLUMNS, 1);
+    for (int i = 0; i < families.length; i++) {
+      records.add("Patient/" + (i + 1), new String[] { families[i], "male" },
+          new long[] { i });
+    }
+    return records;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.Patient;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.match.BlockingIndex.CandidatePairHandler;
+import org.mitre.ptmatchadapter.util.ContactPointBuilder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PatientBlockerTest {
+
+  @Test
+  public void testIndex() {
+    final List<Patient> patients = new ArrayList<Patient>();
+    patients.add(newPatient("Smith", 1970, 3, "123-45-6789", "734.555.1234"));
+    // same family sound and birth month
+    patients.add(newPatient("Smyth", 1970, 3, null, null));
+    // same SSN and month, different name
+    patients.add(newPatient("Jones", 1970, 3, "123456789", null));
+    // nothing in common
+    patients.add(newPatient("Brown", 1985, 11, "987-65-4321", "555-0000"));
+
+    final PatientBlocker blocker = new PatientBlocker();
+    final BlockingIndex index = blocker.index(patients);
+    assertEquals(4, index.getPassCount());
+
+    final List<String> pairs = new ArrayList<String>();
+    index.forEachCandidate(new CandidatePairHandler() {
+      @Override
+      public void candidate(int left, int right) {
+        pairs.add(left + "-" + right);
+      }
+    });
+    assertEquals(2, pairs.size());
+    assertTrue(pairs.contains("0-1"));
+    assertTrue(pairs.contains("0-2"));
+  }
+
+  @Test
+  public void testMissingKey() {
+    final PatientBlocker blocker = new PatientBlocker();
+    blocker.setPasses(new String[] { "ssnLast4", "familySoundex + birthYearMonth" });
+
+    final long[] keys = blocker.keys(newPatient("Smith", 0, 0, "6789", null));
+    assertEquals(2, keys.length);
+    assertEquals(6789L, keys[0]);
+    assertEquals(BlockingKey.MISSING, keys[1]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownKey() {
+    new PatientBlocker().setPasses(new String[] { "familySoundex+shoeSize" });
+  }
+
+  private static Patient newPatient(String family, int year, int month,
+      String ssn, String phone) {
+    final Patient patient = new Patient();
+    patient.addName().addFamily(family);
+    if (year > 0) {
+      patient.setBirthDate(
+          new GregorianCalendar(year, month - 1, 15).getTime());
+    }
+    if (ssn != null) {
+      patient.addIdentifier().setSystem(BlockingKey.SSN_SYSTEM).setValue(ssn);
+    }
+    if (phone != null) {
+      patient.addTelecom(new ContactPointBuilder().phone(phone).home().build());
+    }
+    return patient;
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ProbabilisticMatcherTest {
+  private static final String[] COLUMNS = { "identifier_SSN", "name__family",
+      "name__given", "gender", "DOB", "telecom_phone_home",
+      "telecom_phone_mobile", "telecom_email_home" };
+
+  @Test
+  public void testScore() {
+    final ProbabilisticMatcher matcher = new ProbabilisticMatcher();
+    final String[] smith = { "123-45-6789", "Smith", "John", "male",
+        "1970-03-15", "734.555.1234", "", "" };
+    final String[] smyth = { "123-45-6789", "Smyth", "Jon", "male",
+        "1970-03-15", "", "", "" };
+    final String[] other = { "987-65-4321", "Smith", "Mary", "female",
+        "1970-03-02", "734.555.9876", "", "" };
+
+    assertTrue(matcher.score(COLUMNS, smith, smith) > 0.99);
+    assertTrue(matcher.score(COLUMNS, smith, smyth) > 0.85);
+    assertTrue(matcher.score(COLUMNS, smith, other) < 0.01);
+    // blank fields are neither evidence for nor against a match
+    final String[] blank = { "", "", "", "", "", "", "", "" };
+    assertEquals(0.0001, matcher.score(COLUMNS, smith, blank), 0.00001);
+  }
+
+  @Test
+  public void testMatchField() {
+    final MatchField field = MatchField.parse("name__family:jaroWinkler:0.9:0.1:0.8");
+    assertEquals(3.17, field.getAgreementWeight(), 0.01);
+    assertEquals(-3.17, field.getDisagreementWeight(), 0.01);
+    assertEquals(field.getAgreementWeight(), field.weight("SMITH", "SMITH"), 0.001);
+    assertEquals(0., field.weight("SMITH", ""), 0.001);
+    final double partial = field.weight("SMITH", "SMYTH");
+    assertTrue(partial > field.getDisagreementWeight()
+        && partial < field.getAgreementWeight());
+    assertEquals(field.getDisagreementWeight(), field.weight("SMITH", "JONES"), 0.001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidField() {
+    new ProbabilisticMatcher().setFields(new String[] { "DOB:soundsLike:0.9:0.1" });
+  }
+
+  @Test
+  public void testMatchMultithreaded() throws InterruptedException {
+    final MatchRecords records = newRecords(20000);
+    final BlockingIndex index = records.index(1000);
+
+    final ProbabilisticMatcher single = new ProbabilisticMatcher();
+    single.setThreads(1);
+    final List<String> expected = match(single, records, index, records.size());
+
+    final ProbabilisticMatcher multi = new ProbabilisticMatcher();
+    multi.setThreads(4);
+    final List<String> actual = match(multi, records, index, records.size());
+
+    // every fifth record duplicates the one before it
+    assertEquals(4000, expected.size());
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testLinkage() throws InterruptedException {
+    final MatchRecords records = newRecords(100);
+    final BlockingIndex index = records.index(0);
+
+    final ProbabilisticMatcher matcher = new ProbabilisticMatcher();
+    // master set is the first 52 records; the duplicate 51-52 spans the sets
+    final List<String> matches = match(matcher, records, index, 52);
+    assertEquals(1, matches.size());
+    assertEquals("51-52", matches.get(0));
+  }
+
+  @Test
+  public void testRematch() throws InterruptedException {
+    final MatchRecords records = newRecords(1000);
+    final ProbabilisticMatcher matcher = new ProbabilisticMatcher();
+    final MatchPairs before = new MatchPairs();
+    matcher.match(records, records.index(0), records.size(), before);
+
+    // record 10 becomes a duplicate of 8; 12, a duplicate of 11, moves to a
+    // block of its own
+    final BitSet changed = new BitSet();
+    records.set(10, records.getValues(8).clone(), new long[] { records.getKey(0, 8) });
+    changed.set(10);
+    records.set(12, newRecords(13).getValues(12), new long[] { 12 });
+    changed.set(12);
+    final BlockingIndex index = records.index(0);
+
+    final MatchPairs kept = before.without(changed);
+    assertEquals(before.size() - 1, kept.size());
+    assertEquals(1, matcher.rematch(records, index, changed, kept));
+
+    final Set<String> expected = new HashSet<String>(
+        match(matcher, records, index, records.size()));
+    final Set<String> actual = new HashSet<String>();
+    for (int i = 0; i < kept.size(); i++) {
+      actual.add(kept.getLeft(i) + "-" + kept.getRight(i));
+    }
+    assertEquals(expected, actual);
+    assertTrue(actual.contains("8-10"));
+  }
+
+  /**
+   * @return records in which each fifth record duplicates the record before
+   *         it, with a typing error in the given name
+   */
+  private static MatchRecords newRecords(int num) {
+    final MatchRecords records = new MatchRecords(COLUMNS, 1);
+    String[] prev = null;
+    for (int i = 0; i < num; i++) {
+      final String[] values;
+      if (i % 5 == 2) {
+        values = prev.clone();
+        values[2] = prev[2] + "e";
+      } else {
+        values = new String[] { String.format("%03d-45-%04d", i % 1000, i),
+            "Family" + (i % 97), "Given" + i, i % 2 == 0 ? "male" : "female",
+            String.format("19%02d-%02d-15", i % 100, i % 12 + 1),
+            String.format("734.555.%04d", i % 10000), "", "" };
+      }
+      // block on the family name
+      records.add("http://localhost/Patient/" + i, values,
+          new long[] { values[1].toUpperCase().hashCode() });
+      prev = values;
+    }
+    return records;
+  }
+
+  private static List<String> match(ProbabilisticMatcher matcher,
+      MatchRecords records, BlockingIndex index, int firstQueryRecord)
+      throws InterruptedException {
+    final List<String> matches = new ArrayList<String>();
+    final long numMatches = matcher.match(records, index, firstQueryRecord,
+        new ProbabilisticMatcher.MatchHandler() {
+          @Override
+          public void match(int left, int right, double score) {
+            assertTrue(score >= 0.65);
+            matches.add(left + "-" + right);
+          }
+        });
+    assertEquals(matches.size(), numMatches);
+    return matches;
+  }
+}
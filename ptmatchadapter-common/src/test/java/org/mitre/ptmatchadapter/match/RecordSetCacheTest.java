@@ -0,0 +1,157 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.match;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class RecordSetCacheTest {
+  private static final String[] COLUMNS = { "name__family", "gender" };
+  private static final String SCHEMA = "name__family,gender,;ssnLast4,";
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testKey() {
+    assertEquals("http://localhost:3001 http://localhost:3001/Patient?family=a&gender=male",
+        RecordSetCache.key("http://localhost:3001/",
+            "http://localhost:3001/Patient?gender=male&family=a"));
+    assertEquals(RecordSetCache.key("http://s", "http://s/Patient?b=2&a=1&"),
+        RecordSetCache.key("http://s/", "http://s/Patient?a=1&b=2"));
+    assertEquals("http://s http://s/Patient",
+        RecordSetCache.key("http://s", "http://s/Patient/"));
+  }
+
+  @Test
+  public void testMemoryOnly() {
+    final RecordSetCache cache = new RecordSetCache();
+    assertNull(cache.get("k", SCHEMA));
+
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith"), 1000L);
+    cache.put("k", set);
+    assertSame(set, cache.get("k", SCHEMA));
+    // values computed otherwise are not reused
+    assertNull(cache.get("k", "other"));
+  }
+
+  @Test
+  public void testSaved() throws Exception {
+    final RecordSetCache cache = new RecordSetCache();
+    cache.setDirectory(tmpFolder.getRoot());
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith", "Jones"), 1000L);
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1);
+    updated.add("Patient/3", new String[] { "Brown", null }, new long[] { 9 });
+    set.update(updated, 2000L);
+    final MatchPairs matches = new MatchPairs();
+    matches.match(0, 2, 0.9);
+    set.setMatches("settings", matches);
+    updated.add("Patient/1", new String[] { "Smyth", "male" }, new long[] { 5 });
+    set.update(updated, 3000L);
+    cache.put("k", set);
+    assertEquals(1, tmpFolder.getRoot().list().length);
+
+    // a new cache reads the set from its file
+    final RecordSetCache restarted = new RecordSetCache();
+    restarted.setDirectory(tmpFolder.getRoot());
+    final CachedRecordSet read = restarted.get("k", SCHEMA);
+    assertNotNull(read);
+    assertEquals(1000L, read.getLoadedAt());
+    assertEquals(3000L, read.getRefreshedAt());
+    final MatchRecords records = read.getRecords();
+    assertEquals(3, records.size());
+    assertEquals("Patient/2", records.getFullUrl(1));
+    assertArrayEquals(new String[] { "JONES", "MALE" }, records.getValues(1));
+    assertArrayEquals(new String[] { "BROWN", null }, records.getValues(2));
+    assertEquals(9, records.getKey(0, 2));
+    assertEquals("settings", read.getMatchSettings());
+    assertEquals(1, read.getMatches().size());
+    assertEquals(2, read.getMatches().getRight(0));
+    assertEquals(0.9, read.getMatches().getScore(0), 0.);
+    assertEquals(1, read.getUnmatched().cardinality());
+    assertTrue(read.getUnmatched().get(0));
+    assertEquals(1, read.getRemovedCount());
+    assertNull(restarted.get("other key", SCHEMA));
+  }
+
+  @Test
+  public void testIndexSaved() throws Exception {
+    final RecordSetCache cache = new RecordSetCache();
+    cache.setDirectory(tmpFolder.getRoot());
+    final MatchRecords kept = new MatchRecords(COLUMNS, 1, false);
+    kept.add("Patient/1", new String[] { "Smith", "male" }, new long[] { 7 });
+    kept.add("Patient/2", new String[] { "Smyth", "male" }, new long[] { 7 });
+    kept.add("Patient/3", new String[] { "Jones", "male" }, new long[] { 8 });
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA, kept, 1000L);
+    final BlockingIndex index = set.getIndex(10);
+    // kept until the records change
+    assertSame(index, set.getIndex(10));
+    cache.put("k", set);
+
+    final RecordSetCache restarted = new RecordSetCache();
+    restarted.setDirectory(tmpFolder.getRoot());
+    final CachedRecordSet read = restarted.get("k", SCHEMA);
+    // values are read back as they were added
+    assertArrayEquals(new String[] { "Smith", "male" },
+        read.getRecords().getValues(0));
+    final BlockingIndex readIndex = read.getBuiltIndex();
+    assertNotNull(readIndex);
+    assertSame(readIndex, read.getIndex(10));
+    assertEquals(3, readIndex.size());
+    assertEquals(2, readIndex.getBlockCount(0));
+    assertEquals(readIndex.getBlock(0, 0), readIndex.getBlock(0, 1));
+    assertEquals(1, readIndex.countCandidates());
+
+    final MatchRecords updated = new MatchRecords(COLUMNS, 1, false);
+    updated.add("Patient/4", new String[] { "Jonas", "male" }, new long[] { 8 });
+    read.update(updated, 2000L);
+    assertEquals(2, read.getIndex(10).countCandidates());
+  }
+
+  @Test
+  public void testExpired() {
+    final RecordSetCache cache = new RecordSetCache();
+    cache.setMaxAgeSeconds(60L);
+    cache.setClockSkewSeconds(5L);
+    final CachedRecordSet set = new CachedRecordSet(SCHEMA,
+        newRecords("Smith"), 1000L);
+    assertFalse(cache.isExpired(set, 60999L));
+    assertTrue(cache.isExpired(set, 61000L));
+    assertEquals(-4000L, cache.getUpdatedSince(set));
+
+    cache.setMaxAgeSeconds(0L);
+    assertFalse(cache.isExpired(set, Long.MAX_VALUE));
+  }
+
+  private static MatchRecords newRecords(String... families) {
+    final MatchRecords records = new MatchRecords(COLUMNS, 1);
+    for (int i = 0; i < families.length; i++) {
+      records.add("Patient/" + (i + 1), new String[] { families[i], "male" },
+          new long[] { i });
+    }
+    return records;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.recordmatch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.hl7.fhir.instance.model.Bundle;
+import org.hl7.fhir.instance.model.Bundle.BundleType;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.MessageHeader.MessageDestinationComponent;
+import org.hl7.fhir.instance.model.MessageHeader.MessageSourceComponent;
+import org.hl7.fhir.instance.model.MessageHeader.ResponseType;
+import org.hl7.fhir.instance.model.Parameters;
+import org.hl7.fhir.instance.model.StringType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class LinkedRecordResultsBuilderTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu2Hl7Org();
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteTo() throws Exception {
+    final LinkedRecordResultsBuilder builder = new LinkedRecordResultsBuilder(
+        newRequest(), ResponseType.OK);
+    builder.outcomeDetailText("Deduplication Complete");
+    builder.linkedRecord("http://localhost/Patient/1",
+        "http://localhost/Patient/2", 0.9);
+    builder.linkedRecord("http://localhost/Patient/1",
+        "http://localhost/Patient/3", 0.7);
+    builder.linkedRecord("http://localhost/Patient/4",
+        "http://localhost/Patient/\"5\"\\\n\t\u0001", 0.5);
+    builder.linkedRecord("http://localhost/Patient/6",
+        "http://localhost/Patient/7", 0.123456789);
+
+    final StringWriter out = new StringWriter();
+    final Bundle msg = builder.writeTo(out, FHIR_CONTEXT);
+    assertEquals(3, msg.getEntry().size());
+
+    // the message written is the one the FHIR parser would encode
+    builder.addLinkedRecordEntries(msg);
+    final IParser parser = FHIR_CONTEXT.newJsonParser();
+    assertEquals(parser.encodeResourceToString(msg), out.toString());
+
+    final Bundle parsed = (Bundle) parser.parseResource(out.toString());
+    assertEquals(msg.getIdElement().getIdPart(), parsed.getIdElement().getIdPart());
+    assertEquals(7, parsed.getEntry().size());
+    assertEquals("http://localhost/Patient/\"5\"\\\n\t\u0001",
+        parsed.getEntry().get(5).getLink().get(1).getUrl());
+  }
+
+  @Test
+  public void testWriteToWithoutLinkedRecords() throws Exception {
+    final LinkedRecordResultsBuilder builder = new LinkedRecordResultsBuilder(
+        newRequest(), ResponseType.OK);
+    builder.outcomeDetailText("No Matches Found");
+
+    final File file = tmpFolder.newFile("results.json");
+    final Bundle msg = builder.writeTo(file, FHIR_CONTEXT);
+
+    final String written = new String(Files.readAllBytes(file.toPath()),
+        StandardCharsets.UTF_8);
+    assertEquals(FHIR_CONTEXT.newJsonParser().encodeResourceToString(msg),
+        written);
+  }
+
+  private static Bundle newRequest() {
+    final Bundle msg = new Bundle();
+    msg.setId("msg1");
+    msg.setType(BundleType.MESSAGE);
+
+    final MessageHeader hdr = new MessageHeader();
+    hdr.setId("hdr1");
+    hdr.setEvent(new Coding().setSystem("http://github.com/mitre/ptmatch/fhir/message-events")
+        .setCode("record-match"));
+    final MessageSourceComponent src = new MessageSourceComponent();
+    src.setName("ptmatch-test-harness");
+    src.setEndpoint("http://localhost:3000");
+    hdr.setSource(src);
+    final MessageDestinationComponent dest = new MessageDestinationComponent();
+    dest.setName("ptmatchadapter");
+    dest.setEndpoint("http://mitre.org/ptmatchadapter");
+    hdr.addDestination(dest);
+    msg.addEntry().setFullUrl("urn:uuid:hdr1").setResource(hdr);
+
+    final Parameters params = new Parameters();
+    params.addParameter().setName("type").setValue(new StringType("master"));
+    params.addParameter().setName("resourceType")
+        .setValue(new StringType("Patient"));
+    msg.addEntry().setFullUrl("urn:uuid:p1").setResource(params);
+    return msg;
+  }
+}
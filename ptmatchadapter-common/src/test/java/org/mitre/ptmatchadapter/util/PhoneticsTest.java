@@ -0,0 +1,63 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class PhoneticsTest {
+
+  @Test
+  public void testSoundex() {
+    assertEquals("R163", Phonetics.soundex("Robert"));
+    assertEquals("R163", Phonetics.soundex("Rupert"));
+    assertEquals("T522", Phonetics.soundex("Tymczak"));
+    assertEquals("A261", Phonetics.soundex("Ashcraft"));
+    assertEquals("P236", Phonetics.soundex("Pfister"));
+    assertEquals("H555", Phonetics.soundex("Honeyman"));
+    assertEquals("L000", Phonetics.soundex("Lee"));
+    assertEquals(Phonetics.soundex("Smith"), Phonetics.soundex("smyth"));
+    assertEquals(Phonetics.soundex("OConnor"), Phonetics.soundex("O'Connor"));
+  }
+
+  @Test
+  public void testSoundexNoLetters() {
+    assertEquals("", Phonetics.soundex(null));
+    assertEquals("", Phonetics.soundex(""));
+    assertEquals("", Phonetics.soundex("123"));
+  }
+
+  @Test
+  public void testNysiis() {
+    assertEquals("NAGT", Phonetics.nysiis("Knight"));
+    assertEquals("DYAR", Phonetics.nysiis("Dyer"));
+    assertEquals("BRAN", Phonetics.nysiis("Brown"));
+    assertEquals(Phonetics.nysiis("Brown"), Phonetics.nysiis("Braun"));
+    assertTrue(Phonetics.nysiis("Macintosh-Williamson").length() <= 6);
+  }
+
+  @Test
+  public void testNysiisNoLetters() {
+    assertEquals("", Phonetics.nysiis(null));
+    assertEquals("", Phonetics.nysiis(" - "));
+  }
+}
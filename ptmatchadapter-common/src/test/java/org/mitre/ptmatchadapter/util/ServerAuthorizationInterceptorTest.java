@@ -0,0 +1,115 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+import org.mitre.ptmatchadapter.model.ServerAuthorization;
+
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ServerAuthorizationInterceptorTest {
+
+  private static ServerAuthorization serverAuth(String serverUrl, String token) {
+    final ServerAuthorization sa = new ServerAuthorization();
+    sa.setServerUrl(serverUrl);
+    sa.setAccessToken(token);
+    return sa;
+  }
+
+  private static List<String> intercept(ServerAuthorizationInterceptor interceptor,
+      String url) {
+    final ApacheHttpRequest req = new ApacheHttpRequest(null, new HttpGet(url));
+    interceptor.interceptRequest(req);
+    return req.getAllHeaders().get("Authorization");
+  }
+
+  @Test
+  public void testTokenOfRequestedServer() {
+    final ServerAuthorizationRegistry auths = new ServerAuthorizationRegistry();
+    auths.put(serverAuth("http://a.org/fhir", "tokenA"));
+    auths.put(serverAuth("http://b.org/", "tokenB"));
+
+    final ServerAuthorizationInterceptor interceptor =
+        new ServerAuthorizationInterceptor(auths, "http://a.org/fhir");
+
+    List<String> hdr = intercept(interceptor, "http://a.org/fhir/Patient?name=x");
+    assertNotNull(hdr);
+    assertEquals(1, hdr.size());
+    assertEquals("Bearer tokenA", hdr.get(0));
+
+    // absolute url naming another server carries that server's token
+    hdr = intercept(interceptor, "http://b.org/Patient");
+    assertEquals("Bearer tokenB", hdr.get(0));
+
+    hdr = intercept(interceptor, "http://a.org/fhir?_getpages=abc");
+    assertEquals("Bearer tokenA", hdr.get(0));
+  }
+
+  @Test
+  public void testNoTokenForUnauthorizedServer() {
+    final ServerAuthorizationRegistry auths = new ServerAuthorizationRegistry();
+    auths.put(serverAuth("http://a.org/fhir", "tokenA"));
+
+    final ServerAuthorizationInterceptor interceptor =
+        new ServerAuthorizationInterceptor(auths, "http://a.org/fhir");
+
+    assertNull(intercept(interceptor, "http://c.org/fhir/Patient"));
+    // base url must end at a path segment
+    assertNull(intercept(interceptor, "http://a.org/fhir2/Patient"));
+
+    assertNull(intercept(new ServerAuthorizationInterceptor(null, "http://a.org/fhir"),
+        "http://a.org/fhir/Patient"));
+  }
+
+  @Test
+  public void testAuthorizationAddedAfterCreation() {
+    final ServerAuthorizationRegistry auths = new ServerAuthorizationRegistry();
+    final ServerAuthorizationInterceptor interceptor =
+        new ServerAuthorizationInterceptor(auths, "http://a.org/fhir");
+
+    assertNull(intercept(interceptor, "http://a.org/fhir/Bundle"));
+    auths.put(serverAuth("http://a.org/fhir", "tokenA"));
+    assertEquals("Bearer tokenA",
+        intercept(interceptor, "http://a.org/fhir/Bundle").get(0));
+  }
+
+  @Test
+  public void testNoExpiredToken() {
+    final ServerAuthorizationRegistry auths = new ServerAuthorizationRegistry();
+    final ServerAuthorization sa = serverAuth("http://a.org/fhir", "tokenA");
+    sa.setExpiresAt(new Date(System.currentTimeMillis() - 1000));
+    auths.put(sa);
+
+    final ServerAuthorizationInterceptor interceptor =
+        new ServerAuthorizationInterceptor(auths, "http://a.org/fhir");
+    assertNull(intercept(interceptor, "http://a.org/fhir/Bundle"));
+
+    sa.setExpiresAt(new Date(System.currentTimeMillis() + 60000));
+    assertEquals("Bearer tokenA",
+        intercept(interceptor, "http://a.org/fhir/Bundle").get(0));
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.ptmatchadapter.model.ServerAuthorization;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class ServerAuthorizationRegistryTest {
+
+  private static ServerAuthorization serverAuth(String id, String serverUrl,
+      Date expiresAt) {
+    final ServerAuthorization sa = new ServerAuthorization();
+    sa.setId(id);
+    sa.setServerUrl(serverUrl);
+    sa.setAccessToken("token-" + id);
+    sa.setExpiresAt(expiresAt);
+    return sa;
+  }
+
+  @Test
+  public void testNormalizeServerBase() {
+    assertEquals("http://example.org/fhir",
+        AuthorizationUtil.normalizeServerBase("HTTP://Example.ORG:80/fhir/"));
+    assertEquals("https://example.org",
+        AuthorizationUtil.normalizeServerBase("https://example.org:443//"));
+    assertEquals("https://example.org:8443/Fhir",
+        AuthorizationUtil.normalizeServerBase("https://example.org:8443/Fhir"));
+    assertEquals("http://example.org:443",
+        AuthorizationUtil.normalizeServerBase("http://example.org:443"));
+    assertEquals("http://example.org/fhir/Patient",
+        AuthorizationUtil.normalizeServerBase("http://example.org/fhir/Patient?name=x#y"));
+    assertNull(AuthorizationUtil.normalizeServerBase(null));
+  }
+
+  @Test
+  public void testLookupByEquivalentUrl() {
+    final ServerAuthorizationRegistry registry = new ServerAuthorizationRegistry();
+    final ServerAuthorization sa = serverAuth("1", "http://Example.org:80/fhir/", null);
+    registry.put(sa);
+
+    assertSame(sa, registry.get("http://example.org/fhir"));
+    assertSame(sa, registry.get("HTTP://EXAMPLE.ORG/fhir//"));
+    assertNull(registry.get("http://example.org/FHIR"));
+    assertNull(registry.get("http://example.org"));
+    assertSame(sa, registry.getById("1"));
+    assertNull(registry.getById("2"));
+  }
+
+  @Test
+  public void testFindForUrl() {
+    final ServerAuthorizationRegistry registry = new ServerAuthorizationRegistry();
+    final ServerAuthorization root = serverAuth("1", "http://a.org", null);
+    final ServerAuthorization fhir = serverAuth("2", "http://a.org/fhir", null);
+    registry.put(root);
+    registry.put(fhir);
+
+    assertSame(fhir, registry.findForUrl("http://a.org/fhir/Patient/1/_history/2"));
+    assertSame(fhir, registry.findForUrl("http://A.org:80/fhir?_getpages=x"));
+    assertSame(root, registry.findForUrl("http://a.org/fhir2/Patient"));
+    assertSame(root, registry.findForUrl("http://a.org"));
+    assertNull(registry.findForUrl("http://b.org/fhir/Patient"));
+    assertNull(registry.findForUrl(null));
+  }
+
+  @Test
+  public void testPutReplacesAndSnapshotsAreStable() {
+    final ServerAuthorizationRegistry registry = new ServerAuthorizationRegistry();
+    final ServerAuthorization first = serverAuth("1", "http://a.org/fhir", null);
+    registry.put(first);
+    registry.put(serverAuth("2", "http://b.org", null));
+
+    final List<ServerAuthorization> before = registry.getAll();
+    final ServerAuthorization second = serverAuth("3", "http://a.org/fhir/", null);
+    assertSame(first, registry.put(second));
+
+    assertEquals(2, registry.size());
+    assertSame(second, registry.get("http://a.org/fhir"));
+    assertNull(registry.getById("1"));
+    // earlier snapshot is unchanged, and order of servers is kept
+    assertSame(first, before.get(0));
+    assertSame(second, registry.getAll().get(0));
+    try {
+      before.add(second);
+      fail("snapshot must be unmodifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    assertSame(second, registry.remove("http://A.org/fhir"));
+    assertNull(registry.remove("http://a.org/fhir"));
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void testReplaceOnlyCurrent() {
+    final ServerAuthorizationRegistry registry = new ServerAuthorizationRegistry();
+    final ServerAuthorization first = serverAuth("1", "http://a.org/fhir", null);
+    registry.put(first);
+
+    final ServerAuthorization renewed = new ServerAuthorization(first);
+    renewed.setAccessToken("renewed");
+    assertTrue(registry.replace(first, renewed));
+    assertSame(renewed, registry.get("http://a.org/fhir"));
+    assertSame(renewed, registry.getById("1"));
+
+    // first is no longer registered, so a stale renewal is rejected
+    assertFalse(registry.replace(first, new ServerAuthorization(first)));
+    assertSame(renewed, registry.get("http://a.org/fhir"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPutWithoutServerUrl() {
+    new ServerAuthorizationRegistry().put(serverAuth("1", null, null));
+  }
+
+  @Test
+  public void testExpiry() {
+    final long now = 1000000L;
+    final ServerAuthorizationRegistry registry = new ServerAuthorizationRegistry() {
+      @Override
+      protected long currentTimeMillis() {
+        return now;
+      }
+    };
+    final ServerAuthorization expired = serverAuth("1", "http://a.org", new Date(now - 1));
+    final ServerAuthorization soon = serverAuth("2", "http://b.org", new Date(now + 1000));
+    final ServerAuthorization never = serverAuth("3", "http://c.org", null);
+    registry.put(expired);
+    registry.put(soon);
+    registry.put(never);
+
+    assertTrue(registry.isExpired(expired));
+    assertFalse(registry.isExpired(soon));
+    assertFalse(registry.isExpired(never));
+
+    assertSame(expired, registry.findForUrl("http://a.org/Patient"));
+    assertNull(registry.findValidForUrl("http://a.org/Patient"));
+    assertSame(soon, registry.findValidForUrl("http://b.org/Patient"));
+    assertSame(never, registry.findValidForUrl("http://c.org/Patient"));
+
+    final List<ServerAuthorization> expiring = registry.getExpiringBefore(now + 5000);
+    assertEquals(2, expiring.size());
+    assertSame(expired, expiring.get(0));
+    assertSame(soon, expiring.get(1));
+  }
+}
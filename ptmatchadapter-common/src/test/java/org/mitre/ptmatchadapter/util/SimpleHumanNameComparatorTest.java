@@ -77,5 +77,17 @@ public class SimpleHumanNameComparatorTest {
     assertTrue(shc.compare(name2, name3) > 0);
   }
 
-  
+  @Test
+  public void testCompareSuffix() {
+    HumanName name1 = 
+        HumanNameUtil.newHumanName(null, new String[] {"Duck"}, new String [] {"Daffy"});
+    HumanName name2 = 
+        HumanNameUtil.newHumanName(null, new String[] {"Duck"}, new String [] {"Daffy"});
+    name2.addSuffix("Jr");
+
+    SimpleHumanNameComparator shc = new SimpleHumanNameComparator();
+    assertTrue(shc.compare(name1, name2) < 0);
+    assertTrue(shc.compare(name2, name1) > 0);
+    assertEquals(0, shc.compare(name2, name2));
+  }
 }
@@ -0,0 +1,85 @@
+/**
+ * PtMatchAdapter - a patient matching system adapter
+ * Copyright (C) 2016 The MITRE Corporation.  ALl rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.ptmatchadapter.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Michael Los, mel@mitre.org
+ *
+ */
+public class StringSimilarityTest {
+  private static final double DELTA = 0.001;
+
+  @Test
+  public void testJaroWinkler() {
+    assertEquals(0.961, StringSimilarity.jaroWinkler("MARTHA", "MARHTA"), DELTA);
+    assertEquals(0.840, StringSimilarity.jaroWinkler("DWAYNE", "DUANE"), DELTA);
+    assertEquals(0.813, StringSimilarity.jaroWinkler("DIXON", "DICKSONX"), DELTA);
+    assertEquals(1., StringSimilarity.jaroWinkler("SMITH", "SMITH"), DELTA);
+    assertEquals(0., StringSimilarity.jaroWinkler("ABC", "XYZ"), DELTA);
+    assertEquals(0., StringSimilarity.jaroWinkler("", "XYZ"), DELTA);
+  }
+
+  @Test
+  public void testEditDistance() {
+    assertEquals(3, StringSimilarity.editDistance("kitten", "sitting"));
+    assertEquals(0, StringSimilarity.editDistance("same", "same"));
+    assertEquals(4, StringSimilarity.editDistance("", "four"));
+    assertEquals(1, StringSimilarity.editDistance("1970-03-15", "1970-03-16"));
+  }
+
+  @Test
+  public void testEditSimilarity() {
+    assertEquals(0.9, StringSimilarity.editSimilarity("1970-03-15", "1970-03-16"), DELTA);
+    assertEquals(1., StringSimilarity.editSimilarity("", ""), DELTA);
+    assertEquals(0., StringSimilarity.editSimilarity("abc", "xyz"), DELTA);
+  }
+
+  @Test
+  public void testBoundedEditDistance() {
+    assertEquals(3, StringSimilarity.editDistance("kitten", "sitting", 3));
+    assertEquals(3, StringSimilarity.editDistance("kitten", "sitting", 5));
+    assertEquals(3, StringSimilarity.editDistance("kitten", "sitting", 2));
+    assertEquals(1, StringSimilarity.editDistance("abc", "xyz", 0));
+    assertEquals(2, StringSimilarity.editDistance("a", "abcd", 1));
+    assertEquals(4, StringSimilarity.editDistance("123-45-6789", "213-45-6798", 4));
+    assertEquals(4, StringSimilarity.editDistance("123-45-6789", "213-45-6798", 3));
+
+    // agrees with the unbounded distance wherever that is within the bound
+    final String[] values = { "", "a", "ab", "ba", "abc", "acb", "kitten",
+        "sitting", "1970-03-15", "1970-05-13", "555-0101", "555-1010" };
+    for (String s1 : values) {
+      for (String s2 : values) {
+        final int distance = StringSimilarity.editDistance(s1, s2);
+        for (int max = 0; max <= 10; max++) {
+          assertEquals(s1 + " " + s2 + " " + max, Math.min(distance, max + 1),
+              StringSimilarity.editDistance(s1, s2, max));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBoundedEditSimilarity() {
+    assertEquals(0.9, StringSimilarity.editSimilarity("1970-03-15", "1970-03-16", 0.8), DELTA);
+    assertEquals(0.8, StringSimilarity.editSimilarity("1970-03-15", "1970-03-51", 0.8), DELTA);
+    assertEquals(0., StringSimilarity.editSimilarity("1970-03-15", "1970-05-31", 0.8), DELTA);
+  }
+}